@@ -0,0 +1,83 @@
+package com.example.transferapi.benchmarks;
+
+import java.util.Random;
+
+/**
+ * Picks the accounts used by benchmark operations, either uniformly or following a Zipfian distribution where a
+ * few hot accounts receive most of the traffic.
+ *
+ * The Zipfian sampler is the rejection-free method of Gray et al., "Quickly Generating Billion-Record Synthetic
+ * Databases", also used by YCSB.
+ */
+public class AccountChooser {
+
+    public static final String UNIFORM = "uniform";
+
+    public static final String ZIPFIAN = "zipfian";
+
+    private static final double THETA = 0.99;
+
+    private final int accounts;
+
+    private final boolean zipfian;
+
+    private final double alpha;
+
+    private final double zetaN;
+
+    private final double eta;
+
+    private final double halfPowTheta;
+
+    public AccountChooser(String distribution, int accounts) {
+
+        if (!UNIFORM.equals(distribution) && !ZIPFIAN.equals(distribution)) {
+            throw new IllegalArgumentException("Unknown distribution " + distribution);
+        }
+
+        this.accounts = accounts;
+        this.zipfian = ZIPFIAN.equals(distribution);
+
+        double zeta2 = zeta(2);
+        this.zetaN = zeta(accounts);
+        this.alpha = 1.0 / (1.0 - THETA);
+        this.eta = (1 - Math.pow(2.0 / accounts, 1 - THETA)) / (1 - zeta2 / zetaN);
+        this.halfPowTheta = 1 + Math.pow(0.5, THETA);
+    }
+
+    private static double zeta(int n) {
+        double sum = 0;
+        for (int i = 1; i <= n; i++) {
+            sum += 1 / Math.pow(i, THETA);
+        }
+        return sum;
+    }
+
+    public int next(Random random) {
+
+        if (!zipfian) {
+            return random.nextInt(accounts);
+        }
+
+        double u = random.nextDouble();
+        double uz = u * zetaN;
+
+        if (uz < 1) {
+            return 0;
+        }
+        if (uz < halfPowTheta) {
+            return 1;
+        }
+
+        return Math.min(accounts - 1, (int) (accounts * Math.pow(eta * u - eta + 1, alpha)));
+    }
+
+    /**
+     * @return a second account, different from the given one
+     */
+    public int nextOther(Random random, int account) {
+
+        int other = this.next(random);
+        return other != account ? other : (account + 1) % accounts;
+    }
+}
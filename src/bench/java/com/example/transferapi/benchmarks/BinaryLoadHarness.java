@@ -0,0 +1,158 @@
+package com.example.transferapi.benchmarks;
+
+import com.example.transferapi.binary.BinaryClient;
+import com.example.transferapi.binary.BinaryProtocol;
+import com.example.transferapi.binary.BinaryServer;
+import com.example.transferapi.controller.BankController;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End-to-end load test of the {@link BinaryServer}, the counterpart of {@link LoadHarness} for the binary protocol.
+ *
+ * Every client thread has its own connection and sends transfers in pipelined batches of {@code load.pipeline}
+ * requests, reading all the responses of a batch before sending the next one, and records the latency of every
+ * batch. Takes the same {@code load.*} properties as {@link LoadHarness}; a pipeline of 1 sends one request at a
+ * time, as the HTTP harness does.
+ */
+public class BinaryLoadHarness {
+
+    private static final long START_BALANCE = Long.MAX_VALUE / 4;
+
+    public static void main(String[] args) throws Exception {
+
+        int threads = Integer.getInteger("load.threads", 16);
+        int seconds = Integer.getInteger("load.seconds", 30);
+        int accounts = Integer.getInteger("load.accounts", 1000);
+        int pipeline = Integer.getInteger("load.pipeline", 32);
+        String distribution = System.getProperty("load.distribution", AccountChooser.UNIFORM);
+
+        BinaryServer server = BinaryServer.start(new InetSocketAddress("localhost", 0));
+
+        try {
+
+            for (int i = 0; i < accounts; i++) {
+                BankController.getInstance().addAccount("account " + i, START_BALANCE);
+            }
+
+            System.out.println(String.format("Running %s threads pipelining %s requests for %ss against %s accounts (%s), %s ledger executor",
+                    threads, pipeline, seconds, accounts, distribution, System.getProperty("transferapi.ledger.executor", "direct")));
+
+            AccountChooser chooser = new AccountChooser(distribution, accounts);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            AtomicLong errors = new AtomicLong();
+            InetSocketAddress address = new InetSocketAddress("localhost", server.getPort());
+
+            List<Client> clients = new ArrayList<Client>();
+            for (int t = 0; t < threads; t++) {
+                Client client = new Client(new BinaryClient(address), chooser, pipeline, deadline, errors, t);
+                clients.add(client);
+                client.start();
+            }
+
+            long requests = 0;
+            int count = 0;
+            for (Client client : clients) {
+                client.join();
+                requests += client.requests;
+                count += client.count;
+            }
+
+            long[] latencies = new long[count];
+            int offset = 0;
+            for (Client client : clients) {
+                System.arraycopy(client.latencies, 0, latencies, offset, client.count);
+                offset += client.count;
+            }
+            Arrays.sort(latencies);
+
+            System.out.println(String.format("%s requests, %s errors, %.0f requests/s",
+                    requests, errors.get(), requests / (double) seconds));
+            System.out.println(String.format("batch latency us: p50 %s, p90 %s, p99 %s, p99.9 %s, max %s",
+                    percentile(latencies, 0.5), percentile(latencies, 0.9), percentile(latencies, 0.99),
+                    percentile(latencies, 0.999), count == 0 ? 0 : latencies[count - 1]));
+
+        } finally {
+            server.close();
+        }
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        return sorted.length == 0 ? 0 : sorted[(int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1)];
+    }
+
+    private static class Client extends Thread {
+
+        private final BinaryClient client;
+
+        private final AccountChooser chooser;
+
+        private final int pipeline;
+
+        private final long deadline;
+
+        private final AtomicLong errors;
+
+        private final Random random;
+
+        private long[] latencies = new long[1 << 10];
+
+        private int count;
+
+        private long requests;
+
+        Client(BinaryClient client, AccountChooser chooser, int pipeline, long deadline, AtomicLong errors, int seed) {
+            super("binary-load-client-" + seed);
+            this.client = client;
+            this.chooser = chooser;
+            this.pipeline = pipeline;
+            this.deadline = deadline;
+            this.errors = errors;
+            this.random = new Random(seed);
+        }
+
+        @Override
+        public void run() {
+
+            try {
+                while (System.nanoTime() < deadline) {
+
+                    long start = System.nanoTime();
+
+                    for (int i = 0; i < pipeline; i++) {
+                        int source = chooser.next(random);
+                        client.transfer(source, chooser.nextOther(random, source), 1, "load");
+                    }
+                    for (int i = 0; i < pipeline; i++) {
+                        if (!BinaryProtocol.isSuccess(client.read().getStatus())) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                    requests += pipeline;
+
+                    long latency = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+
+                    if (count == latencies.length) {
+                        latencies = Arrays.copyOf(latencies, count * 2);
+                    }
+                    latencies[count++] = latency;
+                }
+            } catch (IOException e) {
+                errors.incrementAndGet();
+            } finally {
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    errors.incrementAndGet();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.transferapi.benchmarks;
+
+import com.example.transferapi.controller.BankController;
+import com.example.transferapi.model.Transaction;
+import com.example.transferapi.persistence.WriteAheadLog;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.ws.rs.WebApplicationException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the in-memory controller operations, with no write-ahead log to wait for. The thread count is set
+ * with JMH's {@code -t} option, e.g. {@code -t 1}, {@code -t 4}, {@code -t max}; the account distribution with
+ * {@code -p distribution=zipfian}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(Threads.MAX)
+public class ControllerBenchmark {
+
+    private static final long START_BALANCE = Long.MAX_VALUE / 4;
+
+    @State(Scope.Benchmark)
+    public static class Bank {
+
+        @Param({"1000"})
+        public int accounts;
+
+        @Param({AccountChooser.UNIFORM, AccountChooser.ZIPFIAN})
+        public String distribution;
+
+        BankController controller;
+
+        AccountChooser chooser;
+
+        // a fresh bank every iteration keeps the journal, and so the heap, bounded
+        @Setup(Level.Iteration)
+        public void setUp() {
+
+            controller = new BankController((WriteAheadLog) null) {};
+            for (int i = 0; i < accounts; i++) {
+                controller.addAccount("account " + i, START_BALANCE);
+            }
+            chooser = new AccountChooser(distribution, accounts);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+
+        final Random random = new Random();
+    }
+
+    @Benchmark
+    public Transaction transferMoney(Bank bank, Client client) {
+
+        int source = bank.chooser.next(client.random);
+        int target = bank.chooser.nextOther(client.random, source);
+
+        return bank.controller.transferMoneyDeferred(source, target, 1, "benchmark");
+    }
+
+    @Benchmark
+    public Transaction depositMoney(Bank bank, Client client) {
+
+        return bank.controller.depositMoneyDeferred(bank.chooser.next(client.random), 1);
+    }
+
+    @Benchmark
+    public Transaction withdrawMoney(Bank bank, Client client) {
+
+        try {
+            return bank.controller.withdrawMoneyDeferred(bank.chooser.next(client.random), 1);
+        } catch (WebApplicationException e) {
+            // the start balance makes this unreachable in practice
+            return null;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.transferapi.benchmarks;
+
+import com.example.transferapi.controller.BankController;
+import com.example.transferapi.controller.LedgerExecutor;
+import com.example.transferapi.persistence.WriteAheadLog;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Throughput of transfers handed to a ledger executor with 1, 2, 4 and 8 partitions, the ring buffer engine
+ * against executor queues. Every invocation publishes a burst of transfers and waits for all of them to be applied.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class LedgerBenchmark {
+
+    private static final long START_BALANCE = Long.MAX_VALUE / 4;
+
+    private static final int BURST = 1000;
+
+    @State(Scope.Benchmark)
+    public static class Ledger {
+
+        @Param({"1000"})
+        public int accounts;
+
+        @Param({AccountChooser.UNIFORM})
+        public String distribution;
+
+        @Param({"ring", "partitioned"})
+        public String executor;
+
+        @Param({"1", "2", "4", "8"})
+        public int partitions;
+
+        BankController controller;
+
+        AccountChooser chooser;
+
+        LedgerExecutor ledgerExecutor;
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+
+            controller = new BankController((WriteAheadLog) null) {};
+            for (int i = 0; i < accounts; i++) {
+                controller.addAccount("account " + i, START_BALANCE);
+            }
+            chooser = new AccountChooser(distribution, accounts);
+            ledgerExecutor = LedgerExecutor.create(executor, partitions);
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            ledgerExecutor.shutdown();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+
+        final Random random = new Random();
+
+        final AtomicInteger pending = new AtomicInteger();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void transferMoney(final Ledger ledger, final Client client) {
+
+        client.pending.set(BURST);
+
+        for (int i = 0; i < BURST; i++) {
+
+            final int source = ledger.chooser.next(client.random);
+            final int target = ledger.chooser.nextOther(client.random, source);
+
+            ledger.ledgerExecutor.execute(source, new Runnable() {
+                @Override
+                public void run() {
+                    ledger.controller.transferMoneyDeferred(source, target, 1, "benchmark");
+                    client.pending.decrementAndGet();
+                }
+            });
+        }
+
+        while (client.pending.get() > 0) {
+            LockSupport.parkNanos(10000);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.example.transferapi.benchmarks;
+
+import com.example.transferapi.Main;
+import org.glassfish.grizzly.http.server.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End-to-end load test of the HTTP server started by {@link Main#startServer()}.
+ *
+ * Every client thread sends transfers between accounts chosen with the configured distribution, over a keep-alive
+ * connection, for a fixed time, and records the latency of every request. Throughput and latency percentiles are
+ * printed at the end. Configured with the system properties {@code load.threads}, {@code load.seconds},
+ * {@code load.accounts} and {@code load.distribution} ({@code uniform} or {@code zipfian}); the server takes its own
+ * properties, such as {@code transferapi.ledger.executor} or {@code transferapi.grizzly.workers}, from the same JVM.
+ */
+public class LoadHarness {
+
+    private static final long START_BALANCE = Long.MAX_VALUE / 4;
+
+    public static void main(String[] args) throws Exception {
+
+        int threads = Integer.getInteger("load.threads", 16);
+        int seconds = Integer.getInteger("load.seconds", 30);
+        int accounts = Integer.getInteger("load.accounts", 1000);
+        String distribution = System.getProperty("load.distribution", AccountChooser.UNIFORM);
+
+        // keep one connection per client alive
+        System.setProperty("http.maxConnections", String.valueOf(threads));
+
+        HttpServer server = Main.startServer();
+
+        try {
+
+            for (int i = 0; i < accounts; i++) {
+                post("account", "name=account+" + i + "&startBalance=" + START_BALANCE);
+            }
+
+            System.out.println(String.format("Running %s threads for %ss against %s accounts (%s), %s ledger executor",
+                    threads, seconds, accounts, distribution, System.getProperty("transferapi.ledger.executor", "direct")));
+
+            AccountChooser chooser = new AccountChooser(distribution, accounts);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            AtomicLong errors = new AtomicLong();
+
+            List<Client> clients = new ArrayList<Client>();
+            for (int t = 0; t < threads; t++) {
+                Client client = new Client(chooser, deadline, errors, t);
+                clients.add(client);
+                client.start();
+            }
+
+            int count = 0;
+            for (Client client : clients) {
+                client.join();
+                count += client.count;
+            }
+
+            long[] latencies = new long[count];
+            int offset = 0;
+            for (Client client : clients) {
+                System.arraycopy(client.latencies, 0, latencies, offset, client.count);
+                offset += client.count;
+            }
+            Arrays.sort(latencies);
+
+            System.out.println(String.format("%s requests, %s errors, %.0f requests/s",
+                    count, errors.get(), count / (double) seconds));
+            System.out.println(String.format("latency us: p50 %s, p90 %s, p99 %s, p99.9 %s, max %s",
+                    percentile(latencies, 0.5), percentile(latencies, 0.9), percentile(latencies, 0.99),
+                    percentile(latencies, 0.999), count == 0 ? 0 : latencies[count - 1]));
+
+        } finally {
+            server.shutdownNow();
+        }
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        return sorted.length == 0 ? 0 : sorted[(int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1)];
+    }
+
+    /*
+     * Sends a form and reads the whole response, so the connection goes back to the keep-alive pool
+     */
+    private static int post(String path, String form) throws IOException {
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(Main.BASE_URI + path).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+
+        byte[] body = form.getBytes(StandardCharsets.UTF_8);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body);
+        }
+
+        int status = connection.getResponseCode();
+
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (in != null) {
+            byte[] buffer = new byte[4096];
+            while (in.read(buffer) >= 0) {
+                // drain
+            }
+            in.close();
+        }
+
+        return status;
+    }
+
+    private static class Client extends Thread {
+
+        private final AccountChooser chooser;
+
+        private final long deadline;
+
+        private final AtomicLong errors;
+
+        private final Random random;
+
+        private long[] latencies = new long[1 << 10];
+
+        private int count;
+
+        Client(AccountChooser chooser, long deadline, AtomicLong errors, int seed) {
+            super("load-client-" + seed);
+            this.chooser = chooser;
+            this.deadline = deadline;
+            this.errors = errors;
+            this.random = new Random(seed);
+        }
+
+        @Override
+        public void run() {
+
+            while (System.nanoTime() < deadline) {
+
+                int source = chooser.next(random);
+                int target = chooser.nextOther(random, source);
+
+                long start = System.nanoTime();
+                try {
+                    int status = post("transaction", "sourceAccountId=" + source + "&targetAccountId=" + target
+                            + "&amount=1&message=load");
+                    if (status != 201) {
+                        errors.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    errors.incrementAndGet();
+                }
+                long latency = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+
+                if (count == latencies.length) {
+                    latencies = Arrays.copyOf(latencies, count * 2);
+                }
+                latencies[count++] = latency;
+            }
+        }
+    }
+}
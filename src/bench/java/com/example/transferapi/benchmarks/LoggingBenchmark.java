@@ -0,0 +1,83 @@
+package com.example.transferapi.benchmarks;
+
+import com.example.transferapi.logging.EventLog;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.util.logging.Logger;
+import java.util.logging.SimpleFormatter;
+import java.util.logging.StreamHandler;
+
+/**
+ * Cost to the request thread of logging a transfer, formatted and written by {@code java.util.logging} on the
+ * calling thread as the resources used to, or queued to the {@link EventLog}. Both write through a synchronized
+ * {@link StreamHandler} to a stream that discards the bytes, so the console is left out; the {@code drop} and
+ * {@code block} overflow policies show the cost when the writer thread keeps up or not.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(java.util.concurrent.TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoggingBenchmark {
+
+    @Param({"drop", "block"})
+    public String overflow;
+
+    private Logger logger;
+
+    private EventLog eventLog;
+
+    private int sourceAccountId;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+
+        logger = Logger.getLogger(LoggingBenchmark.class.getName());
+        logger.setUseParentHandlers(false);
+        logger.addHandler(new StreamHandler(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }, new SimpleFormatter()));
+
+        eventLog = new EventLog(8192, "block".equals(overflow), 100);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        eventLog.shutdown();
+        System.out.println("\nDropped " + eventLog.getDropped() + " events");
+    }
+
+    @Benchmark
+    public void formatAndLog() {
+        int source = sourceAccountId++ & 1023;
+        logger.info(String.format("Transferring %s from account %s to account %s with message: \"%s\"",
+                1000L, source, source + 1, "Sending money for the groceries"));
+    }
+
+    @Benchmark
+    public void eventLog() {
+        int source = sourceAccountId++ & 1023;
+        eventLog.log(logger, java.util.logging.Level.INFO, "Transferring %s from account %s to account %s with message: \"%s\"",
+                1000L, source, source + 1, "Sending money for the groceries");
+    }
+}
@@ -0,0 +1,131 @@
+package com.example.transferapi.benchmarks;
+
+import com.example.transferapi.model.Account;
+import com.example.transferapi.model.Transaction;
+import com.example.transferapi.resources.ModelJson;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.json.bind.Jsonb;
+import javax.json.bind.spi.JsonbProvider;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the serialization of the response entities, with JSON-B and with the hand-written {@link ModelJson}.
+ * Both write to the same reused stream, as they do to a response.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SerializationBenchmark {
+
+    private Jsonb jsonb;
+
+    private Account account;
+
+    private Transaction transaction;
+
+    private String transactionJson;
+
+    private byte[] transactionBytes;
+
+    private ByteArrayOutputStream out;
+
+    @Setup
+    public void setUp() {
+
+        jsonb = JsonbProvider.provider().create().build();
+
+        account = new Account();
+        account.setUuid(42);
+        account.setName("benchmark account");
+        account.setStatus(Account.AccountStatus.ACTIVE);
+        account.setBalance(123456);
+        account.setVersion(7);
+
+        transaction = new Transaction();
+        transaction.setUuid(1000000);
+        transaction.setSourceAccount(42);
+        transaction.setTargetAccount(43);
+        transaction.setAmount(2500);
+        transaction.setSourceAccountStartBalance(123456);
+        transaction.setSourceAccountEndBalance(120956);
+        transaction.setTargetAccountStartBalance(1000);
+        transaction.setTargetAccountEndBalance(3500);
+        transaction.setMessage("Rent for the month of March");
+        transaction.setTimestamp(1500000000000L);
+
+        transactionJson = jsonb.toJson(transaction);
+        transactionBytes = transactionJson.getBytes(StandardCharsets.UTF_8);
+
+        out = new ByteArrayOutputStream(1024);
+    }
+
+    @Benchmark
+    public String serializeAccount() {
+        return jsonb.toJson(account);
+    }
+
+    @Benchmark
+    public String serializeTransaction() {
+        return jsonb.toJson(transaction);
+    }
+
+    @Benchmark
+    public Transaction deserializeTransaction() {
+        return jsonb.fromJson(transactionJson, Transaction.class);
+    }
+
+    @Benchmark
+    public int writeAccountJsonb() {
+        out.reset();
+        jsonb.toJson(account, out);
+        return out.size();
+    }
+
+    @Benchmark
+    public int writeAccountModelJson() throws IOException {
+        out.reset();
+        ModelJson.write(account, out);
+        return out.size();
+    }
+
+    @Benchmark
+    public int writeTransactionJsonb() {
+        out.reset();
+        jsonb.toJson(transaction, out);
+        return out.size();
+    }
+
+    @Benchmark
+    public int writeTransactionModelJson() throws IOException {
+        out.reset();
+        ModelJson.write(transaction, out);
+        return out.size();
+    }
+
+    @Benchmark
+    public Transaction readTransactionJsonb() {
+        return jsonb.fromJson(new ByteArrayInputStream(transactionBytes), Transaction.class);
+    }
+
+    @Benchmark
+    public Transaction readTransactionModelJson() throws IOException {
+        return ModelJson.readTransaction(new ByteArrayInputStream(transactionBytes));
+    }
+}
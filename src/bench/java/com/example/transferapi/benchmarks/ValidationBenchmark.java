@@ -0,0 +1,112 @@
+package com.example.transferapi.benchmarks;
+
+import com.example.transferapi.controller.BankController;
+import com.example.transferapi.controller.ValidationHelper;
+import com.example.transferapi.model.AccountStore;
+import com.example.transferapi.model.BatchOperation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.ws.rs.WebApplicationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the request validation done before every operation, on the happy path and on a rejected request.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ValidationBenchmark {
+
+    private BatchOperation transfer;
+
+    private int missingAccount;
+
+    @Setup
+    public void setUp() {
+
+        BankController controller = BankController.getInstance();
+        controller.addAccount("source", 1000);
+        controller.addAccount("target", 1000);
+
+        transfer = new BatchOperation();
+        transfer.setType(BatchOperation.OperationType.TRANSFER);
+        transfer.setSourceAccountId(0);
+        transfer.setTargetAccountId(1);
+        transfer.setAmount(10);
+        transfer.setMessage("benchmark");
+
+        missingAccount = controller.getBank().getAccounts().size();
+    }
+
+    @Benchmark
+    public void checkAccountActive() {
+        ValidationHelper.checkAccountActive(0);
+    }
+
+    @Benchmark
+    public void checkAmountPositive() {
+        ValidationHelper.checkAmountPositive(10);
+    }
+
+    @Benchmark
+    public void checkOperation() {
+        ValidationHelper.checkOperation(transfer);
+    }
+
+    /*
+     * The checks of a transfer one by one, as the resource and the controller make them
+     */
+    @Benchmark
+    public void checkTransferSeparately() {
+        AccountStore accounts = BankController.getInstance().getBank().getAccounts();
+        ValidationHelper.checkAmountPositive(10);
+        ValidationHelper.checkAccountActive(0);
+        ValidationHelper.checkAccountActive(1);
+        ValidationHelper.checkDifferentAccounts(0, 1);
+        ValidationHelper.checkAccountActive(accounts, 0);
+        ValidationHelper.checkAccountActive(accounts, 1);
+        ValidationHelper.checkSufficientFunds(0, accounts.getBalance(0), 10, "transfer");
+        ValidationHelper.checkBalanceLimit(1, accounts.getBalance(1), 10);
+    }
+
+    @Benchmark
+    public int validateTransfer() {
+        return ValidationHelper.validateTransfer(BankController.getInstance().getBank().getAccounts(), 0, 1, 10);
+    }
+
+    @Benchmark
+    public int validateOverdraft() {
+        return ValidationHelper.validateTransfer(BankController.getInstance().getBank().getAccounts(), 0, 1, 1000000);
+    }
+
+    /*
+     * A rejected transfer answered directly, as the binary protocol does: the result counted, logged and formatted
+     */
+    @Benchmark
+    public String rejectOverdraft() {
+        int result = ValidationHelper.validateTransfer(BankController.getInstance().getBank().getAccounts(), 0, 1, 1000000);
+        return ValidationHelper.rejectTransfer(result, 0, 1, 1000000);
+    }
+
+    @Benchmark
+    public int checkMissingAccount() {
+        try {
+            ValidationHelper.checkAccountExists(missingAccount);
+            return 0;
+        } catch (WebApplicationException e) {
+            return e.getResponse().getStatus();
+        }
+    }
+}
@@ -1,20 +1,43 @@
 package com.example.transferapi;
 
+import com.example.transferapi.binary.BinaryServer;
+import com.example.transferapi.controller.BankController;
+import com.example.transferapi.logging.EventLog;
+import com.example.transferapi.replication.ReplicationNode;
+import com.example.transferapi.shard.ShardNode;
 import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.grizzly.http.server.NetworkListener;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransport;
+import org.glassfish.grizzly.threadpool.ThreadPoolConfig;
 import org.glassfish.jersey.grizzly2.httpserver.GrizzlyHttpServerFactory;
 import org.glassfish.jersey.server.ResourceConfig;
 
 import java.io.IOException;
 import java.net.URI;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
 
 /**
  * Main class.
  *
  */
 public class Main {
+
+    private final static Logger L = Logger.getLogger(Main.class.getName());
+
     // Base URI the Grizzly HTTP server will listen on
     public static final String BASE_URI = "http://localhost:8080/transferapi/";
 
+    // so that several nodes of a sharded ledger can run on one machine
+    public static final String BASE_URI_PROPERTY = "transferapi.baseUri";
+
+    public static final String SELECTORS_PROPERTY = "transferapi.grizzly.selectors";
+
+    public static final String WORKERS_PROPERTY = "transferapi.grizzly.workers";
+
+    public static final String VIRTUAL_THREADS_PROPERTY = "transferapi.grizzly.virtualThreads";
+
     /**
      * Starts Grizzly HTTP server exposing JAX-RS resources defined in this application.
      * @return Grizzly HTTP server.
@@ -24,9 +47,67 @@ public class Main {
         // in com.example.transferapi package
         final ResourceConfig rc = new ResourceConfig().packages("com.example.transferapi");
 
-        // create and start a new instance of grizzly http server
-        // exposing the Jersey application at BASE_URI
-        return GrizzlyHttpServerFactory.createHttpServer(URI.create(BASE_URI), rc);
+        // create a grizzly http server exposing the Jersey application at BASE_URI, then tune its thread pools
+        // before starting it
+        HttpServer server = GrizzlyHttpServerFactory.createHttpServer(URI.create(baseUri()), rc, false);
+
+        for (NetworkListener listener : server.getListeners()) {
+            configureTransport(listener.getTransport());
+        }
+
+        try {
+            server.start();
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot start the server at " + baseUri(), e);
+        }
+
+        return server;
+    }
+
+    public static String baseUri() {
+        return System.getProperty(BASE_URI_PROPERTY, BASE_URI);
+    }
+
+    /*
+     * Selector threads accept connections and read requests; worker threads run the resource methods. With
+     * virtual threads every request gets its own virtual thread instead of a pooled worker.
+     */
+    private static void configureTransport(TCPNIOTransport transport) {
+
+        Integer selectors = Integer.getInteger(SELECTORS_PROPERTY);
+        if (selectors != null) {
+            transport.setSelectorRunnersCount(selectors);
+        }
+
+        if (Boolean.getBoolean(VIRTUAL_THREADS_PROPERTY)) {
+            ExecutorService virtualThreads = newVirtualThreadPerTaskExecutor();
+            if (virtualThreads != null) {
+                transport.setWorkerThreadPool(virtualThreads);
+                return;
+            }
+        }
+
+        Integer workers = Integer.getInteger(WORKERS_PROPERTY);
+        if (workers != null) {
+            ThreadPoolConfig config = ThreadPoolConfig.defaultConfig().copy()
+                    .setPoolName("grizzly-worker")
+                    .setCorePoolSize(workers)
+                    .setMaxPoolSize(workers);
+            transport.setWorkerThreadPoolConfig(config);
+        }
+    }
+
+    /*
+     * Looked up reflectively so the server still builds and runs on JVMs without virtual threads
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            L.warning("Virtual threads are not available on this JVM, using the worker thread pool");
+            return null;
+        }
     }
 
     /**
@@ -36,10 +117,20 @@ public class Main {
      */
     public static void main(String[] args) throws IOException {
         final HttpServer server = startServer();
+        // the binary protocol is only served when its port is set
+        final BinaryServer binaryServer = BinaryServer.fromSystemProperties();
+        // leads or follows when its properties are set
+        ReplicationNode.getInstance();
         System.out.println(String.format("Jersey app started with WADL available at "
-                + "%sapplication.wadl\nHit enter to stop it...", BASE_URI));
+                + "%sapplication.wadl\nHit enter to stop it...", baseUri()));
         System.in.read();
         server.shutdownNow();
+        if (binaryServer != null) {
+            binaryServer.close();
+        }
+        ReplicationNode.getInstance().shutdown();
+        ShardNode.getInstance().shutdown();
+        BankController.getInstance().shutdown();
+        EventLog.getInstance().shutdown();
     }
 }
-
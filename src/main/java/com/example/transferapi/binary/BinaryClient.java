@@ -0,0 +1,218 @@
+package com.example.transferapi.binary;
+
+import com.example.transferapi.model.Transaction;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Blocking client of the {@link BinaryProtocol}.
+ *
+ * Requests are buffered until {@link #flush()}, or until the buffer is full, so any number of them can be pipelined
+ * before reading the responses with {@link #read()}. Each request returns its id, which its response carries. A
+ * client is meant to be used by one thread.
+ */
+public class BinaryClient implements Closeable {
+
+    /**
+     * Response to a request; the fields set depend on the operation and the status.
+     */
+    public static class Response {
+
+        private final byte opcode;
+
+        private final int requestId;
+
+        private final int status;
+
+        private Transaction transaction;
+
+        private long balance;
+
+        private long version;
+
+        private boolean active;
+
+        private String error;
+
+        Response(byte opcode, int requestId, int status) {
+            this.opcode = opcode;
+            this.requestId = requestId;
+            this.status = status;
+        }
+
+        public byte getOpcode() {
+            return opcode;
+        }
+
+        public int getRequestId() {
+            return requestId;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * @return the transaction of a money operation or of a transaction lookup
+         */
+        public Transaction getTransaction() {
+            return transaction;
+        }
+
+        public long getBalance() {
+            return balance;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public boolean isActive() {
+            return active;
+        }
+
+        /**
+         * @return the error message when the status is not a success
+         */
+        public String getError() {
+            return error;
+        }
+    }
+
+    private final SocketChannel channel;
+
+    // in write mode
+    private final ByteBuffer output = ByteBuffer.allocate(4 + BinaryProtocol.MAX_FRAME_SIZE);
+
+    // in read mode
+    private final ByteBuffer input = ByteBuffer.allocate(4 + BinaryProtocol.MAX_FRAME_SIZE);
+
+    private int nextRequestId;
+
+    public BinaryClient(InetSocketAddress address) throws IOException {
+        this.channel = SocketChannel.open(address);
+        channel.socket().setTcpNoDelay(true);
+        input.flip();
+    }
+
+    public int transfer(int sourceAccountId, int targetAccountId, long amount, String message) throws IOException {
+        int start = this.begin(BinaryProtocol.TRANSFER, 16 + BinaryProtocol.maxSize(message));
+        output.putInt(sourceAccountId);
+        output.putInt(targetAccountId);
+        output.putLong(amount);
+        BinaryProtocol.putString(output, message);
+        return this.end(start);
+    }
+
+    public int deposit(int targetAccountId, long amount) throws IOException {
+        int start = this.begin(BinaryProtocol.DEPOSIT, 12);
+        output.putInt(targetAccountId);
+        output.putLong(amount);
+        return this.end(start);
+    }
+
+    public int withdraw(int sourceAccountId, long amount) throws IOException {
+        int start = this.begin(BinaryProtocol.WITHDRAW, 12);
+        output.putInt(sourceAccountId);
+        output.putLong(amount);
+        return this.end(start);
+    }
+
+    public int balance(int accountId) throws IOException {
+        int start = this.begin(BinaryProtocol.BALANCE, 4);
+        output.putInt(accountId);
+        return this.end(start);
+    }
+
+    public int transaction(int transactionId) throws IOException {
+        int start = this.begin(BinaryProtocol.TRANSACTION, 4);
+        output.putInt(transactionId);
+        return this.end(start);
+    }
+
+    private int begin(byte opcode, int bodySize) throws IOException {
+
+        if (output.remaining() < 4 + BinaryProtocol.HEADER_SIZE + bodySize) {
+            this.flush();
+        }
+
+        int start = output.position();
+        output.putInt(0);
+        output.put(opcode);
+        output.putInt(nextRequestId);
+        return start;
+    }
+
+    private int end(int start) {
+        output.putInt(start, output.position() - start - 4);
+        return nextRequestId++;
+    }
+
+    /**
+     * Sends the buffered requests.
+     */
+    public void flush() throws IOException {
+
+        output.flip();
+        while (output.hasRemaining()) {
+            channel.write(output);
+        }
+        output.clear();
+    }
+
+    /**
+     * Reads the next response, sending the buffered requests first.
+     */
+    public Response read() throws IOException {
+
+        if (output.position() > 0) {
+            this.flush();
+        }
+
+        this.fill(4);
+        int length = input.getInt();
+        this.fill(length);
+
+        byte opcode = input.get();
+        int requestId = input.getInt();
+        int status = input.getShort();
+        Response response = new Response(opcode, requestId, status);
+
+        if (!BinaryProtocol.isSuccess(status)) {
+            response.error = BinaryProtocol.getString(input);
+        } else if (opcode == BinaryProtocol.BALANCE) {
+            response.balance = input.getLong();
+            response.version = input.getLong();
+            response.active = input.get() == 1;
+        } else {
+            response.transaction = BinaryProtocol.getTransaction(input);
+        }
+
+        return response;
+    }
+
+    private void fill(int bytes) throws IOException {
+
+        if (input.remaining() >= bytes) {
+            return;
+        }
+
+        input.compact();
+        while (input.position() < bytes) {
+            if (channel.read(input) < 0) {
+                throw new EOFException("Connection closed by the server");
+            }
+        }
+        input.flip();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
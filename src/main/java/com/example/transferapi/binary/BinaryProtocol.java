@@ -0,0 +1,148 @@
+package com.example.transferapi.binary;
+
+import com.example.transferapi.model.Transaction;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Frames of the binary protocol, for clients that send many small operations.
+ *
+ * Every frame starts with its length, the number of bytes that follow it, as an int. Integers are big-endian and
+ * strings are an unsigned short byte count followed by UTF-8, 0xFFFF standing for null.
+ *
+ * A request is {@code length, opcode (byte), request id (int)} followed by the fields of the operation:
+ * <ul>
+ *     <li>{@link #TRANSFER}: source account (int), target account (int), amount (long), message (string)</li>
+ *     <li>{@link #DEPOSIT}: target account (int), amount (long)</li>
+ *     <li>{@link #WITHDRAW}: source account (int), amount (long)</li>
+ *     <li>{@link #BALANCE}: account (int)</li>
+ *     <li>{@link #TRANSACTION}: transaction id (int)</li>
+ * </ul>
+ *
+ * A response is {@code length, opcode, request id, status (short)}, with the status codes of the REST endpoints,
+ * followed by the transaction for the money operations and the transaction lookup, by the balance, the version
+ * and the status (byte, 1 if active) of the account for the balance lookup, or by the error message when the status
+ * is not a success. Requests may be pipelined: responses carry the id of their request and may come back in any
+ * order.
+ *
+ * A transaction is its id (int), source and target accounts (int, -1 when there is none), amount, source start and
+ * end balances, target start and end balances, timestamp (longs) and message (string).
+ */
+public final class BinaryProtocol {
+
+    public static final byte TRANSFER = 1;
+
+    public static final byte DEPOSIT = 2;
+
+    public static final byte WITHDRAW = 3;
+
+    public static final byte BALANCE = 4;
+
+    public static final byte TRANSACTION = 5;
+
+    /**
+     * Opcode and request id, after the length
+     */
+    public static final int HEADER_SIZE = 5;
+
+    /**
+     * Largest frame, length excluded
+     */
+    public static final int MAX_FRAME_SIZE = 1 << 17;
+
+    private static final int NO_ACCOUNT = -1;
+
+    private static final int NULL_STRING = 0xFFFF;
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * @return whether a status is a success
+     */
+    public static boolean isSuccess(int status) {
+        return status >= 200 && status < 300;
+    }
+
+    static void putString(ByteBuffer buffer, String string) {
+
+        if (string == null) {
+            buffer.putShort((short) NULL_STRING);
+            return;
+        }
+
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+
+        if (bytes.length >= NULL_STRING) {
+            throw new IllegalArgumentException("String of " + bytes.length + " bytes is too long");
+        }
+
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    static String getString(ByteBuffer buffer) {
+
+        int length = buffer.getShort() & 0xFFFF;
+
+        if (length == NULL_STRING) {
+            return null;
+        }
+
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+
+        String string = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+
+        return string;
+    }
+
+    /**
+     * @return the size of a string once encoded, at most
+     */
+    static int maxSize(String string) {
+        return 2 + (string == null ? 0 : string.length() * 3);
+    }
+
+    /**
+     * @return the size of a transaction once encoded, at most
+     */
+    static int maxSize(Transaction transaction) {
+        return 4 + 4 + 4 + 8 * 6 + maxSize(transaction.getMessage());
+    }
+
+    static void putTransaction(ByteBuffer buffer, Transaction transaction) {
+        buffer.putInt(transaction.getUuid());
+        buffer.putInt(transaction.getSourceAccount() == null ? NO_ACCOUNT : transaction.getSourceAccount());
+        buffer.putInt(transaction.getTargetAccount() == null ? NO_ACCOUNT : transaction.getTargetAccount());
+        buffer.putLong(transaction.getAmount());
+        buffer.putLong(transaction.getSourceAccountStartBalance());
+        buffer.putLong(transaction.getSourceAccountEndBalance());
+        buffer.putLong(transaction.getTargetAccountStartBalance());
+        buffer.putLong(transaction.getTargetAccountEndBalance());
+        buffer.putLong(transaction.getTimestamp());
+        putString(buffer, transaction.getMessage());
+    }
+
+    static Transaction getTransaction(ByteBuffer buffer) {
+
+        Transaction transaction = new Transaction();
+        transaction.setUuid(buffer.getInt());
+        int source = buffer.getInt();
+        int target = buffer.getInt();
+        transaction.setSourceAccount(source == NO_ACCOUNT ? null : source);
+        transaction.setTargetAccount(target == NO_ACCOUNT ? null : target);
+        transaction.setAmount(buffer.getLong());
+        transaction.setSourceAccountStartBalance(buffer.getLong());
+        transaction.setSourceAccountEndBalance(buffer.getLong());
+        transaction.setTargetAccountStartBalance(buffer.getLong());
+        transaction.setTargetAccountEndBalance(buffer.getLong());
+        transaction.setTimestamp(buffer.getLong());
+        transaction.setMessage(getString(buffer));
+        return transaction;
+    }
+}
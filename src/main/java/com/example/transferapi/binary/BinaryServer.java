@@ -0,0 +1,510 @@
+package com.example.transferapi.binary;
+
+import com.example.transferapi.controller.BankController;
+import com.example.transferapi.controller.ValidationHelper;
+import com.example.transferapi.model.AccountStore;
+import com.example.transferapi.model.Transaction;
+import com.example.transferapi.persistence.WriteAheadLog;
+import com.example.transferapi.replication.ReplicationNode;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Listener of the {@link BinaryProtocol}, mapped onto the same controller operations and validation rules as the
+ * REST resources.
+ *
+ * One selector thread accepts connections and reads every complete frame it has received before answering, so
+ * pipelined requests are handled in a batch. Money operations are handed to the ledger executor like the
+ * asynchronous resources and answered once durable, on whatever thread completes them; lookups are answered right
+ * away. Responses are appended to the output buffer of their connection, which the selector thread writes in one go,
+ * so the responses of a batch share a write. A connection stops being read while too many of its responses are
+ * waiting to be written. On a replication follower the money operations are refused, only the lookups are served.
+ */
+public class BinaryServer implements Closeable {
+
+    private final static Logger L = Logger.getLogger(BinaryServer.class.getName());
+
+    public static final String PORT_PROPERTY = "transferapi.binary.port";
+
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+
+    private static final int MAX_PENDING_OUTPUT = 1 << 20;
+
+    private final BankController bankController = BankController.getInstance();
+
+    private final ServerSocketChannel serverChannel;
+
+    private final Selector selector;
+
+    private final Thread thread;
+
+    // connections with responses to write
+    private final ConcurrentLinkedQueue<Connection> flushes = new ConcurrentLinkedQueue<Connection>();
+
+    private volatile boolean running = true;
+
+    private BinaryServer(InetSocketAddress address) throws IOException {
+
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                BinaryServer.this.run();
+            }
+        }, "binary-selector");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Starts a server listening on an address, port 0 for any free port.
+     */
+    public static BinaryServer start(InetSocketAddress address) throws IOException {
+
+        BinaryServer server = new BinaryServer(address);
+        server.thread.start();
+
+        L.info(String.format("Binary protocol listening on port %s", server.getPort()));
+
+        return server;
+    }
+
+    /**
+     * @return a server on the port of {@code transferapi.binary.port}, or null if it is not set
+     */
+    public static BinaryServer fromSystemProperties() throws IOException {
+
+        Integer port = Integer.getInteger(PORT_PROPERTY);
+
+        return port == null ? null : start(new InetSocketAddress(port));
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        running = false;
+        selector.wakeup();
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        selector.close();
+    }
+
+    private void run() {
+
+        while (running) {
+
+            try {
+                selector.select();
+            } catch (IOException | ClosedSelectorException e) {
+                L.log(Level.SEVERE, "Binary protocol selector failed", e);
+                return;
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                try {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        this.accept();
+                    } else {
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isWritable()) {
+                            connection.flush();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read();
+                        }
+                    }
+                } catch (IOException e) {
+                    L.log(Level.FINE, "Binary protocol connection closed", e);
+                    key.cancel();
+                    closeQuietly(key.channel());
+                }
+            }
+
+            Connection connection;
+            while ((connection = flushes.poll()) != null) {
+                try {
+                    connection.flush();
+                } catch (IOException e) {
+                    L.log(Level.FINE, "Binary protocol connection closed", e);
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+
+        SocketChannel channel = serverChannel.accept();
+
+        if (channel == null) {
+            return;
+        }
+
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            L.log(Level.FINE, "Cannot close binary protocol connection", e);
+        }
+    }
+
+    /*
+     * Handles a request frame, positioned after its header
+     */
+    private void handle(final Connection connection, final byte opcode, final int requestId, ByteBuffer frame) {
+
+        try {
+            if (opcode == BinaryProtocol.TRANSFER || opcode == BinaryProtocol.DEPOSIT || opcode == BinaryProtocol.WITHDRAW) {
+                ReplicationNode.getInstance().checkWritable();
+            }
+
+            switch (opcode) {
+
+                case BinaryProtocol.TRANSFER: {
+                    final int sourceAccountId = frame.getInt();
+                    final int targetAccountId = frame.getInt();
+                    final long amount = frame.getLong();
+                    final String message = BinaryProtocol.getString(frame);
+
+                    if (message == null) {
+                        throw ValidationHelper.rejected(Response.Status.BAD_REQUEST, "message is required");
+                    }
+
+                    int result = ValidationHelper.validateTransfer(bankController.getBank().getAccounts(),
+                            sourceAccountId, targetAccountId, amount);
+
+                    if (result != ValidationHelper.VALID) {
+                        connection.respondError(opcode, requestId, ValidationHelper.status(result),
+                                ValidationHelper.rejectTransfer(result, sourceAccountId, targetAccountId, amount));
+                        break;
+                    }
+
+                    this.submit(sourceAccountId, new Command(connection, opcode, requestId) {
+                        @Override
+                        protected Transaction apply() {
+                            return bankController.transferMoneyDeferred(sourceAccountId, targetAccountId, amount, message);
+                        }
+                    });
+                    break;
+                }
+
+                case BinaryProtocol.DEPOSIT: {
+                    final int targetAccountId = frame.getInt();
+                    final long amount = frame.getLong();
+
+                    ValidationHelper.checkAccountActive(targetAccountId);
+                    ValidationHelper.checkAmountPositive(amount);
+
+                    this.submit(targetAccountId, new Command(connection, opcode, requestId) {
+                        @Override
+                        protected Transaction apply() {
+                            return bankController.depositMoneyDeferred(targetAccountId, amount);
+                        }
+                    });
+                    break;
+                }
+
+                case BinaryProtocol.WITHDRAW: {
+                    final int sourceAccountId = frame.getInt();
+                    final long amount = frame.getLong();
+
+                    ValidationHelper.checkAccountActive(sourceAccountId);
+                    ValidationHelper.checkAmountPositive(amount);
+
+                    this.submit(sourceAccountId, new Command(connection, opcode, requestId) {
+                        @Override
+                        protected Transaction apply() {
+                            return bankController.withdrawMoneyDeferred(sourceAccountId, amount);
+                        }
+                    });
+                    break;
+                }
+
+                case BinaryProtocol.BALANCE: {
+                    int accountId = frame.getInt();
+
+                    ValidationHelper.checkAccountExists(accountId);
+
+                    connection.respondBalance(opcode, requestId, bankController.getBank().getAccounts(), accountId);
+                    break;
+                }
+
+                case BinaryProtocol.TRANSACTION: {
+                    int transactionId = frame.getInt();
+
+                    ValidationHelper.checkTransactionExists(transactionId);
+
+                    connection.respondTransaction(opcode, requestId, Response.Status.OK.getStatusCode(),
+                            bankController.getBank().getTransactions().get(transactionId));
+                    break;
+                }
+
+                default:
+                    connection.respondError(opcode, requestId, Response.Status.BAD_REQUEST.getStatusCode(),
+                            "Unknown operation " + opcode);
+            }
+
+        } catch (BufferUnderflowException e) {
+            connection.respondError(opcode, requestId, Response.Status.BAD_REQUEST.getStatusCode(),
+                    "Frame too short for operation " + opcode);
+        } catch (RuntimeException e) {
+            connection.respondError(opcode, requestId, e);
+        }
+    }
+
+    private void submit(int accountId, Command command) {
+        try {
+            bankController.getLedgerExecutor().execute(accountId, command);
+        } catch (RuntimeException e) {
+            command.connection.respondError(command.opcode, command.requestId,
+                    Response.Status.SERVICE_UNAVAILABLE.getStatusCode(), e.getMessage());
+        }
+    }
+
+    /*
+     * Money operation applied on the ledger executor and answered with its transaction once it is durable
+     */
+    private abstract class Command implements Runnable {
+
+        private final Connection connection;
+
+        private final byte opcode;
+
+        private final int requestId;
+
+        Command(Connection connection, byte opcode, int requestId) {
+            this.connection = connection;
+            this.opcode = opcode;
+            this.requestId = requestId;
+        }
+
+        protected abstract Transaction apply();
+
+        @Override
+        public void run() {
+
+            final Transaction transaction;
+            try {
+                transaction = this.apply();
+            } catch (RuntimeException e) {
+                connection.respondError(opcode, requestId, e);
+                return;
+            }
+
+            bankController.whenDurable(transaction, new WriteAheadLog.DurabilityCallback() {
+                @Override
+                public void durable() {
+                    connection.respondTransaction(opcode, requestId, Response.Status.CREATED.getStatusCode(), transaction);
+                }
+
+                @Override
+                public void failed(RuntimeException cause) {
+                    connection.respondError(opcode, requestId, cause);
+                }
+            });
+        }
+    }
+
+    private class Connection {
+
+        private final SocketChannel channel;
+
+        private SelectionKey key;
+
+        // room for the largest frame
+        private final ByteBuffer input = ByteBuffer.allocate(4 + BinaryProtocol.MAX_FRAME_SIZE);
+
+        // in write mode, guarded by the connection
+        private ByteBuffer output = ByteBuffer.allocate(OUTPUT_BUFFER_SIZE);
+
+        private boolean flushScheduled;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /*
+         * Handles every complete frame received, then writes the responses that are ready
+         */
+        void read() throws IOException {
+
+            if (channel.read(input) < 0) {
+                throw new IOException("Connection closed by the client");
+            }
+
+            input.flip();
+
+            while (input.remaining() >= 4) {
+
+                int length = input.getInt(input.position());
+
+                if (length < BinaryProtocol.HEADER_SIZE || length > BinaryProtocol.MAX_FRAME_SIZE) {
+                    throw new IOException("Invalid frame length " + length);
+                }
+
+                if (input.remaining() < 4 + length) {
+                    break;
+                }
+
+                int end = input.position() + 4 + length;
+                input.position(input.position() + 4);
+                ByteBuffer frame = input.slice();
+                frame.limit(length);
+                input.position(end);
+
+                byte opcode = frame.get();
+                int requestId = frame.getInt();
+                handle(this, opcode, requestId, frame);
+            }
+
+            input.compact();
+
+            this.flush();
+        }
+
+        void respondTransaction(byte opcode, int requestId, int status, Transaction transaction) {
+            synchronized (this) {
+                int start = this.begin(opcode, requestId, status, BinaryProtocol.maxSize(transaction));
+                BinaryProtocol.putTransaction(output, transaction);
+                this.end(start);
+            }
+        }
+
+        void respondBalance(byte opcode, int requestId, AccountStore accounts, int accountId) {
+            synchronized (this) {
+                int start = this.begin(opcode, requestId, Response.Status.OK.getStatusCode(), 17);
+                long version = accounts.getVersion(accountId);
+                output.putLong(accounts.getBalance(accountId));
+                output.putLong(version);
+                output.put((byte) (accounts.isActive(accountId) ? 1 : 0));
+                this.end(start);
+            }
+        }
+
+        void respondError(byte opcode, int requestId, RuntimeException cause) {
+
+            if (cause instanceof WebApplicationException) {
+                this.respondError(opcode, requestId, ((WebApplicationException) cause).getResponse().getStatus(),
+                        cause.getMessage());
+                return;
+            }
+
+            L.log(Level.SEVERE, "Binary protocol operation failed", cause);
+            this.respondError(opcode, requestId, Response.Status.INTERNAL_SERVER_ERROR.getStatusCode(), cause.getMessage());
+        }
+
+        void respondError(byte opcode, int requestId, int status, String message) {
+            synchronized (this) {
+                int start = this.begin(opcode, requestId, status, BinaryProtocol.maxSize(message));
+                BinaryProtocol.putString(output, message);
+                this.end(start);
+            }
+        }
+
+        private int begin(byte opcode, int requestId, int status, int bodySize) {
+
+            int size = 4 + BinaryProtocol.HEADER_SIZE + 2 + bodySize;
+            if (output.remaining() < size) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(output.capacity() * 2, output.position() + size));
+                output.flip();
+                grown.put(output);
+                output = grown;
+            }
+
+            int start = output.position();
+            output.putInt(0);
+            output.put(opcode);
+            output.putInt(requestId);
+            output.putShort((short) status);
+            return start;
+        }
+
+        private void end(int start) {
+
+            output.putInt(start, output.position() - start - 4);
+
+            // responses given on the selector thread are written once the whole batch has been read
+            if (!flushScheduled) {
+                flushScheduled = true;
+                flushes.add(this);
+                if (Thread.currentThread() != thread) {
+                    selector.wakeup();
+                }
+            }
+        }
+
+        /*
+         * Runs on the selector thread
+         */
+        synchronized void flush() throws IOException {
+
+            flushScheduled = false;
+
+            if (!key.isValid()) {
+                return;
+            }
+
+            output.flip();
+            try {
+                channel.write(output);
+            } finally {
+                output.compact();
+            }
+
+            int pending = output.position();
+            key.interestOps((pending < MAX_PENDING_OUTPUT ? SelectionKey.OP_READ : 0)
+                    | (pending > 0 ? SelectionKey.OP_WRITE : 0));
+        }
+
+        void close() {
+            key.cancel();
+            closeQuietly(channel);
+        }
+    }
+}
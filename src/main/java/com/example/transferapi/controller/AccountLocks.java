@@ -0,0 +1,134 @@
+package com.example.transferapi.controller;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Striped lock table guarding account balances.
+ *
+ * Every account maps to one stripe by its uuid. Operations that touch two accounts acquire both stripes in
+ * ascending stripe order, so two transfers can never wait on each other in a cycle. Accounts that share a
+ * stripe are guarded by the same lock, which only costs some parallelism, never correctness.
+ */
+public class AccountLocks {
+
+    private static final int DEFAULT_STRIPES = 1024;
+
+    private final ReentrantLock[] stripes;
+
+    private final int mask;
+
+    public AccountLocks() {
+        this(Integer.getInteger("transferapi.lockStripes", DEFAULT_STRIPES));
+    }
+
+    public AccountLocks(int stripeCount) {
+
+        int size = 1;
+        while (size < stripeCount) {
+            size <<= 1;
+        }
+
+        this.stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+        this.mask = size - 1;
+    }
+
+    public int stripeOf(int accountId) {
+        // spread consecutive ids so neighbouring accounts do not share stripes with a small table
+        int h = accountId * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    public void lock(int accountId) {
+        stripes[stripeOf(accountId)].lock();
+    }
+
+    public void unlock(int accountId) {
+        stripes[stripeOf(accountId)].unlock();
+    }
+
+    /**
+     * Locks the stripes of both accounts in ascending order.
+     */
+    public void lock(int firstAccountId, int secondAccountId) {
+
+        int first = stripeOf(firstAccountId);
+        int second = stripeOf(secondAccountId);
+
+        if (first == second) {
+            stripes[first].lock();
+        } else if (first < second) {
+            stripes[first].lock();
+            stripes[second].lock();
+        } else {
+            stripes[second].lock();
+            stripes[first].lock();
+        }
+    }
+
+    public void unlock(int firstAccountId, int secondAccountId) {
+
+        int first = stripeOf(firstAccountId);
+        int second = stripeOf(secondAccountId);
+
+        stripes[first].unlock();
+        if (first != second) {
+            stripes[second].unlock();
+        }
+    }
+
+    /**
+     * Locks the stripes of all the given accounts in ascending order.
+     * @return the locked stripes, to be passed to {@link #unlockStripes(int[])}
+     */
+    public int[] lockAll(int[] accountIds) {
+
+        int[] sorted = new int[accountIds.length];
+        for (int i = 0; i < accountIds.length; i++) {
+            sorted[i] = stripeOf(accountIds[i]);
+        }
+        Arrays.sort(sorted);
+
+        int count = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (count == 0 || sorted[count - 1] != sorted[i]) {
+                sorted[count++] = sorted[i];
+            }
+        }
+
+        int[] locked = Arrays.copyOf(sorted, count);
+        for (int stripe : locked) {
+            stripes[stripe].lock();
+        }
+
+        return locked;
+    }
+
+    /**
+     * Locks every stripe in ascending order, stopping all the operations on accounts.
+     * @return the locked stripes, to be passed to {@link #unlockStripes(int[])}
+     */
+    public int[] lockEverything() {
+
+        int[] locked = new int[stripes.length];
+        for (int stripe = 0; stripe < stripes.length; stripe++) {
+            stripes[stripe].lock();
+            locked[stripe] = stripe;
+        }
+
+        return locked;
+    }
+
+    public void unlockStripes(int[] lockedStripes) {
+        for (int i = lockedStripes.length - 1; i >= 0; i--) {
+            stripes[lockedStripes[i]].unlock();
+        }
+    }
+
+    public int size() {
+        return stripes.length;
+    }
+}
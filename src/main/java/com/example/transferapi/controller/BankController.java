@@ -1,16 +1,67 @@
 package com.example.transferapi.controller;
 
+import com.example.transferapi.metrics.Metrics;
 import com.example.transferapi.model.Account;
+import com.example.transferapi.model.AccountStore;
 import com.example.transferapi.model.Bank;
+import com.example.transferapi.model.BatchOperation;
+import com.example.transferapi.model.IdempotencyKeys;
+import com.example.transferapi.model.ShardTransfers;
+import com.example.transferapi.model.Money;
 import com.example.transferapi.model.Transaction;
+import com.example.transferapi.model.TransactionJournal;
+import com.example.transferapi.persistence.Checkpoint;
+import com.example.transferapi.persistence.LogCodec;
+import com.example.transferapi.persistence.WriteAheadLog;
+import com.example.transferapi.shard.ShardMap;
 
+import javax.ws.rs.WebApplicationException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class BankController {
 
     private final static Logger L = Logger.getLogger(BankController.class.getName());
 
-    private Bank bank;
+    public static final String CHECKPOINT_INTERVAL_PROPERTY = "transferapi.checkpoint.intervalSeconds";
+
+    private volatile Bank bank;
+
+    private final AccountLocks locks = new AccountLocks();
+
+    // only replaced when a replica is bootstrapped again
+    private volatile TransactionIndex index = new TransactionIndex();
+
+    private final AtomicLong clock = new AtomicLong();
+
+    private final WriteAheadLog writeAheadLog;
+
+    private final LedgerExecutor ledgerExecutor = LedgerExecutor.fromSystemProperties();
+
+    private final Object checkpointLock = new Object();
+
+    // a cut below the ids of each atomic batch being appended, by batch, see snapshot()
+    private final ConcurrentMap<Object, Integer> openBatches = new ConcurrentHashMap<Object, Integer>();
+
+    // atomic batches appended so far, counted before they are no longer open
+    private final AtomicLong closedBatches = new AtomicLong();
+
+    private ScheduledExecutorService checkpointer;
 
     public Bank getBank() {
         return bank;
@@ -22,50 +73,366 @@ public class BankController {
 
     public synchronized void addAccount(Account account) {
 
-        account.setUuid(this.getBank().getAccounts().size());
-        this.getBank().getAccounts().add(account);
+        account.setUuid(this.getBank().getAccounts().nextUuid());
+
+        if (writeAheadLog != null) {
+            writeAheadLog.logAccountCreated(account);
+        }
+
+        index.addAccount(account.getUuid());
+        this.getBank().getAccounts().add(account.getName(), account.getStatus(), account.getBalance());
+    }
+
+    public Account addAccount(String name, long startBalance) {
+
+        // the account is logged before its starting balance, so this covers both
+        Transaction transaction = this.awaitDurable(this.addAccountDeferred(name, startBalance));
+
+        return this.getBank().getAccounts().getAccount(transaction.getTargetAccount());
     }
 
-    public Account addAccount(String name, double startBalance) {
+    /*
+     * Returns the starting balance transaction of the new account, whose target is the account, before it is
+     * durable, see whenDurable.
+     */
+    public Transaction addAccountDeferred(String name, long startBalance) {
 
+        // the balance is set with the starting balance transaction, as when the log is replayed, so the account
+        // has the same version either way
         Account account = new Account();
         account.setName(name);
         account.setStatus(Account.AccountStatus.ACTIVE);
-        account.setBalance(startBalance);
-        this.addAccount(account);
+        account.setBalance(0);
+
+        Transaction transaction;
+
+        // every append happens under a stripe lock, so a checkpoint holding all of them sees no append in progress,
+        // and the history of the account is in journal order. The stripe is taken before the account exists, so its
+        // starting balance is its first transaction, and accounts get their starting balances in creation order, see
+        // snapshot()
+        synchronized (this) {
+            int uuid = this.getBank().getAccounts().nextUuid();
+            long waiting = System.nanoTime();
+            locks.lock(uuid);
+            long acquired = System.nanoTime();
+            Metrics.LOCK_WAIT.record(acquired - waiting);
+            try {
+                this.addAccount(account);
+                transaction = startingBalance(uuid, startBalance);
+                this.getBank().getAccounts().setBalance(uuid, startBalance);
+                this.addTransaction(transaction);
+            } finally {
+                locks.unlock(uuid);
+                Metrics.LOCK_HOLD.record(System.nanoTime() - acquired);
+            }
+        }
+
+        return transaction;
+
+    }
+
+
+    private static Transaction startingBalance(int accountId, long startBalance) {
 
         Transaction transaction = new Transaction();
-        transaction.setTargetAccount(account.getUuid());
+        transaction.setTargetAccount(accountId);
         transaction.setTargetAccountStartBalance(0);
         transaction.setTargetAccountEndBalance(startBalance);
         transaction.setAmount(startBalance);
-        transaction.setMessage("Starting balance of account "+account.getUuid());
-        this.addTransaction(transaction);
+        transaction.setMessage("Starting balance of account " + accountId);
+        return transaction;
+    }
+
+    /*
+     * Must be called while holding the stripes of the accounts of the transaction, which keeps both the index
+     * and the timestamps of every account in journal order.
+     */
+    public void addTransaction(Transaction transaction){
+        this.addTransaction(transaction, null);
+    }
+
+    /*
+     * The listener, if any, is called after the index, once the id of the transaction is assigned and before it is
+     * published.
+     */
+    private void addTransaction(Transaction transaction, final TransactionJournal.Index listener){
+        transaction.setTimestamp(this.now());
+        long start = System.nanoTime();
+        final TransactionIndex index = this.index;
+        // indexed before it is published, so snapshots find every published transaction in the index
+        this.getBank().getTransactions().append(transaction, listener == null ? index : new TransactionJournal.Index() {
+            @Override
+            public void add(Transaction transaction) {
+                index.add(transaction);
+                listener.add(transaction);
+            }
+        });
+        Metrics.JOURNAL_APPEND.record(System.nanoTime() - start);
+    }
+
+    /*
+     * Wall clock time that never goes backwards, so the history of an account is sorted by timestamp
+     */
+    private long now() {
+
+        long now = System.currentTimeMillis();
+
+        while (true) {
+            long last = clock.get();
+            if (now <= last) {
+                return last;
+            }
+            if (clock.compareAndSet(last, now)) {
+                return now;
+            }
+        }
+    }
+
+    public AccountLocks getLocks() {
+        return locks;
+    }
 
-        return account;
+    /**
+     * @return the write-ahead log, null when persistence is disabled
+     */
+    public WriteAheadLog getWriteAheadLog() {
+        return writeAheadLog;
+    }
+
+    /**
+     * Transactions of an account with an id greater than after and a timestamp in [from, to), in ascending order.
+     * Both ends are found with a binary search over the history of the account, so the cost is proportional to
+     * the number of transactions read from the returned list.
+     */
+    public List<Transaction> getAccountTransactions(int accountId, int after, long from, long to){
+
+        final TransactionIndex.History history = index.history(accountId);
+        final TransactionJournal journal = this.getBank().getTransactions();
+
+        // ids appended but not yet published in the journal are left out
+        int end = firstId(history, history.size(), journal.size());
+        end = firstTimestamp(history, journal, end, to);
+
+        final int start = Math.max(firstId(history, end, after + 1L), firstTimestamp(history, journal, end, from));
+        final int size = Math.max(0, end - start);
+
+        return new AbstractList<Transaction>() {
+            @Override
+            public Transaction get(int i) {
+                return journal.get(history.get(start + i));
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /*
+     * First position of the history below limit with an id of at least minId
+     */
+    private static int firstId(TransactionIndex.History history, int limit, long minId){
+
+        int low = 0;
+        int high = limit;
+
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (history.get(middle) >= minId) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+
+        return low;
+    }
+
+    /*
+     * First position of the history below limit with a timestamp of at least minTimestamp
+     */
+    private static int firstTimestamp(TransactionIndex.History history, TransactionJournal journal, int limit, long minTimestamp){
+
+        int low = 0;
+        int high = limit;
+
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (journal.getTimestamp(history.get(middle)) >= minTimestamp) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+
+        return low;
+    }
 
+    /*
+     * Waits for the write-ahead log, if enabled, to have the transaction on disk. Called after the account locks
+     * are released so that other operations on the same accounts can join the same group commit.
+     */
+    public Transaction awaitDurable(Transaction transaction) {
+
+        if (writeAheadLog != null) {
+            writeAheadLog.awaitTransaction(transaction.getUuid());
+        }
+
+        return transaction;
+    }
+
+    /**
+     * Calls back once the transaction is durable, right away when the write-ahead log is disabled. Used with the
+     * deferred operations so that no thread blocks waiting for the log.
+     */
+    public void whenDurable(Transaction transaction, WriteAheadLog.DurabilityCallback callback) {
+
+        if (writeAheadLog == null) {
+            callback.durable();
+        } else {
+            writeAheadLog.onDurable(transaction.getUuid(), callback);
+        }
+    }
+
+    /**
+     * Calls back once the account change of the ticket is durable, right away when the write-ahead log is disabled
+     * and there is no ticket.
+     */
+    public void whenDurable(WriteAheadLog.Ticket ticket, WriteAheadLog.DurabilityCallback callback) {
+
+        if (ticket == null) {
+            callback.durable();
+        } else {
+            writeAheadLog.onDurable(ticket, callback);
+        }
     }
 
+    /**
+     * Blocks until the account change or idempotency key of the ticket is durable, if there is a ticket.
+     */
+    public void awaitDurable(WriteAheadLog.Ticket ticket) {
 
-    public synchronized void addTransaction(Transaction transaction){
-        transaction.setUuid(this.getBank().getTransactions().size());
-        this.getBank().getTransactions().add(transaction);
+        if (ticket != null) {
+            writeAheadLog.await(ticket);
+        }
     }
 
-    public Transaction transferMoney(Account sourceAccount, Account targetAccount, double amount, String message){
+    /**
+     * Reserves an idempotency key for a request, unless a request already holds it.
+     *
+     * @return null if the request can go ahead, otherwise the completed entry of the original request, whose outcome
+     * is to be returned instead
+     */
+    public IdempotencyKeys.Entry reserveIdempotencyKey(String key, int fingerprint) {
+
+        ValidationHelper.checkIdempotencyKey(key);
+
+        IdempotencyKeys.Entry original = this.getBank().getIdempotencyKeys().reserve(key, fingerprint);
 
-        double sourceAccountStartBalance = sourceAccount.getBalance();
-        double targetAccountStartBalance = targetAccount.getBalance();
+        if (original != null) {
+            ValidationHelper.checkIdempotentRepeat(original, fingerprint);
+        }
+
+        return original;
+    }
 
-        double sourceAccountEndBalance = sourceAccountStartBalance - amount;
-        double targetAccountEndBalance = targetAccountStartBalance + amount;
+    /**
+     * Completes a reserved idempotency key once the transactions of its request are durable, and logs it.
+     *
+     * @return the log ticket of the key, null when the write-ahead log is disabled, before it is durable
+     */
+    public WriteAheadLog.Ticket completeIdempotencyKey(String key, int[] outcomes, String[] errors) {
 
-        sourceAccount.setBalance(sourceAccountEndBalance);
-        targetAccount.setBalance(targetAccountEndBalance);
+        IdempotencyKeys.Entry entry = this.getBank().getIdempotencyKeys().complete(key, outcomes, errors);
+
+        return writeAheadLog == null ? null : writeAheadLog.logIdempotencyKey(entry);
+    }
+
+    public void releaseIdempotencyKey(String key) {
+        this.getBank().getIdempotencyKeys().release(key);
+    }
+
+    /**
+     * Records a step of the coordinator of a cross-shard transfer and logs it.
+     *
+     * @return the log ticket of the step, null when the write-ahead log is disabled, before it is durable
+     */
+    public WriteAheadLog.Ticket recordShardDecision(ShardTransfers.Decision decision) {
+
+        this.getBank().getShardTransfers().put(decision);
+
+        return writeAheadLog == null ? null : writeAheadLog.logShardDecision(decision);
+    }
+
+    /**
+     * Records a step of a leg of a cross-shard transfer and logs it. A step that moves money is recorded from the
+     * listener of its transaction, so that its record is durable along with the transaction.
+     *
+     * @return the log ticket of the step, null when the write-ahead log is disabled, before it is durable
+     */
+    public WriteAheadLog.Ticket recordShardLeg(ShardTransfers.Leg leg) {
+
+        this.getBank().getShardTransfers().put(leg);
+
+        return writeAheadLog == null ? null : writeAheadLog.logShardLeg(leg);
+    }
+
+    public LedgerExecutor getLedgerExecutor() {
+        return ledgerExecutor;
+    }
+
+    public Transaction transferMoney(Account sourceAccount, Account targetAccount, long amount, String message){
+        return this.awaitDurable(this.transferMoneyDeferred(sourceAccount.getUuid(), targetAccount.getUuid(), amount, message));
+    }
+
+    /*
+     * Transfers are atomic with respect to the two accounts involved: both stripes are held while the status and
+     * funds are checked and the balances are moved, so transfers between unrelated accounts run in parallel.
+     * Returns before the transaction is durable, see whenDurable.
+     */
+    public Transaction transferMoneyDeferred(int sourceAccountId, int targetAccountId, long amount, String message){
+
+        ValidationHelper.checkMessage(message);
+
+        AccountStore accounts = this.getBank().getAccounts();
+        Transaction transaction;
+
+        long waiting = System.nanoTime();
+        locks.lock(sourceAccountId, targetAccountId);
+        long acquired = System.nanoTime();
+        Metrics.LOCK_WAIT.record(acquired - waiting);
+
+        try {
+
+            ValidationHelper.checkTransfer(accounts, sourceAccountId, targetAccountId, amount);
+
+            transaction = this.applyTransfer(sourceAccountId, targetAccountId, amount, message);
+
+        } finally {
+            locks.unlock(sourceAccountId, targetAccountId);
+            Metrics.LOCK_HOLD.record(System.nanoTime() - acquired);
+        }
+
+        return transaction;
+    }
+
+    private Transaction applyTransfer(int sourceAccountId, int targetAccountId, long amount, String message){
+
+        AccountStore accounts = this.getBank().getAccounts();
+
+        long sourceAccountStartBalance = accounts.getBalance(sourceAccountId);
+        long targetAccountStartBalance = accounts.getBalance(targetAccountId);
+
+        long sourceAccountEndBalance = sourceAccountStartBalance - amount;
+        long targetAccountEndBalance = targetAccountStartBalance + amount;
+
+        accounts.setBalance(sourceAccountId, sourceAccountEndBalance);
+        accounts.setBalance(targetAccountId, targetAccountEndBalance);
 
         Transaction transaction = new Transaction();
-        transaction.setSourceAccount(sourceAccount.getUuid());
-        transaction.setTargetAccount(targetAccount.getUuid());
+        transaction.setSourceAccount(sourceAccountId);
+        transaction.setTargetAccount(targetAccountId);
         transaction.setAmount(amount);
         transaction.setMessage(message);
         transaction.setSourceAccountStartBalance(sourceAccountStartBalance);
@@ -79,67 +446,693 @@ public class BankController {
 
     }
 
-    public Transaction depositMoney(Account targetAccount, double amount){
+    public Transaction depositMoney(Account targetAccount, long amount){
+        return this.awaitDurable(this.depositMoneyDeferred(targetAccount.getUuid(), amount));
+    }
+
+    public Transaction depositMoneyDeferred(int targetAccountId, long amount){
+        return this.depositMoneyDeferred(targetAccountId, amount, null);
+    }
+
+    /**
+     * Deposit with the given message instead of the default one.
+     */
+    public Transaction depositMoneyDeferred(int targetAccountId, long amount, String message){
 
-        double targetAccountStartBalance = targetAccount.getBalance();
+        AccountStore accounts = this.getBank().getAccounts();
+        Transaction transaction;
 
-        double targetAccountEndBalance = targetAccountStartBalance + amount;
+        long waiting = System.nanoTime();
+        locks.lock(targetAccountId);
+        long acquired = System.nanoTime();
+        Metrics.LOCK_WAIT.record(acquired - waiting);
 
-        targetAccount.setBalance(targetAccountEndBalance);
+        try {
+
+            ValidationHelper.checkAccountActive(accounts, targetAccountId);
+            ValidationHelper.checkBalanceLimit(targetAccountId, accounts.getBalance(targetAccountId), amount);
+
+            transaction = this.applyDeposit(targetAccountId, amount, message, null);
+
+        } finally {
+            locks.unlock(targetAccountId);
+            Metrics.LOCK_HOLD.record(System.nanoTime() - acquired);
+        }
+
+        return transaction;
+    }
+
+    /*
+     * Credits money that already left another account, such as the credit leg of a cross-shard transfer once it
+     * is committed or a reservation that is released. The money cannot be refused anymore, so an account
+     * deactivated since the operation was checked is still credited; only a balance that would overflow is refused.
+     */
+    public Transaction settleDeferred(int targetAccountId, long amount, String message){
+        return this.settleDeferred(targetAccountId, amount, message, null);
+    }
+
+    /**
+     * Settlement whose transaction is also passed to the listener, as it is to the index, before it is published.
+     */
+    public Transaction settleDeferred(int targetAccountId, long amount, String message, TransactionJournal.Index listener){
+
+        AccountStore accounts = this.getBank().getAccounts();
+        Transaction transaction;
+
+        long waiting = System.nanoTime();
+        locks.lock(targetAccountId);
+        long acquired = System.nanoTime();
+        Metrics.LOCK_WAIT.record(acquired - waiting);
+
+        try {
+
+            ValidationHelper.checkBalanceLimit(targetAccountId, accounts.getBalance(targetAccountId), amount);
+
+            transaction = this.applyDeposit(targetAccountId, amount, message, listener);
+
+        } finally {
+            locks.unlock(targetAccountId);
+            Metrics.LOCK_HOLD.record(System.nanoTime() - acquired);
+        }
+
+        return transaction;
+    }
+
+    private Transaction applyDeposit(int targetAccountId, long amount, String message, TransactionJournal.Index listener){
+
+        AccountStore accounts = this.getBank().getAccounts();
+
+        long targetAccountStartBalance = accounts.getBalance(targetAccountId);
+
+        long targetAccountEndBalance = targetAccountStartBalance + amount;
+
+        accounts.setBalance(targetAccountId, targetAccountEndBalance);
 
         Transaction transaction = new Transaction();
-        transaction.setTargetAccount(targetAccount.getUuid());
+        transaction.setTargetAccount(targetAccountId);
         transaction.setAmount(amount);
-        transaction.setMessage(String.format("Deposit of $%f into account %s", amount, targetAccount.getUuid()));
+        transaction.setMessage(message != null ? message : Money.format(new StringBuilder("Deposit of $"), amount)
+                .append(" into account ").append(targetAccountId).toString());
         transaction.setTargetAccountStartBalance(targetAccountStartBalance);
         transaction.setTargetAccountEndBalance(targetAccountEndBalance);
 
-        this.addTransaction(transaction);
+        this.addTransaction(transaction, listener);
+
+        return transaction;
+    }
+
+
+    public Transaction withdrawMoney(Account sourceAccount, long amount) {
+        return this.awaitDurable(this.withdrawMoneyDeferred(sourceAccount.getUuid(), amount));
+    }
+
+    public Transaction withdrawMoneyDeferred(int sourceAccountId, long amount) {
+        return this.withdrawMoneyDeferred(sourceAccountId, amount, null);
+    }
+
+    /**
+     * Withdrawal with the given message instead of the default one.
+     */
+    public Transaction withdrawMoneyDeferred(int sourceAccountId, long amount, String message) {
+        return this.withdrawMoneyDeferred(sourceAccountId, amount, message, null);
+    }
+
+    /**
+     * Withdrawal whose transaction is also passed to the listener, as it is to the index, before it is published.
+     */
+    public Transaction withdrawMoneyDeferred(int sourceAccountId, long amount, String message, TransactionJournal.Index listener) {
+
+        AccountStore accounts = this.getBank().getAccounts();
+        Transaction transaction;
+
+        long waiting = System.nanoTime();
+        locks.lock(sourceAccountId);
+        long acquired = System.nanoTime();
+        Metrics.LOCK_WAIT.record(acquired - waiting);
+
+        try {
+
+            ValidationHelper.checkAccountActive(accounts, sourceAccountId);
+            ValidationHelper.checkSufficientFunds(sourceAccountId, accounts.getBalance(sourceAccountId), amount, "withdrawal");
+
+            transaction = this.applyWithdrawal(sourceAccountId, amount, message, listener);
+
+        } finally {
+            locks.unlock(sourceAccountId);
+            Metrics.LOCK_HOLD.record(System.nanoTime() - acquired);
+        }
 
         return transaction;
     }
 
+    private Transaction applyWithdrawal(int sourceAccountId, long amount, String message, TransactionJournal.Index listener) {
 
-    public Transaction withdrawMoney(Account sourceAccount, double amount) {
+        AccountStore accounts = this.getBank().getAccounts();
 
-        double sourceAccountStartBalance = sourceAccount.getBalance();
+        long sourceAccountStartBalance = accounts.getBalance(sourceAccountId);
 
-        double sourceAccountEndBalance = sourceAccountStartBalance - amount;
+        long sourceAccountEndBalance = sourceAccountStartBalance - amount;
 
-        sourceAccount.setBalance(sourceAccountEndBalance);
+        accounts.setBalance(sourceAccountId, sourceAccountEndBalance);
 
         Transaction transaction = new Transaction();
-        transaction.setSourceAccount(sourceAccount.getUuid());
+        transaction.setSourceAccount(sourceAccountId);
         transaction.setAmount(amount);
-        transaction.setMessage(String.format("Withdraw of $%f from account %s", amount, sourceAccount.getUuid()));
+        transaction.setMessage(message != null ? message : Money.format(new StringBuilder("Withdraw of $"), amount)
+                .append(" from account ").append(sourceAccountId).toString());
         transaction.setSourceAccountStartBalance(sourceAccountStartBalance);
         transaction.setSourceAccountEndBalance(sourceAccountEndBalance);
 
-        this.addTransaction(transaction);
+        this.addTransaction(transaction, listener);
 
         return transaction;
 
     }
 
+    public Transaction applyOperation(BatchOperation operation){
+
+        switch (operation.getType()) {
+            case TRANSFER:
+                return this.awaitDurable(this.transferMoneyDeferred(operation.getSourceAccountId(), operation.getTargetAccountId(),
+                        operation.getAmount(), operation.getMessage()));
+            case DEPOSIT:
+                return this.awaitDurable(this.depositMoneyDeferred(operation.getTargetAccountId(), operation.getAmount()));
+            default:
+                return this.awaitDurable(this.withdrawMoneyDeferred(operation.getSourceAccountId(), operation.getAmount()));
+        }
+    }
+
+    /*
+     * Applies all the operations or none of them. The stripes of every account in the batch are locked once, in
+     * ascending order, then every operation is checked against the balances left by the previous ones before
+     * anything is applied.
+     */
+    public List<Transaction> applyAtomically(List<BatchOperation> operations){
+
+        int[] accountIds = new int[operations.size() * 2];
+        int count = 0;
+        for (BatchOperation operation : operations) {
+            if (operation.getSourceAccountId() != null) {
+                accountIds[count++] = operation.getSourceAccountId();
+            }
+            if (operation.getTargetAccountId() != null) {
+                accountIds[count++] = operation.getTargetAccountId();
+            }
+        }
+
+        List<Transaction> transactions = new ArrayList<Transaction>(operations.size());
+
+        long waiting = System.nanoTime();
+        int[] locked = locks.lockAll(Arrays.copyOf(accountIds, count));
+        long acquired = System.nanoTime();
+        Metrics.LOCK_WAIT.record(acquired - waiting);
+
+        try {
+
+            Map<Integer, Long> balances = new HashMap<Integer, Long>();
+
+            for (int i = 0; i < operations.size(); i++) {
+                try {
+                    this.checkOperation(operations.get(i), balances);
+                } catch (WebApplicationException e) {
+                    throw ValidationHelper.rejectedOperation(i, e);
+                }
+            }
+
+            Object batch = new Object();
+            openBatches.put(batch, this.cut(this.getBank().getTransactions()));
+
+            try {
+                this.applyBatch(operations, transactions);
+            } finally {
+                closedBatches.incrementAndGet();
+                openBatches.remove(batch);
+            }
+
+        } finally {
+            locks.unlockStripes(locked);
+            Metrics.LOCK_HOLD.record(System.nanoTime() - acquired);
+        }
+
+        // transactions become durable in id order, so waiting for the last one covers the whole batch
+        this.awaitDurable(transactions.get(transactions.size() - 1));
+
+        return transactions;
+    }
+
+    /*
+     * Appends the transactions of a checked batch, then waits for the last one to be published, so that a snapshot
+     * taken once the batch is no longer open sees all of them
+     */
+    private void applyBatch(List<BatchOperation> operations, List<Transaction> transactions){
+
+        for (BatchOperation operation : operations) {
+            switch (operation.getType()) {
+                case TRANSFER:
+                    transactions.add(this.applyTransfer(operation.getSourceAccountId(),
+                            operation.getTargetAccountId(), operation.getAmount(), operation.getMessage()));
+                    break;
+                case DEPOSIT:
+                    transactions.add(this.applyDeposit(operation.getTargetAccountId(), operation.getAmount(), null, null));
+                    break;
+                case WITHDRAW:
+                    transactions.add(this.applyWithdrawal(operation.getSourceAccountId(), operation.getAmount(), null, null));
+                    break;
+            }
+        }
+
+        if (transactions.isEmpty()) {
+            return;
+        }
+
+        int last = transactions.get(transactions.size() - 1).getUuid();
+        while (!this.getBank().getTransactions().contains(last)) {
+            // earlier appends are only a few stores away from being published
+            Thread.yield();
+        }
+    }
+
+    private void checkOperation(BatchOperation operation, Map<Integer, Long> balances){
+
+        long amount = operation.getAmount();
+        AccountStore accounts = this.getBank().getAccounts();
+
+        if (operation.getType() != BatchOperation.OperationType.DEPOSIT) {
+            int source = operation.getSourceAccountId();
+            ValidationHelper.checkAccountActive(accounts, source);
+            long balance = this.balance(source, balances);
+            ValidationHelper.checkSufficientFunds(source, balance, amount, operation.getType() == BatchOperation.OperationType.TRANSFER ? "transfer" : "withdrawal");
+            balances.put(source, balance - amount);
+        }
+
+        if (operation.getType() != BatchOperation.OperationType.WITHDRAW) {
+            int target = operation.getTargetAccountId();
+            ValidationHelper.checkAccountActive(accounts, target);
+            long balance = this.balance(target, balances);
+            ValidationHelper.checkBalanceLimit(target, balance, amount);
+            balances.put(target, balance + amount);
+        }
+    }
+
+    private long balance(int accountId, Map<Integer, Long> balances){
+        Long balance = balances.get(accountId);
+        return balance == null ? this.getBank().getAccounts().getBalance(accountId) : balance;
+    }
+
     public void deactivateAccount(Account account){
 
-        account.setStatus(Account.AccountStatus.INACTIVE);
-        account.setStatus(Account.AccountStatus.INACTIVE);
+        this.awaitDurable(this.deactivateAccountDeferred(account.getUuid(), AccountStore.ANY_VERSION));
+
+    }
+
+    /*
+     * Returns the log ticket of the change, null when the write-ahead log is disabled, before it is durable. The
+     * account lock is not taken: the account is claimed at the expected version, or any version with
+     * AccountStore.ANY_VERSION, and the change is logged before the claim is committed, so the changes of an
+     * account are logged in version order.
+     */
+    public WriteAheadLog.Ticket deactivateAccountDeferred(int accountId, long expectedVersion){
+
+        AccountStore accounts = this.getBank().getAccounts();
+        WriteAheadLog.Ticket ticket = null;
+
+        ValidationHelper.checkAccountClaimed(accounts, accountId, expectedVersion, accounts.claim(accountId, expectedVersion));
+
+        try {
+
+            if (writeAheadLog != null) {
+                ticket = writeAheadLog.logAccountStatus(accountId, Account.AccountStatus.INACTIVE);
+            }
+
+        } finally {
+            accounts.commitStatus(accountId, Account.AccountStatus.INACTIVE);
+        }
+
+        return ticket;
+    }
+
+    public void renameAccount(Account account, String name){
+
+        this.awaitDurable(this.renameAccountDeferred(account.getUuid(), name, AccountStore.ANY_VERSION));
+
+    }
+
+    /*
+     * Returns the log ticket of the change, like deactivateAccountDeferred
+     */
+    public WriteAheadLog.Ticket renameAccountDeferred(int accountId, String name, long expectedVersion){
+
+        AccountStore accounts = this.getBank().getAccounts();
+        WriteAheadLog.Ticket ticket = null;
+
+        ValidationHelper.checkAccountClaimed(accounts, accountId, expectedVersion, accounts.claim(accountId, expectedVersion));
+
+        try {
+
+            if (writeAheadLog != null) {
+                ticket = writeAheadLog.logAccountName(accountId, name);
+            }
+
+        } finally {
+            accounts.commitName(accountId, name);
+        }
+
+        return ticket;
+    }
+
+    /**
+     * Takes a point-in-time view of the balances, without blocking writers: the view is the state left by a prefix of
+     * the journal, the published one when it is taken, cut before the atomic batches still being appended.
+     */
+    public BankSnapshot snapshot() {
+
+        // the bank is replaced after the index on a replica, so the index read after it is at least as recent
+        Bank bank = this.getBank();
+        TransactionIndex index = this.index;
+
+        int transactionCount = this.cut(bank.getTransactions());
+
+        return this.snapshot(bank, index, transactionCount);
+    }
+
+    /*
+     * The view at a cut of the journal taken earlier, which must not split an atomic batch
+     */
+    BankSnapshot snapshot(int transactionCount) {
+        return this.snapshot(this.getBank(), this.index, transactionCount);
+    }
+
+    /*
+     * Only the accounts whose starting balance is before the cut are in the view: those are a prefix of the
+     * accounts, as accounts get their starting balances in creation order, and an account whose starting balance
+     * has no id yet is after it.
+     */
+    private BankSnapshot snapshot(Bank bank, TransactionIndex index, int transactionCount) {
+
+        AccountStore accounts = bank.getAccounts();
+
+        int low = 0;
+        int high = accounts.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            TransactionIndex.History history = index.history(accounts.uuidAt(middle));
+            if (history.size() > 0 && history.get(0) < transactionCount) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return new BankSnapshot(accounts, bank.getTransactions(), index, transactionCount, low);
+    }
+
+    /*
+     * The published size of the journal, lowered to the cuts of the open batches, so that no atomic batch has
+     * transactions on both sides. The cut of a batch is taken the same way when it opens, before its first id is
+     * reserved: it cannot split the batches closed by then, and neither can a cut below it. A batch closed between
+     * reading the journal and the open batches may be split by the published size, the cut is then taken again.
+     */
+    private int cut(TransactionJournal journal) {
+
+        int transactionCount;
+        long closed;
+
+        do {
+            closed = closedBatches.get();
+            transactionCount = journal.size();
+            for (Integer cut : openBatches.values()) {
+                transactionCount = Math.min(transactionCount, cut);
+            }
+        } while (closedBatches.get() != closed);
+
+        return transactionCount;
+    }
+
+    /**
+     * A consistent cut of the bank: the copy of its accounts and the number of transactions when the write-ahead log
+     * was rolled to the segment, which holds every change made after the cut.
+     */
+    public static final class Cut {
+
+        private final AccountStore accounts;
+
+        private final int transactionCount;
+
+        private final long segment;
+
+        private Cut(AccountStore accounts, int transactionCount, long segment) {
+            this.accounts = accounts;
+            this.transactionCount = transactionCount;
+            this.segment = segment;
+        }
+
+        public AccountStore getAccounts() {
+            return accounts;
+        }
+
+        public int getTransactionCount() {
+            return transactionCount;
+        }
+
+        public long getSegment() {
+            return segment;
+        }
+    }
+
+    /**
+     * Takes a consistent cut of the bank, rolling the write-ahead log. Returns once the segments before the cut are
+     * complete on disk.
+     */
+    public Cut cut() {
+
+        if (writeAheadLog == null) {
+            throw new IllegalStateException("Cuts require a write-ahead log");
+        }
+
+        synchronized (checkpointLock) {
+            return this.roll();
+        }
+    }
+
+    /*
+     * Must be called holding the checkpoint lock, only one roll may be pending at a time
+     */
+    private Cut roll() {
 
+        AccountStore accounts;
+        int transactionCount;
+        WriteAheadLog.Ticket roll;
+
+        // addAccount is synchronized on the controller, balance changes hold the stripes of their accounts and name
+        // and status changes hold a claim on the account
+        synchronized (this) {
+
+            int[] locked = locks.lockEverything();
+            this.getBank().getAccounts().claimAll();
+
+            try {
+
+                accounts = this.getBank().getAccounts().copy();
+
+                transactionCount = this.getBank().getTransactions().size();
+                roll = writeAheadLog.roll(transactionCount);
+
+            } finally {
+                this.getBank().getAccounts().releaseAll();
+                locks.unlockStripes(locked);
+            }
+        }
+
+        writeAheadLog.await(roll);
+
+        return new Cut(accounts, transactionCount, roll.getSegment());
+    }
+
+    /**
+     * Writes a checkpoint of the bank, then deletes the log segments and checkpoints it makes obsolete. All the
+     * locks are held only while the accounts are copied and the log is rolled; the transactions are written from
+     * the journal while operations continue.
+     */
+    public void checkpoint() throws IOException {
+
+        if (writeAheadLog == null) {
+            throw new IllegalStateException("Checkpoints require a write-ahead log");
+        }
+
+        synchronized (checkpointLock) {
+
+            long start = System.nanoTime();
+
+            Cut cut = this.roll();
+
+            // keys and transfer steps are recorded before they are logged, so every one logged before the roll is in
+            // the snapshot
+            List<IdempotencyKeys.Entry> idempotencyKeys = this.getBank().getIdempotencyKeys().snapshot();
+
+            TransactionJournal journal = this.getBank().getTransactions();
+            Checkpoint.write(writeAheadLog.getPath(), cut.getSegment(), cut.getAccounts(), journal, journal.getBase(),
+                    cut.getTransactionCount(), idempotencyKeys, this.getBank().getShardTransfers());
+
+            writeAheadLog.deleteSegmentsBefore(cut.getSegment());
+            Checkpoint.deleteBefore(writeAheadLog.getPath(), cut.getSegment());
+
+            L.info(String.format("Checkpoint of %s accounts and %s transactions written in %s ms",
+                    cut.getAccounts().size(), cut.getTransactionCount(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+        }
+    }
+
+    /**
+     * Replaces the bank of a replica with one rebuilt from a snapshot of the leader, indexing its transactions.
+     */
+    public synchronized void setReplica(Bank bank) {
+
+        TransactionIndex rebuilt = new TransactionIndex();
+        rebuilt.rebuild(bank.getAccounts().nextUuid(), bank.getTransactions());
+
+        this.index = rebuilt;
+        this.setBank(bank);
+    }
+
+    /**
+     * Applies a record of the write-ahead log of the leader to the bank of a replica. Records are applied by one
+     * thread, in log order, so the index stays in journal order without taking the stripes.
+     */
+    public void applyReplicated(ByteBuffer record) {
+
+        // the index makes room for an account before it is visible, as in addAccount
+        if (record.get(record.position()) == LogCodec.ACCOUNT_CREATED) {
+            index.addAccount(this.getBank().getAccounts().nextUuid());
+        }
+
+        WriteAheadLog.apply(this.getBank(), record, index);
+    }
+
+    /**
+     * Stops the ledger executor and the periodic checkpoints, then flushes and closes the write-ahead log, if
+     * enabled.
+     */
+    public void shutdown() throws IOException {
+
+        ledgerExecutor.shutdown();
+
+        if (checkpointer != null) {
+            checkpointer.shutdown();
+            try {
+                checkpointer.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (writeAheadLog != null) {
+            writeAheadLog.close();
+        }
     }
 
 
     protected BankController() {
-        this.setBank(new Bank());
+        this(WriteAheadLog.fromSystemProperties(), Long.getLong(CHECKPOINT_INTERVAL_PROPERTY, 300),
+                ShardMap.fromSystemProperties());
+    }
+
+    protected BankController(WriteAheadLog writeAheadLog) {
+        this(writeAheadLog, Long.getLong(CHECKPOINT_INTERVAL_PROPERTY, 300));
+    }
+
+    protected BankController(WriteAheadLog writeAheadLog, long checkpointIntervalSeconds) {
+        this(writeAheadLog, checkpointIntervalSeconds, ShardMap.single());
+    }
+
+    /*
+     * When a write-ahead log is given, the bank is rebuilt from its latest checkpoint and the segments written
+     * after it before the controller is used. The transactions of the checkpoint stay in the mapped file.
+     */
+    protected BankController(WriteAheadLog writeAheadLog, long checkpointIntervalSeconds, ShardMap shards) {
+
+        this.setBank(new Bank(new AccountStore(shards.getCount(), shards.getIndex())));
+        this.writeAheadLog = writeAheadLog;
+
+        if (writeAheadLog != null) {
+
+            try {
+
+                long fromSegment = 0;
+
+                Checkpoint checkpoint = Checkpoint.loadLatest(writeAheadLog.getPath(), this.getBank().getAccounts().empty());
+                if (checkpoint != null) {
+                    this.getBank().setAccounts(checkpoint.getAccounts());
+                    this.getBank().setTransactions(new TransactionJournal(checkpoint.getTransactions()));
+                    for (IdempotencyKeys.Entry entry : checkpoint.getIdempotencyKeys()) {
+                        this.getBank().getIdempotencyKeys().restore(entry);
+                    }
+                    this.getBank().setShardTransfers(checkpoint.getShardTransfers());
+                    fromSegment = checkpoint.getWalSegment();
+                }
+
+                writeAheadLog.recover(this.getBank(), fromSegment);
+
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot recover from " + writeAheadLog.getPath(), e);
+            }
+
+            writeAheadLog.start(this.getBank().getTransactions());
+
+            TransactionJournal journal = this.getBank().getTransactions();
+            index.rebuild(this.getBank().getAccounts().nextUuid(), journal);
+            if (journal.size() > 0) {
+                clock.set(journal.get(journal.size() - 1).getTimestamp());
+            }
+
+            // the accounts whose starting balance was lost with the tail of the log, the last ones, get an empty one
+            AccountStore accounts = this.getBank().getAccounts();
+            for (int position = 0; position < accounts.size(); position++) {
+                int uuid = accounts.uuidAt(position);
+                if (index.history(uuid).size() == 0) {
+                    this.addTransaction(startingBalance(uuid, 0));
+                }
+            }
+
+            if (checkpointIntervalSeconds > 0) {
+                this.scheduleCheckpoints(checkpointIntervalSeconds);
+            }
+        }
+    }
+
+    private void scheduleCheckpoints(long intervalSeconds) {
+
+        checkpointer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "checkpointer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        checkpointer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    checkpoint();
+                } catch (IOException | RuntimeException e) {
+                    L.log(Level.SEVERE, "Checkpoint failed", e);
+                }
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
     }
 
     //Singleton
-    private static BankController instance;
+    private static volatile BankController instance;
 
     public static BankController getInstance(){
 
         if(instance == null){
-            instance = new BankController();
+            synchronized (BankController.class) {
+                if (instance == null) {
+                    instance = new BankController();
+                }
+            }
         }
 
         return instance;
@@ -0,0 +1,103 @@
+package com.example.transferapi.controller;
+
+import com.example.transferapi.model.Account;
+import com.example.transferapi.model.AccountStore;
+import com.example.transferapi.model.TransactionJournal;
+
+import java.util.AbstractList;
+
+/**
+ * Balances of the accounts as they were after the first transactions of the journal, taken by
+ * {@link BankController#snapshot()}.
+ *
+ * Every balance change is a transaction, and the journal keeps the end balances of each one, so the journal is a
+ * versioned store of the balances: the balance of an account in the snapshot is the one left by its last
+ * transaction in the prefix, found with a binary search over the history of the account. Nothing is copied when the
+ * snapshot is taken and writers never wait for it. Transfers are single transactions, so money in flight is never
+ * counted twice or missed, and atomic batches are either all in the prefix or not at all.
+ *
+ * Only the balances are versioned: names, statuses and versions are the current ones, read when an account is
+ * materialized.
+ */
+public final class BankSnapshot extends AbstractList<Account> {
+
+    private final AccountStore accounts;
+
+    private final TransactionJournal journal;
+
+    private final TransactionIndex index;
+
+    private final int transactionCount;
+
+    private final int size;
+
+    BankSnapshot(AccountStore accounts, TransactionJournal journal, TransactionIndex index, int transactionCount, int size) {
+        this.accounts = accounts;
+        this.journal = journal;
+        this.index = index;
+        this.transactionCount = transactionCount;
+        this.size = size;
+    }
+
+    /**
+     * @return the number of transactions of the journal in the snapshot
+     */
+    public int getTransactionCount() {
+        return transactionCount;
+    }
+
+    /**
+     * @return the balance of an account in the snapshot, 0 before its starting balance
+     */
+    public long getBalance(int accountId) {
+
+        TransactionIndex.History history = index.history(accountId);
+
+        // the last position of the history with an id below the count
+        int low = 0;
+        int high = history.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (history.get(middle) < transactionCount) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return low == 0 ? 0 : journal.getBalanceAfter(history.get(low - 1), accountId);
+    }
+
+    /**
+     * @return the sum of the balances of every account in the snapshot
+     */
+    public long getTotalBalance() {
+
+        long total = 0;
+        for (int position = 0; position < size; position++) {
+            total += this.getBalance(accounts.uuidAt(position));
+        }
+
+        return total;
+    }
+
+    /**
+     * @return a detached copy of the account at a position, with its balance in the snapshot
+     */
+    @Override
+    public Account get(int position) {
+
+        if (position < 0 || position >= size) {
+            throw new IndexOutOfBoundsException("Position " + position + " of " + size);
+        }
+
+        Account account = accounts.get(position);
+        account.setBalance(this.getBalance(account.getUuid()));
+        return account;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.transferapi.controller;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the operations handed over by the asynchronous resources.
+ *
+ * <ul>
+ *     <li>{@code direct} runs them on the calling request thread</li>
+ *     <li>{@code single} runs all of them on one ledger thread, in submission order</li>
+ *     <li>{@code partitioned} runs them on one of {@code transferapi.ledger.partitions} threads selected by account,
+ *     so the operations of an account are applied in submission order</li>
+ *     <li>{@code ring} is partitioned the same way, but hands the operations over through pre-allocated ring
+ *     buffers instead of executor queues, see {@link LedgerRing}</li>
+ * </ul>
+ *
+ * Operations keep taking the account locks, so a transfer between accounts of different partitions is still
+ * atomic; the executor only decides which thread applies it.
+ */
+public abstract class LedgerExecutor {
+
+    public static final String EXECUTOR_PROPERTY = "transferapi.ledger.executor";
+
+    public static final String PARTITIONS_PROPERTY = "transferapi.ledger.partitions";
+
+    public abstract void execute(int accountId, Runnable operation);
+
+    public void shutdown() {
+    }
+
+    /*
+     * Spreads the ids over the partitions, so that the accounts of a shard, whose ids are the shard count apart,
+     * still use all of them
+     */
+    static int partitionOf(int accountId, int partitions) {
+        int h = accountId * 0x9E3779B9;
+        return ((h ^ (h >>> 16)) & Integer.MAX_VALUE) % partitions;
+    }
+
+    public static LedgerExecutor fromSystemProperties() {
+        return create(System.getProperty(EXECUTOR_PROPERTY, "direct"),
+                Integer.getInteger(PARTITIONS_PROPERTY, Runtime.getRuntime().availableProcessors()));
+    }
+
+    public static LedgerExecutor create(String executor, int partitions) {
+
+        switch (executor) {
+            case "direct":
+                return new Direct();
+            case "single":
+                return new Partitioned(1);
+            case "partitioned":
+                return new Partitioned(partitions);
+            case "ring":
+                return new LedgerRing(partitions, Integer.getInteger(LedgerRing.RING_SIZE_PROPERTY, 4096));
+            default:
+                throw new IllegalArgumentException("Unknown ledger executor " + executor);
+        }
+    }
+
+    static class Direct extends LedgerExecutor {
+
+        @Override
+        public void execute(int accountId, Runnable operation) {
+            operation.run();
+        }
+    }
+
+    static class Partitioned extends LedgerExecutor {
+
+        private final ExecutorService[] partitions;
+
+        Partitioned(int partitionCount) {
+
+            this.partitions = new ExecutorService[partitionCount];
+
+            for (int i = 0; i < partitionCount; i++) {
+                final String name = "ledger-" + i;
+                partitions[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, name);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void execute(int accountId, Runnable operation) {
+            partitions[partitionOf(accountId, partitions.length)].execute(operation);
+        }
+
+        @Override
+        public void shutdown() {
+
+            for (ExecutorService partition : partitions) {
+                partition.shutdown();
+            }
+            for (ExecutorService partition : partitions) {
+                try {
+                    partition.awaitTermination(1, TimeUnit.MINUTES);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
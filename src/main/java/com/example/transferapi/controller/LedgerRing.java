@@ -0,0 +1,190 @@
+package com.example.transferapi.controller;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Ledger executor in the style of the LMAX disruptor. Each partition has a pre-allocated ring of command slots,
+ * filled by the request threads and drained by a single business logic thread.
+ *
+ * A producer claims a sequence, waits while the ring is full, stores its command in the slot and publishes the
+ * sequence. The partition thread applies every command published in order since its last batch, then releases all
+ * their slots at once. No queue nodes are allocated, and a burst of commands is applied back to back, so its
+ * transactions reach the write-ahead log together and share one group commit.
+ */
+public class LedgerRing extends LedgerExecutor {
+
+    private final static Logger L = Logger.getLogger(LedgerRing.class.getName());
+
+    public static final String RING_SIZE_PROPERTY = "transferapi.ledger.ringSize";
+
+    private static final long IDLE_NANOS = 1000000;
+
+    private final Partition[] partitions;
+
+    /**
+     * @param ringSize rounded up to a power of two
+     */
+    public LedgerRing(int partitionCount, int ringSize) {
+
+        int size = Integer.highestOneBit(Math.max(2, ringSize) * 2 - 1);
+
+        this.partitions = new Partition[partitionCount];
+
+        for (int i = 0; i < partitionCount; i++) {
+            partitions[i] = new Partition("ledger-" + i, size);
+            partitions[i].start();
+        }
+    }
+
+    @Override
+    public void execute(int accountId, Runnable operation) {
+        partitions[partitionOf(accountId, partitions.length)].publish(operation);
+    }
+
+    /**
+     * Applies every command already published, then stops the partition threads.
+     */
+    @Override
+    public void shutdown() {
+
+        for (Partition partition : partitions) {
+            partition.running = false;
+            LockSupport.unpark(partition);
+        }
+        for (Partition partition : partitions) {
+            try {
+                partition.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static class Partition extends Thread {
+
+        private final Runnable[] slots;
+
+        // sequence last published in each slot
+        private final AtomicLongArray published;
+
+        private final int mask;
+
+        private final AtomicLong claimed = new AtomicLong();
+
+        // every sequence below has been applied and its slot can be reused
+        private volatile long consumed;
+
+        private volatile boolean sleeping;
+
+        private volatile boolean running = true;
+
+        Partition(String name, int size) {
+
+            super(name);
+            setDaemon(true);
+
+            this.slots = new Runnable[size];
+            this.published = new AtomicLongArray(size);
+            this.mask = size - 1;
+
+            for (int i = 0; i < size; i++) {
+                published.set(i, -1);
+            }
+        }
+
+        void publish(Runnable operation) {
+
+            if (!running) {
+                throw new RejectedExecutionException(getName() + " is shut down");
+            }
+
+            long sequence = claimed.getAndIncrement();
+
+            // checked again: the partition thread may have seen every claim and stopped since the first check. The
+            // slot is then published empty, in case the thread is still draining and waits for it
+            boolean rejected = !running;
+
+            // the ring is full: wait for the partition thread to release the slot
+            while (sequence - consumed >= slots.length) {
+                if (rejected && !this.isAlive()) {
+                    throw new RejectedExecutionException(getName() + " is shut down");
+                }
+                LockSupport.unpark(this);
+                LockSupport.parkNanos(IDLE_NANOS / 100);
+            }
+
+            int index = (int) sequence & mask;
+            slots[index] = rejected ? null : operation;
+            published.set(index, sequence);
+
+            if (sleeping) {
+                LockSupport.unpark(this);
+            }
+
+            if (rejected) {
+                throw new RejectedExecutionException(getName() + " is shut down");
+            }
+        }
+
+        @Override
+        public void run() {
+
+            long next = 0;
+
+            while (true) {
+
+                long available = next;
+                while (available - next < slots.length && published.get((int) available & mask) == available) {
+                    available++;
+                }
+
+                if (available == next) {
+                    if (!running && claimed.get() == next) {
+                        return;
+                    }
+                    this.idle(next);
+                    continue;
+                }
+
+                for (long sequence = next; sequence < available; sequence++) {
+
+                    int index = (int) sequence & mask;
+                    Runnable operation = slots[index];
+                    slots[index] = null;
+
+                    if (operation == null) {
+                        // claimed after the shutdown and rejected
+                        continue;
+                    }
+
+                    try {
+                        operation.run();
+                    } catch (RuntimeException e) {
+                        L.log(Level.SEVERE, "Ledger command failed on " + getName(), e);
+                    }
+                }
+
+                next = available;
+                consumed = next;
+            }
+        }
+
+        /*
+         * The sequence is checked again after announcing the sleep, so a producer either sees the flag and wakes
+         * this thread, or published before the check
+         */
+        private void idle(long next) {
+
+            sleeping = true;
+            if (published.get((int) next & mask) != next && running) {
+                LockSupport.parkNanos(this, IDLE_NANOS);
+            }
+            sleeping = false;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.example.transferapi.controller;
+
+import com.example.transferapi.model.Transaction;
+import com.example.transferapi.model.TransactionJournal;
+import com.example.transferapi.persistence.Checkpoint;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Ids of the transactions of every account, in ascending order.
+ *
+ * Each account keeps its ids in int chunks that double in size (8, 16, 32...), so a history grows without copying
+ * ids or boxing them. A history has a single writer at a time, the thread holding the stripe of its account, which
+ * publishes every id through a volatile size; readers never lock.
+ */
+public class TransactionIndex implements TransactionJournal.Index {
+
+    private static final int FIRST_CHUNK_BITS = 3;
+
+    private static final int FIRST_CHUNK_SIZE = 1 << FIRST_CHUNK_BITS;
+
+    /**
+     * Transaction ids of one account.
+     */
+    public static class History {
+
+        private int[][] chunks = new int[0][];
+
+        private volatile int size;
+
+        void add(int transactionId) {
+
+            int index = size;
+            int chunk = chunkOf(index);
+
+            if (chunk == chunks.length) {
+                int[][] grown = Arrays.copyOf(chunks, chunk + 1);
+                grown[chunk] = new int[FIRST_CHUNK_SIZE << chunk];
+                chunks = grown;
+            }
+
+            chunks[chunk][offsetOf(index, chunk)] = transactionId;
+            size = index + 1;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int get(int index) {
+            int chunk = chunkOf(index);
+            return chunks[chunk][offsetOf(index, chunk)];
+        }
+
+        private static int chunkOf(int index) {
+            return 31 - Integer.numberOfLeadingZeros((index >>> FIRST_CHUNK_BITS) + 1);
+        }
+
+        private static int offsetOf(int index, int chunk) {
+            return index + FIRST_CHUNK_SIZE - (FIRST_CHUNK_SIZE << chunk);
+        }
+    }
+
+    private volatile History[] histories = new History[0];
+
+    /**
+     * Makes room for the account, called when the account is created.
+     */
+    public synchronized void addAccount(int accountId) {
+
+        History[] current = histories;
+
+        if (accountId < current.length) {
+            return;
+        }
+
+        History[] grown = Arrays.copyOf(current, Math.max(accountId + 1, current.length * 2));
+        for (int i = current.length; i < grown.length; i++) {
+            grown[i] = new History();
+        }
+        histories = grown;
+    }
+
+    /**
+     * Records a transaction in the history of the accounts it involves. Must be called while holding their
+     * stripes, in the order the transactions were appended to the journal.
+     */
+    @Override
+    public void add(Transaction transaction) {
+
+        if (transaction.getSourceAccount() != null) {
+            histories[transaction.getSourceAccount()].add(transaction.getUuid());
+        }
+        if (transaction.getTargetAccount() != null) {
+            histories[transaction.getTargetAccount()].add(transaction.getUuid());
+        }
+    }
+
+    public History history(int accountId) {
+        return histories[accountId];
+    }
+
+    /**
+     * Rebuilds the index of a recovered bank. The transactions of a checkpoint are indexed straight from the
+     * mapped table, without decoding them.
+     *
+     * @param accountIds the ids of the accounts are below this one
+     */
+    public void rebuild(int accountIds, TransactionJournal journal) {
+
+        if (accountIds > 0) {
+            this.addAccount(accountIds - 1);
+        }
+
+        List<Transaction> base = journal.getBase();
+        int id = 0;
+
+        if (base instanceof Checkpoint.MappedTransactions) {
+            Checkpoint.MappedTransactions mapped = (Checkpoint.MappedTransactions) base;
+            for (; id < mapped.size(); id++) {
+                int source = mapped.sourceAccount(id);
+                int target = mapped.targetAccount(id);
+                if (source >= 0) {
+                    histories[source].add(id);
+                }
+                if (target >= 0) {
+                    histories[target].add(id);
+                }
+            }
+        }
+
+        for (int size = journal.size(); id < size; id++) {
+            this.add(journal.get(id));
+        }
+    }
+}
@@ -1,11 +1,13 @@
 package com.example.transferapi.controller;
 
-import com.example.transferapi.model.Account;
-import com.example.transferapi.model.Transaction;
+import com.example.transferapi.logging.EventLog;
+import com.example.transferapi.metrics.Metrics;
+import com.example.transferapi.model.AccountStore;
+import com.example.transferapi.model.BatchOperation;
+import com.example.transferapi.model.IdempotencyKeys;
 
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Response;
-import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class ValidationHelper {
@@ -13,15 +15,63 @@ public class ValidationHelper {
 
     private final static Logger L = Logger.getLogger(ValidationHelper.class.getName());
 
+    private static final int MAX_IDEMPOTENCY_KEY_LENGTH = 255;
+
+    // far below what the journal can store, even in 4-byte characters behind the prefix of a reservation
+    public static final int MAX_MESSAGE_LENGTH = 4096;
+
+    private static final int UNPROCESSABLE_ENTITY = 422;
+
+    /*
+     * Results of validateTransfer
+     */
+    public static final int VALID = 0;
+
+    public static final int INVALID_AMOUNT = 1;
+
+    public static final int SOURCE_NOT_FOUND = 2;
+
+    public static final int SOURCE_INACTIVE = 3;
+
+    public static final int TARGET_NOT_FOUND = 4;
+
+    public static final int TARGET_INACTIVE = 5;
+
+    public static final int SAME_ACCOUNT = 6;
+
+    public static final int INSUFFICIENT_FUNDS = 7;
+
+    public static final int BALANCE_LIMIT = 8;
+
+    /*
+     * Rejections are expected outcomes of bad requests, answered with their status and message: filling in the
+     * stack trace would cost more than the rest of the validation
+     */
+    private static class Rejection extends WebApplicationException {
+
+        private static final long serialVersionUID = 1L;
+
+        Rejection(String message, int status) {
+            super(message, status);
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
     public static void checkAccountExists(int accountId){
+        checkAccountExists(BankController.getInstance().getBank().getAccounts(), accountId);
+    }
 
-        if(BankController.getInstance().getBank().getAccounts().size()<=accountId){
+    public static void checkAccountExists(AccountStore accounts, int accountId){
 
-            String message = String.format("Account %s does not exist", accountId);
+        if(!accounts.contains(accountId)){
 
-            L.log(Level.WARNING, message);
+            Metrics.reject(Metrics.Rejection.NOT_FOUND);
 
-            throw new WebApplicationException(message, Response.Status.NOT_FOUND);
+            throw rejected(Response.Status.NOT_FOUND, "Account %s does not exist", accountId);
         }
     }
 
@@ -29,51 +79,317 @@ public class ValidationHelper {
 
         checkAccountExists(accountId);
 
-        Account account = BankController.getInstance().getBank().getAccounts().get(accountId);
+        checkAccountActive(BankController.getInstance().getBank().getAccounts(), accountId);
+    }
 
-        if(account.getStatus().equals(Account.AccountStatus.INACTIVE)){
-            String message = String.format("Account %s is inactive", accountId);
+    public static void checkAccountActive(AccountStore accounts, int accountId){
 
-            L.log(Level.WARNING, message);
+        if(!accounts.isActive(accountId)){
+            Metrics.reject(Metrics.Rejection.INACTIVE_ACCOUNT);
 
-            throw new WebApplicationException(message, Response.Status.GONE);
+            throw rejected(Response.Status.GONE, "Account %s is inactive", accountId);
         }
     }
 
-    public static void checkAmountNotNegative(double amount){
+    /*
+     * An account that cannot be claimed is inactive, or has changed since the expected version
+     */
+    public static void checkAccountClaimed(AccountStore accounts, int accountId, long expectedVersion, boolean claimed){
 
-        if(amount<0){
+        if(!claimed){
 
-            String message = amount + " is not a valid value";
+            checkAccountActive(accounts, accountId);
 
-            L.log(Level.WARNING, message);
+            throw rejected(Response.Status.PRECONDITION_FAILED, "Account %s is not at version %s", accountId, expectedVersion);
+        }
+    }
 
-            throw new WebApplicationException(message, Response.Status.BAD_REQUEST);
+    public static void checkAmountNotNegative(long amount){
+
+        if(amount<0){
+
+            Metrics.reject(Metrics.Rejection.INVALID_AMOUNT);
+
+            throw rejected(Response.Status.BAD_REQUEST, "%s is not a valid value", amount);
         }
 
     }
 
-    public static void checkAmountPositive(double amount){
+    public static void checkAmountPositive(long amount){
 
         if(amount<=0){
-            String message = amount + " is not a positive amount";
+            Metrics.reject(Metrics.Rejection.INVALID_AMOUNT);
+
+            throw rejected(Response.Status.BAD_REQUEST, "%s is not a positive amount", amount);
+        }
 
-            L.log(Level.WARNING, message);
+    }
+
+    public static void checkDifferentAccounts(int sourceAccountId, int targetAccountId){
 
-            throw new WebApplicationException(message, Response.Status.BAD_REQUEST);
+        if(sourceAccountId == targetAccountId){
+            Metrics.reject(Metrics.Rejection.SAME_ACCOUNT);
+
+            throw rejected(Response.Status.BAD_REQUEST, "Account %s cannot transfer money to itself", sourceAccountId);
         }
 
     }
 
-    public static void checkTransactionExists(int transactionId) {
+    public static void checkMessage(String message){
 
-        Transaction transaction = BankController.getInstance().getBank().getTransactions().get(transactionId);
+        if(message != null && message.length() > MAX_MESSAGE_LENGTH){
+            badRequest("A message must have at most %s characters, got %s", MAX_MESSAGE_LENGTH, message.length());
+        }
+
+    }
+
+    public static void checkSufficientFunds(int accountId, long balance, long amount, String operation){
+
+        if(balance < amount){
+            Metrics.reject(Metrics.Rejection.INSUFFICIENT_FUNDS);
+
+            throw rejected(Response.Status.BAD_REQUEST, "Account %s does not have enough funds for this %s", accountId, operation);
+        }
+
+    }
+
+    public static void checkBalanceLimit(int accountId, long balance, long amount){
+
+        if(balance > Long.MAX_VALUE - amount){
+            Metrics.reject(Metrics.Rejection.BALANCE_LIMIT);
+
+            throw rejected(Response.Status.BAD_REQUEST, "Account %s cannot hold %s more", accountId, amount);
+        }
+
+    }
+
+    /**
+     * Checks a transfer in one pass, in the order of the separate checks: a positive amount, then the source and
+     * the target exist and are active, are different accounts, and the balances can move. Each account is read
+     * once and nothing is thrown, so callers can answer a rejection directly with {@link #status} and
+     * {@link #rejectTransfer}.
+     * @return {@link #VALID} or the first check that failed
+     */
+    public static int validateTransfer(AccountStore accounts, int sourceAccountId, int targetAccountId, long amount){
+
+        if(amount <= 0){
+            return INVALID_AMOUNT;
+        }
+
+        if(!accounts.contains(sourceAccountId)){
+            return SOURCE_NOT_FOUND;
+        }
+
+        long sourceBalance = accounts.getActiveBalance(sourceAccountId);
+
+        if(sourceBalance < 0){
+            return SOURCE_INACTIVE;
+        }
+
+        if(!accounts.contains(targetAccountId)){
+            return TARGET_NOT_FOUND;
+        }
+
+        long targetBalance = accounts.getActiveBalance(targetAccountId);
+
+        if(targetBalance < 0){
+            return TARGET_INACTIVE;
+        }
+
+        if(sourceAccountId == targetAccountId){
+            return SAME_ACCOUNT;
+        }
+
+        if(sourceBalance < amount){
+            return INSUFFICIENT_FUNDS;
+        }
+
+        if(targetBalance > Long.MAX_VALUE - amount){
+            return BALANCE_LIMIT;
+        }
 
-        if(transaction==null){
-            String message = String.format("Transaction %s does not exist", transactionId);
+        return VALID;
+    }
+
+    /**
+     * @return the status code of the response to a transfer rejected by {@link #validateTransfer}
+     */
+    public static int status(int result){
+
+        switch (result) {
+            case SOURCE_NOT_FOUND:
+            case TARGET_NOT_FOUND:
+                return Response.Status.NOT_FOUND.getStatusCode();
+            case SOURCE_INACTIVE:
+            case TARGET_INACTIVE:
+                return Response.Status.GONE.getStatusCode();
+            default:
+                return Response.Status.BAD_REQUEST.getStatusCode();
+        }
+    }
+
+    /**
+     * Counts and logs a transfer rejected by {@link #validateTransfer}.
+     * @return the message of the response
+     */
+    public static String rejectTransfer(int result, int sourceAccountId, int targetAccountId, long amount){
+
+        switch (result) {
+            case INVALID_AMOUNT:
+                return reject(Metrics.Rejection.INVALID_AMOUNT, "%s is not a positive amount", amount);
+            case SOURCE_NOT_FOUND:
+                return reject(Metrics.Rejection.NOT_FOUND, "Account %s does not exist", sourceAccountId);
+            case SOURCE_INACTIVE:
+                return reject(Metrics.Rejection.INACTIVE_ACCOUNT, "Account %s is inactive", sourceAccountId);
+            case TARGET_NOT_FOUND:
+                return reject(Metrics.Rejection.NOT_FOUND, "Account %s does not exist", targetAccountId);
+            case TARGET_INACTIVE:
+                return reject(Metrics.Rejection.INACTIVE_ACCOUNT, "Account %s is inactive", targetAccountId);
+            case SAME_ACCOUNT:
+                return reject(Metrics.Rejection.SAME_ACCOUNT, "Account %s cannot transfer money to itself", sourceAccountId);
+            case INSUFFICIENT_FUNDS:
+                return reject(Metrics.Rejection.INSUFFICIENT_FUNDS, "Account %s does not have enough funds for this %s", sourceAccountId, "transfer");
+            default:
+                return reject(Metrics.Rejection.BALANCE_LIMIT, "Account %s cannot hold %s more", targetAccountId, amount);
+        }
+    }
+
+    public static void checkTransfer(AccountStore accounts, int sourceAccountId, int targetAccountId, long amount){
+
+        int result = validateTransfer(accounts, sourceAccountId, targetAccountId, amount);
+
+        if(result != VALID){
+            throw new Rejection(rejectTransfer(result, sourceAccountId, targetAccountId, amount), status(result));
+        }
+    }
+
+    public static void checkOperation(BatchOperation operation){
+
+        if(operation == null || operation.getType() == null){
+            badRequest("Operation type is required");
+        }
+
+        checkAmountPositive(operation.getAmount());
+
+        switch (operation.getType()) {
+            case TRANSFER:
+                checkRequired(operation.getSourceAccountId(), "sourceAccountId");
+                checkRequired(operation.getTargetAccountId(), "targetAccountId");
+                checkRequired(operation.getMessage(), "message");
+                checkMessage(operation.getMessage());
+                checkAccountExists(operation.getSourceAccountId());
+                checkAccountExists(operation.getTargetAccountId());
+                checkDifferentAccounts(operation.getSourceAccountId(), operation.getTargetAccountId());
+                break;
+            case DEPOSIT:
+                checkRequired(operation.getTargetAccountId(), "targetAccountId");
+                checkAccountExists(operation.getTargetAccountId());
+                break;
+            case WITHDRAW:
+                checkRequired(operation.getSourceAccountId(), "sourceAccountId");
+                checkAccountExists(operation.getSourceAccountId());
+                break;
+        }
+
+    }
+
+    public static void checkBatchSize(int size, int maxSize){
+
+        if(size == 0 || size > maxSize){
+            badRequest("A batch must have between 1 and %s operations, got %s", maxSize, size);
+        }
+
+    }
+
+    public static void checkPage(int after, Integer limit, int maxLimit){
+
+        if(after < -1){
+            badRequest("after must be an id or -1, got %s", after);
+        }
+
+        if(limit != null && (limit < 1 || limit > maxLimit)){
+            badRequest("limit must be between 1 and %s, got %s", maxLimit, limit);
+        }
+
+    }
+
+    public static void checkIdempotencyKey(String key){
+
+        if(key.isEmpty() || key.length() > MAX_IDEMPOTENCY_KEY_LENGTH){
+            badRequest("Idempotency-Key must have between 1 and %s characters", MAX_IDEMPOTENCY_KEY_LENGTH);
+        }
+
+    }
+
+    /*
+     * A key that is already held must come from a retry of the same request, once the original has completed
+     */
+    public static void checkIdempotentRepeat(IdempotencyKeys.Entry original, int fingerprint){
+
+        if(original.isPending()){
+            throw rejected(Response.Status.CONFLICT, "A request with Idempotency-Key %s is in progress", original.getKey());
+        }
+
+        if(original.getFingerprint() != fingerprint){
+            throw rejected(UNPROCESSABLE_ENTITY, "Idempotency-Key %s was used for a different request", original.getKey());
+        }
+
+    }
+
+    private static void checkRequired(Object value, String field){
+
+        if(value == null){
+            badRequest("%s is required", field);
+        }
+
+    }
+
+    private static void badRequest(String format, Object... arguments){
+        throw rejected(Response.Status.BAD_REQUEST, format, arguments);
+    }
+
+    /**
+     * Logs a request refused for a reason of the client and returns the exception answering it, without a stack
+     * trace. Every refusal caused by the request should be built here, as a bad client can send many of them.
+     */
+    public static WebApplicationException rejected(Response.Status status, String format, Object... arguments){
+        return rejected(status.getStatusCode(), format, arguments);
+    }
+
+    public static WebApplicationException rejected(int status, String format, Object... arguments){
+        return new Rejection(warn(format, arguments), status);
+    }
+
+    /**
+     * @return the rejection of an operation of a batch, with its position, keeping its status. It was logged when
+     * the operation was rejected.
+     */
+    public static WebApplicationException rejectedOperation(int index, WebApplicationException rejection){
+        return new Rejection("Operation " + index + ": " + rejection.getMessage(), rejection.getResponse().getStatus());
+    }
+
+    private static String reject(Metrics.Rejection reason, String format, Object... arguments){
+
+        Metrics.reject(reason);
+
+        return warn(format, arguments);
+    }
+
+    /*
+     * The message is formatted for the response, while the warning is formatted later by the event log, if it
+     * is not sampled out
+     */
+    private static String warn(String format, Object... arguments){
+
+        EventLog.warning(L, format, arguments);
+
+        return String.format(format, arguments);
+    }
+
+    public static void checkTransactionExists(int transactionId) {
 
-            L.log(Level.WARNING, message);
-            throw new WebApplicationException(message, Response.Status.NOT_FOUND);
+        if(!BankController.getInstance().getBank().getTransactions().contains(transactionId)){
+            throw rejected(Response.Status.NOT_FOUND, "Transaction %s does not exist", transactionId);
         }
 
     }
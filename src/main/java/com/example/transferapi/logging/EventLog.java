@@ -0,0 +1,365 @@
+package com.example.transferapi.logging;
+
+import com.example.transferapi.metrics.Metrics;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Logs events from the request path without formatting or writing them there, in the manner of the ledger ring.
+ *
+ * An event is a format, its arguments and a timestamp, stored in a pre-allocated ring of slots; a single background
+ * thread drains every event published since its last batch, formats each one and hands it to its
+ * {@link java.util.logging} logger, so the handlers and their I/O only run on that thread. Events of levels the
+ * logger does not log are discarded before they are queued.
+ *
+ * When the ring is full, events are dropped and counted, or with the {@code block} overflow policy the request
+ * waits for a free slot. Warnings are sampled: past {@value #DEFAULT_WARNINGS_PER_SECOND} a second for the same
+ * format, they are only counted, and the next one logged says how many were suppressed.
+ */
+public class EventLog {
+
+    private final static Logger L = Logger.getLogger(EventLog.class.getName());
+
+    public static final String QUEUE_SIZE_PROPERTY = "transferapi.log.queueSize";
+
+    /**
+     * {@code drop} (the default) or {@code block}
+     */
+    public static final String OVERFLOW_PROPERTY = "transferapi.log.overflow";
+
+    public static final String WARNINGS_PER_SECOND_PROPERTY = "transferapi.log.warningsPerSecond";
+
+    private static final int DEFAULT_QUEUE_SIZE = 8192;
+
+    private static final int DEFAULT_WARNINGS_PER_SECOND = 100;
+
+    private static final long IDLE_NANOS = 1000000;
+
+    private static final EventLog INSTANCE = new EventLog(Integer.getInteger(QUEUE_SIZE_PROPERTY, DEFAULT_QUEUE_SIZE),
+            "block".equals(System.getProperty(OVERFLOW_PROPERTY)),
+            Integer.getInteger(WARNINGS_PER_SECOND_PROPERTY, DEFAULT_WARNINGS_PER_SECOND));
+
+    private static class Event {
+
+        Logger logger;
+
+        Level level;
+
+        long millis;
+
+        String format;
+
+        Object[] arguments;
+
+        long suppressed;
+    }
+
+    /*
+     * Warnings of one format logged in the current second
+     */
+    private static class Sample {
+
+        final AtomicLong second = new AtomicLong();
+
+        final AtomicLong count = new AtomicLong();
+
+        final AtomicLong suppressed = new AtomicLong();
+    }
+
+    private final Event[] slots;
+
+    // sequence last published in each slot
+    private final AtomicLongArray published;
+
+    private final int mask;
+
+    private final boolean block;
+
+    private final int warningsPerSecond;
+
+    private final AtomicLong claimed = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final ConcurrentMap<String, Sample> samples = new ConcurrentHashMap<String, Sample>();
+
+    private final Thread writer;
+
+    // every sequence below has been written and its slot can be reused
+    private volatile long consumed;
+
+    private volatile boolean sleeping;
+
+    private volatile boolean running = true;
+
+    /**
+     * @param queueSize rounded up to a power of two
+     * @param block whether to wait for a free slot when the queue is full, rather than drop the event
+     */
+    public EventLog(int queueSize, boolean block, int warningsPerSecond) {
+
+        int size = Integer.highestOneBit(Math.max(2, queueSize) * 2 - 1);
+
+        this.slots = new Event[size];
+        this.published = new AtomicLongArray(size);
+        this.mask = size - 1;
+        this.block = block;
+        this.warningsPerSecond = warningsPerSecond;
+
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Event();
+            published.set(i, -1);
+        }
+
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                EventLog.this.write();
+            }
+        }, "event-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public static EventLog getInstance() {
+        return INSTANCE;
+    }
+
+    public static void info(Logger logger, String format, Object... arguments) {
+        INSTANCE.log(logger, Level.INFO, format, arguments);
+    }
+
+    public static void warning(Logger logger, String format, Object... arguments) {
+        INSTANCE.log(logger, Level.WARNING, format, arguments);
+    }
+
+    /**
+     * Queues an event, formatted later with {@link String#format} if it has arguments, so the arguments must not
+     * change once logged: ids, amounts and strings, not the model objects.
+     */
+    public void log(Logger logger, Level level, String format, Object... arguments) {
+
+        if (!logger.isLoggable(level)) {
+            return;
+        }
+
+        long suppressed = 0;
+
+        if (level.intValue() >= Level.WARNING.intValue() && level.intValue() < Level.SEVERE.intValue()) {
+            suppressed = this.sample(format);
+            if (suppressed < 0) {
+                return;
+            }
+        }
+
+        if (!running) {
+            // nothing drains the queue any more
+            Event event = new Event();
+            event.logger = logger;
+            event.level = level;
+            event.millis = System.currentTimeMillis();
+            event.format = format;
+            event.arguments = arguments;
+            event.suppressed = suppressed;
+            logger.log(record(event));
+            return;
+        }
+
+        long sequence = this.claim();
+
+        if (sequence < 0) {
+            dropped.incrementAndGet();
+            Metrics.LOG_EVENTS_DROPPED.increment();
+            return;
+        }
+
+        int index = (int) sequence & mask;
+        Event event = slots[index];
+        event.logger = logger;
+        event.level = level;
+        event.millis = System.currentTimeMillis();
+        event.format = format;
+        event.arguments = arguments;
+        event.suppressed = suppressed;
+        published.set(index, sequence);
+
+        if (sleeping) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /*
+     * The sequence of a free slot, or -1 when the queue is full and events are dropped
+     */
+    private long claim() {
+
+        while (true) {
+
+            long sequence = claimed.get();
+
+            if (sequence - consumed >= slots.length) {
+                if (!block) {
+                    return -1;
+                }
+                LockSupport.unpark(writer);
+                LockSupport.parkNanos(IDLE_NANOS / 100);
+                continue;
+            }
+
+            if (claimed.compareAndSet(sequence, sequence + 1)) {
+                return sequence;
+            }
+        }
+    }
+
+    /*
+     * The number of warnings of the format suppressed since the last one logged, or -1 if this one is suppressed
+     */
+    private long sample(String format) {
+
+        Sample sample = samples.get(format);
+        if (sample == null) {
+            samples.putIfAbsent(format, new Sample());
+            sample = samples.get(format);
+        }
+
+        long second = System.nanoTime() / 1000000000L;
+        long current = sample.second.get();
+
+        if (current != second && sample.second.compareAndSet(current, second)) {
+            sample.count.set(0);
+        }
+
+        if (sample.count.incrementAndGet() > warningsPerSecond) {
+            sample.suppressed.incrementAndGet();
+            return -1;
+        }
+
+        return sample.suppressed.getAndSet(0);
+    }
+
+    /**
+     * @return the number of events dropped because the queue was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Waits until every event queued so far has been written.
+     */
+    public void flush() {
+
+        long target = claimed.get();
+
+        while (consumed < target && writer.isAlive()) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(IDLE_NANOS / 100);
+        }
+    }
+
+    /**
+     * Writes every event already queued, then stops the writer thread.
+     */
+    public void shutdown() {
+
+        running = false;
+        LockSupport.unpark(writer);
+
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write() {
+
+        long next = 0;
+        long reportedDropped = 0;
+
+        while (true) {
+
+            long available = next;
+            while (available - next < slots.length && published.get((int) available & mask) == available) {
+                available++;
+            }
+
+            if (available == next) {
+                if (!running && claimed.get() == next) {
+                    return;
+                }
+                this.idle(next);
+                continue;
+            }
+
+            for (long sequence = next; sequence < available; sequence++) {
+
+                Event event = slots[(int) sequence & mask];
+
+                try {
+                    event.logger.log(record(event));
+                } catch (RuntimeException e) {
+                    L.log(Level.SEVERE, "Cannot write log event " + event.format, e);
+                }
+
+                event.logger = null;
+                event.arguments = null;
+            }
+
+            next = available;
+            consumed = next;
+
+            long dropped = this.dropped.get();
+            if (dropped != reportedDropped) {
+                L.warning(String.format("Dropped %s log events, the queue was full", dropped - reportedDropped));
+                reportedDropped = dropped;
+            }
+        }
+    }
+
+    /*
+     * Formatted here, on the writer thread; the source is the logger name, since the caller is long gone. The record
+     * is stamped when it is written, so an event that waited into a later second says when it happened
+     */
+    private static LogRecord record(Event event) {
+
+        String message = event.arguments == null || event.arguments.length == 0
+                ? event.format : String.format(event.format, event.arguments);
+
+        if (event.suppressed > 0) {
+            message = message + String.format(" (%s similar warnings suppressed)", event.suppressed);
+        }
+
+        LogRecord record = new LogRecord(event.level, message);
+        record.setLoggerName(event.logger.getName());
+        record.setSourceClassName(event.logger.getName());
+        record.setSourceMethodName(null);
+
+        if (record.getMillis() / 1000 != event.millis / 1000) {
+            record.setMessage(message + String.format(" (at %1$tT.%1$tL)", event.millis));
+        }
+
+        return record;
+    }
+
+    /*
+     * The sequence is checked again after announcing the sleep, so a producer either sees the flag and wakes
+     * this thread, or published before the check
+     */
+    private void idle(long next) {
+
+        sleeping = true;
+        if (published.get((int) next & mask) != next && running) {
+            LockSupport.parkNanos(this, IDLE_NANOS);
+        }
+        sleeping = false;
+    }
+}
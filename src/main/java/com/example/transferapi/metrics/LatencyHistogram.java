@@ -0,0 +1,85 @@
+package com.example.transferapi.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in nanoseconds, with log-linear buckets in the manner of HdrHistogram: every power of two
+ * from about a microsecond to about a minute is split in {@value #SUB_BUCKETS} equal buckets, so a bucket is never
+ * wider than a quarter of its values. Shorter durations fall in the first bucket and longer ones in the last.
+ *
+ * Recording is a couple of bit operations and an add to the cells of the thread's stripe, as in
+ * {@link StripedCounter}; the buckets are only summed when the histogram is read.
+ */
+public final class LatencyHistogram {
+
+    static final int SUB_BUCKETS = 4;
+
+    private static final int SUB_BUCKET_BITS = 2;
+
+    // 1024 ns
+    private static final int MIN_EXPONENT = 10;
+
+    // 68.7 s
+    private static final int MAX_EXPONENT = 36;
+
+    static final int BUCKETS = (MAX_EXPONENT - MIN_EXPONENT + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(StripedCounter.STRIPES * BUCKETS);
+
+    private final StripedCounter sum = new StripedCounter();
+
+    public void record(long nanos) {
+
+        counts.getAndIncrement(StripedCounter.stripe() * BUCKETS + bucket(nanos));
+        sum.add(nanos);
+    }
+
+    static int bucket(long nanos) {
+
+        if (nanos < 1L << MIN_EXPONENT) {
+            return 0;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+
+        int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+
+        return (exponent - MIN_EXPONENT) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the largest duration of a bucket, in nanoseconds
+     */
+    static long upperBound(int bucket) {
+
+        int exponent = MIN_EXPONENT + bucket / SUB_BUCKETS;
+
+        return (1L << exponent) + ((long) (bucket % SUB_BUCKETS + 1) << (exponent - SUB_BUCKET_BITS));
+    }
+
+    /**
+     * @return the number of durations recorded in each bucket
+     */
+    long[] counts() {
+
+        long[] counts = new long[BUCKETS];
+        for (int stripe = 0; stripe < StripedCounter.STRIPES; stripe++) {
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                counts[bucket] += this.counts.get(stripe * BUCKETS + bucket);
+            }
+        }
+
+        return counts;
+    }
+
+    /**
+     * @return the total of the recorded durations, in nanoseconds
+     */
+    long sum() {
+        return sum.sum();
+    }
+}
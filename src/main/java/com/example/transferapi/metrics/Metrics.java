@@ -0,0 +1,189 @@
+package com.example.transferapi.metrics;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Counters and latency histograms of the service, written in the Prometheus text format by {@link #write}.
+ *
+ * Recording never takes a lock: the histograms and counters are striped, and the ones that exist per endpoint are
+ * created once, on the first request to the endpoint, and then looked up in a concurrent map.
+ */
+public final class Metrics {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4";
+
+    /**
+     * Reasons an operation is rejected for
+     */
+    public enum Rejection {
+        NOT_FOUND, INACTIVE_ACCOUNT, INSUFFICIENT_FUNDS, INVALID_AMOUNT, SAME_ACCOUNT, BALANCE_LIMIT
+    }
+
+    /**
+     * Time spent waiting for account stripes in the controller
+     */
+    public static final LatencyHistogram LOCK_WAIT = new LatencyHistogram();
+
+    /**
+     * Time account stripes are held by the controller
+     */
+    public static final LatencyHistogram LOCK_HOLD = new LatencyHistogram();
+
+    /**
+     * Time to append a transaction to the journal
+     */
+    public static final LatencyHistogram JOURNAL_APPEND = new LatencyHistogram();
+
+    /**
+     * Log events dropped because the event log queue was full
+     */
+    public static final StripedCounter LOG_EVENTS_DROPPED = new StripedCounter();
+
+    private static final StripedCounter[] REJECTIONS = new StripedCounter[Rejection.values().length];
+
+    static {
+        for (int i = 0; i < REJECTIONS.length; i++) {
+            REJECTIONS[i] = new StripedCounter();
+        }
+    }
+
+    private static final ConcurrentMap<String, LatencyHistogram> REQUESTS = new ConcurrentHashMap<String, LatencyHistogram>();
+
+    // keyed by endpoint and status
+    private static final ConcurrentMap<String, StripedCounter> RESPONSES = new ConcurrentHashMap<String, StripedCounter>();
+
+    private Metrics() {
+    }
+
+    public static void reject(Rejection reason) {
+        REJECTIONS[reason.ordinal()].increment();
+    }
+
+    public static long rejections(Rejection reason) {
+        return REJECTIONS[reason.ordinal()].sum();
+    }
+
+    /**
+     * Records a request served by an endpoint, named after its resource method.
+     */
+    public static void request(String endpoint, int status, long nanos) {
+
+        LatencyHistogram histogram = REQUESTS.get(endpoint);
+        if (histogram == null) {
+            REQUESTS.putIfAbsent(endpoint, new LatencyHistogram());
+            histogram = REQUESTS.get(endpoint);
+        }
+        histogram.record(nanos);
+
+        String key = endpoint + '\n' + status;
+        StripedCounter counter = RESPONSES.get(key);
+        if (counter == null) {
+            RESPONSES.putIfAbsent(key, new StripedCounter());
+            counter = RESPONSES.get(key);
+        }
+        counter.increment();
+    }
+
+    /**
+     * Writes every metric, along with the number of accounts and transactions, in the Prometheus text format.
+     */
+    public static void write(StringBuilder out, int accounts, int transactions) {
+
+        header(out, "transferapi_http_request_duration_seconds", "histogram", "Time to serve a request, by endpoint");
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<String, LatencyHistogram>(REQUESTS).entrySet()) {
+            histogram(out, "transferapi_http_request_duration_seconds", "endpoint=\"" + entry.getKey() + "\"", entry.getValue());
+        }
+
+        header(out, "transferapi_http_responses_total", "counter", "Responses, by endpoint and status");
+        for (Map.Entry<String, StripedCounter> entry : new TreeMap<String, StripedCounter>(RESPONSES).entrySet()) {
+            int separator = entry.getKey().indexOf('\n');
+            out.append("transferapi_http_responses_total{endpoint=\"").append(entry.getKey(), 0, separator)
+                    .append("\",status=\"").append(entry.getKey(), separator + 1, entry.getKey().length())
+                    .append("\"} ").append(entry.getValue().sum()).append('\n');
+        }
+
+        header(out, "transferapi_rejections_total", "counter", "Operations rejected by validation, by reason");
+        for (Rejection reason : Rejection.values()) {
+            out.append("transferapi_rejections_total{reason=\"").append(reason.name().toLowerCase(Locale.ROOT))
+                    .append("\"} ").append(rejections(reason)).append('\n');
+        }
+
+        header(out, "transferapi_lock_wait_seconds", "histogram", "Time waiting for account locks");
+        histogram(out, "transferapi_lock_wait_seconds", null, LOCK_WAIT);
+
+        header(out, "transferapi_lock_hold_seconds", "histogram", "Time account locks are held");
+        histogram(out, "transferapi_lock_hold_seconds", null, LOCK_HOLD);
+
+        header(out, "transferapi_journal_append_seconds", "histogram", "Time to append a transaction to the journal");
+        histogram(out, "transferapi_journal_append_seconds", null, JOURNAL_APPEND);
+
+        header(out, "transferapi_log_events_dropped_total", "counter", "Log events dropped because the queue was full");
+        out.append("transferapi_log_events_dropped_total ").append(LOG_EVENTS_DROPPED.sum()).append('\n');
+
+        header(out, "transferapi_accounts", "gauge", "Accounts in the bank");
+        out.append("transferapi_accounts ").append(accounts).append('\n');
+
+        header(out, "transferapi_transactions", "gauge", "Transactions in the journal");
+        out.append("transferapi_transactions ").append(transactions).append('\n');
+    }
+
+    /**
+     * Writes a gauge kept outside this class, with one sample per set of labels, the empty string for no labels.
+     */
+    public static void gauge(StringBuilder out, String name, String help, Map<String, Long> samples) {
+
+        header(out, name, "gauge", help);
+        for (Map.Entry<String, Long> sample : new TreeMap<String, Long>(samples).entrySet()) {
+            out.append(name);
+            if (!sample.getKey().isEmpty()) {
+                out.append('{').append(sample.getKey()).append('}');
+            }
+            out.append(' ').append(sample.getValue()).append('\n');
+        }
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /*
+     * Buckets are cumulative and in seconds; empty buckets above the last recorded duration are left out, and the
+     * last bucket, which also holds every longer duration, is only counted in +Inf
+     */
+    private static void histogram(StringBuilder out, String name, String labels, LatencyHistogram histogram) {
+
+        long[] counts = histogram.counts();
+
+        int last = counts.length - 2;
+        while (last > 0 && counts[last] == 0) {
+            last--;
+        }
+
+        String prefix = labels == null ? "{" : "{" + labels + ",";
+        long count = 0;
+
+        for (int i = 0; i <= last; i++) {
+            count += counts[i];
+            out.append(name).append("_bucket").append(prefix).append("le=\"")
+                    .append(seconds(LatencyHistogram.upperBound(i))).append("\"} ").append(count).append('\n');
+        }
+        for (int i = last + 1; i < counts.length; i++) {
+            count += counts[i];
+        }
+
+        out.append(name).append("_bucket").append(prefix).append("le=\"+Inf\"} ").append(count).append('\n');
+        out.append(name).append("_sum").append(labels == null ? "" : "{" + labels + "}").append(' ')
+                .append(seconds(histogram.sum())).append('\n');
+        out.append(name).append("_count").append(labels == null ? "" : "{" + labels + "}").append(' ')
+                .append(count).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+}
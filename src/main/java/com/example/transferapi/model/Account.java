@@ -1,5 +1,9 @@
 package com.example.transferapi.model;
 
+/**
+ * Representation of an account at the JSON boundary. The state of the bank is kept in the
+ * {@link AccountStore}, which materializes a detached copy on every lookup.
+ */
 public class Account {
 
     public static enum AccountStatus{
@@ -10,9 +14,11 @@ public class Account {
 
     private String name;
 
-    private AccountStatus status;
+    private volatile AccountStatus status;
 
-    private double balance;
+    private volatile long balance;
+
+    private long version;
 
     public int getUuid() {
         return uuid;
@@ -38,11 +44,22 @@ public class Account {
         this.status = status;
     }
 
-    public double getBalance() {
+    public long getBalance() {
         return balance;
     }
 
-    public void setBalance(double balance) {
+    public void setBalance(long balance) {
         this.balance = balance;
     }
+
+    /**
+     * @return the number of changes to the account since it was created, exposed as its entity tag
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
 }
@@ -0,0 +1,393 @@
+package com.example.transferapi.model;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Columnar store of the accounts, indexed by uuid.
+ *
+ * On a shard of a sharded ledger the store only holds the accounts of its shard, whose uuids are the shard index
+ * modulo the shard count: accounts are stored at consecutive positions and their uuid is
+ * {@code position * stride + offset}, with the shard count as stride and the shard index as offset. The
+ * positions are what the store is a list of; everything else takes uuids.
+ *
+ * The balance, and the version and status packed in a second long, sit next to each other in a primitive array,
+ * so checking and updating an account touches a single cache line and no object. Names are kept in a separate
+ * column. The columns are split in fixed-size chunks that never move: growing only copies the chunk directory, so
+ * an update is never lost to a concurrent copy and there is no per-account object for the collector to trace.
+ *
+ * As a list, the store materializes a detached {@link Account} on every get, for the JSON boundary; changes go
+ * through the column setters. Appends are serialized. The balance of an account is written by one thread at a time,
+ * the one holding its lock, with an ordered store that readers see without the full fence of a volatile write.
+ *
+ * Every change bumps the version of the account. The name and the status are changed without the account lock:
+ * a writer claims the account with a compare-and-set on its version, which fails if another writer changed the
+ * account first, makes its change and commits it with the next version. Balance updates only add to the version,
+ * so they never undo a concurrent claim or commit.
+ */
+public class AccountStore extends AbstractList<Account> {
+
+    private static final int CHUNK_BITS = 16;
+
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    /**
+     * Expected version that matches any version
+     */
+    public static final long ANY_VERSION = -1;
+
+    private static final long INACTIVE = 1;
+
+    // set while a writer holds its claim on the account
+    private static final long CLAIMED = 2;
+
+    private static final int VERSION_SHIFT = 2;
+
+    private static final long VERSION = 1 << VERSION_SHIFT;
+
+    private static class Chunk {
+
+        // balance, then version << 2 | claimed | inactive, per account
+        private final AtomicLongArray cells = new AtomicLongArray(CHUNK_SIZE * 2);
+
+        private final AtomicReferenceArray<String> names = new AtomicReferenceArray<String>(CHUNK_SIZE);
+    }
+
+    private final int stride;
+
+    private final int offset;
+
+    private volatile Chunk[] chunks = new Chunk[0];
+
+    private volatile int size;
+
+    /**
+     * Store of all the accounts, for a ledger that is not sharded.
+     */
+    public AccountStore() {
+        this(1, 0);
+    }
+
+    /**
+     * Store of the accounts of a shard.
+     *
+     * @param stride the shard count
+     * @param offset the shard index
+     */
+    public AccountStore(int stride, int offset) {
+        this.stride = stride;
+        this.offset = offset;
+    }
+
+    /**
+     * @return an empty store for the accounts of the same shard
+     */
+    public AccountStore empty() {
+        return new AccountStore(stride, offset);
+    }
+
+    /**
+     * Appends an account.
+     *
+     * @return the uuid of the account
+     */
+    public int add(String name, Account.AccountStatus status, long balance) {
+        return this.add(name, status, balance, 0);
+    }
+
+    /**
+     * Appends an account restored at a given version.
+     *
+     * @return the uuid of the account
+     */
+    public synchronized int add(String name, Account.AccountStatus status, long balance, long version) {
+
+        int slot = size;
+
+        if (slot >>> CHUNK_BITS == chunks.length) {
+            Chunk[] grown = Arrays.copyOf(chunks, chunks.length + 1);
+            grown[chunks.length] = new Chunk();
+            chunks = grown;
+        }
+
+        Chunk chunk = chunks[slot >>> CHUNK_BITS];
+        int cell = (slot & CHUNK_MASK) * 2;
+        chunk.cells.set(cell, balance);
+        chunk.cells.set(cell + 1, version << VERSION_SHIFT | (status == Account.AccountStatus.INACTIVE ? INACTIVE : 0));
+        chunk.names.set(slot & CHUNK_MASK, name);
+
+        size = slot + 1;
+
+        return this.uuidAt(slot);
+    }
+
+    /**
+     * Appends the state of the account, which must have the next uuid.
+     */
+    @Override
+    public boolean add(Account account) {
+
+        synchronized (this) {
+            if (account.getUuid() != this.nextUuid()) {
+                throw new IllegalStateException("Account " + account.getUuid() + " added at position " + size);
+            }
+            this.add(account.getName(), account.getStatus(), account.getBalance());
+        }
+
+        return true;
+    }
+
+    /**
+     * @return a detached copy of the account at a position
+     */
+    @Override
+    public Account get(int position) {
+
+        if (position < 0 || position >= size) {
+            throw new IndexOutOfBoundsException("Position " + position + " of " + size);
+        }
+
+        return this.getAccount(this.uuidAt(position));
+    }
+
+    /**
+     * @return a detached copy of the account
+     */
+    public Account getAccount(int uuid) {
+
+        slot(uuid);
+
+        Account account = new Account();
+        account.setUuid(uuid);
+        // read first, so that the version never claims changes the copy does not have
+        account.setVersion(getVersion(uuid));
+        account.setName(getName(uuid));
+        account.setStatus(getStatus(uuid));
+        account.setBalance(getBalance(uuid));
+        return account;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(int uuid) {
+
+        long position = (long) uuid - offset;
+
+        return position >= 0 && position % stride == 0 && position / stride < size;
+    }
+
+    public int uuidAt(int position) {
+        return position * stride + offset;
+    }
+
+    /**
+     * @return the uuid of the next account added
+     */
+    public int nextUuid() {
+        return this.uuidAt(size);
+    }
+
+    /**
+     * @return the position of the last account with a uuid of at most the given one, -1 if there is none
+     */
+    public int positionOf(int uuid) {
+
+        if (uuid < offset) {
+            return -1;
+        }
+
+        return Math.min(size - 1, (uuid - offset) / stride);
+    }
+
+    public long getBalance(int uuid) {
+        int slot = slot(uuid);
+        return chunks[slot >>> CHUNK_BITS].cells.get((slot & CHUNK_MASK) * 2);
+    }
+
+    /*
+     * Only called by the holder of the account lock
+     */
+    public void setBalance(int uuid, long balance) {
+        int slot = slot(uuid);
+        Chunk chunk = chunks[slot >>> CHUNK_BITS];
+        int cell = (slot & CHUNK_MASK) * 2;
+        chunk.cells.lazySet(cell, balance);
+        chunk.cells.getAndAdd(cell + 1, VERSION);
+    }
+
+    /**
+     * Balance and status in one lookup, as balances are never negative.
+     * @return the balance of the account if it is active, -1 otherwise
+     */
+    public long getActiveBalance(int uuid) {
+        int slot = slot(uuid);
+        Chunk chunk = chunks[slot >>> CHUNK_BITS];
+        int cell = (slot & CHUNK_MASK) * 2;
+        return (chunk.cells.get(cell + 1) & INACTIVE) == 0 ? chunk.cells.get(cell) : -1;
+    }
+
+    public boolean isActive(int uuid) {
+        int slot = slot(uuid);
+        return (chunks[slot >>> CHUNK_BITS].cells.get((slot & CHUNK_MASK) * 2 + 1) & INACTIVE) == 0;
+    }
+
+    public Account.AccountStatus getStatus(int uuid) {
+        return isActive(uuid) ? Account.AccountStatus.ACTIVE : Account.AccountStatus.INACTIVE;
+    }
+
+    /**
+     * Changes the status unconditionally, as when the log is replayed.
+     */
+    public void setStatus(int uuid, Account.AccountStatus status) {
+        this.claim(uuid, ANY_VERSION, false);
+        this.commitStatus(uuid, status);
+    }
+
+    /**
+     * @return the number of changes to the account since it was created
+     */
+    public long getVersion(int uuid) {
+        int slot = slot(uuid);
+        return chunks[slot >>> CHUNK_BITS].cells.get((slot & CHUNK_MASK) * 2 + 1) >>> VERSION_SHIFT;
+    }
+
+    public String getName(int uuid) {
+        int slot = slot(uuid);
+        return chunks[slot >>> CHUNK_BITS].names.get(slot & CHUNK_MASK);
+    }
+
+    /**
+     * Changes the name unconditionally, as when the log is replayed.
+     */
+    public void setName(int uuid, String name) {
+        this.claim(uuid, ANY_VERSION, false);
+        this.commitName(uuid, name);
+    }
+
+    /**
+     * Claims an active account to change its name or status, waiting for the claim of another writer to be
+     * committed. The claim must be followed by a commit.
+     *
+     * @param expectedVersion the version the account must be at, or {@link #ANY_VERSION}
+     * @return false, without claiming it, if the account is inactive or not at the expected version
+     */
+    public boolean claim(int uuid, long expectedVersion) {
+        return this.claim(uuid, expectedVersion, true);
+    }
+
+    private boolean claim(int uuid, long expectedVersion, boolean active) {
+
+        int slot = slot(uuid);
+        Chunk chunk = chunks[slot >>> CHUNK_BITS];
+        int cell = (slot & CHUNK_MASK) * 2 + 1;
+
+        while (true) {
+
+            long current = chunk.cells.get(cell);
+
+            if ((current & CLAIMED) != 0) {
+                // claims are only held for a few stores
+                Thread.yield();
+                continue;
+            }
+
+            if ((active && (current & INACTIVE) != 0)
+                    || (expectedVersion != ANY_VERSION && current >>> VERSION_SHIFT != expectedVersion)) {
+                return false;
+            }
+
+            if (chunk.cells.compareAndSet(cell, current, current | CLAIMED)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Changes the name of a claimed account and releases it at the next version.
+     */
+    public void commitName(int uuid, String name) {
+        int slot = slot(uuid);
+        Chunk chunk = chunks[slot >>> CHUNK_BITS];
+        chunk.names.set(slot & CHUNK_MASK, name);
+        chunk.cells.getAndAdd((slot & CHUNK_MASK) * 2 + 1, VERSION - CLAIMED);
+    }
+
+    /**
+     * Changes the status of a claimed account and releases it at the next version.
+     */
+    public void commitStatus(int uuid, Account.AccountStatus status) {
+
+        int slot = slot(uuid);
+        Chunk chunk = chunks[slot >>> CHUNK_BITS];
+        int cell = (slot & CHUNK_MASK) * 2 + 1;
+
+        long current;
+        long next;
+        do {
+            current = chunk.cells.get(cell);
+            next = (current + VERSION - CLAIMED) & ~INACTIVE | (status == Account.AccountStatus.INACTIVE ? INACTIVE : 0);
+        } while (!chunk.cells.compareAndSet(cell, current, next));
+    }
+
+    /**
+     * Claims every account, waiting for the claims in progress, so that no name or status changes until
+     * {@link #releaseAll()}. No account may be added in between.
+     */
+    public synchronized void claimAll() {
+        for (int slot = 0; slot < size; slot++) {
+            this.claim(this.uuidAt(slot), ANY_VERSION, false);
+        }
+    }
+
+    /**
+     * Releases the claims of {@link #claimAll()}, leaving the versions unchanged.
+     */
+    public synchronized void releaseAll() {
+        for (int slot = 0; slot < size; slot++) {
+            chunks[slot >>> CHUNK_BITS].cells.getAndAdd((slot & CHUNK_MASK) * 2 + 1, -CLAIMED);
+        }
+    }
+
+    /**
+     * @return a copy of the store, without claims, consistent if no account changes while it is taken
+     */
+    public synchronized AccountStore copy() {
+
+        AccountStore copy = new AccountStore(stride, offset);
+
+        Chunk[] copied = new Chunk[chunks.length];
+        for (int c = 0; c < chunks.length; c++) {
+            copied[c] = new Chunk();
+            int accounts = Math.min(CHUNK_SIZE, size - (c << CHUNK_BITS));
+            for (int i = 0; i < accounts; i++) {
+                copied[c].cells.set(i * 2, chunks[c].cells.get(i * 2));
+                copied[c].cells.set(i * 2 + 1, chunks[c].cells.get(i * 2 + 1) & ~CLAIMED);
+                copied[c].names.set(i, chunks[c].names.get(i));
+            }
+        }
+
+        copy.chunks = copied;
+        copy.size = size;
+
+        return copy;
+    }
+
+    /*
+     * Position of an account in the columns
+     */
+    private int slot(int uuid) {
+
+        if (!this.contains(uuid)) {
+            throw new IndexOutOfBoundsException("Account " + uuid + " of " + size);
+        }
+
+        return stride == 1 ? uuid : (uuid - offset) / stride;
+    }
+}
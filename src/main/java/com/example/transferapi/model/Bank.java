@@ -1,33 +1,59 @@
 package com.example.transferapi.model;
 
-import java.util.ArrayList;
-import java.util.List;
-
 public class Bank {
 
-    private List<Account> accounts;
+    private AccountStore accounts;
+
+    private TransactionJournal transactions;
 
-    private List<Transaction> transactions;
+    private IdempotencyKeys idempotencyKeys;
 
-    public List<Account> getAccounts() {
+    private ShardTransfers shardTransfers;
+
+    public AccountStore getAccounts() {
         return accounts;
     }
 
-    public void setAccounts(List<Account> accounts) {
+    public void setAccounts(AccountStore accounts) {
         this.accounts = accounts;
     }
 
-    public List<Transaction> getTransactions() {
+    public TransactionJournal getTransactions() {
         return transactions;
     }
 
-    public void setTransactions(List<Transaction> transactions) {
+    public void setTransactions(TransactionJournal transactions) {
         this.transactions = transactions;
-}
+    }
+
+    public IdempotencyKeys getIdempotencyKeys() {
+        return idempotencyKeys;
+    }
+
+    public void setIdempotencyKeys(IdempotencyKeys idempotencyKeys) {
+        this.idempotencyKeys = idempotencyKeys;
+    }
+
+    public ShardTransfers getShardTransfers() {
+        return shardTransfers;
+    }
+
+    public void setShardTransfers(ShardTransfers shardTransfers) {
+        this.shardTransfers = shardTransfers;
+    }
 
     public Bank() {
-        this.setAccounts(new ArrayList<Account>());
-        this.setTransactions(new ArrayList<Transaction>());
+        this(new AccountStore());
+    }
+
+    /**
+     * Bank of the accounts of the given empty store, which is laid out for the shard of the node.
+     */
+    public Bank(AccountStore accounts) {
+        this.setAccounts(accounts);
+        this.setTransactions(new TransactionJournal());
+        this.setIdempotencyKeys(new IdempotencyKeys());
+        this.setShardTransfers(new ShardTransfers());
     }
 
 
@@ -0,0 +1,37 @@
+package com.example.transferapi.model;
+
+/**
+ * Totals of the bank at one point in time.
+ */
+public class BankSummary {
+
+    private int accounts;
+
+    private int transactions;
+
+    private long totalBalance;
+
+    public int getAccounts() {
+        return accounts;
+    }
+
+    public void setAccounts(int accounts) {
+        this.accounts = accounts;
+    }
+
+    public int getTransactions() {
+        return transactions;
+    }
+
+    public void setTransactions(int transactions) {
+        this.transactions = transactions;
+    }
+
+    public long getTotalBalance() {
+        return totalBalance;
+    }
+
+    public void setTotalBalance(long totalBalance) {
+        this.totalBalance = totalBalance;
+    }
+}
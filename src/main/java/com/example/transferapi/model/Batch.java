@@ -0,0 +1,31 @@
+package com.example.transferapi.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class Batch {
+
+    public static enum BatchMode {
+        ATOMIC, PER_ITEM
+    }
+
+    private BatchMode mode = BatchMode.ATOMIC;
+
+    private List<BatchOperation> operations = new ArrayList<BatchOperation>();
+
+    public BatchMode getMode() {
+        return mode;
+    }
+
+    public void setMode(BatchMode mode) {
+        this.mode = mode;
+    }
+
+    public List<BatchOperation> getOperations() {
+        return operations;
+    }
+
+    public void setOperations(List<BatchOperation> operations) {
+        this.operations = operations;
+    }
+}
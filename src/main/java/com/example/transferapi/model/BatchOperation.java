@@ -0,0 +1,58 @@
+package com.example.transferapi.model;
+
+public class BatchOperation {
+
+    public static enum OperationType {
+        TRANSFER, DEPOSIT, WITHDRAW
+    }
+
+    private OperationType type;
+
+    private Integer sourceAccountId;
+
+    private Integer targetAccountId;
+
+    private long amount;
+
+    private String message;
+
+    public OperationType getType() {
+        return type;
+    }
+
+    public void setType(OperationType type) {
+        this.type = type;
+    }
+
+    public Integer getSourceAccountId() {
+        return sourceAccountId;
+    }
+
+    public void setSourceAccountId(Integer sourceAccountId) {
+        this.sourceAccountId = sourceAccountId;
+    }
+
+    public Integer getTargetAccountId() {
+        return targetAccountId;
+    }
+
+    public void setTargetAccountId(Integer targetAccountId) {
+        this.targetAccountId = targetAccountId;
+    }
+
+    public long getAmount() {
+        return amount;
+    }
+
+    public void setAmount(long amount) {
+        this.amount = amount;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public void setMessage(String message) {
+        this.message = message;
+    }
+}
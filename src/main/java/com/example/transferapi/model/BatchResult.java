@@ -0,0 +1,60 @@
+package com.example.transferapi.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class BatchResult {
+
+    public static class OperationResult {
+
+        private int status;
+
+        private Integer transactionId;
+
+        private String error;
+
+        public int getStatus() {
+            return status;
+        }
+
+        public void setStatus(int status) {
+            this.status = status;
+        }
+
+        public Integer getTransactionId() {
+            return transactionId;
+        }
+
+        public void setTransactionId(Integer transactionId) {
+            this.transactionId = transactionId;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public void setError(String error) {
+            this.error = error;
+        }
+    }
+
+    private Batch.BatchMode mode;
+
+    private List<OperationResult> results = new ArrayList<OperationResult>();
+
+    public Batch.BatchMode getMode() {
+        return mode;
+    }
+
+    public void setMode(Batch.BatchMode mode) {
+        this.mode = mode;
+    }
+
+    public List<OperationResult> getResults() {
+        return results;
+    }
+
+    public void setResults(List<OperationResult> results) {
+        this.results = results;
+    }
+}
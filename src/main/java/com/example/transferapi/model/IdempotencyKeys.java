@@ -0,0 +1,245 @@
+package com.example.transferapi.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded cache of the outcomes of requests sent with an idempotency key, so that a client retrying a request gets
+ * the original outcome instead of moving the money twice.
+ *
+ * A key is first reserved, which makes concurrent requests with the same key see it in progress, then completed with
+ * the ids of the transactions the request created, or released if the request failed. Lookups and reservations are
+ * a single operation on a concurrent map and never touch the ledger. Completed keys are also queued in completion
+ * order: since they all live for the same time, the head of the queue is always the next one to expire or to be
+ * evicted when the cache is full.
+ */
+public class IdempotencyKeys {
+
+    public static final String MAX_KEYS_PROPERTY = "transferapi.idempotency.maxKeys";
+
+    public static final String TTL_PROPERTY = "transferapi.idempotency.ttlSeconds";
+
+    /**
+     * Outcome of a request. Each operation of the request has an outcome: the id of the transaction it created, or,
+     * if it failed, its status negated, with an error message.
+     */
+    public static class Entry {
+
+        private final String key;
+
+        private final int fingerprint;
+
+        private final long timestamp;
+
+        private final int[] outcomes;
+
+        private final String[] errors;
+
+        public Entry(String key, int fingerprint, long timestamp, int[] outcomes, String[] errors) {
+            this.key = key;
+            this.fingerprint = fingerprint;
+            this.timestamp = timestamp;
+            this.outcomes = outcomes;
+            this.errors = errors;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * @return a hash of the request, to tell a retry from a different request reusing the key
+         */
+        public int getFingerprint() {
+            return fingerprint;
+        }
+
+        /**
+         * @return when the request completed, in milliseconds since the epoch
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return true while the request holding the key has not completed
+         */
+        public boolean isPending() {
+            return outcomes == null;
+        }
+
+        public int[] getOutcomes() {
+            return outcomes;
+        }
+
+        /**
+         * @return the errors of the failed operations, at their position, or null if none failed
+         */
+        public String[] getErrors() {
+            return errors;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    // completed entries, oldest first
+    private final ConcurrentLinkedQueue<Entry> completed = new ConcurrentLinkedQueue<Entry>();
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    private final int maxKeys;
+
+    private final long ttlMillis;
+
+    public IdempotencyKeys() {
+        this(Integer.getInteger(MAX_KEYS_PROPERTY, 100000),
+                TimeUnit.SECONDS.toMillis(Long.getLong(TTL_PROPERTY, TimeUnit.DAYS.toSeconds(1))));
+    }
+
+    public IdempotencyKeys(int maxKeys, long ttlMillis) {
+        this.maxKeys = maxKeys;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Reserves a key for a request.
+     *
+     * @return null if the key was free and is now reserved, otherwise the entry holding it: pending if the request
+     * holding it is still in progress
+     */
+    public Entry reserve(String key, int fingerprint) {
+
+        long now = System.currentTimeMillis();
+        this.evict(now);
+
+        Entry reservation = new Entry(key, fingerprint, now, null, null);
+
+        while (true) {
+
+            Entry existing = entries.putIfAbsent(key, reservation);
+
+            if (existing == null) {
+                return null;
+            }
+
+            if (existing.isPending() || !this.isExpired(existing, now)) {
+                return existing;
+            }
+
+            // expired but not evicted yet, it stays in the queue until then
+            if (entries.replace(key, existing, reservation)) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Completes the reservation of a key with the outcomes of its request.
+     *
+     * @return the completed entry
+     */
+    public Entry complete(String key, int[] outcomes, String[] errors) {
+
+        Entry reservation = entries.get(key);
+
+        if (reservation == null || !reservation.isPending()) {
+            throw new IllegalStateException("Idempotency key " + key + " is not reserved");
+        }
+
+        Entry entry = new Entry(key, reservation.getFingerprint(), System.currentTimeMillis(), outcomes, errors);
+        entries.replace(key, reservation, entry);
+        this.enqueue(entry);
+
+        return entry;
+    }
+
+    /**
+     * Frees the reservation of a key whose request failed, so that it can be retried.
+     */
+    public void release(String key) {
+
+        Entry reservation = entries.get(key);
+
+        if (reservation != null && reservation.isPending()) {
+            entries.remove(key, reservation);
+        }
+    }
+
+    /**
+     * Adds a completed entry read back from the log or a checkpoint, unless it has expired or the key is already
+     * known.
+     */
+    public void restore(Entry entry) {
+
+        if (!this.isExpired(entry, System.currentTimeMillis()) && entries.putIfAbsent(entry.getKey(), entry) == null) {
+            this.enqueue(entry);
+        }
+    }
+
+    /**
+     * @return the completed entry of a key, null if there is none or it has expired
+     */
+    public Entry get(String key) {
+
+        Entry entry = entries.get(key);
+
+        return entry == null || entry.isPending() || this.isExpired(entry, System.currentTimeMillis()) ? null : entry;
+    }
+
+    /**
+     * @return the completed entries that have not expired, in no particular order
+     */
+    public List<Entry> snapshot() {
+
+        long now = System.currentTimeMillis();
+        List<Entry> snapshot = new ArrayList<Entry>();
+
+        for (Entry entry : entries.values()) {
+            if (!entry.isPending() && !this.isExpired(entry, now)) {
+                snapshot.add(entry);
+            }
+        }
+
+        return snapshot;
+    }
+
+    private void enqueue(Entry entry) {
+
+        completed.offer(entry);
+        size.incrementAndGet();
+        this.evict(entry.getTimestamp());
+    }
+
+    /*
+     * One thread evicts at a time, the others carry on: the queue is only polled by the evicting thread, so what it
+     * polls is what it checked
+     */
+    private void evict(long now) {
+
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            Entry oldest;
+            while ((oldest = completed.peek()) != null && (size.get() > maxKeys || this.isExpired(oldest, now))) {
+                completed.poll();
+                size.decrementAndGet();
+                entries.remove(oldest.getKey(), oldest);
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return now - entry.getTimestamp() >= ttlMillis;
+    }
+}
@@ -0,0 +1,58 @@
+package com.example.transferapi.model;
+
+/**
+ * Monetary amounts are stored as a long number of minor units (e.g. cents). The scale is the number of decimal
+ * digits of the minor unit, configured with the transferapi.money.scale system property (default 2).
+ */
+public final class Money {
+
+    public static final int SCALE = Integer.getInteger("transferapi.money.scale", 2);
+
+    private static final long UNIT = unit(SCALE);
+
+    private Money() {
+    }
+
+    private static long unit(int scale) {
+
+        if (scale < 0 || scale > 18) {
+            throw new IllegalArgumentException("Money scale must be between 0 and 18, was " + scale);
+        }
+
+        long unit = 1;
+        for (int i = 0; i < scale; i++) {
+            unit *= 10;
+        }
+        return unit;
+    }
+
+    /**
+     * Appends the amount in major units, e.g. 1050 is appended as 10.50 with scale 2.
+     */
+    public static StringBuilder format(StringBuilder out, long minorUnits) {
+
+        if (minorUnits < 0) {
+            out.append('-');
+        }
+
+        // negate through the remainder so Long.MIN_VALUE does not overflow
+        long major = Math.abs(minorUnits / UNIT);
+        long minor = Math.abs(minorUnits % UNIT);
+
+        out.append(major);
+
+        if (SCALE > 0) {
+            out.append('.');
+            for (long digit = UNIT / 10; digit > minor && digit > 1; digit /= 10) {
+                out.append('0');
+            }
+            out.append(minor);
+        }
+
+        return out;
+    }
+
+    public static String toString(long minorUnits) {
+        return format(new StringBuilder(24), minorUnits).toString();
+    }
+}
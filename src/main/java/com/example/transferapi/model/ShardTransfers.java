@@ -0,0 +1,225 @@
+package com.example.transferapi.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Durable state of the cross-shard transfers of a node: the commits decided by its coordinator and the legs
+ * prepared by its participant. Both record every step here and have it logged before they acknowledge it, and
+ * rebuild their state from here when the node restarts.
+ *
+ * Entries only move forward. A record read back from the log is ignored when its entry is already known in a later
+ * state, so a checkpoint and the segments written after it can be applied in any overlap.
+ */
+public class ShardTransfers {
+
+    public enum State {
+        PREPARED, COMMITTED, ABORTED
+    }
+
+    /**
+     * Commit decided by the coordinator. Aborts are not recorded: a transfer that is not known is presumed aborted.
+     */
+    public static class Decision {
+
+        private final String transferId;
+
+        private final int sourceShard;
+
+        private final int targetShard;
+
+        private final boolean delivered;
+
+        public Decision(String transferId, int sourceShard, int targetShard, boolean delivered) {
+            this.transferId = transferId;
+            this.sourceShard = sourceShard;
+            this.targetShard = targetShard;
+            this.delivered = delivered;
+        }
+
+        public String getTransferId() {
+            return transferId;
+        }
+
+        public int getSourceShard() {
+            return sourceShard;
+        }
+
+        public int getTargetShard() {
+            return targetShard;
+        }
+
+        /**
+         * @return whether both legs acknowledged the commit
+         */
+        public boolean isDelivered() {
+            return delivered;
+        }
+    }
+
+    /**
+     * Leg of a transfer on an account of this node.
+     */
+    public static class Leg {
+
+        private final String transferId;
+
+        private final State state;
+
+        private final boolean debit;
+
+        private final int accountId;
+
+        private final long amount;
+
+        private final String message;
+
+        private final int reservation;
+
+        private final int settlement;
+
+        public Leg(String transferId, State state, boolean debit, int accountId, long amount, String message,
+                   int reservation, int settlement) {
+            this.transferId = transferId;
+            this.state = state;
+            this.debit = debit;
+            this.accountId = accountId;
+            this.amount = amount;
+            this.message = message;
+            this.reservation = reservation;
+            this.settlement = settlement;
+        }
+
+        public String getTransferId() {
+            return transferId;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public boolean isDebit() {
+            return debit;
+        }
+
+        public int getAccountId() {
+            return accountId;
+        }
+
+        public long getAmount() {
+            return amount;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        /**
+         * @return the id of the withdrawal of a debit leg, -1 if there is none
+         */
+        public int getReservation() {
+            return reservation;
+        }
+
+        /**
+         * @return the id of the deposit of a committed credit leg or of the release of an aborted debit leg, -1 if
+         * there is none
+         */
+        public int getSettlement() {
+            return settlement;
+        }
+
+        Leg withState(State state, int reservation, int settlement) {
+            return new Leg(transferId, state, debit, accountId, amount, message, reservation, settlement);
+        }
+    }
+
+    private final ConcurrentHashMap<String, Decision> decisions = new ConcurrentHashMap<String, Decision>();
+
+    private final ConcurrentHashMap<String, Leg> legs = new ConcurrentHashMap<String, Leg>();
+
+    /**
+     * Records a step of the coordinator, which takes them in order.
+     */
+    public void put(Decision decision) {
+        decisions.put(decision.getTransferId(), decision);
+    }
+
+    /**
+     * Records a step of the participant, which takes them in order.
+     */
+    public void put(Leg leg) {
+        legs.put(leg.getTransferId(), leg);
+    }
+
+    /**
+     * Adds a decision read back from the log or a checkpoint, unless it is already known as delivered.
+     */
+    public void restore(Decision decision) {
+
+        while (true) {
+
+            Decision existing = decisions.putIfAbsent(decision.getTransferId(), decision);
+
+            if (existing == null || existing.isDelivered() || !decision.isDelivered()
+                    || decisions.replace(decision.getTransferId(), existing, decision)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Adds a leg read back from the log or a checkpoint, unless it is already known as completed.
+     */
+    public void restore(Leg leg) {
+
+        while (true) {
+
+            Leg existing = legs.putIfAbsent(leg.getTransferId(), leg);
+
+            if (existing == null || existing.getState() != State.PREPARED || leg.getState() == State.PREPARED
+                    || legs.replace(leg.getTransferId(), existing, leg)) {
+                return;
+            }
+        }
+    }
+
+    public void removeDecision(String transferId) {
+        decisions.remove(transferId);
+    }
+
+    public void removeLeg(String transferId) {
+        legs.remove(transferId);
+    }
+
+    /**
+     * Steps back the legs whose transaction is not among the given number of transactions, lost by a crash with the
+     * tail of the log that held their record: a debit without its reservation was never prepared, a leg without its
+     * settlement is still prepared.
+     */
+    public void truncate(int transactionCount) {
+
+        for (Leg leg : legs.values()) {
+            if (leg.getReservation() >= transactionCount) {
+                legs.replace(leg.getTransferId(), leg, leg.withState(State.ABORTED, -1, -1));
+            } else if (leg.getSettlement() >= transactionCount) {
+                legs.replace(leg.getTransferId(), leg, leg.withState(State.PREPARED, leg.getReservation(), -1));
+            }
+        }
+    }
+
+    /**
+     * @return the decisions, in no particular order
+     */
+    public List<Decision> getDecisions() {
+        return new ArrayList<Decision>(decisions.values());
+    }
+
+    /**
+     * @return the legs, in no particular order
+     */
+    public List<Leg> getLegs() {
+        return new ArrayList<Leg>(legs.values());
+    }
+}
@@ -2,30 +2,32 @@ package com.example.transferapi.model;
 
 public class Transaction {
 
-    private int Uuid;
+    private int uuid;
 
     private Integer sourceAccount;
 
     private Integer targetAccount;
 
-    private double amount;
+    private long amount;
 
-    private double sourceAccountStartBalance;
+    private long sourceAccountStartBalance;
 
-    private double sourceAccountEndBalance;
+    private long sourceAccountEndBalance;
 
-    private double targetAccountStartBalance;
+    private long targetAccountStartBalance;
 
-    private double targetAccountEndBalance;
+    private long targetAccountEndBalance;
 
     private String message;
 
+    private long timestamp;
+
     public int getUuid() {
-        return Uuid;
+        return uuid;
     }
 
     public void setUuid(int uuid) {
-        Uuid = uuid;
+        this.uuid = uuid;
     }
 
     public Integer getSourceAccount() {
@@ -44,43 +46,43 @@ public class Transaction {
         this.targetAccount = targetAccount;
     }
 
-    public double getAmount() {
+    public long getAmount() {
         return amount;
     }
 
-    public void setAmount(double amount) {
+    public void setAmount(long amount) {
         this.amount = amount;
     }
 
-    public double getSourceAccountStartBalance() {
+    public long getSourceAccountStartBalance() {
         return sourceAccountStartBalance;
     }
 
-    public void setSourceAccountStartBalance(double sourceAccountStartBalance) {
+    public void setSourceAccountStartBalance(long sourceAccountStartBalance) {
         this.sourceAccountStartBalance = sourceAccountStartBalance;
     }
 
-    public double getSourceAccountEndBalance() {
+    public long getSourceAccountEndBalance() {
         return sourceAccountEndBalance;
     }
 
-    public void setSourceAccountEndBalance(double sourceAccountEndBalance) {
+    public void setSourceAccountEndBalance(long sourceAccountEndBalance) {
         this.sourceAccountEndBalance = sourceAccountEndBalance;
     }
 
-    public double getTargetAccountStartBalance() {
+    public long getTargetAccountStartBalance() {
         return targetAccountStartBalance;
     }
 
-    public void setTargetAccountStartBalance(double targetAccountStartBalance) {
+    public void setTargetAccountStartBalance(long targetAccountStartBalance) {
         this.targetAccountStartBalance = targetAccountStartBalance;
     }
 
-    public double getTargetAccountEndBalance() {
+    public long getTargetAccountEndBalance() {
         return targetAccountEndBalance;
     }
 
-    public void setTargetAccountEndBalance(double targetAccountEndBalance) {
+    public void setTargetAccountEndBalance(long targetAccountEndBalance) {
         this.targetAccountEndBalance = targetAccountEndBalance;
     }
 
@@ -91,4 +93,15 @@ public class Transaction {
     public void setMessage(String message) {
         this.message = message;
     }
+
+    /**
+     * @return the time the transaction was applied, in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
 }
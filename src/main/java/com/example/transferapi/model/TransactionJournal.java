@@ -0,0 +1,393 @@
+package com.example.transferapi.model;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Append-only journal of transactions, stored off-heap.
+ *
+ * Every transaction is a fixed-width entry in a chunk of direct memory selected by its id, with the same layout as
+ * the checkpoint table; messages are appended to a separate direct area and referenced by offset and length, and
+ * recently used messages are interned so repeated ones are stored once. The heap only holds the chunk directories
+ * and one bit per transaction, so it stays flat however long the journal grows. {@link #get(int)} decodes a new
+ * {@link Transaction} on every call.
+ *
+ * Ids are handed out by an atomic sequence. Appends never take a lock: a writer reserves its id, writes its entry,
+ * marks it written and then helps move the published watermark over every entry that is already written. Readers
+ * only see the published prefix, so {@link #size()}, {@link #get(int)} and iteration observe a consistent
+ * snapshot of the journal without copying it and without blocking writers.
+ *
+ * A journal can continue an immutable base, such as the transactions of a checkpoint: ids below the size of the
+ * base are served by the base and new transactions are numbered after it.
+ *
+ * An {@link Index} passed to {@link #append(Transaction, Index)} sees the transaction before it is published, so
+ * every transaction of the published prefix is already indexed.
+ */
+public class TransactionJournal extends AbstractList<Transaction> {
+
+    public static final int ENTRY_SIZE = 64;
+
+    private static final int CHUNK_BITS = 16;
+
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    private static final int MESSAGE_CHUNK_BITS = 22;
+
+    private static final int MESSAGE_CHUNK_SIZE = 1 << MESSAGE_CHUNK_BITS;
+
+    private static final int NO_ACCOUNT = -1;
+
+    // all ones, so its length field is 0xFFFFFF
+    private static final long NULL_MESSAGE = -1;
+
+    private static final int MAX_MESSAGE_LENGTH = 0xFFFFFF - 1;
+
+    private static final int INTERNED_MESSAGES = 4096;
+
+    /**
+     * Index of the transactions of the journal, kept up to date by the writers.
+     */
+    public interface Index {
+
+        /**
+         * Called once the id of the transaction is assigned, before it is published.
+         */
+        void add(Transaction transaction);
+    }
+
+    private static class InternedMessage {
+
+        private final String message;
+
+        private final long reference;
+
+        private InternedMessage(String message, long reference) {
+            this.message = message;
+            this.reference = reference;
+        }
+    }
+
+    private final AtomicReferenceArray<ByteBuffer> entries =
+            new AtomicReferenceArray<ByteBuffer>(1 << (31 - CHUNK_BITS));
+
+    // one bit per entry, set once the entry is completely written
+    private final AtomicReferenceArray<AtomicLongArray> written =
+            new AtomicReferenceArray<AtomicLongArray>(1 << (31 - CHUNK_BITS));
+
+    private final AtomicReferenceArray<ByteBuffer> messages =
+            new AtomicReferenceArray<ByteBuffer>(1 << (40 - MESSAGE_CHUNK_BITS));
+
+    private final AtomicLong messagesEnd = new AtomicLong();
+
+    private final AtomicReferenceArray<InternedMessage> interned =
+            new AtomicReferenceArray<InternedMessage>(INTERNED_MESSAGES);
+
+    private final List<Transaction> base;
+
+    private final int baseSize;
+
+    private final AtomicInteger sequence;
+
+    private final AtomicInteger published;
+
+    public TransactionJournal() {
+        this(Collections.<Transaction>emptyList());
+    }
+
+    public TransactionJournal(List<Transaction> base) {
+        this.base = base;
+        this.baseSize = base.size();
+        this.sequence = new AtomicInteger(baseSize);
+        this.published = new AtomicInteger(baseSize);
+    }
+
+    public List<Transaction> getBase() {
+        return base;
+    }
+
+    /**
+     * Appends a transaction, assigning its uuid. Later changes to the transaction are not seen by the journal.
+     * @return the uuid of the transaction
+     */
+    public int append(Transaction transaction) {
+        return this.append(transaction, null);
+    }
+
+    /**
+     * Appends a transaction, assigning its uuid, and adds it to the index before publishing it.
+     * @return the uuid of the transaction
+     */
+    public int append(Transaction transaction, Index transactionIndex) {
+
+        // stored before the id is reserved: once it is, nothing may stop the entry from being marked written, or
+        // the published prefix would stop at it for good
+        long message = this.message(transaction.getMessage());
+
+        int id = sequence.getAndIncrement();
+
+        if (id < 0) {
+            throw new IllegalStateException("Transaction journal is full");
+        }
+
+        transaction.setUuid(id);
+
+        int index = id - baseSize;
+        ByteBuffer chunk = chunk(entries, index >>> CHUNK_BITS, CHUNK_SIZE * ENTRY_SIZE);
+        int position = (index & (CHUNK_SIZE - 1)) * ENTRY_SIZE;
+
+        chunk.putInt(position, transaction.getSourceAccount() == null ? NO_ACCOUNT : transaction.getSourceAccount());
+        chunk.putInt(position + 4, transaction.getTargetAccount() == null ? NO_ACCOUNT : transaction.getTargetAccount());
+        chunk.putLong(position + 8, transaction.getAmount());
+        chunk.putLong(position + 16, transaction.getSourceAccountStartBalance());
+        chunk.putLong(position + 24, transaction.getSourceAccountEndBalance());
+        chunk.putLong(position + 32, transaction.getTargetAccountStartBalance());
+        chunk.putLong(position + 40, transaction.getTargetAccountEndBalance());
+        chunk.putLong(position + 48, message);
+        chunk.putLong(position + 56, transaction.getTimestamp());
+
+        if (transactionIndex != null) {
+            transactionIndex.add(transaction);
+        }
+
+        // the volatile write of the bit publishes the entry to whoever reads it
+        markWritten(index);
+
+        publish();
+
+        return id;
+    }
+
+    private void publish() {
+
+        int current;
+        while ((current = published.get()) < sequence.get()) {
+
+            int next = current;
+            while (next < sequence.get() && isWritten(next)) {
+                next++;
+            }
+
+            if (next == current) {
+                // an earlier writer has not stored its entry yet; it will publish ours when it does
+                return;
+            }
+
+            published.compareAndSet(current, next);
+        }
+    }
+
+    private void markWritten(int index) {
+
+        AtomicLongArray bits = written.get(index >>> CHUNK_BITS);
+        if (bits == null) {
+            written.compareAndSet(index >>> CHUNK_BITS, null, new AtomicLongArray(CHUNK_SIZE / 64));
+            bits = written.get(index >>> CHUNK_BITS);
+        }
+
+        int word = (index & (CHUNK_SIZE - 1)) >>> 6;
+        long mask = 1L << index;
+        long value;
+        do {
+            value = bits.get(word);
+        } while (!bits.compareAndSet(word, value, value | mask));
+    }
+
+    private boolean isWritten(int id) {
+
+        int index = id - baseSize;
+        AtomicLongArray bits = written.get(index >>> CHUNK_BITS);
+
+        return bits != null && (bits.get((index & (CHUNK_SIZE - 1)) >>> 6) & (1L << index)) != 0;
+    }
+
+    private static ByteBuffer chunk(AtomicReferenceArray<ByteBuffer> chunks, int chunk, int size) {
+
+        ByteBuffer buffer = chunks.get(chunk);
+
+        if (buffer == null) {
+            chunks.compareAndSet(chunk, null, ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder()));
+            buffer = chunks.get(chunk);
+        }
+
+        return buffer;
+    }
+
+    /*
+     * Stores a message, or reuses a recent copy of it, and returns its reference: the offset in the message area
+     * shifted left 24 bits, and the length in bytes
+     */
+    private long message(String message) {
+
+        if (message == null) {
+            return NULL_MESSAGE;
+        }
+
+        int slot = message.hashCode() & (INTERNED_MESSAGES - 1);
+        InternedMessage cached = interned.get(slot);
+        if (cached != null && cached.message.equals(message)) {
+            return cached.reference;
+        }
+
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_MESSAGE_LENGTH) {
+            throw new IllegalArgumentException("Message of " + bytes.length + " bytes is too long");
+        }
+
+        long offset = messagesEnd.getAndAdd(bytes.length);
+        for (int i = 0; i < bytes.length; ) {
+            ByteBuffer chunk = chunk(messages, (int) (offset >>> MESSAGE_CHUNK_BITS), MESSAGE_CHUNK_SIZE).duplicate();
+            chunk.position((int) (offset & (MESSAGE_CHUNK_SIZE - 1)));
+            int count = Math.min(bytes.length - i, chunk.remaining());
+            chunk.put(bytes, i, count);
+            i += count;
+            offset += count;
+        }
+
+        long reference = (offset - bytes.length) << 24 | bytes.length;
+        interned.set(slot, new InternedMessage(message, reference));
+
+        return reference;
+    }
+
+    private String readMessage(long reference) {
+
+        int length = (int) (reference & 0xFFFFFF);
+
+        if (reference == NULL_MESSAGE) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        long offset = reference >>> 24;
+        for (int i = 0; i < length; ) {
+            ByteBuffer chunk = messages.get((int) (offset >>> MESSAGE_CHUNK_BITS)).duplicate();
+            chunk.position((int) (offset & (MESSAGE_CHUNK_SIZE - 1)));
+            int count = Math.min(length - i, chunk.remaining());
+            chunk.get(bytes, i, count);
+            i += count;
+            offset += count;
+        }
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private Transaction read(int id) {
+
+        if (id < baseSize) {
+            return base.get(id);
+        }
+
+        int index = id - baseSize;
+        ByteBuffer chunk = entries.get(index >>> CHUNK_BITS);
+        int position = (index & (CHUNK_SIZE - 1)) * ENTRY_SIZE;
+
+        Transaction transaction = new Transaction();
+        transaction.setUuid(id);
+        int source = chunk.getInt(position);
+        int target = chunk.getInt(position + 4);
+        transaction.setSourceAccount(source == NO_ACCOUNT ? null : source);
+        transaction.setTargetAccount(target == NO_ACCOUNT ? null : target);
+        transaction.setAmount(chunk.getLong(position + 8));
+        transaction.setSourceAccountStartBalance(chunk.getLong(position + 16));
+        transaction.setSourceAccountEndBalance(chunk.getLong(position + 24));
+        transaction.setTargetAccountStartBalance(chunk.getLong(position + 32));
+        transaction.setTargetAccountEndBalance(chunk.getLong(position + 40));
+        transaction.setMessage(readMessage(chunk.getLong(position + 48)));
+        transaction.setTimestamp(chunk.getLong(position + 56));
+        return transaction;
+    }
+
+    /**
+     * @return the timestamp of a published transaction, without decoding it
+     */
+    public long getTimestamp(int id) {
+
+        if (id < baseSize) {
+            return base.get(id).getTimestamp();
+        }
+
+        int index = id - baseSize;
+        return entries.get(index >>> CHUNK_BITS).getLong((index & (CHUNK_SIZE - 1)) * ENTRY_SIZE + 56);
+    }
+
+    /**
+     * @return the balance a transaction left one of its accounts with, without decoding it
+     */
+    public long getBalanceAfter(int id, int accountId) {
+
+        if (id < baseSize) {
+            Transaction transaction = base.get(id);
+            return transaction.getSourceAccount() != null && transaction.getSourceAccount() == accountId
+                    ? transaction.getSourceAccountEndBalance() : transaction.getTargetAccountEndBalance();
+        }
+
+        int index = id - baseSize;
+        ByteBuffer chunk = entries.get(index >>> CHUNK_BITS);
+        int position = (index & (CHUNK_SIZE - 1)) * ENTRY_SIZE;
+
+        return chunk.getLong(chunk.getInt(position) == accountId ? position + 24 : position + 40);
+    }
+
+    public boolean contains(int id) {
+        return id >= 0 && id < published.get();
+    }
+
+    @Override
+    public Transaction get(int id) {
+
+        if (!contains(id)) {
+            throw new IndexOutOfBoundsException("Transaction " + id + " is not in the journal");
+        }
+
+        return read(id);
+    }
+
+    @Override
+    public int size() {
+        return published.get();
+    }
+
+    /**
+     * Iterates over the transactions published when the iterator was created.
+     */
+    @Override
+    public Iterator<Transaction> iterator() {
+
+        final int limit = published.get();
+
+        return new Iterator<Transaction>() {
+
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < limit;
+            }
+
+            @Override
+            public Transaction next() {
+
+                if (next >= limit) {
+                    throw new NoSuchElementException();
+                }
+
+                return read(next++);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
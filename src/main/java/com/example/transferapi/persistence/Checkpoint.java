@@ -0,0 +1,529 @@
+package com.example.transferapi.persistence;
+
+import com.example.transferapi.model.Account;
+import com.example.transferapi.model.AccountStore;
+import com.example.transferapi.model.IdempotencyKeys;
+import com.example.transferapi.model.ShardTransfers;
+import com.example.transferapi.model.Transaction;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compact binary image of the bank, written periodically so that startup only replays the write-ahead log
+ * segments written after it.
+ *
+ * Layout: a fixed header, the accounts, the transaction messages, a table with one fixed-width entry per
+ * transaction, then the idempotency keys that had not expired and the state of the cross-shard transfers, up to the
+ * end of the file. On startup the accounts are decoded, but the transactions are left in the file: the message area
+ * and the table are memory mapped and {@link MappedTransactions} decodes an entry only when it is read, so the
+ * server can start serving requests as soon as the accounts are loaded.
+ */
+public class Checkpoint {
+
+    private static final int MAGIC = 0x54434b33;
+
+    private static final int HEADER_SIZE = 64;
+
+    /*
+     * Entries are a power of two wide so that an entry never straddles two mapped chunks
+     */
+    static final int ENTRY_SIZE = 64;
+
+    private static final int CHUNK_BITS = 30;
+
+    private static final long CHUNK_SIZE = 1L << CHUNK_BITS;
+
+    private static final int NULL_MESSAGE = 0xFFFFFF;
+
+    private static final String SUFFIX = ".checkpoint.";
+
+    private final long walSegment;
+
+    private final AccountStore accounts;
+
+    private final MappedTransactions transactions;
+
+    private final List<IdempotencyKeys.Entry> idempotencyKeys;
+
+    private final ShardTransfers shardTransfers;
+
+    private Checkpoint(long walSegment, AccountStore accounts, MappedTransactions transactions,
+                       List<IdempotencyKeys.Entry> idempotencyKeys, ShardTransfers shardTransfers) {
+        this.walSegment = walSegment;
+        this.accounts = accounts;
+        this.transactions = transactions;
+        this.idempotencyKeys = idempotencyKeys;
+        this.shardTransfers = shardTransfers;
+    }
+
+    /**
+     * @return the first write-ahead log segment that is not covered by this checkpoint
+     */
+    public long getWalSegment() {
+        return walSegment;
+    }
+
+    public AccountStore getAccounts() {
+        return accounts;
+    }
+
+    public MappedTransactions getTransactions() {
+        return transactions;
+    }
+
+    public List<IdempotencyKeys.Entry> getIdempotencyKeys() {
+        return idempotencyKeys;
+    }
+
+    public ShardTransfers getShardTransfers() {
+        return shardTransfers;
+    }
+
+    static Path path(Path walPath, long walSegment) {
+        return walPath.resolveSibling(walPath.getFileName() + SUFFIX + walSegment);
+    }
+
+    /**
+     * @return the segment of the most recent checkpoint of the log, or -1 if there is none
+     */
+    public static long latestSegment(Path walPath) throws IOException {
+
+        long latest = -1;
+        String prefix = walPath.getFileName() + SUFFIX;
+
+        Path directory = walPath.toAbsolutePath().getParent();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "*")) {
+            for (Path file : files) {
+                String suffix = file.getFileName().toString().substring(prefix.length());
+                if (suffix.matches("\\d+")) {
+                    latest = Math.max(latest, Long.parseLong(suffix));
+                }
+            }
+        }
+
+        return latest;
+    }
+
+    /**
+     * Deletes the checkpoints older than the given segment.
+     */
+    public static void deleteBefore(Path walPath, long walSegment) throws IOException {
+
+        String prefix = walPath.getFileName() + SUFFIX;
+
+        Path directory = walPath.toAbsolutePath().getParent();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "*")) {
+            for (Path file : files) {
+                String suffix = file.getFileName().toString().substring(prefix.length());
+                if (suffix.matches("\\d+") && Long.parseLong(suffix) < walSegment) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads the most recent checkpoint of the log, reading its accounts into the given empty store.
+     * @return the checkpoint, or null if there is none
+     */
+    public static Checkpoint loadLatest(Path walPath, AccountStore accounts) throws IOException {
+
+        long segment = latestSegment(walPath);
+
+        return segment < 0 ? null : load(path(walPath, segment), accounts);
+    }
+
+    public static Checkpoint load(Path file, AccountStore accounts) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // read the whole header
+            }
+            header.flip();
+
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+                throw new IOException(file + " is not a checkpoint");
+            }
+
+            long walSegment = header.getLong();
+            int accountCount = header.getInt();
+            int transactionCount = header.getInt();
+            long accountsOffset = header.getLong();
+            long messagesOffset = header.getLong();
+            long tableOffset = header.getLong();
+            long end = header.getLong();
+
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, accountsOffset, messagesOffset - accountsOffset);
+            for (int i = 0; i < accountCount; i++) {
+                int uuid = in.getInt();
+                long balance = in.getLong();
+                long version = in.getLong();
+                Account.AccountStatus status = Account.AccountStatus.values()[in.get()];
+                if (accounts.add(readString(in), status, balance, version) != uuid) {
+                    throw new IOException(file + " has account " + uuid + " out of order");
+                }
+            }
+
+            MappedTransactions transactions = new MappedTransactions(file, transactionCount,
+                    map(channel, messagesOffset, tableOffset - messagesOffset), messagesOffset, tableOffset - messagesOffset,
+                    map(channel, tableOffset, end - tableOffset), tableOffset);
+
+            List<IdempotencyKeys.Entry> idempotencyKeys = new ArrayList<IdempotencyKeys.Entry>();
+            ShardTransfers shardTransfers = new ShardTransfers();
+            if (channel.size() > end) {
+                ByteBuffer keys = ByteBuffer.allocate((int) (channel.size() - end));
+                while (keys.hasRemaining() && channel.read(keys, end + keys.position()) >= 0) {
+                    // read the whole section
+                }
+                keys.flip();
+                for (int i = keys.getInt(); i > 0; i--) {
+                    idempotencyKeys.add(LogCodec.readIdempotencyEntry(keys));
+                }
+                // absent from the checkpoints written before transfers were logged
+                if (keys.hasRemaining()) {
+                    for (int i = keys.getInt(); i > 0; i--) {
+                        shardTransfers.restore(LogCodec.readShardDecision(keys));
+                    }
+                    for (int i = keys.getInt(); i > 0; i--) {
+                        shardTransfers.restore(LogCodec.readShardLeg(keys));
+                    }
+                }
+            }
+
+            return new Checkpoint(walSegment, accounts, transactions, idempotencyKeys, shardTransfers);
+        }
+    }
+
+    private static MappedByteBuffer[] map(FileChannel channel, long offset, long length) throws IOException {
+
+        MappedByteBuffer[] chunks = new MappedByteBuffer[(int) ((length + CHUNK_SIZE - 1) >>> CHUNK_BITS)];
+        for (int i = 0; i < chunks.length; i++) {
+            long start = (long) i << CHUNK_BITS;
+            chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset + start, Math.min(CHUNK_SIZE, length - start));
+        }
+        return chunks;
+    }
+
+    public static void write(Path walPath, long walSegment, AccountStore accounts, List<Transaction> transactions,
+                             List<Transaction> base, int transactionCount) throws IOException {
+        write(walPath, walSegment, accounts, transactions, base, transactionCount,
+                Collections.<IdempotencyKeys.Entry>emptyList(), new ShardTransfers());
+    }
+
+    /**
+     * Writes a checkpoint of the given accounts, of the first transactionCount transactions, of the idempotency
+     * keys and of the cross-shard transfers, atomically replacing any checkpoint for the same segment. When the transactions continue a previous
+     * checkpoint, its messages and table are copied file to file instead of being decoded and encoded again.
+     */
+    public static void write(Path walPath, long walSegment, AccountStore accounts, List<Transaction> transactions,
+                             List<Transaction> base, int transactionCount,
+                             List<IdempotencyKeys.Entry> idempotencyKeys, ShardTransfers shardTransfers) throws IOException {
+
+        Path file = path(walPath, walSegment);
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+
+        MappedTransactions previous = base instanceof MappedTransactions ? (MappedTransactions) base : null;
+        int copied = previous == null ? 0 : Math.min(previous.size(), transactionCount);
+
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            Output out = new Output(channel);
+            out.position(HEADER_SIZE);
+
+            long accountsOffset = HEADER_SIZE;
+            for (int position = 0; position < accounts.size(); position++) {
+                int uuid = accounts.uuidAt(position);
+                String name = accounts.getName(uuid);
+                out.reserve(40 + name.length() * 3);
+                out.buffer.putInt(uuid);
+                out.buffer.putLong(accounts.getBalance(uuid));
+                out.buffer.putLong(accounts.getVersion(uuid));
+                out.buffer.put((byte) accounts.getStatus(uuid).ordinal());
+                writeString(out.buffer, name);
+            }
+
+            long messagesOffset = out.position();
+            long messagesLength = 0;
+
+            if (copied > 0) {
+                messagesLength = previous.copyMessages(out);
+            }
+
+            long[] references = new long[transactionCount - copied];
+            for (int id = copied; id < transactionCount; id++) {
+                String message = transactions.get(id).getMessage();
+                if (message == null) {
+                    references[id - copied] = NULL_MESSAGE;
+                } else {
+                    byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+                    if (bytes.length >= NULL_MESSAGE) {
+                        throw new IOException("Message of transaction " + id + " is too long for a checkpoint");
+                    }
+                    out.reserve(bytes.length);
+                    out.buffer.put(bytes);
+                    references[id - copied] = messagesLength << 24 | bytes.length;
+                    messagesLength += bytes.length;
+                }
+            }
+
+            long tableOffset = out.position();
+
+            if (copied > 0) {
+                previous.copyTable(out, copied);
+            }
+
+            for (int id = copied; id < transactionCount; id++) {
+                Transaction transaction = transactions.get(id);
+                out.reserve(ENTRY_SIZE);
+                int start = out.buffer.position();
+                out.buffer.putInt(transaction.getSourceAccount() == null ? LogCodec.NONE : transaction.getSourceAccount());
+                out.buffer.putInt(transaction.getTargetAccount() == null ? LogCodec.NONE : transaction.getTargetAccount());
+                out.buffer.putLong(transaction.getAmount());
+                out.buffer.putLong(transaction.getSourceAccountStartBalance());
+                out.buffer.putLong(transaction.getSourceAccountEndBalance());
+                out.buffer.putLong(transaction.getTargetAccountStartBalance());
+                out.buffer.putLong(transaction.getTargetAccountEndBalance());
+                out.buffer.putLong(references[id - copied]);
+                out.buffer.putLong(transaction.getTimestamp());
+                out.buffer.position(start + ENTRY_SIZE);
+            }
+
+            long end = out.position();
+
+            out.reserve(4);
+            out.buffer.putInt(idempotencyKeys.size());
+            for (IdempotencyKeys.Entry entry : idempotencyKeys) {
+                out.reserve(LogCodec.maxIdempotencyEntrySize(entry));
+                LogCodec.putIdempotencyEntry(out.buffer, entry);
+            }
+
+            List<ShardTransfers.Decision> decisions = shardTransfers.getDecisions();
+            out.reserve(4);
+            out.buffer.putInt(decisions.size());
+            for (ShardTransfers.Decision decision : decisions) {
+                out.reserve(LogCodec.maxShardDecisionSize(decision));
+                LogCodec.putShardDecision(out.buffer, decision);
+            }
+
+            List<ShardTransfers.Leg> legs = shardTransfers.getLegs();
+            out.reserve(4);
+            out.buffer.putInt(legs.size());
+            for (ShardTransfers.Leg leg : legs) {
+                out.reserve(LogCodec.maxShardLegSize(leg));
+                LogCodec.putShardLeg(out.buffer, leg);
+            }
+
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putLong(walSegment);
+            header.putInt(accounts.size());
+            header.putInt(transactionCount);
+            header.putLong(accountsOffset);
+            header.putLong(messagesOffset);
+            header.putLong(tableOffset);
+            header.putLong(end);
+            header.clear();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+
+            channel.force(true);
+        }
+
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeString(ByteBuffer out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.putInt(bytes.length);
+        out.put(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /*
+     * Buffered sequential writer that keeps track of the file position
+     */
+    private static class Output {
+
+        private final FileChannel channel;
+
+        private ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+
+        private long flushed;
+
+        Output(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        long position() {
+            return flushed + buffer.position();
+        }
+
+        void position(long position) throws IOException {
+            flush();
+            flushed = position;
+        }
+
+        void reserve(int size) throws IOException {
+            if (buffer.remaining() < size) {
+                flush();
+            }
+            if (buffer.remaining() < size) {
+                buffer = ByteBuffer.allocate(size * 2);
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                flushed += channel.write(buffer, flushed);
+            }
+            buffer.clear();
+        }
+
+        void transferFrom(FileChannel source, long offset, long length) throws IOException {
+            flush();
+            long done = 0;
+            while (done < length) {
+                done += channel.transferFrom(source.position(offset + done), flushed + done, length - done);
+            }
+            flushed += length;
+        }
+    }
+
+    /**
+     * Read-only view of the transactions of a checkpoint, decoded from the mapped file on every read.
+     */
+    public static class MappedTransactions extends AbstractList<Transaction> {
+
+        private static final int ENTRIES_PER_CHUNK = (int) (CHUNK_SIZE / ENTRY_SIZE);
+
+        private final Path file;
+
+        private final int size;
+
+        private final MappedByteBuffer[] messages;
+
+        private final long messagesOffset;
+
+        private final long messagesLength;
+
+        private final MappedByteBuffer[] table;
+
+        private final long tableOffset;
+
+        MappedTransactions(Path file, int size, MappedByteBuffer[] messages, long messagesOffset, long messagesLength,
+                           MappedByteBuffer[] table, long tableOffset) {
+            this.file = file;
+            this.size = size;
+            this.messages = messages;
+            this.messagesOffset = messagesOffset;
+            this.messagesLength = messagesLength;
+            this.table = table;
+            this.tableOffset = tableOffset;
+        }
+
+        @Override
+        public Transaction get(int id) {
+
+            if (id < 0 || id >= size) {
+                throw new IndexOutOfBoundsException("Transaction " + id + " is not in the checkpoint");
+            }
+
+            ByteBuffer chunk = table[id / ENTRIES_PER_CHUNK];
+            int position = (id % ENTRIES_PER_CHUNK) * ENTRY_SIZE;
+
+            Transaction transaction = new Transaction();
+            transaction.setUuid(id);
+            int source = chunk.getInt(position);
+            int target = chunk.getInt(position + 4);
+            transaction.setSourceAccount(source == LogCodec.NONE ? null : source);
+            transaction.setTargetAccount(target == LogCodec.NONE ? null : target);
+            transaction.setAmount(chunk.getLong(position + 8));
+            transaction.setSourceAccountStartBalance(chunk.getLong(position + 16));
+            transaction.setSourceAccountEndBalance(chunk.getLong(position + 24));
+            transaction.setTargetAccountStartBalance(chunk.getLong(position + 32));
+            transaction.setTargetAccountEndBalance(chunk.getLong(position + 40));
+            transaction.setMessage(message(chunk.getLong(position + 48)));
+            transaction.setTimestamp(chunk.getLong(position + 56));
+            return transaction;
+        }
+
+        /**
+         * @return the source account of a transaction, or -1 if it has none, without decoding the transaction
+         */
+        public int sourceAccount(int id) {
+            return table[id / ENTRIES_PER_CHUNK].getInt((id % ENTRIES_PER_CHUNK) * ENTRY_SIZE);
+        }
+
+        /**
+         * @return the target account of a transaction, or -1 if it has none, without decoding the transaction
+         */
+        public int targetAccount(int id) {
+            return table[id / ENTRIES_PER_CHUNK].getInt((id % ENTRIES_PER_CHUNK) * ENTRY_SIZE + 4);
+        }
+
+        private String message(long reference) {
+
+            int length = (int) (reference & 0xFFFFFF);
+
+            if (length == NULL_MESSAGE) {
+                return null;
+            }
+
+            byte[] bytes = new byte[length];
+            long offset = reference >>> 24;
+            for (int i = 0; i < length; ) {
+                ByteBuffer chunk = messages[(int) (offset >>> CHUNK_BITS)].duplicate();
+                chunk.position((int) (offset & (CHUNK_SIZE - 1)));
+                int count = Math.min(length - i, chunk.remaining());
+                chunk.get(bytes, i, count);
+                i += count;
+                offset += count;
+            }
+
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        long copyMessages(Output out) throws IOException {
+            try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+                out.transferFrom(source, messagesOffset, messagesLength);
+            }
+            return messagesLength;
+        }
+
+        void copyTable(Output out, int count) throws IOException {
+            try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+                out.transferFrom(source, tableOffset, (long) count * ENTRY_SIZE);
+            }
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package com.example.transferapi.persistence;
+
+import com.example.transferapi.model.Account;
+import com.example.transferapi.model.IdempotencyKeys;
+import com.example.transferapi.model.ShardTransfers;
+import com.example.transferapi.model.Transaction;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Binary encoding of the write-ahead log records.
+ *
+ * Every record is framed as [int length][byte type][body][int crc32], where the length covers the type and the
+ * body and the checksum is computed over the same bytes. A torn write at the tail of the log is detected by a
+ * short read or a checksum mismatch.
+ */
+public final class LogCodec {
+
+    public static final byte ACCOUNT_CREATED = 1;
+
+    public static final byte ACCOUNT_STATUS = 2;
+
+    public static final byte ACCOUNT_NAME = 3;
+
+    public static final byte TRANSACTION = 4;
+
+    public static final byte IDEMPOTENCY_KEY = 5;
+
+    public static final byte SHARD_DECISION = 6;
+
+    public static final byte SHARD_LEG = 7;
+
+    static final int NONE = -1;
+
+    private LogCodec() {
+    }
+
+    public static ByteBuffer accountCreated(ByteBuffer out, Account account) {
+
+        int start = begin(out, ACCOUNT_CREATED);
+        out.putInt(account.getUuid());
+        putString(out, account.getName());
+        return end(out, start);
+    }
+
+    public static ByteBuffer accountStatus(ByteBuffer out, int accountId, Account.AccountStatus status) {
+
+        int start = begin(out, ACCOUNT_STATUS);
+        out.putInt(accountId);
+        out.put((byte) status.ordinal());
+        return end(out, start);
+    }
+
+    public static ByteBuffer accountName(ByteBuffer out, int accountId, String name) {
+
+        int start = begin(out, ACCOUNT_NAME);
+        out.putInt(accountId);
+        putString(out, name);
+        return end(out, start);
+    }
+
+    public static ByteBuffer transaction(ByteBuffer out, Transaction transaction) {
+
+        int start = begin(out, TRANSACTION);
+        out.putInt(transaction.getUuid());
+        out.putLong(transaction.getTimestamp());
+        out.putInt(transaction.getSourceAccount() == null ? NONE : transaction.getSourceAccount());
+        out.putInt(transaction.getTargetAccount() == null ? NONE : transaction.getTargetAccount());
+        out.putLong(transaction.getAmount());
+        out.putLong(transaction.getSourceAccountStartBalance());
+        out.putLong(transaction.getSourceAccountEndBalance());
+        out.putLong(transaction.getTargetAccountStartBalance());
+        out.putLong(transaction.getTargetAccountEndBalance());
+        putString(out, transaction.getMessage());
+        return end(out, start);
+    }
+
+    public static Transaction readTransaction(ByteBuffer in) {
+
+        Transaction transaction = new Transaction();
+        transaction.setUuid(in.getInt());
+        transaction.setTimestamp(in.getLong());
+        int source = in.getInt();
+        int target = in.getInt();
+        transaction.setSourceAccount(source == NONE ? null : source);
+        transaction.setTargetAccount(target == NONE ? null : target);
+        transaction.setAmount(in.getLong());
+        transaction.setSourceAccountStartBalance(in.getLong());
+        transaction.setSourceAccountEndBalance(in.getLong());
+        transaction.setTargetAccountStartBalance(in.getLong());
+        transaction.setTargetAccountEndBalance(in.getLong());
+        transaction.setMessage(getString(in));
+        return transaction;
+    }
+
+    public static ByteBuffer idempotencyKey(ByteBuffer out, IdempotencyKeys.Entry entry) {
+
+        int start = begin(out, IDEMPOTENCY_KEY);
+        putIdempotencyEntry(out, entry);
+        return end(out, start);
+    }
+
+    /**
+     * Upper bound of the encoded size of an idempotency key entry, framing included.
+     */
+    public static int maxIdempotencyEntrySize(IdempotencyKeys.Entry entry) {
+
+        int size = 32 + entry.getKey().length() * 3;
+        for (int i = 0; i < entry.getOutcomes().length; i++) {
+            String error = entry.getErrors() == null ? null : entry.getErrors()[i];
+            size += 8 + (error == null ? 0 : error.length() * 3);
+        }
+        return size;
+    }
+
+    /*
+     * Key, fingerprint, timestamp, then the outcomes, each followed by its error when it is a failure. Shared with
+     * the checkpoints.
+     */
+    static void putIdempotencyEntry(ByteBuffer out, IdempotencyKeys.Entry entry) {
+
+        putString(out, entry.getKey());
+        out.putInt(entry.getFingerprint());
+        out.putLong(entry.getTimestamp());
+        out.putInt(entry.getOutcomes().length);
+        for (int i = 0; i < entry.getOutcomes().length; i++) {
+            out.putInt(entry.getOutcomes()[i]);
+            if (entry.getOutcomes()[i] < 0) {
+                putString(out, entry.getErrors()[i]);
+            }
+        }
+    }
+
+    public static IdempotencyKeys.Entry readIdempotencyEntry(ByteBuffer in) {
+
+        String key = getString(in);
+        int fingerprint = in.getInt();
+        long timestamp = in.getLong();
+        int[] outcomes = new int[in.getInt()];
+        String[] errors = null;
+        for (int i = 0; i < outcomes.length; i++) {
+            outcomes[i] = in.getInt();
+            if (outcomes[i] < 0) {
+                if (errors == null) {
+                    errors = new String[outcomes.length];
+                }
+                errors[i] = getString(in);
+            }
+        }
+        return new IdempotencyKeys.Entry(key, fingerprint, timestamp, outcomes, errors);
+    }
+
+    public static ByteBuffer shardDecision(ByteBuffer out, ShardTransfers.Decision decision) {
+
+        int start = begin(out, SHARD_DECISION);
+        putShardDecision(out, decision);
+        return end(out, start);
+    }
+
+    /**
+     * Upper bound of the encoded size of a decision of a cross-shard transfer, framing included.
+     */
+    public static int maxShardDecisionSize(ShardTransfers.Decision decision) {
+        return 32 + decision.getTransferId().length() * 3;
+    }
+
+    /*
+     * Transfer id, shards of the legs and whether both acknowledged it. Shared with the checkpoints.
+     */
+    static void putShardDecision(ByteBuffer out, ShardTransfers.Decision decision) {
+
+        putString(out, decision.getTransferId());
+        out.putInt(decision.getSourceShard());
+        out.putInt(decision.getTargetShard());
+        out.put((byte) (decision.isDelivered() ? 1 : 0));
+    }
+
+    public static ShardTransfers.Decision readShardDecision(ByteBuffer in) {
+
+        String transferId = getString(in);
+        int sourceShard = in.getInt();
+        int targetShard = in.getInt();
+        return new ShardTransfers.Decision(transferId, sourceShard, targetShard, in.get() != 0);
+    }
+
+    public static ByteBuffer shardLeg(ByteBuffer out, ShardTransfers.Leg leg) {
+
+        int start = begin(out, SHARD_LEG);
+        putShardLeg(out, leg);
+        return end(out, start);
+    }
+
+    /**
+     * Upper bound of the encoded size of a leg of a cross-shard transfer, framing included.
+     */
+    public static int maxShardLegSize(ShardTransfers.Leg leg) {
+        String message = leg.getMessage();
+        return 48 + leg.getTransferId().length() * 3 + (message == null ? 0 : message.length() * 3);
+    }
+
+    /*
+     * Transfer id, state, side, account, amount and message, then the ids of the transactions of the leg. Shared
+     * with the checkpoints.
+     */
+    static void putShardLeg(ByteBuffer out, ShardTransfers.Leg leg) {
+
+        putString(out, leg.getTransferId());
+        out.put((byte) leg.getState().ordinal());
+        out.put((byte) (leg.isDebit() ? 1 : 0));
+        out.putInt(leg.getAccountId());
+        out.putLong(leg.getAmount());
+        putString(out, leg.getMessage());
+        out.putInt(leg.getReservation());
+        out.putInt(leg.getSettlement());
+    }
+
+    public static ShardTransfers.Leg readShardLeg(ByteBuffer in) {
+
+        String transferId = getString(in);
+        ShardTransfers.State state = ShardTransfers.State.values()[in.get()];
+        boolean debit = in.get() != 0;
+        int accountId = in.getInt();
+        long amount = in.getLong();
+        String message = getString(in);
+        int reservation = in.getInt();
+        return new ShardTransfers.Leg(transferId, state, debit, accountId, amount, message, reservation, in.getInt());
+    }
+
+    /**
+     * Upper bound of the encoded size of a transaction, used to make room in the output buffer.
+     */
+    public static int maxTransactionSize(Transaction transaction) {
+        String message = transaction.getMessage();
+        return 96 + (message == null ? 0 : message.length() * 3);
+    }
+
+    public static void putString(ByteBuffer out, String value) {
+
+        if (value == null) {
+            out.putInt(NONE);
+            return;
+        }
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.putInt(bytes.length);
+        out.put(bytes);
+    }
+
+    public static String getString(ByteBuffer in) {
+
+        int length = in.getInt();
+
+        if (length == NONE) {
+            return null;
+        }
+
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    private static int begin(ByteBuffer out, byte type) {
+
+        int start = out.position();
+        out.putInt(0);
+        out.put(type);
+        return start;
+    }
+
+    private static ByteBuffer end(ByteBuffer out, int start) {
+
+        int length = out.position() - start - 4;
+        out.putInt(start, length);
+        out.putInt((int) checksum(out.array(), out.arrayOffset() + start + 4, length));
+        return out;
+    }
+
+    public static long checksum(byte[] bytes, int offset, int length) {
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return crc.getValue();
+    }
+}
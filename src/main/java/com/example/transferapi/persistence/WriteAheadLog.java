@@ -0,0 +1,940 @@
+package com.example.transferapi.persistence;
+
+import com.example.transferapi.model.Account;
+import com.example.transferapi.model.Bank;
+import com.example.transferapi.model.IdempotencyKeys;
+import com.example.transferapi.model.ShardTransfers;
+import com.example.transferapi.model.Transaction;
+import com.example.transferapi.model.TransactionJournal;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Durable, append-only log of every change made to the {@link Bank}.
+ *
+ * Transactions are not handed to the log: a single flusher thread tails the published prefix of the
+ * {@link TransactionJournal}, so records reach the file in id order without any extra coordination between
+ * writers. Account changes (creation, status and name) and idempotency keys go through a queue that is drained
+ * before each round of transactions.
+ *
+ * Writers block in {@link #awaitTransaction(int)} or {@link #await(Ticket)} until their record is on disk, or
+ * register a {@link DurabilityCallback} with {@link #onDurable(int, DurabilityCallback)} to be notified without
+ * blocking. The flusher waits for the group commit window after being woken, writes everything that accumulated in the meantime
+ * and shares one fsync between all of it.
+ *
+ * The log is split in numbered segment files ({@code <path>.0}, {@code <path>.1}...). {@link #roll(int)} starts a
+ * new segment at a consistent cut of the bank, so that once a {@link Checkpoint} of that cut is written the older
+ * segments can be deleted and recovery only replays the segments after it.
+ *
+ * The durable part of the segments can be read while the log is written with a {@link Tail}, which is how the
+ * records are shipped to replicas.
+ */
+public class WriteAheadLog implements Closeable {
+
+    private final static Logger L = Logger.getLogger(WriteAheadLog.class.getName());
+
+    public static final String PATH_PROPERTY = "transferapi.wal.path";
+
+    public static final String GROUP_COMMIT_PROPERTY = "transferapi.wal.groupCommitMicros";
+
+    private static final int MAGIC = 0x54574c32;
+
+    private static final int FLUSH_THRESHOLD = 1 << 20;
+
+    /**
+     * Handle on an account change, used to wait for it to be durable.
+     */
+    public static class Ticket {
+
+        private final byte[] record;
+
+        private final int transactionLimit;
+
+        private final long segment;
+
+        private volatile boolean durable;
+
+        private Ticket(byte[] record) {
+            this(record, 0, -1);
+        }
+
+        private Ticket(byte[] record, int transactionLimit, long segment) {
+            this.record = record;
+            this.transactionLimit = transactionLimit;
+            this.segment = segment;
+        }
+
+        /**
+         * @return the segment started by a roll
+         */
+        public long getSegment() {
+            return segment;
+        }
+    }
+
+    /**
+     * Notified, on a completion thread, once a transaction is on disk or the log has failed.
+     */
+    public interface DurabilityCallback {
+
+        void durable();
+
+        void failed(RuntimeException cause);
+    }
+
+    /*
+     * End of the durable part of the log, published as one value so the segment and its length are read together
+     */
+    private static final class Position {
+
+        private final long segment;
+
+        private final long length;
+
+        private Position(long segment, long length) {
+            this.segment = segment;
+            this.length = length;
+        }
+    }
+
+    private static class Completion {
+
+        private final int transactionId;
+
+        private final Ticket ticket;
+
+        private final DurabilityCallback callback;
+
+        private Completion(int transactionId, Ticket ticket, DurabilityCallback callback) {
+            this.transactionId = transactionId;
+            this.ticket = ticket;
+            this.callback = callback;
+        }
+
+        private boolean isDurable(int durableTransactions) {
+            return ticket == null ? transactionId < durableTransactions : ticket.durable;
+        }
+    }
+
+    private final Path path;
+
+    private final long groupCommitNanos;
+
+    private final ConcurrentLinkedQueue<Ticket> accountChanges = new ConcurrentLinkedQueue<Ticket>();
+
+    private final ConcurrentLinkedQueue<Completion> completions = new ConcurrentLinkedQueue<Completion>();
+
+    // only used by the flusher
+    private final List<Completion> waiting = new ArrayList<Completion>();
+
+    private ExecutorService completer;
+
+    private final Object monitor = new Object();
+
+    private FileChannel channel;
+
+    private long segment;
+
+    private long lastSegment;
+
+    /*
+     * Transactions at or after the limit of a pending roll belong to the next segment
+     */
+    private volatile int rollLimit = Integer.MAX_VALUE;
+
+    private TransactionJournal journal;
+
+    private Thread flusher;
+
+    private ByteBuffer buffer = ByteBuffer.allocate(FLUSH_THRESHOLD * 2);
+
+    private volatile int durableTransactions;
+
+    private volatile Position durable = new Position(0, 0);
+
+    private volatile boolean closed;
+
+    private volatile IOException failure;
+
+    public WriteAheadLog(Path path, long groupCommitMicros) {
+        this.path = path;
+        this.groupCommitNanos = TimeUnit.MICROSECONDS.toNanos(groupCommitMicros);
+    }
+
+    /**
+     * @return the log configured with the system properties, or null when persistence is disabled
+     */
+    public static WriteAheadLog fromSystemProperties() {
+
+        String path = System.getProperty(PATH_PROPERTY);
+
+        if (path == null || path.isEmpty()) {
+            return null;
+        }
+
+        return new WriteAheadLog(Paths.get(path), Long.getLong(GROUP_COMMIT_PROPERTY, 1000));
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    Path segmentPath(long segment) {
+        return path.resolveSibling(path.getFileName() + "." + segment);
+    }
+
+    /*
+     * Numbers of the segments on disk, in ascending order
+     */
+    private List<Long> segments() throws IOException {
+
+        List<Long> segments = new ArrayList<Long>();
+        String prefix = path.getFileName() + ".";
+
+        Path directory = path.toAbsolutePath().getParent();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "*")) {
+            for (Path file : files) {
+                String suffix = file.getFileName().toString().substring(prefix.length());
+                if (suffix.matches("\\d+")) {
+                    segments.add(Long.parseLong(suffix));
+                }
+            }
+        }
+
+        Collections.sort(segments);
+        return segments;
+    }
+
+    public void recover(Bank bank) throws IOException {
+        recover(bank, 0);
+    }
+
+    /**
+     * Replays the segments from the given one into the bank and opens the last one for appending. A torn record at
+     * the tail of the last segment, left by a crash in the middle of a write, is discarded.
+     */
+    public void recover(Bank bank, long fromSegment) throws IOException {
+
+        List<Long> segments = segments();
+
+        segment = fromSegment;
+        long valid = 0;
+        int replayed = bank.getTransactions().size();
+
+        for (Long candidate : segments) {
+
+            if (candidate < fromSegment) {
+                continue;
+            }
+
+            if (valid > 0 && valid < Files.size(segmentPath(segment))) {
+                throw new IOException("Segment " + segmentPath(segment) + " is corrupted before the end of the log");
+            }
+
+            segment = candidate;
+            valid = Files.size(segmentPath(segment)) > 0 ? replay(bank, segmentPath(segment)) : 0;
+        }
+
+        if (bank.getTransactions().size() > replayed || valid > 4) {
+            L.info(String.format("Recovered %s accounts and %s transactions, replaying %s transactions from %s",
+                    bank.getAccounts().size(), bank.getTransactions().size(), bank.getTransactions().size() - replayed, path));
+        }
+
+        lastSegment = segment;
+        channel = FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+
+        if (valid == 0) {
+            writeHeader();
+            valid = 4;
+        } else if (valid < channel.size()) {
+            L.warning(String.format("Discarding %s bytes of incomplete records at the end of %s",
+                    channel.size() - valid, segmentPath(segment)));
+            channel.truncate(valid);
+        }
+
+        channel.position(valid);
+
+        // the record of a leg precedes its transaction, a torn tail can keep the first and lose the second
+        bank.getShardTransfers().truncate(bank.getTransactions().size());
+
+        durableTransactions = bank.getTransactions().size();
+        durable = new Position(segment, valid);
+    }
+
+    private void writeHeader() throws IOException {
+
+        channel.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(4).putInt(0, MAGIC);
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        channel.force(true);
+    }
+
+    private long replay(Bank bank, Path file) throws IOException {
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a write-ahead log");
+            }
+
+            long valid = 4;
+            byte[] record = new byte[256];
+
+            while (true) {
+
+                int length;
+                int crc;
+                try {
+                    length = in.readInt();
+                    if (length <= 0 || length > 64 << 20) {
+                        return valid;
+                    }
+                    if (record.length < length) {
+                        record = new byte[Math.max(length, record.length * 2)];
+                    }
+                    in.readFully(record, 0, length);
+                    crc = in.readInt();
+                } catch (EOFException e) {
+                    return valid;
+                }
+
+                if ((int) LogCodec.checksum(record, 0, length) != crc) {
+                    return valid;
+                }
+
+                apply(bank, ByteBuffer.wrap(record, 0, length));
+                valid += length + 8;
+            }
+        }
+    }
+
+    /**
+     * Applies one record, positioned at its type byte, to the bank.
+     * @return the transaction of a transaction record, null for the other records
+     */
+    public static Transaction apply(Bank bank, ByteBuffer record) {
+        return apply(bank, record, null);
+    }
+
+    /**
+     * Applies one record to the bank, adding its transaction, if any, to the index before it is published.
+     */
+    public static Transaction apply(Bank bank, ByteBuffer record, TransactionJournal.Index index) {
+
+        byte type = record.get();
+
+        switch (type) {
+            case LogCodec.ACCOUNT_CREATED: {
+                int uuid = record.getInt();
+                String name = LogCodec.getString(record);
+                if (uuid != bank.getAccounts().nextUuid()) {
+                    throw new IllegalStateException("Log is out of order at account " + uuid);
+                }
+                bank.getAccounts().add(name, Account.AccountStatus.ACTIVE, 0);
+                break;
+            }
+            case LogCodec.ACCOUNT_STATUS: {
+                int uuid = record.getInt();
+                bank.getAccounts().setStatus(uuid, Account.AccountStatus.values()[record.get()]);
+                break;
+            }
+            case LogCodec.ACCOUNT_NAME: {
+                int uuid = record.getInt();
+                bank.getAccounts().setName(uuid, LogCodec.getString(record));
+                break;
+            }
+            case LogCodec.TRANSACTION: {
+                Transaction transaction = LogCodec.readTransaction(record);
+                int uuid = transaction.getUuid();
+                if (bank.getTransactions().append(transaction, index) != uuid) {
+                    throw new IllegalStateException("Log is out of order at transaction " + uuid);
+                }
+                if (transaction.getSourceAccount() != null) {
+                    bank.getAccounts().setBalance(transaction.getSourceAccount(), transaction.getSourceAccountEndBalance());
+                }
+                if (transaction.getTargetAccount() != null) {
+                    bank.getAccounts().setBalance(transaction.getTargetAccount(), transaction.getTargetAccountEndBalance());
+                }
+                return transaction;
+            }
+            case LogCodec.IDEMPOTENCY_KEY:
+                bank.getIdempotencyKeys().restore(LogCodec.readIdempotencyEntry(record));
+                break;
+            case LogCodec.SHARD_DECISION:
+                bank.getShardTransfers().restore(LogCodec.readShardDecision(record));
+                break;
+            case LogCodec.SHARD_LEG:
+                bank.getShardTransfers().restore(LogCodec.readShardLeg(record));
+                break;
+            default:
+                throw new IllegalStateException("Unknown log record type " + type);
+        }
+
+        return null;
+    }
+
+    /**
+     * Starts tailing the journal of a recovered bank.
+     */
+    public void start(TransactionJournal journal) {
+
+        this.journal = journal;
+
+        flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flushLoop();
+            }
+        }, "wal-flusher");
+        flusher.setDaemon(true);
+
+        // callbacks complete responses, which can block on slow clients, so they never run on the flusher
+        completer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "wal-completer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        flusher.start();
+    }
+
+    public Ticket logAccountCreated(Account account) {
+        return enqueue(LogCodec.accountCreated(ByteBuffer.allocate(64 + account.getName().length() * 3), account));
+    }
+
+    public Ticket logAccountStatus(int accountId, Account.AccountStatus status) {
+        return enqueue(LogCodec.accountStatus(ByteBuffer.allocate(16), accountId, status));
+    }
+
+    public Ticket logAccountName(int accountId, String name) {
+        return enqueue(LogCodec.accountName(ByteBuffer.allocate(64 + name.length() * 3), accountId, name));
+    }
+
+    /**
+     * Logs the outcome of a request sent with an idempotency key. Only logged once the transactions of the request
+     * are durable, so the record always follows them in the log.
+     */
+    public Ticket logIdempotencyKey(IdempotencyKeys.Entry entry) {
+        return enqueue(LogCodec.idempotencyKey(ByteBuffer.allocate(LogCodec.maxIdempotencyEntrySize(entry)), entry));
+    }
+
+    /**
+     * Logs a step of the coordinator of a cross-shard transfer.
+     */
+    public Ticket logShardDecision(ShardTransfers.Decision decision) {
+        return enqueue(LogCodec.shardDecision(ByteBuffer.allocate(LogCodec.maxShardDecisionSize(decision)), decision));
+    }
+
+    /**
+     * Logs a step of a leg of a cross-shard transfer. A step that moves money is logged while the id of its
+     * transaction is assigned, before the transaction is published, so the record is written before the
+     * transaction, in the same flush at the latest.
+     */
+    public Ticket logShardLeg(ShardTransfers.Leg leg) {
+        return enqueue(LogCodec.shardLeg(ByteBuffer.allocate(LogCodec.maxShardLegSize(leg)), leg));
+    }
+
+    /**
+     * Starts a new segment. Must be called at a consistent cut of the bank, with no account change or transaction in
+     * progress: the account changes logged before the call and the transactions below the given limit are written
+     * to the current segment, everything after them to the new one. Only one roll may be pending at a time.
+     * @return a ticket that becomes durable once the current segment is complete on disk
+     */
+    public synchronized Ticket roll(int transactionLimit) {
+
+        Ticket marker = new Ticket(null, transactionLimit, ++lastSegment);
+        rollLimit = transactionLimit;
+        accountChanges.offer(marker);
+        LockSupport.unpark(flusher);
+        return marker;
+    }
+
+    /**
+     * Deletes the segments before the given one, once they are covered by a checkpoint.
+     */
+    public void deleteSegmentsBefore(long firstSegment) throws IOException {
+
+        for (Long old : segments()) {
+            if (old < firstSegment) {
+                Files.delete(segmentPath(old));
+            }
+        }
+    }
+
+    /**
+     * @return a reader of the durable records from an offset of a segment, which must be on a record boundary
+     * @throws java.nio.file.NoSuchFileException if the segment was deleted
+     */
+    public Tail tail(long segment, long offset) throws IOException {
+        return new Tail(segment, offset);
+    }
+
+    /**
+     * @return the number of transactions on disk
+     */
+    public int getDurableTransactions() {
+        return durableTransactions;
+    }
+
+    private Ticket enqueue(ByteBuffer record) {
+
+        Ticket ticket = new Ticket(Arrays.copyOf(record.array(), record.position()));
+        accountChanges.offer(ticket);
+        return ticket;
+    }
+
+    /**
+     * Blocks until the transaction with the given id, and every transaction before it, is on disk.
+     */
+    public void awaitTransaction(int transactionId) {
+
+        if (durableTransactions > transactionId) {
+            return;
+        }
+
+        LockSupport.unpark(flusher);
+
+        synchronized (monitor) {
+            while (durableTransactions <= transactionId) {
+                waitForFlush();
+            }
+        }
+    }
+
+    /**
+     * Calls back once the transaction with the given id, and every transaction before it, is on disk. The callback
+     * runs on the calling thread if the transaction is already durable.
+     */
+    public void onDurable(int transactionId, DurabilityCallback callback) {
+
+        if (durableTransactions > transactionId) {
+            callback.durable();
+            return;
+        }
+        if (failure != null) {
+            callback.failed(new IllegalStateException("Write-ahead log " + path + " failed", failure));
+            return;
+        }
+
+        completions.offer(new Completion(transactionId, null, callback));
+        LockSupport.unpark(flusher);
+    }
+
+    /**
+     * Calls back once the account change of the ticket is on disk, on the calling thread if it already is.
+     */
+    public void onDurable(Ticket ticket, DurabilityCallback callback) {
+
+        if (ticket.durable) {
+            callback.durable();
+            return;
+        }
+        if (failure != null) {
+            callback.failed(new IllegalStateException("Write-ahead log " + path + " failed", failure));
+            return;
+        }
+
+        completions.offer(new Completion(0, ticket, callback));
+        LockSupport.unpark(flusher);
+    }
+
+    public void await(Ticket ticket) {
+
+        if (ticket.durable) {
+            return;
+        }
+
+        LockSupport.unpark(flusher);
+
+        synchronized (monitor) {
+            while (!ticket.durable) {
+                waitForFlush();
+            }
+        }
+    }
+
+    private void waitForFlush() {
+
+        if (failure != null) {
+            throw new IllegalStateException("Write-ahead log " + path + " failed", failure);
+        }
+        if (closed && !flusher.isAlive()) {
+            throw new IllegalStateException("Write-ahead log " + path + " is closed");
+        }
+
+        try {
+            monitor.wait(100);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for the write-ahead log", e);
+        }
+    }
+
+    private void flushLoop() {
+
+        try {
+            while (true) {
+
+                boolean stopping = closed;
+
+                this.complete(null);
+
+                if (!hasPendingRecords()) {
+                    if (stopping) {
+                        return;
+                    }
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+                    continue;
+                }
+
+                // let more writers join this commit
+                long deadline = System.nanoTime() + groupCommitNanos;
+                long remaining;
+                while (!stopping && (remaining = deadline - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(remaining);
+                }
+
+                flush();
+            }
+        } catch (IOException e) {
+            L.log(Level.SEVERE, "Write-ahead log " + path + " failed", e);
+            failure = e;
+            this.complete(new IllegalStateException("Write-ahead log " + path + " failed", e));
+        } finally {
+            synchronized (monitor) {
+                monitor.notifyAll();
+            }
+        }
+    }
+
+    /*
+     * Hands the callbacks of durable transactions and account changes, or all of them after a failure, to the
+     * completer
+     */
+    private void complete(final RuntimeException failure) {
+
+        Completion completion;
+        while ((completion = completions.poll()) != null) {
+            waiting.add(completion);
+        }
+
+        for (int i = waiting.size() - 1; i >= 0; i--) {
+
+            final Completion ready = waiting.get(i);
+
+            if (failure != null || ready.isDurable(durableTransactions)) {
+                waiting.set(i, waiting.get(waiting.size() - 1));
+                waiting.remove(waiting.size() - 1);
+                completer.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (failure == null) {
+                            ready.callback.durable();
+                        } else {
+                            ready.callback.failed(failure);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    private boolean hasPendingRecords() {
+        return !accountChanges.isEmpty() || journal.size() > durableTransactions;
+    }
+
+    /*
+     * The journal limit is read before draining the account changes: an account is logged before its starting
+     * balance transaction is appended, so every transaction written in this round finds its account already in the
+     * log. The limit is then capped by a pending roll, and draining stops at its marker, so that nothing after the
+     * cut lands in the segment being completed.
+     */
+    private void flush() throws IOException {
+
+        int limit = Math.min(journal.size(), rollLimit);
+
+        List<Ticket> tickets = new ArrayList<Ticket>();
+        Ticket roll = null;
+        Ticket ticket;
+        while (roll == null && (ticket = accountChanges.poll()) != null) {
+            tickets.add(ticket);
+            if (ticket.record == null) {
+                roll = ticket;
+            } else {
+                ensureCapacity(ticket.record.length);
+                buffer.put(ticket.record);
+            }
+        }
+
+        if (roll != null) {
+            limit = roll.transactionLimit;
+        }
+
+        for (int id = durableTransactions; id < limit; id++) {
+
+            Transaction transaction = journal.get(id);
+            ensureCapacity(LogCodec.maxTransactionSize(transaction));
+            LogCodec.transaction(buffer, transaction);
+
+            if (buffer.position() >= FLUSH_THRESHOLD) {
+                write();
+            }
+        }
+
+        write();
+        channel.force(false);
+
+        if (roll != null) {
+            channel.close();
+            channel = FileChannel.open(segmentPath(roll.segment), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            writeHeader();
+            segment = roll.segment;
+            rollLimit = Integer.MAX_VALUE;
+        }
+
+        durable = new Position(segment, channel.position());
+
+        durableTransactions = Math.max(durableTransactions, limit);
+        for (Ticket durable : tickets) {
+            durable.durable = true;
+        }
+
+        synchronized (monitor) {
+            monitor.notifyAll();
+        }
+    }
+
+    private void ensureCapacity(int size) throws IOException {
+
+        if (buffer.remaining() < size) {
+            write();
+        }
+        if (buffer.remaining() < size) {
+            buffer = ByteBuffer.allocate(size * 2);
+        }
+    }
+
+    private void write() throws IOException {
+
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Reader of the durable records of the log, from a position that moves forward as they are read. The records
+     * of a segment are read up to its durable length while it is being written, and to its end once a roll has
+     * completed it, then the reader moves on to the next segment. A segment opened by the reader stays readable
+     * when a checkpoint deletes it, the next one may not.
+     */
+    public final class Tail implements Closeable {
+
+        private FileChannel in;
+
+        private long segment;
+
+        private long offset;
+
+        private Tail(long segment, long offset) throws IOException {
+            this.in = FileChannel.open(segmentPath(segment), StandardOpenOption.READ);
+            this.segment = segment;
+            this.offset = Math.max(offset, 4);
+        }
+
+        /**
+         * @return the segment of the next record
+         */
+        public long getSegment() {
+            return segment;
+        }
+
+        /**
+         * @return the offset of the next record in its segment
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * Copies the framed records that are durable after the position, as many whole ones as fit in the buffer,
+         * waiting up to the timeout for one to be written.
+         * @param out a buffer backed by an array, larger than any record
+         * @return the number of bytes copied, 0 if the timeout expired first
+         */
+        public int read(ByteBuffer out, long timeoutMillis) throws IOException {
+
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+            while (true) {
+
+                Position position = durable;
+
+                if (position.segment > segment) {
+                    long end = in.size();
+                    if (offset < end) {
+                        return copy(out, end);
+                    }
+                    this.next();
+                    continue;
+                }
+
+                if (position.segment < segment) {
+                    throw new IOException("Segment " + segment + " is ahead of the log " + path);
+                }
+
+                if (position.length > offset) {
+                    return copy(out, position.length);
+                }
+
+                if (!this.await(position, deadline)) {
+                    return 0;
+                }
+            }
+        }
+
+        /*
+         * Waits for the log to move past a durable position, returns false once the deadline is past
+         */
+        private boolean await(Position position, long deadline) throws IOException {
+
+            synchronized (monitor) {
+                while (durable == position) {
+
+                    if (failure != null) {
+                        throw new IOException("Write-ahead log " + path + " failed", failure);
+                    }
+                    if (closed && !flusher.isAlive()) {
+                        throw new IOException("Write-ahead log " + path + " is closed");
+                    }
+
+                    long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (remaining <= 0) {
+                        return false;
+                    }
+
+                    try {
+                        monitor.wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted waiting for the write-ahead log", e);
+                    }
+                }
+            }
+
+            return true;
+        }
+
+        private void next() throws IOException {
+
+            FileChannel next = FileChannel.open(segmentPath(segment + 1), StandardOpenOption.READ);
+            in.close();
+            in = next;
+            segment++;
+            offset = 4;
+
+            ByteBuffer header = ByteBuffer.allocate(4);
+            while (header.hasRemaining()) {
+                if (in.read(header, header.position()) < 0) {
+                    throw new IOException(segmentPath(segment) + " is not a write-ahead log");
+                }
+            }
+            if (header.getInt(0) != MAGIC) {
+                throw new IOException(segmentPath(segment) + " is not a write-ahead log");
+            }
+        }
+
+        /*
+         * Reads up to the end into the buffer, then gives back the bytes of a record that did not fit
+         */
+        private int copy(ByteBuffer out, long end) throws IOException {
+
+            int start = out.position();
+            int length = (int) Math.min(end - offset, out.remaining());
+
+            ByteBuffer window = out.duplicate();
+            window.limit(start + length);
+            while (window.hasRemaining()) {
+                if (in.read(window, offset + window.position() - start) < 0) {
+                    throw new IOException("Segment " + segmentPath(segment) + " is shorter than its durable length");
+                }
+            }
+
+            int whole = 0;
+            while (length - whole >= 4) {
+                int frame = out.getInt(start + whole) + 8;
+                if (frame <= 8 || frame > length - whole) {
+                    break;
+                }
+                whole += frame;
+            }
+
+            if (whole == 0) {
+                throw new IOException("Record at " + offset + " of " + segmentPath(segment) + " does not fit in "
+                        + out.remaining() + " bytes");
+            }
+
+            out.position(start + whole);
+            offset += whole;
+            return whole;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Flushes every pending record and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+
+        closed = true;
+
+        if (flusher != null) {
+            LockSupport.unpark(flusher);
+            try {
+                flusher.join();
+                completer.shutdown();
+                completer.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (channel != null) {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package com.example.transferapi.replication;
+
+import com.example.transferapi.controller.BankController;
+import com.example.transferapi.metrics.Metrics;
+import com.example.transferapi.model.Bank;
+import com.example.transferapi.persistence.LogCodec;
+import com.example.transferapi.persistence.WriteAheadLog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the bank of this node a replica of the bank of a leader, by applying the records of its write-ahead log.
+ *
+ * One thread connects to the leader, applies the frames it receives in order and acknowledges them once there is
+ * nothing more to read, so one acknowledgement covers all the frames that arrived together. The position in the log
+ * of the leader is kept across connections: after a disconnection the follower resumes where it stopped, and only
+ * asks for a snapshot when it never had one or a record could not be applied. A snapshot is applied to a new bank,
+ * which replaces the current one once complete, so reads keep being served from the previous state meanwhile.
+ *
+ * The replica is in memory only, a follower that restarts bootstraps from a snapshot again.
+ */
+public class ReplicationFollower implements Closeable {
+
+    private final static Logger L = Logger.getLogger(ReplicationFollower.class.getName());
+
+    private static final long RETRY_MILLIS = 1000;
+
+    private final BankController bankController;
+
+    private final InetSocketAddress leader;
+
+    private final int timeoutMillis;
+
+    private Thread thread;
+
+    private volatile Socket socket;
+
+    private volatile boolean running;
+
+    // position of the next record in the log of the leader, only written by the follower thread
+    private volatile long segment = ReplicationProtocol.SNAPSHOT;
+
+    private volatile long offset;
+
+    private volatile boolean connected;
+
+    private volatile int leaderTransactions;
+
+    private volatile long lastContact = System.nanoTime();
+
+    private volatile int snapshots;
+
+    public ReplicationFollower(BankController bankController, InetSocketAddress leader, int timeoutMillis) {
+
+        if (bankController.getWriteAheadLog() != null) {
+            throw new IllegalStateException("A follower keeps its replica in memory, " + WriteAheadLog.PATH_PROPERTY
+                    + " must not be set");
+        }
+
+        this.bankController = bankController;
+        this.leader = leader;
+        this.timeoutMillis = Math.max(timeoutMillis, (int) ReplicationLeader.HEARTBEAT_MILLIS * 2);
+    }
+
+    public synchronized void start() {
+
+        running = true;
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                follow();
+            }
+        }, "replication-follower");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public InetSocketAddress getLeader() {
+        return leader;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * @return the number of snapshots applied
+     */
+    public int getSnapshots() {
+        return snapshots;
+    }
+
+    /**
+     * @return the durable transactions of the leader, as of its last frame, not applied here yet
+     */
+    public int getLagTransactions() {
+        return Math.max(0, leaderTransactions - bankController.getBank().getTransactions().size());
+    }
+
+    /**
+     * Writes the lag of the replica behind the leader.
+     */
+    public void writeMetrics(StringBuilder out) {
+
+        String labels = "leader=\"" + leader.getHostString() + ":" + leader.getPort() + "\"";
+
+        Metrics.gauge(out, "transferapi_replication_connected", "Whether the follower is connected to its leader",
+                Collections.singletonMap(labels, connected ? 1L : 0L));
+        Metrics.gauge(out, "transferapi_replication_lag_transactions",
+                "Durable transactions of the leader not applied, as of its last frame",
+                Collections.singletonMap(labels, (long) this.getLagTransactions()));
+        Metrics.gauge(out, "transferapi_replication_last_contact_milliseconds",
+                "Time since the last frame of the leader, which sends one at least every second",
+                Collections.singletonMap(labels, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastContact)));
+        Metrics.gauge(out, "transferapi_replication_snapshots", "Snapshots of the leader applied",
+                Collections.singletonMap(labels, (long) snapshots));
+    }
+
+    private void follow() {
+
+        while (running) {
+
+            try (Socket socket = new Socket()) {
+
+                this.socket = socket;
+                socket.connect(leader, timeoutMillis);
+                socket.setSoTimeout(timeoutMillis);
+                socket.setTcpNoDelay(true);
+
+                this.replicate(socket);
+
+            } catch (IOException | RuntimeException e) {
+                if (running) {
+                    L.log(Level.WARNING, "Replication from " + leader + " interrupted: " + e.getMessage());
+                }
+            } finally {
+                connected = false;
+            }
+
+            if (running) {
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void replicate(Socket socket) throws IOException {
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+        ReplicationProtocol.writeHello(out, segment, offset);
+        connected = true;
+
+        L.info(segment == ReplicationProtocol.SNAPSHOT
+                ? String.format("Replicating from %s, starting with a snapshot", leader)
+                : String.format("Replicating from %s, resuming from segment %s at %s", leader, segment, offset));
+
+        // the bank being rebuilt during a snapshot
+        Bank replica = null;
+        long applied = 0;
+        ByteBuffer frame = ByteBuffer.allocate(1 << 17);
+
+        while (running) {
+
+            frame = ReplicationProtocol.readFrame(in, frame);
+            lastContact = System.nanoTime();
+
+            byte type = frame.get();
+
+            switch (type) {
+
+                case ReplicationProtocol.BEGIN_SNAPSHOT:
+                    replica = new Bank(bankController.getBank().getAccounts().empty());
+                    segment = ReplicationProtocol.SNAPSHOT;
+                    break;
+
+                case ReplicationProtocol.RECORDS: {
+                    long nextSegment = frame.getLong();
+                    long nextOffset = frame.getLong();
+                    leaderTransactions = frame.getInt();
+
+                    try {
+                        applied += this.apply(replica, frame);
+                    } catch (IOException | RuntimeException e) {
+                        // the records before the failure are applied, the position no longer matches the bank
+                        segment = ReplicationProtocol.SNAPSHOT;
+                        throw e;
+                    }
+
+                    if (replica == null) {
+                        segment = nextSegment;
+                        offset = nextOffset;
+                    }
+                    break;
+                }
+
+                case ReplicationProtocol.END_SNAPSHOT:
+                    if (replica == null) {
+                        throw new IOException("Snapshot of " + leader + " ended before it began");
+                    }
+                    segment = frame.getLong();
+                    offset = frame.getLong();
+                    snapshots++;
+                    bankController.setReplica(replica);
+                    L.info(String.format("Snapshot of %s applied, %s accounts and %s transactions", leader,
+                            replica.getAccounts().size(), replica.getTransactions().size()));
+                    replica = null;
+                    break;
+
+                default:
+                    throw new IOException("Unknown replication frame " + type);
+            }
+
+            if (in.available() == 0) {
+                ReplicationProtocol.writeAck(out, applied, bankController.getBank().getTransactions().size());
+            }
+        }
+    }
+
+    /*
+     * Applies the records of a frame to the bank being rebuilt, or to the replica when there is none
+     * @return the bytes of the records
+     */
+    private int apply(Bank replica, ByteBuffer frame) throws IOException {
+
+        int start = frame.position();
+
+        while (frame.hasRemaining()) {
+
+            int length = frame.getInt();
+            int record = frame.position();
+
+            if (length <= 0 || length + 4 > frame.remaining()) {
+                throw new IOException("Truncated record from " + leader);
+            }
+            if ((int) LogCodec.checksum(frame.array(), record, length) != frame.getInt(record + length)) {
+                throw new IOException("Corrupted record from " + leader);
+            }
+
+            ByteBuffer bytes = ByteBuffer.wrap(frame.array(), record, length);
+            if (replica == null) {
+                bankController.applyReplicated(bytes);
+            } else {
+                WriteAheadLog.apply(replica, bytes);
+            }
+
+            frame.position(record + length + 4);
+        }
+
+        return frame.position() - start;
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        Thread stopped;
+        synchronized (this) {
+            running = false;
+            stopped = thread;
+        }
+
+        Socket current = socket;
+        if (current != null) {
+            current.close();
+        }
+
+        if (stopped != null) {
+            stopped.interrupt();
+            try {
+                stopped.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
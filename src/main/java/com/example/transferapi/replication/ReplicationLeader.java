@@ -0,0 +1,406 @@
+package com.example.transferapi.replication;
+
+import com.example.transferapi.controller.BankController;
+import com.example.transferapi.metrics.Metrics;
+import com.example.transferapi.model.Account;
+import com.example.transferapi.model.AccountStore;
+import com.example.transferapi.model.Transaction;
+import com.example.transferapi.model.TransactionJournal;
+import com.example.transferapi.persistence.LogCodec;
+import com.example.transferapi.persistence.WriteAheadLog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.NoSuchFileException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Ships the write-ahead log of this node to its followers.
+ *
+ * Every follower gets a sender thread, which tails the durable records of the log from the position the follower
+ * resumes from and sends them in frames of up to the batch size, and a thread reading its acknowledgements. The
+ * sender does not wait for an acknowledgement before the next frame, only once the bytes not acknowledged yet
+ * reach the window, so the log is pipelined to the follower while it applies the previous frames. A follower
+ * that has no position, or whose segment was deleted by a checkpoint since, first gets a snapshot: the accounts
+ * and transactions of a consistent cut of the bank, encoded as log records, followed by the log from the cut.
+ */
+public class ReplicationLeader implements Closeable {
+
+    private final static Logger L = Logger.getLogger(ReplicationLeader.class.getName());
+
+    // an empty frame is sent when nothing was written for this long, so followers can tell a quiet leader from a
+    // lost one
+    static final long HEARTBEAT_MILLIS = 1000;
+
+    private final BankController bankController;
+
+    private final WriteAheadLog writeAheadLog;
+
+    private final int windowBytes;
+
+    private final int batchBytes;
+
+    private final ServerSocket serverSocket;
+
+    private final Thread acceptor;
+
+    private final Set<Session> sessions = Collections.newSetFromMap(new ConcurrentHashMap<Session, Boolean>());
+
+    private volatile boolean running = true;
+
+    private ReplicationLeader(BankController bankController, InetSocketAddress address, int windowBytes, int batchBytes)
+            throws IOException {
+
+        this.bankController = bankController;
+        this.writeAheadLog = bankController.getWriteAheadLog();
+        this.windowBytes = Math.max(windowBytes, batchBytes);
+        this.batchBytes = batchBytes;
+
+        if (writeAheadLog == null) {
+            throw new IllegalStateException("The leader ships its write-ahead log, " + WriteAheadLog.PATH_PROPERTY
+                    + " must be set");
+        }
+
+        this.serverSocket = new ServerSocket();
+        serverSocket.bind(address);
+
+        this.acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "replication-acceptor");
+        acceptor.setDaemon(true);
+    }
+
+    /**
+     * Starts a leader listening on an address, port 0 for any free port.
+     */
+    public static ReplicationLeader start(BankController bankController, InetSocketAddress address, int windowBytes,
+                                          int batchBytes) throws IOException {
+
+        ReplicationLeader leader = new ReplicationLeader(bankController, address, windowBytes, batchBytes);
+        leader.acceptor.start();
+
+        L.info(String.format("Replication leader listening on port %s", leader.getPort()));
+
+        return leader;
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return the number of connected followers
+     */
+    public int getFollowers() {
+        return sessions.size();
+    }
+
+    /**
+     * Writes the lag of every follower: the durable transactions it has not acknowledged and the bytes sent to it
+     * and not acknowledged yet.
+     */
+    public void writeMetrics(StringBuilder out) {
+
+        int durable = writeAheadLog.getDurableTransactions();
+        Map<String, Long> transactions = new HashMap<String, Long>();
+        Map<String, Long> bytes = new HashMap<String, Long>();
+
+        for (Session session : sessions) {
+            String labels = "follower=\"" + session.name + "\"";
+            transactions.put(labels, Math.max(0L, durable - session.acknowledgedTransactions));
+            bytes.put(labels, session.sent - session.acknowledged);
+        }
+
+        Metrics.gauge(out, "transferapi_replication_followers", "Followers connected to this leader",
+                Collections.singletonMap("", (long) sessions.size()));
+        Metrics.gauge(out, "transferapi_replication_lag_transactions",
+                "Durable transactions not acknowledged, by follower", transactions);
+        Metrics.gauge(out, "transferapi_replication_unacknowledged_bytes",
+                "Log bytes sent and not acknowledged, by follower", bytes);
+    }
+
+    private void accept() {
+
+        while (running) {
+
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+            } catch (IOException e) {
+                if (running) {
+                    L.log(Level.SEVERE, "Replication leader cannot accept followers", e);
+                }
+                return;
+            }
+
+            Session session = new Session(socket);
+            sessions.add(session);
+
+            Thread sender = new Thread(session, "replication-sender-" + session.name);
+            sender.setDaemon(true);
+            sender.start();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        running = false;
+        serverSocket.close();
+
+        for (Session session : sessions) {
+            session.close();
+        }
+
+        try {
+            acceptor.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * One follower: the sender thread runs the session, a second thread reads the acknowledgements
+     */
+    private final class Session implements Runnable {
+
+        private final Socket socket;
+
+        private final String name;
+
+        private final Object window = new Object();
+
+        // bytes of records sent and acknowledged on this connection
+        private volatile long sent;
+
+        private volatile long acknowledged;
+
+        private volatile int acknowledgedTransactions;
+
+        private DataOutputStream out;
+
+        private Session(Socket socket) {
+            this.socket = socket;
+            this.name = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+        }
+
+        @Override
+        public void run() {
+
+            WriteAheadLog.Tail tail = null;
+
+            try {
+
+                final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+
+                ByteBuffer hello = ReplicationProtocol.readFrame(in, ByteBuffer.allocate(32));
+                if (hello.get() != ReplicationProtocol.HELLO) {
+                    throw new IOException("Follower " + name + " did not say hello");
+                }
+                long segment = hello.getLong();
+                long offset = hello.getLong();
+
+                ByteBuffer batch = ByteBuffer.allocate(4 + ReplicationProtocol.RECORDS_HEADER_SIZE + batchBytes);
+
+                if (segment != ReplicationProtocol.SNAPSHOT) {
+                    try {
+                        tail = writeAheadLog.tail(segment, offset);
+                        L.info(String.format("Follower %s resumes from segment %s at %s", name, segment, offset));
+                    } catch (NoSuchFileException e) {
+                        L.info(String.format("Segment %s of follower %s was deleted, sending a snapshot", segment, name));
+                    }
+                }
+
+                Thread acker = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        readAcknowledgements(in);
+                    }
+                }, "replication-acker-" + name);
+                acker.setDaemon(true);
+                acker.start();
+
+                if (tail == null) {
+                    tail = this.snapshot(batch);
+                }
+
+                while (running) {
+
+                    this.awaitWindow();
+
+                    ReplicationProtocol.beginRecords(batch);
+                    int read = tail.read(batch, HEARTBEAT_MILLIS);
+                    ReplicationProtocol.endRecords(batch, tail.getSegment(), tail.getOffset(),
+                            writeAheadLog.getDurableTransactions());
+
+                    this.send(batch, read);
+                }
+
+            } catch (IOException | RuntimeException e) {
+                if (running) {
+                    L.log(Level.INFO, "Follower " + name + " disconnected", e);
+                }
+            } finally {
+                sessions.remove(this);
+                this.close();
+                if (tail != null) {
+                    try {
+                        tail.close();
+                    } catch (IOException e) {
+                        L.log(Level.FINE, "Cannot close the log of follower " + name, e);
+                    }
+                }
+            }
+        }
+
+        /*
+         * Sends the accounts and transactions of a cut of the bank as log records, and returns the log from the
+         * cut. The log is opened before the snapshot is sent, so a checkpoint in the meantime cannot delete it.
+         */
+        private WriteAheadLog.Tail snapshot(ByteBuffer batch) throws IOException {
+
+            long start = System.nanoTime();
+
+            BankController.Cut cut = bankController.cut();
+            WriteAheadLog.Tail tail = writeAheadLog.tail(cut.getSegment(), 0);
+
+            ReplicationProtocol.writeBeginSnapshot(out);
+
+            ReplicationProtocol.beginRecords(batch);
+            int records = batch.position();
+
+            AccountStore accounts = cut.getAccounts();
+            for (int position = 0; position < accounts.size(); position++) {
+
+                Account account = accounts.get(position);
+
+                if (batch.remaining() < 64 + account.getName().length() * 3 + 16) {
+                    records = this.sendSnapshot(batch, records, tail);
+                }
+
+                LogCodec.accountCreated(batch, account);
+                if (account.getStatus() != Account.AccountStatus.ACTIVE) {
+                    LogCodec.accountStatus(batch, account.getUuid(), account.getStatus());
+                }
+            }
+
+            TransactionJournal journal = bankController.getBank().getTransactions();
+            for (int id = 0; id < cut.getTransactionCount(); id++) {
+
+                Transaction transaction = journal.get(id);
+
+                if (batch.remaining() < LogCodec.maxTransactionSize(transaction)) {
+                    records = this.sendSnapshot(batch, records, tail);
+                }
+
+                LogCodec.transaction(batch, transaction);
+            }
+
+            this.sendSnapshot(batch, records, tail);
+            ReplicationProtocol.writeEndSnapshot(out, tail.getSegment(), tail.getOffset());
+            out.flush();
+
+            L.info(String.format("Snapshot of %s accounts and %s transactions sent to follower %s in %s ms",
+                    accounts.size(), cut.getTransactionCount(), name, (System.nanoTime() - start) / 1000000));
+
+            return tail;
+        }
+
+        private int sendSnapshot(ByteBuffer batch, int records, WriteAheadLog.Tail tail) throws IOException {
+
+            this.awaitWindow();
+
+            ReplicationProtocol.endRecords(batch, tail.getSegment(), tail.getOffset(),
+                    writeAheadLog.getDurableTransactions());
+            this.send(batch, batch.position() - records);
+
+            ReplicationProtocol.beginRecords(batch);
+            return batch.position();
+        }
+
+        private void send(ByteBuffer batch, int recordBytes) throws IOException {
+
+            sent += recordBytes;
+            out.write(batch.array(), 0, batch.position());
+            out.flush();
+        }
+
+        /*
+         * Waits for the follower to acknowledge enough records to send another batch
+         */
+        private void awaitWindow() throws IOException {
+
+            synchronized (window) {
+                while (sent - acknowledged + batchBytes > windowBytes) {
+
+                    if (!running || socket.isClosed()) {
+                        throw new IOException("Follower " + name + " is disconnected");
+                    }
+
+                    try {
+                        window.wait(HEARTBEAT_MILLIS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted waiting for follower " + name, e);
+                    }
+                }
+            }
+        }
+
+        private void readAcknowledgements(DataInputStream in) {
+
+            ByteBuffer frame = ByteBuffer.allocate(32);
+
+            try {
+                while (true) {
+
+                    frame = ReplicationProtocol.readFrame(in, frame);
+                    if (frame.get() != ReplicationProtocol.ACK) {
+                        throw new IOException("Unexpected frame from follower " + name);
+                    }
+
+                    synchronized (window) {
+                        acknowledged = frame.getLong();
+                        acknowledgedTransactions = frame.getInt();
+                        window.notifyAll();
+                    }
+                }
+            } catch (IOException e) {
+                L.log(Level.FINE, "Follower " + name + " stopped acknowledging", e);
+                this.close();
+            }
+        }
+
+        private void close() {
+
+            try {
+                socket.close();
+            } catch (IOException e) {
+                L.log(Level.FINE, "Cannot close the connection of follower " + name, e);
+            }
+
+            synchronized (window) {
+                window.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.example.transferapi.replication;
+
+import com.example.transferapi.controller.BankController;
+import com.example.transferapi.controller.ValidationHelper;
+
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The replication role of this instance.
+ *
+ * With {@code transferapi.replication.port} set, the instance is a leader and ships its write-ahead log to the
+ * followers that connect to that port. With {@code transferapi.replication.leader} set to the {@code host:port} of a
+ * leader, it is a follower: its bank is a replica of the bank of the leader and it only serves reads, the requests
+ * that change the bank are refused. Otherwise replication is disabled.
+ *
+ * The leader sends at most {@code transferapi.replication.batchBytes} of records per frame and stops once
+ * {@code transferapi.replication.windowBytes} are not acknowledged; a follower reconnects once it has heard nothing
+ * from its leader for {@code transferapi.replication.timeoutMillis}.
+ */
+public class ReplicationNode {
+
+    private final static Logger L = Logger.getLogger(ReplicationNode.class.getName());
+
+    public static final String PORT_PROPERTY = "transferapi.replication.port";
+
+    public static final String LEADER_PROPERTY = "transferapi.replication.leader";
+
+    public static final String BATCH_PROPERTY = "transferapi.replication.batchBytes";
+
+    public static final String WINDOW_PROPERTY = "transferapi.replication.windowBytes";
+
+    public static final String TIMEOUT_PROPERTY = "transferapi.replication.timeoutMillis";
+
+    private final ReplicationLeader leader;
+
+    private final ReplicationFollower follower;
+
+    public ReplicationNode(ReplicationLeader leader, ReplicationFollower follower) {
+        this.leader = leader;
+        this.follower = follower;
+    }
+
+    /**
+     * @return the node configured with the system properties, started
+     */
+    public static ReplicationNode fromSystemProperties(BankController bankController) throws IOException {
+
+        String leaderAddress = System.getProperty(LEADER_PROPERTY);
+        Integer port = Integer.getInteger(PORT_PROPERTY);
+
+        if (leaderAddress != null && !leaderAddress.isEmpty()) {
+
+            int separator = leaderAddress.lastIndexOf(':');
+            if (separator < 0) {
+                throw new IllegalArgumentException(LEADER_PROPERTY + " must be host:port, not " + leaderAddress);
+            }
+
+            ReplicationFollower follower = new ReplicationFollower(bankController,
+                    new InetSocketAddress(leaderAddress.substring(0, separator),
+                            Integer.parseInt(leaderAddress.substring(separator + 1))),
+                    Integer.getInteger(TIMEOUT_PROPERTY, 5000));
+            follower.start();
+
+            return new ReplicationNode(null, follower);
+        }
+
+        if (port != null) {
+            return new ReplicationNode(ReplicationLeader.start(bankController, new InetSocketAddress(port),
+                    Integer.getInteger(WINDOW_PROPERTY, 1 << 20), Integer.getInteger(BATCH_PROPERTY, 1 << 16)), null);
+        }
+
+        return new ReplicationNode(null, null);
+    }
+
+    public ReplicationLeader getLeader() {
+        return leader;
+    }
+
+    public ReplicationFollower getFollower() {
+        return follower;
+    }
+
+    public boolean isFollower() {
+        return follower != null;
+    }
+
+    /**
+     * Refuses the changes to the bank of a follower, which only come from its leader.
+     */
+    public void checkWritable() {
+        if (follower != null) {
+            throw ValidationHelper.rejected(Response.Status.FORBIDDEN, "This node is a read-only replica of %s",
+                    follower.getLeader());
+        }
+    }
+
+    /**
+     * Writes the replication lag, seen from the leader or from the follower.
+     */
+    public void writeMetrics(StringBuilder out) {
+        if (leader != null) {
+            leader.writeMetrics(out);
+        }
+        if (follower != null) {
+            follower.writeMetrics(out);
+        }
+    }
+
+    public void shutdown() {
+        try {
+            if (leader != null) {
+                leader.close();
+            }
+            if (follower != null) {
+                follower.close();
+            }
+        } catch (IOException e) {
+            L.log(Level.WARNING, "Cannot stop replication", e);
+        }
+    }
+
+    //Singleton
+    private static volatile ReplicationNode instance;
+
+    public static ReplicationNode getInstance(){
+
+        if(instance == null){
+            synchronized (ReplicationNode.class) {
+                if (instance == null) {
+                    try {
+                        instance = fromSystemProperties(BankController.getInstance());
+                    } catch (IOException e) {
+                        throw new IllegalStateException("Cannot start replication", e);
+                    }
+                }
+            }
+        }
+
+        return instance;
+    }
+}
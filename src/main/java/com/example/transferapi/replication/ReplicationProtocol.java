@@ -0,0 +1,127 @@
+package com.example.transferapi.replication;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Frames exchanged between a leader and its followers.
+ *
+ * Every frame starts with its length, the number of bytes that follow it, as an int, then its type (byte).
+ * Integers are big-endian.
+ *
+ * The follower sends:
+ * <ul>
+ *     <li>{@link #HELLO} once connected: the segment (long) and offset (long) of the log to resume from, a segment
+ *     of -1 asking for a snapshot</li>
+ *     <li>{@link #ACK} once it has applied the frames received so far: the bytes of records applied on the
+ *     connection (long) and its number of transactions (int)</li>
+ * </ul>
+ *
+ * The leader sends:
+ * <ul>
+ *     <li>{@link #BEGIN_SNAPSHOT}: the records that follow rebuild the bank from scratch</li>
+ *     <li>{@link #RECORDS}: the log position after the records, segment (long) and offset (long), the number of
+ *     durable transactions of the leader (int), then records of the write-ahead log, framed as in
+ *     {@link com.example.transferapi.persistence.LogCodec}. A frame without records is a heartbeat.</li>
+ *     <li>{@link #END_SNAPSHOT}: the segment (long) and offset (long) where the log continues the snapshot</li>
+ * </ul>
+ *
+ * The leader does not wait for the acknowledgements to send the next frames, only stops once the records not
+ * acknowledged yet fill the window.
+ */
+public final class ReplicationProtocol {
+
+    public static final byte HELLO = 1;
+
+    public static final byte ACK = 2;
+
+    public static final byte BEGIN_SNAPSHOT = 3;
+
+    public static final byte RECORDS = 4;
+
+    public static final byte END_SNAPSHOT = 5;
+
+    /**
+     * Type, segment, offset and transactions of a records frame, after the length
+     */
+    public static final int RECORDS_HEADER_SIZE = 1 + 8 + 8 + 4;
+
+    /**
+     * Largest frame, length excluded
+     */
+    public static final int MAX_FRAME_SIZE = 16 << 20;
+
+    public static final long SNAPSHOT = -1;
+
+    private ReplicationProtocol() {
+    }
+
+    static void writeHello(DataOutputStream out, long segment, long offset) throws IOException {
+        out.writeInt(1 + 8 + 8);
+        out.writeByte(HELLO);
+        out.writeLong(segment);
+        out.writeLong(offset);
+        out.flush();
+    }
+
+    static void writeAck(DataOutputStream out, long bytes, int transactions) throws IOException {
+        out.writeInt(1 + 8 + 4);
+        out.writeByte(ACK);
+        out.writeLong(bytes);
+        out.writeInt(transactions);
+        out.flush();
+    }
+
+    static void writeBeginSnapshot(DataOutputStream out) throws IOException {
+        out.writeInt(1);
+        out.writeByte(BEGIN_SNAPSHOT);
+    }
+
+    static void writeEndSnapshot(DataOutputStream out, long segment, long offset) throws IOException {
+        out.writeInt(1 + 8 + 8);
+        out.writeByte(END_SNAPSHOT);
+        out.writeLong(segment);
+        out.writeLong(offset);
+    }
+
+    /**
+     * Starts a records frame in a buffer, whose records are put after it and which is sent once completed by
+     * {@link #endRecords}.
+     */
+    static void beginRecords(ByteBuffer frame) {
+        frame.clear();
+        frame.position(4 + RECORDS_HEADER_SIZE);
+    }
+
+    static void endRecords(ByteBuffer frame, long segment, long offset, int transactions) {
+        frame.putInt(0, frame.position() - 4);
+        frame.put(4, RECORDS);
+        frame.putLong(5, segment);
+        frame.putLong(13, offset);
+        frame.putInt(21, transactions);
+    }
+
+    /**
+     * Reads the next frame, type first, into the buffer, which is grown to fit it.
+     */
+    static ByteBuffer readFrame(DataInputStream in, ByteBuffer frame) throws IOException {
+
+        int length = in.readInt();
+
+        if (length <= 0 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Replication frame of " + length + " bytes");
+        }
+
+        if (frame.capacity() < length) {
+            frame = ByteBuffer.allocate(Math.max(length, frame.capacity() * 2));
+        }
+
+        frame.clear();
+        in.readFully(frame.array(), 0, length);
+        frame.limit(length);
+
+        return frame;
+    }
+}
@@ -0,0 +1,25 @@
+package com.example.transferapi.resources;
+
+import com.example.transferapi.model.Account;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.ext.Provider;
+import java.io.IOException;
+import java.io.InputStream;
+
+@Provider
+@Produces(MediaType.APPLICATION_JSON)
+@Consumes(MediaType.APPLICATION_JSON)
+public class AccountJsonProvider extends ModelJsonProvider<Account> {
+
+    public AccountJsonProvider() {
+        super(Account.class);
+    }
+
+    @Override
+    protected Account read(InputStream entityStream) throws IOException {
+        return ModelJson.readAccount(entityStream);
+    }
+}
@@ -2,12 +2,23 @@ package com.example.transferapi.resources;
 
 import com.example.transferapi.controller.BankController;
 import com.example.transferapi.controller.ValidationHelper;
+import com.example.transferapi.logging.EventLog;
 import com.example.transferapi.model.Account;
+import com.example.transferapi.model.AccountStore;
+import com.example.transferapi.model.Transaction;
+import com.example.transferapi.persistence.WriteAheadLog;
 
 import javax.validation.constraints.NotNull;
 import javax.ws.rs.*;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
 import java.net.URI;
 import java.util.List;
 import java.util.logging.Logger;
@@ -20,87 +31,263 @@ public class AccountResource {
     @POST
     @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
     @Produces(MediaType.APPLICATION_JSON)
-    public Response createAccount(
+    public void createAccount(
             @FormParam("name") @NotNull String name,
-            @FormParam("startBalance") double startBalance
+            @FormParam("startBalance") long startBalance,
+            @Suspended AsyncResponse asyncResponse
     ){
+        this.create(name, startBalance, asyncResponse);
+    }
 
-        L.info(String.format("Creating account \"%s\" with starting balance %f", name, startBalance));
+    @POST
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public void createAccount(@NotNull JsonRequest body, @Suspended AsyncResponse asyncResponse){
+        this.create(body.getName(), body.getStartBalance(), asyncResponse);
+    }
 
-        ValidationHelper.checkAmountNotNegative(startBalance);
+    private void create(final String name, final long startBalance, AsyncResponse asyncResponse){
 
-        BankController bankController = BankController.getInstance();
+        EventLog.info(L, "Creating account \"%s\" with starting balance %s", name, startBalance);
 
-        Account account = bankController.addAccount(name, startBalance);
+        ValidationHelper.checkAmountNotNegative(startBalance);
 
-        return Response.created(URI.create("account/"+account.getUuid())).entity(account).build();
+        // the id is not known yet, so creations go to the first partition
+        new LedgerCommand<Transaction>(asyncResponse) {
+            @Override
+            protected Transaction apply() {
+                return bankController.addAccountDeferred(name, startBalance);
+            }
+
+            @Override
+            protected void whenDurable(Transaction transaction, WriteAheadLog.DurabilityCallback callback) {
+                bankController.whenDurable(transaction, callback);
+            }
+
+            @Override
+            protected Response response(Transaction transaction) {
+                Representation account = Representation.account(bankController.getBank().getAccounts(), transaction.getTargetAccount());
+                return Response.created(URI.create("account/"+transaction.getTargetAccount())).entity(account).tag(account.getTag()).build();
+            }
+        }.submit(0);
 
     }
 
     @GET
     @Produces(MediaType.APPLICATION_JSON)
-    public List<Account> getAccounts(){
-        L.info("Getting all accounts");
-        return BankController.getInstance().getBank().getAccounts();
+    public Response getAccounts(
+            @QueryParam("after") @DefaultValue("-1") int after,
+            @QueryParam("limit") Integer limit,
+            @QueryParam("snapshot") @DefaultValue("false") boolean snapshot,
+            @Context UriInfo uriInfo
+    ){
+        EventLog.info(L, "Getting accounts after %s, limit %s, snapshot %s", after, limit, snapshot);
+        AccountStore accounts = BankController.getInstance().getBank().getAccounts();
+        return Listing.json(accounts(accounts, snapshot), position(accounts, after), limit, uriInfo);
+    }
+
+    @GET
+    @Produces(TransactionResource.APPLICATION_NDJSON + TransactionResource.LISTING_QUALITY)
+    public Response streamAccounts(
+            @QueryParam("after") @DefaultValue("-1") int after,
+            @QueryParam("limit") Integer limit,
+            @QueryParam("snapshot") @DefaultValue("false") boolean snapshot,
+            @Context UriInfo uriInfo
+    ){
+        EventLog.info(L, "Streaming accounts after %s, limit %s, snapshot %s", after, limit, snapshot);
+        AccountStore accounts = BankController.getInstance().getBank().getAccounts();
+        return Listing.ndjson(accounts(accounts, snapshot), position(accounts, after), limit, uriInfo);
     }
 
 
     @GET
     @Path("{accountId}")
     @Produces(MediaType.APPLICATION_JSON)
-    public Account getAccount(@PathParam("accountId")int accountId){
+    public Response getAccount(@PathParam("accountId")int accountId, @Context Request request){
+
+        EventLog.info(L, "Getting account with id %s", accountId);
+
+        ValidationHelper.checkAccountExists(accountId);
+
+        AccountStore accounts = BankController.getInstance().getBank().getAccounts();
+
+        // a client that already has the current version is answered without reading the account
+        Response.ResponseBuilder notModified = request.evaluatePreconditions(Representation.tag(accounts.getVersion(accountId)));
+        if(notModified != null){
+            return notModified.build();
+        }
+
+        Representation account = Representation.account(accounts, accountId);
+
+        return Response.ok(account).tag(account.getTag()).build();
+    }
+
+    @GET
+    @Path("{accountId}/transactions")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getAccountTransactions(
+            @PathParam("accountId") int accountId,
+            @QueryParam("after") @DefaultValue("-1") int after,
+            @QueryParam("limit") Integer limit,
+            @QueryParam("from") Long from,
+            @QueryParam("to") Long to,
+            @Context UriInfo uriInfo
+    ){
+
+        EventLog.info(L, "Getting transactions of account %s after %s, limit %s, from %s to %s", accountId, after, limit, from, to);
+
+        return Listing.json(this.accountTransactions(accountId, after, limit, from, to), limit, uriInfo);
+    }
+
+    @GET
+    @Path("{accountId}/transactions")
+    @Produces(TransactionResource.APPLICATION_NDJSON + TransactionResource.LISTING_QUALITY)
+    public Response streamAccountTransactions(
+            @PathParam("accountId") int accountId,
+            @QueryParam("after") @DefaultValue("-1") int after,
+            @QueryParam("limit") Integer limit,
+            @QueryParam("from") Long from,
+            @QueryParam("to") Long to,
+            @Context UriInfo uriInfo
+    ){
+
+        EventLog.info(L, "Streaming transactions of account %s after %s, limit %s, from %s to %s", accountId, after, limit, from, to);
+
+        return Listing.ndjson(this.accountTransactions(accountId, after, limit, from, to), limit, uriInfo);
+    }
 
-        L.info(String.format("Getting account with id %s", accountId));
+    private List<Transaction> accountTransactions(int accountId, int after, Integer limit, Long from, Long to){
 
         ValidationHelper.checkAccountExists(accountId);
+        ValidationHelper.checkPage(after, limit, Listing.MAX_LIMIT);
 
-        return BankController.getInstance().getBank().getAccounts().get(accountId);
+        return BankController.getInstance().getAccountTransactions(accountId, after,
+                from == null ? Long.MIN_VALUE : from, to == null ? Long.MAX_VALUE : to);
     }
 
     @PUT
     @Path("{accountId}")
     @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
     @Produces(MediaType.APPLICATION_JSON)
-    public Account updateAccount(
+    public Response updateAccount(
             @PathParam("accountId")int accountId,
-            @FormParam("name") @NotNull String name
+            @FormParam("name") @NotNull String name,
+            @HeaderParam(HttpHeaders.IF_MATCH) String ifMatch
     ){
+        return this.rename(accountId, name, ifMatch);
+    }
 
-        L.info(String.format("Updating name of account id %s. New name: %s", accountId, name));
+    @PUT
+    @Path("{accountId}")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response updateAccount(
+            @PathParam("accountId")int accountId,
+            @NotNull JsonRequest body,
+            @HeaderParam(HttpHeaders.IF_MATCH) String ifMatch
+    ){
+        return this.rename(accountId, body.getName(), ifMatch);
+    }
+
+    private Response rename(int accountId, String name, String ifMatch){
+
+        EventLog.info(L, "Updating name of account id %s. New name: %s", accountId, name);
 
         ValidationHelper.checkAccountActive(accountId);
 
-        Account account = BankController.getInstance().getBank().getAccounts().get(accountId);
+        BankController bankController = BankController.getInstance();
+
+        Account account = bankController.getBank().getAccounts().getAccount(accountId);
+
+        long expectedVersion = expectedVersion(ifMatch, account);
 
         if(account.getName().equals(name)){
-            L.warning("Account has the same name. Not changed.");
-            throw new WebApplicationException(Response.Status.NOT_MODIFIED);
+            throw ValidationHelper.rejected(Response.Status.NOT_MODIFIED, "Account has the same name. Not changed.");
         }
 
-        account.setName(name);
+        bankController.awaitDurable(bankController.renameAccountDeferred(accountId, name, expectedVersion));
 
-        return account;
+        Representation renamed = Representation.account(bankController.getBank().getAccounts(), accountId);
+
+        return Response.ok(renamed).tag(renamed.getTag()).build();
     }
 
     @DELETE
     @Path("{accountId}")
     @Produces({MediaType.APPLICATION_JSON})
-    public Account deactivateAccount(@PathParam("accountId")int accountId){
+    public void deactivateAccount(
+            @PathParam("accountId") final int accountId,
+            @HeaderParam(HttpHeaders.IF_MATCH) String ifMatch,
+            @Suspended AsyncResponse asyncResponse
+    ){
 
-        L.info(String.format("Deactivating account id %s", accountId));
+        EventLog.info(L, "Deactivating account id %s", accountId);
 
         ValidationHelper.checkAccountActive(accountId);
 
-        BankController bankController = BankController.getInstance();
+        final long expectedVersion = expectedVersion(ifMatch, BankController.getInstance().getBank().getAccounts().getAccount(accountId));
+
+        // a status change only claims the account, so it is applied right away instead of queuing behind transfers
+        new LedgerCommand<WriteAheadLog.Ticket>(asyncResponse) {
+            @Override
+            protected WriteAheadLog.Ticket apply() {
+                return bankController.deactivateAccountDeferred(accountId, expectedVersion);
+            }
 
-        Account account = bankController.getBank().getAccounts().get(accountId);
+            @Override
+            protected void whenDurable(WriteAheadLog.Ticket ticket, WriteAheadLog.DurabilityCallback callback) {
+                bankController.whenDurable(ticket, callback);
+            }
 
-        synchronized (bankController) {
-            bankController.deactivateAccount(account);
+            @Override
+            protected Response response(WriteAheadLog.Ticket ticket) {
+                Representation account = Representation.account(bankController.getBank().getAccounts(), accountId);
+                return Response.ok(account).tag(account.getTag()).build();
+            }
+        }.run();
+
+    }
+
+    /*
+     * The live accounts, or their balances at one point in time. The snapshot lists the accounts at the same positions
+     * as the store.
+     */
+    private static List<Account> accounts(AccountStore accounts, boolean snapshot){
+        return snapshot ? BankController.getInstance().snapshot() : accounts;
+    }
+
+    /*
+     * The listing is positioned in the store, where the ids of the accounts of a shard are not consecutive
+     */
+    private static int position(AccountStore accounts, int after){
+        return after < 0 ? after : accounts.positionOf(after);
+    }
+
+    /*
+     * The version a change is conditioned on: the current version if it matches one of the tags of If-Match, any
+     * version without the header or with *. Weak tags never match.
+     */
+    private static long expectedVersion(String ifMatch, Account account){
+
+        if(ifMatch == null || ifMatch.trim().equals("*")){
+            return AccountStore.ANY_VERSION;
         }
 
-        return account;
+        EntityTag current = Representation.tag(account.getVersion());
+
+        for(String tag : ifMatch.split(",")){
+            try {
+                EntityTag entityTag = EntityTag.valueOf(tag.trim());
+                if(!entityTag.isWeak() && entityTag.equals(current)){
+                    return account.getVersion();
+                }
+            } catch (IllegalArgumentException e) {
+                // not a tag, cannot match
+            }
+        }
 
+        throw ValidationHelper.rejected(Response.Status.PRECONDITION_FAILED, "Account %s is at version %s, not %s",
+                account.getUuid(), account.getVersion(), ifMatch);
     }
 
 }
@@ -0,0 +1,38 @@
+package com.example.transferapi.resources;
+
+import com.example.transferapi.controller.BankController;
+import com.example.transferapi.controller.BankSnapshot;
+import com.example.transferapi.logging.EventLog;
+import com.example.transferapi.model.BankSummary;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import java.util.logging.Logger;
+
+/**
+ * Reports over the whole bank, computed from a snapshot so they never see a transfer half applied.
+ */
+@Path("bank")
+public class BankResource {
+
+    private final static Logger L = Logger.getLogger(BankResource.class.getName());
+
+    @GET
+    @Path("summary")
+    @Produces(MediaType.APPLICATION_JSON)
+    public BankSummary getSummary(){
+
+        EventLog.info(L, "Getting the summary of the bank");
+
+        BankSnapshot snapshot = BankController.getInstance().snapshot();
+
+        BankSummary summary = new BankSummary();
+        summary.setAccounts(snapshot.size());
+        summary.setTransactions(snapshot.getTransactionCount());
+        summary.setTotalBalance(snapshot.getTotalBalance());
+
+        return summary;
+    }
+}
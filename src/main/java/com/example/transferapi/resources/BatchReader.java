@@ -0,0 +1,57 @@
+package com.example.transferapi.resources;
+
+import com.example.transferapi.model.Batch;
+import com.example.transferapi.model.BatchOperation;
+
+import javax.json.JsonException;
+import javax.json.bind.Jsonb;
+import javax.json.bind.JsonbException;
+import javax.json.bind.spi.JsonbProvider;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.Provider;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+/**
+ * Reads the JSON body of a batch, and the lines of a batch sent as NDJSON, with JSON-B. A body that is not JSON or
+ * does not bind to a batch is refused with 400 instead of failing the request.
+ */
+@Provider
+@Consumes(MediaType.APPLICATION_JSON)
+public class BatchReader implements MessageBodyReader<Batch> {
+
+    private static final Jsonb JSONB = JsonbProvider.provider().create().build();
+
+    @Override
+    public boolean isReadable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return type == Batch.class;
+    }
+
+    @Override
+    public Batch readFrom(Class<Batch> type, Type genericType, Annotation[] annotations,
+                          MediaType mediaType, MultivaluedMap<String, String> httpHeaders,
+                          InputStream entityStream) throws IOException, WebApplicationException {
+        try {
+            return JSONB.fromJson(entityStream, Batch.class);
+        } catch (JsonbException | JsonException e) {
+            throw ModelJson.malformed("Malformed batch: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the operation of one line of a batch, the first line being 1
+     */
+    static BatchOperation readOperation(String line, int number) {
+        try {
+            return JSONB.fromJson(line, BatchOperation.class);
+        } catch (JsonbException | JsonException e) {
+            throw ModelJson.malformed("Malformed operation on line " + number + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.transferapi.resources;
+
+import com.example.transferapi.controller.ValidationHelper;
+
+import javax.ws.rs.core.Response;
+
+/**
+ * JSON body of a write request, with the same fields as the form parameters of the endpoint. It is parsed by
+ * {@link ModelJson} straight into these fields, without a map of the properties or strings for the numbers; each
+ * endpoint reads the fields it takes and ignores the others.
+ *
+ * Required fields are checked as they are read, and a missing one is refused with 400.
+ */
+public final class JsonRequest {
+
+    static final int SOURCE_ACCOUNT_ID = 1;
+
+    static final int TARGET_ACCOUNT_ID = 1 << 1;
+
+    static final int AMOUNT = 1 << 2;
+
+    static final int MESSAGE = 1 << 3;
+
+    static final int NAME = 1 << 4;
+
+    static final int START_BALANCE = 1 << 5;
+
+    // the fields present in the body, as bits
+    int present;
+
+    int sourceAccountId;
+
+    int targetAccountId;
+
+    long amount;
+
+    String message;
+
+    String name;
+
+    long startBalance;
+
+    int getSourceAccountId() {
+        require(SOURCE_ACCOUNT_ID, "sourceAccountId");
+        return sourceAccountId;
+    }
+
+    int getTargetAccountId() {
+        require(TARGET_ACCOUNT_ID, "targetAccountId");
+        return targetAccountId;
+    }
+
+    long getAmount() {
+        require(AMOUNT, "amount");
+        return amount;
+    }
+
+    String getMessage() {
+        require(MESSAGE, "message");
+        return message;
+    }
+
+    String getName() {
+        require(NAME, "name");
+        return name;
+    }
+
+    /**
+     * @return the starting balance, 0 if it is not given
+     */
+    long getStartBalance() {
+        return startBalance;
+    }
+
+    private void require(int field, String name) {
+
+        if ((present & field) == 0) {
+            throw ValidationHelper.rejected(Response.Status.BAD_REQUEST, "%s is required", name);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.example.transferapi.resources;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.Provider;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+/**
+ * Reads the JSON body of a write request with {@link ModelJson}.
+ */
+@Provider
+@Consumes(MediaType.APPLICATION_JSON)
+public class JsonRequestReader implements MessageBodyReader<JsonRequest> {
+
+    @Override
+    public boolean isReadable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return type == JsonRequest.class;
+    }
+
+    @Override
+    public JsonRequest readFrom(Class<JsonRequest> type, Type genericType, Annotation[] annotations,
+                                MediaType mediaType, MultivaluedMap<String, String> httpHeaders,
+                                InputStream entityStream) throws IOException, WebApplicationException {
+        return ModelJson.readRequest(entityStream);
+    }
+}
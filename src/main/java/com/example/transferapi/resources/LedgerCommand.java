@@ -0,0 +1,179 @@
+package com.example.transferapi.resources;
+
+import com.example.transferapi.controller.BankController;
+import com.example.transferapi.model.IdempotencyKeys;
+import com.example.transferapi.model.Transaction;
+import com.example.transferapi.persistence.WriteAheadLog;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.Response;
+import java.net.URI;
+import java.util.Arrays;
+
+/**
+ * Operation of a suspended request, applied on the ledger executor, or run right away when it takes no account lock.
+ * The request is resumed with the response once the changes of the operation are durable, or with the exception the
+ * operation threw.
+ *
+ * @param <T> what the operation returns to wait for its durability
+ */
+abstract class LedgerCommand<T> implements Runnable {
+
+    protected final BankController bankController = BankController.getInstance();
+
+    private final AsyncResponse asyncResponse;
+
+    LedgerCommand(AsyncResponse asyncResponse) {
+        this.asyncResponse = asyncResponse;
+    }
+
+    /*
+     * Runs on the ledger executor
+     */
+    protected abstract T apply();
+
+    protected abstract void whenDurable(T result, WriteAheadLog.DurabilityCallback callback);
+
+    protected abstract Response response(T result);
+
+    /*
+     * Called when the operation is not applied, because it could not be submitted or it threw
+     */
+    protected void rejected() {
+    }
+
+    void submit(int accountId) {
+        try {
+            bankController.getLedgerExecutor().execute(accountId, this);
+        } catch (RuntimeException e) {
+            this.rejected();
+            throw e;
+        }
+    }
+
+    @Override
+    public void run() {
+
+        final T result;
+        try {
+            result = this.apply();
+        } catch (Exception e) {
+            this.rejected();
+            asyncResponse.resume(e);
+            return;
+        }
+
+        this.whenDurable(result, this.resuming(result));
+    }
+
+    WriteAheadLog.DurabilityCallback resuming(final T result) {
+
+        return new WriteAheadLog.DurabilityCallback() {
+            @Override
+            public void durable() {
+                asyncResponse.resume(response(result));
+            }
+
+            @Override
+            public void failed(RuntimeException cause) {
+                asyncResponse.resume(cause);
+            }
+        };
+    }
+
+    /**
+     * Command creating a transaction, answered with 201 and the transaction.
+     *
+     * With an idempotency key, the key is reserved before the command is submitted and completed with the
+     * transaction once it is durable. A retry of a completed request is answered with the original transaction
+     * without being submitted.
+     */
+    abstract static class TransactionCommand extends LedgerCommand<Transaction> {
+
+        private final String idempotencyKey;
+
+        private final int fingerprint;
+
+        TransactionCommand(AsyncResponse asyncResponse) {
+            this(asyncResponse, null);
+        }
+
+        /**
+         * @param request what identifies the request, the operation and its parameters
+         */
+        TransactionCommand(AsyncResponse asyncResponse, String idempotencyKey, Object... request) {
+            super(asyncResponse);
+            this.idempotencyKey = idempotencyKey;
+            this.fingerprint = Arrays.hashCode(request);
+        }
+
+        /*
+         * Runs on the request thread, once the key is reserved, before the command is submitted
+         */
+        protected void check() {
+        }
+
+        @Override
+        void submit(int accountId) {
+
+            if (idempotencyKey != null) {
+
+                IdempotencyKeys.Entry original = bankController.reserveIdempotencyKey(idempotencyKey, fingerprint);
+
+                if (original != null) {
+                    Transaction transaction = bankController.getBank().getTransactions().get(original.getOutcomes()[0]);
+                    this.resuming(transaction).durable();
+                    return;
+                }
+            }
+
+            try {
+                this.check();
+            } catch (RuntimeException e) {
+                this.rejected();
+                throw e;
+            }
+
+            super.submit(accountId);
+        }
+
+        @Override
+        protected void rejected() {
+            if (idempotencyKey != null) {
+                bankController.releaseIdempotencyKey(idempotencyKey);
+            }
+        }
+
+        @Override
+        protected void whenDurable(final Transaction transaction, final WriteAheadLog.DurabilityCallback callback) {
+
+            if (idempotencyKey == null) {
+                bankController.whenDurable(transaction, callback);
+                return;
+            }
+
+            bankController.whenDurable(transaction, new WriteAheadLog.DurabilityCallback() {
+                @Override
+                public void durable() {
+                    WriteAheadLog.Ticket ticket = bankController.completeIdempotencyKey(idempotencyKey,
+                            new int[]{transaction.getUuid()}, null);
+                    bankController.whenDurable(ticket, callback);
+                }
+
+                @Override
+                public void failed(RuntimeException cause) {
+                    // the transaction may be on disk, the key stays reserved and retries are refused
+                    callback.failed(cause);
+                }
+            });
+        }
+
+        @Override
+        protected Response response(Transaction transaction) {
+            // serialized once here, the reads of the transaction that follow are served from the cache
+            Representation representation = Representation.transaction(bankController.getBank().getTransactions(), transaction);
+            return Response.created(URI.create("transaction/" + transaction.getUuid()))
+                    .entity(representation).tag(representation.getTag()).build();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.transferapi.resources;
+
+import com.example.transferapi.controller.ValidationHelper;
+import com.example.transferapi.model.Account;
+import com.example.transferapi.model.Transaction;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriInfo;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Streams a page of accounts or transactions in ascending id order.
+ *
+ * The page is the elements after the {@code after} cursor, up to {@code limit} of them, or all of them when no limit
+ * is given. Lists indexed by id, such as the accounts or the journal, are positioned at the cursor directly; other
+ * lists, such as the history of an account, are expected to start after it. Elements are serialized one at a time
+ * with {@link ModelJson} straight to the response, so memory use does not depend on the size of the page. When there
+ * are elements after a limited page, a {@code Link} header with {@code rel="next"} gives the URI of the next one.
+ */
+public class Listing {
+
+    public static final int MAX_LIMIT = Integer.getInteger("transferapi.listing.maxLimit", 1000);
+
+    /**
+     * @return a JSON array with the elements of a list indexed by id
+     */
+    public static Response json(List<?> list, int after, Integer limit, UriInfo uriInfo){
+        ValidationHelper.checkPage(after, limit, MAX_LIMIT);
+        return page(list, after + 1L, limit, uriInfo, false);
+    }
+
+    /**
+     * @return the elements of a list indexed by id as newline delimited JSON
+     */
+    public static Response ndjson(List<?> list, int after, Integer limit, UriInfo uriInfo){
+        ValidationHelper.checkPage(after, limit, MAX_LIMIT);
+        return page(list, after + 1L, limit, uriInfo, true);
+    }
+
+    /**
+     * @return a JSON array with the elements of a list that starts after the cursor
+     */
+    public static Response json(List<?> list, Integer limit, UriInfo uriInfo){
+        return page(list, 0, limit, uriInfo, false);
+    }
+
+    /**
+     * @return the elements of a list that starts after the cursor as newline delimited JSON
+     */
+    public static Response ndjson(List<?> list, Integer limit, UriInfo uriInfo){
+        return page(list, 0, limit, uriInfo, true);
+    }
+
+    private static Response page(final List<?> list, long first, Integer limit, UriInfo uriInfo, final boolean ndjson){
+
+        // the size is read once, so elements added while the response is written are left for the next page
+        int size = list.size();
+
+        final int from = (int) Math.min(size, first);
+        final int to = limit == null ? size : (int) Math.min(size, from + (long) limit);
+
+        StreamingOutput body = new StreamingOutput() {
+            @Override
+            public void write(OutputStream output) throws IOException {
+
+                OutputStream buffered = new BufferedOutputStream(output, 1 << 16);
+
+                if (!ndjson) {
+                    buffered.write('[');
+                }
+                for (int id = from; id < to; id++) {
+                    if (!ndjson && id > from) {
+                        buffered.write(',');
+                    }
+                    ModelJson.write(list.get(id), buffered);
+                    if (ndjson) {
+                        buffered.write('\n');
+                    }
+                }
+                if (!ndjson) {
+                    buffered.write(']');
+                }
+                buffered.flush();
+            }
+        };
+
+        Response.ResponseBuilder response = Response.ok(body);
+
+        if (to < size) {
+            response.link(uriInfo.getRequestUriBuilder().replaceQueryParam("after", idOf(list.get(to - 1))).build(), "next");
+        }
+
+        return response.build();
+    }
+
+    private static int idOf(Object element){
+        return element instanceof Account ? ((Account) element).getUuid() : ((Transaction) element).getUuid();
+    }
+}
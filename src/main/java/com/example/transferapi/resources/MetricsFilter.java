@@ -0,0 +1,61 @@
+package com.example.transferapi.resources;
+
+import com.example.transferapi.metrics.Metrics;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.ext.Provider;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Records the latency and the status of every request matched to a resource method, named after the method, as in
+ * {@code TransactionResource.transferMoney}. The latency runs from matching to the response, so requests answered
+ * asynchronously are timed until the ledger completes them.
+ */
+@Provider
+public class MetricsFilter implements ContainerRequestFilter, ContainerResponseFilter {
+
+    private static final String START = MetricsFilter.class.getName() + ".start";
+
+    private static final String ENDPOINT = MetricsFilter.class.getName() + ".endpoint";
+
+    private static final ConcurrentMap<Method, String> ENDPOINTS = new ConcurrentHashMap<Method, String>();
+
+    @Context
+    private ResourceInfo resourceInfo;
+
+    @Override
+    public void filter(ContainerRequestContext request) {
+
+        Method method = resourceInfo.getResourceMethod();
+
+        if (method == null) {
+            return;
+        }
+
+        String endpoint = ENDPOINTS.get(method);
+        if (endpoint == null) {
+            endpoint = resourceInfo.getResourceClass().getSimpleName() + "." + method.getName();
+            ENDPOINTS.putIfAbsent(method, endpoint);
+        }
+
+        request.setProperty(ENDPOINT, endpoint);
+        request.setProperty(START, System.nanoTime());
+    }
+
+    @Override
+    public void filter(ContainerRequestContext request, ContainerResponseContext response) {
+
+        Object endpoint = request.getProperty(ENDPOINT);
+
+        if (endpoint != null) {
+            Metrics.request((String) endpoint, response.getStatus(), System.nanoTime() - (Long) request.getProperty(START));
+        }
+    }
+}
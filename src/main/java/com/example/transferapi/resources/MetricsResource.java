@@ -0,0 +1,31 @@
+package com.example.transferapi.resources;
+
+import com.example.transferapi.controller.BankController;
+import com.example.transferapi.metrics.Metrics;
+import com.example.transferapi.model.Bank;
+import com.example.transferapi.replication.ReplicationNode;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+
+/**
+ * Metrics of the service, for Prometheus to scrape.
+ */
+@Path("metrics")
+public class MetricsResource {
+
+    @GET
+    @Produces(Metrics.CONTENT_TYPE)
+    public String getMetrics(){
+
+        Bank bank = BankController.getInstance().getBank();
+
+        StringBuilder out = new StringBuilder(16 * 1024);
+        Metrics.write(out, bank.getAccounts().size(), bank.getTransactions().size());
+        ReplicationNode.getInstance().writeMetrics(out);
+
+        return out.toString();
+
+    }
+}
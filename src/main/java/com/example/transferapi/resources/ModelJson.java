@@ -0,0 +1,864 @@
+package com.example.transferapi.resources;
+
+import com.example.transferapi.controller.ValidationHelper;
+import com.example.transferapi.model.Account;
+import com.example.transferapi.model.Transaction;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Hand-written JSON encoding of the accounts and transactions, byte for byte what JSON-B writes for them: properties
+ * in lexicographical order, null properties left out, UTF-8 and strings escaped as the JSON-P generator does.
+ *
+ * A model is encoded into a buffer owned by the thread and then written in one go, so encoding allocates nothing once
+ * the buffer has grown to the size of the largest model. Decoding reads the whole body into another buffer of the
+ * thread and accepts any JSON object, ignoring unknown properties; malformed JSON is refused with 400.
+ */
+public final class ModelJson {
+
+    private static final byte[] BALANCE = ascii("{\"balance\":");
+    private static final byte[] NAME = ascii(",\"name\":");
+    private static final byte[] STATUS = ascii(",\"status\":");
+    private static final byte[] UUID = ascii(",\"uuid\":");
+    private static final byte[] VERSION = ascii(",\"version\":");
+
+    private static final byte[] AMOUNT = ascii("{\"amount\":");
+    private static final byte[] MESSAGE = ascii(",\"message\":");
+    private static final byte[] SOURCE_ACCOUNT = ascii(",\"sourceAccount\":");
+    private static final byte[] SOURCE_ACCOUNT_END_BALANCE = ascii(",\"sourceAccountEndBalance\":");
+    private static final byte[] SOURCE_ACCOUNT_START_BALANCE = ascii(",\"sourceAccountStartBalance\":");
+    private static final byte[] TARGET_ACCOUNT = ascii(",\"targetAccount\":");
+    private static final byte[] TARGET_ACCOUNT_END_BALANCE = ascii(",\"targetAccountEndBalance\":");
+    private static final byte[] TARGET_ACCOUNT_START_BALANCE = ascii(",\"targetAccountStartBalance\":");
+    private static final byte[] TIMESTAMP = ascii(",\"timestamp\":");
+
+    private static final byte[] ACTIVE = ascii("\"ACTIVE\"");
+    private static final byte[] INACTIVE = ascii("\"INACTIVE\"");
+
+    private static final byte[] MIN_LONG = ascii(String.valueOf(Long.MIN_VALUE));
+
+    private static final byte[] HEX = ascii("0123456789abcdef");
+
+    private static final String[] ACCOUNT_PROPERTIES = {"balance", "name", "status", "uuid", "version"};
+
+    private static final String[] TRANSACTION_PROPERTIES = {"amount", "message", "sourceAccount",
+            "sourceAccountEndBalance", "sourceAccountStartBalance", "targetAccount", "targetAccountEndBalance",
+            "targetAccountStartBalance", "timestamp", "uuid"};
+
+    private static final String[] REQUEST_PROPERTIES = {"sourceAccountId", "targetAccountId", "amount", "message",
+            "name", "startBalance"};
+
+    public static final String MAX_BODY_SIZE_PROPERTY = "transferapi.json.maxBodySize";
+
+    // bodies past this size are refused rather than buffered
+    private static final int MAX_BODY_SIZE = Integer.getInteger(MAX_BODY_SIZE_PROPERTY, 1 << 20);
+
+    // buffers grown past this size are not kept by the thread
+    private static final int MAX_KEPT_SIZE = 1 << 16;
+
+    private static final ThreadLocal<Buffer> OUTPUT = new ThreadLocal<Buffer>() {
+        @Override
+        protected Buffer initialValue() {
+            return new Buffer();
+        }
+    };
+
+    private static final ThreadLocal<Buffer> INPUT = new ThreadLocal<Buffer>() {
+        @Override
+        protected Buffer initialValue() {
+            return new Buffer();
+        }
+    };
+
+    private ModelJson() {
+    }
+
+    /**
+     * Writes an account or a transaction.
+     */
+    public static void write(Object model, OutputStream out) throws IOException {
+
+        Buffer buffer = encode(model);
+
+        try {
+            out.write(buffer.bytes, 0, buffer.length);
+        } finally {
+            buffer.release(OUTPUT);
+        }
+    }
+
+    /**
+     * @return the JSON of an account or a transaction
+     */
+    public static byte[] toJson(Object model) {
+
+        Buffer buffer = encode(model);
+
+        try {
+            return Arrays.copyOf(buffer.bytes, buffer.length);
+        } finally {
+            buffer.release(OUTPUT);
+        }
+    }
+
+    public static Account readAccount(InputStream in) throws IOException {
+
+        Buffer buffer = read(in);
+
+        try {
+            return account(new Parser(buffer));
+        } finally {
+            buffer.release(INPUT);
+        }
+    }
+
+    public static Transaction readTransaction(InputStream in) throws IOException {
+
+        Buffer buffer = read(in);
+
+        try {
+            return transaction(new Parser(buffer));
+        } finally {
+            buffer.release(INPUT);
+        }
+    }
+
+    /**
+     * @return the fields of the JSON body of a write request
+     */
+    public static JsonRequest readRequest(InputStream in) throws IOException {
+
+        Buffer buffer = read(in);
+
+        try {
+            return request(new Parser(buffer));
+        } finally {
+            buffer.release(INPUT);
+        }
+    }
+
+    private static Buffer encode(Object model) {
+
+        Buffer buffer = OUTPUT.get();
+        buffer.length = 0;
+
+        if (model instanceof Account) {
+            account((Account) model, buffer);
+        } else {
+            transaction((Transaction) model, buffer);
+        }
+
+        return buffer;
+    }
+
+    private static void account(Account account, Buffer out) {
+
+        out.put(BALANCE);
+        out.putLong(account.getBalance());
+
+        if (account.getName() != null) {
+            out.put(NAME);
+            out.putString(account.getName());
+        }
+
+        if (account.getStatus() != null) {
+            out.put(STATUS);
+            out.put(account.getStatus() == Account.AccountStatus.ACTIVE ? ACTIVE : INACTIVE);
+        }
+
+        out.put(UUID);
+        out.putLong(account.getUuid());
+        out.put(VERSION);
+        out.putLong(account.getVersion());
+        out.put('}');
+    }
+
+    private static void transaction(Transaction transaction, Buffer out) {
+
+        out.put(AMOUNT);
+        out.putLong(transaction.getAmount());
+
+        if (transaction.getMessage() != null) {
+            out.put(MESSAGE);
+            out.putString(transaction.getMessage());
+        }
+
+        if (transaction.getSourceAccount() != null) {
+            out.put(SOURCE_ACCOUNT);
+            out.putLong(transaction.getSourceAccount());
+        }
+
+        out.put(SOURCE_ACCOUNT_END_BALANCE);
+        out.putLong(transaction.getSourceAccountEndBalance());
+        out.put(SOURCE_ACCOUNT_START_BALANCE);
+        out.putLong(transaction.getSourceAccountStartBalance());
+
+        if (transaction.getTargetAccount() != null) {
+            out.put(TARGET_ACCOUNT);
+            out.putLong(transaction.getTargetAccount());
+        }
+
+        out.put(TARGET_ACCOUNT_END_BALANCE);
+        out.putLong(transaction.getTargetAccountEndBalance());
+        out.put(TARGET_ACCOUNT_START_BALANCE);
+        out.putLong(transaction.getTargetAccountStartBalance());
+        out.put(TIMESTAMP);
+        out.putLong(transaction.getTimestamp());
+        out.put(UUID);
+        out.putLong(transaction.getUuid());
+        out.put('}');
+    }
+
+    private static Account account(Parser in) {
+
+        Account account = new Account();
+
+        in.startObject();
+        while (in.nextProperty()) {
+            switch (in.property(ACCOUNT_PROPERTIES)) {
+                case 0:
+                    account.setBalance(in.longValue());
+                    break;
+                case 1:
+                    account.setName(in.stringValue());
+                    break;
+                case 2:
+                    String status = in.stringValue();
+                    account.setStatus(status == null ? null : status(status));
+                    break;
+                case 3:
+                    account.setUuid(in.intValue());
+                    break;
+                case 4:
+                    account.setVersion(in.longValue());
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.end();
+
+        return account;
+    }
+
+    private static Account.AccountStatus status(String status) {
+        try {
+            return Account.AccountStatus.valueOf(status);
+        } catch (IllegalArgumentException e) {
+            throw malformed("Unknown account status " + status);
+        }
+    }
+
+    private static Transaction transaction(Parser in) {
+
+        Transaction transaction = new Transaction();
+
+        in.startObject();
+        while (in.nextProperty()) {
+            switch (in.property(TRANSACTION_PROPERTIES)) {
+                case 0:
+                    transaction.setAmount(in.longValue());
+                    break;
+                case 1:
+                    transaction.setMessage(in.stringValue());
+                    break;
+                case 2:
+                    transaction.setSourceAccount(in.integerValue());
+                    break;
+                case 3:
+                    transaction.setSourceAccountEndBalance(in.longValue());
+                    break;
+                case 4:
+                    transaction.setSourceAccountStartBalance(in.longValue());
+                    break;
+                case 5:
+                    transaction.setTargetAccount(in.integerValue());
+                    break;
+                case 6:
+                    transaction.setTargetAccountEndBalance(in.longValue());
+                    break;
+                case 7:
+                    transaction.setTargetAccountStartBalance(in.longValue());
+                    break;
+                case 8:
+                    transaction.setTimestamp(in.longValue());
+                    break;
+                case 9:
+                    transaction.setUuid(in.intValue());
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.end();
+
+        return transaction;
+    }
+
+    private static JsonRequest request(Parser in) {
+
+        JsonRequest request = new JsonRequest();
+
+        in.startObject();
+        while (in.nextProperty()) {
+
+            int property = in.property(REQUEST_PROPERTIES);
+
+            if (property < 0) {
+                in.skipValue();
+                continue;
+            }
+
+            // null is the same as a missing field
+            if (in.isNull()) {
+                continue;
+            }
+
+            switch (property) {
+                case 0:
+                    request.sourceAccountId = in.intValue();
+                    break;
+                case 1:
+                    request.targetAccountId = in.intValue();
+                    break;
+                case 2:
+                    request.amount = in.longValue();
+                    break;
+                case 3:
+                    request.message = in.stringValue();
+                    break;
+                case 4:
+                    request.name = in.stringValue();
+                    break;
+                case 5:
+                    request.startBalance = in.longValue();
+                    break;
+            }
+
+            // the fields are in the order of their bits
+            request.present |= 1 << property;
+        }
+        in.end();
+
+        return request;
+    }
+
+    private static Buffer read(InputStream in) throws IOException {
+
+        Buffer buffer = INPUT.get();
+        buffer.length = 0;
+
+        try {
+            int read;
+            while ((read = in.read(buffer.bytes, buffer.length, buffer.bytes.length - buffer.length)) != -1) {
+                buffer.length += read;
+                if (buffer.length > MAX_BODY_SIZE) {
+                    throw ValidationHelper.rejected(Response.Status.REQUEST_ENTITY_TOO_LARGE,
+                            "A body must have at most %s bytes", MAX_BODY_SIZE);
+                }
+                if (buffer.length == buffer.bytes.length) {
+                    buffer.bytes = Arrays.copyOf(buffer.bytes, buffer.bytes.length * 2);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            buffer.release(INPUT);
+            throw e;
+        }
+
+        return buffer;
+    }
+
+    static WebApplicationException malformed(String message) {
+        return ValidationHelper.rejected(Response.Status.BAD_REQUEST, "%s", message);
+    }
+
+    private static byte[] ascii(String string) {
+        return string.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /*
+     * Growable byte buffer, reused by its thread
+     */
+    static final class Buffer {
+
+        byte[] bytes = new byte[512];
+
+        int length;
+
+        private void ensure(int extra) {
+            if (length + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+            }
+        }
+
+        /*
+         * Drops the buffer if it grew too large to be kept
+         */
+        void release(ThreadLocal<Buffer> owner) {
+            if (bytes.length > MAX_KEPT_SIZE) {
+                owner.remove();
+            }
+        }
+
+        void put(char c) {
+            ensure(1);
+            bytes[length++] = (byte) c;
+        }
+
+        void put(byte[] ascii) {
+            ensure(ascii.length);
+            System.arraycopy(ascii, 0, bytes, length, ascii.length);
+            length += ascii.length;
+        }
+
+        void putLong(long value) {
+
+            if (value == Long.MIN_VALUE) {
+                put(MIN_LONG);
+                return;
+            }
+
+            ensure(20);
+
+            if (value < 0) {
+                bytes[length++] = '-';
+                value = -value;
+            }
+
+            int digits = 1;
+            for (long bound = 10; digits < 19 && value >= bound; bound *= 10) {
+                digits++;
+            }
+
+            int position = length + digits;
+            length = position;
+            do {
+                bytes[--position] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value != 0);
+        }
+
+        /*
+         * Quoted, escaped and encoded in UTF-8. Unpaired surrogates are written as '?', as the encoder of JSON-P does
+         */
+        void putString(String string) {
+
+            int count = string.length();
+            // at most 6 bytes per char, for the escaped control characters
+            ensure(count * 6 + 2);
+
+            byte[] out = bytes;
+            int position = length;
+
+            out[position++] = '"';
+
+            for (int i = 0; i < count; i++) {
+
+                char c = string.charAt(i);
+
+                if (c >= 0x20 && c < 0x80 && c != '"' && c != '\\') {
+                    out[position++] = (byte) c;
+                } else if (c < 0x20 || c == '"' || c == '\\') {
+                    out[position++] = '\\';
+                    switch (c) {
+                        case '"':
+                        case '\\':
+                            out[position++] = (byte) c;
+                            break;
+                        case '\b':
+                            out[position++] = 'b';
+                            break;
+                        case '\f':
+                            out[position++] = 'f';
+                            break;
+                        case '\n':
+                            out[position++] = 'n';
+                            break;
+                        case '\r':
+                            out[position++] = 'r';
+                            break;
+                        case '\t':
+                            out[position++] = 't';
+                            break;
+                        default:
+                            out[position++] = 'u';
+                            out[position++] = '0';
+                            out[position++] = '0';
+                            out[position++] = HEX[c >> 4];
+                            out[position++] = HEX[c & 0xF];
+                    }
+                } else if (c < 0x800) {
+                    out[position++] = (byte) (0xC0 | c >> 6);
+                    out[position++] = (byte) (0x80 | c & 0x3F);
+                } else if (Character.isHighSurrogate(c) && i + 1 < count && Character.isLowSurrogate(string.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, string.charAt(++i));
+                    out[position++] = (byte) (0xF0 | codePoint >> 18);
+                    out[position++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                    out[position++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                    out[position++] = (byte) (0x80 | codePoint & 0x3F);
+                } else if (Character.isSurrogate(c)) {
+                    out[position++] = '?';
+                } else {
+                    out[position++] = (byte) (0xE0 | c >> 12);
+                    out[position++] = (byte) (0x80 | c >> 6 & 0x3F);
+                    out[position++] = (byte) (0x80 | c & 0x3F);
+                }
+            }
+
+            out[position++] = '"';
+            length = position;
+        }
+    }
+
+    /**
+     * Pull parser over a JSON document held in memory, reading it a property at a time.
+     */
+    static final class Parser {
+
+        private final byte[] in;
+
+        private final int end;
+
+        private int position;
+
+        private boolean first;
+
+        Parser(Buffer buffer) {
+            this.in = buffer.bytes;
+            this.end = buffer.length;
+        }
+
+        void startObject() {
+            skipWhitespace();
+            expect('{');
+            first = true;
+        }
+
+        /*
+         * Moves to the next property of the object, past its name and colon; false at the end of the object
+         */
+        boolean nextProperty() {
+
+            skipWhitespace();
+
+            if (peek() == '}') {
+                position++;
+                return false;
+            }
+
+            if (!first) {
+                expect(',');
+                skipWhitespace();
+            }
+            first = false;
+
+            return true;
+        }
+
+        /*
+         * Reads the name of the property and its colon
+         *
+         * @return the index of the name among the given ones, or -1
+         */
+        int property(String[] names) {
+
+            skipWhitespace();
+            expect('"');
+
+            int start = position;
+            while (position < end && in[position] != '"' && in[position] != '\\') {
+                position++;
+            }
+
+            int match = -1;
+            if (position < end && in[position] == '"') {
+                match = match(names, start, position - start);
+                position++;
+            } else {
+                // escaped names are rare enough to be decoded
+                position = start - 1;
+                String name = string();
+                for (int i = 0; i < names.length && match < 0; i++) {
+                    if (names[i].equals(name)) {
+                        match = i;
+                    }
+                }
+            }
+
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+
+            return match;
+        }
+
+        private int match(String[] names, int start, int length) {
+
+            for (int i = 0; i < names.length; i++) {
+
+                String name = names[i];
+
+                if (name.length() != length) {
+                    continue;
+                }
+
+                int c = 0;
+                while (c < length && in[start + c] == name.charAt(c)) {
+                    c++;
+                }
+
+                if (c == length) {
+                    return i;
+                }
+            }
+
+            return -1;
+        }
+
+        /*
+         * Checks that nothing but whitespace follows the document
+         */
+        void end() {
+            skipWhitespace();
+            if (position != end) {
+                throw malformed("Unexpected content after the JSON document at " + position);
+            }
+        }
+
+        boolean isNull() {
+            if (end - position >= 4 && in[position] == 'n' && in[position + 1] == 'u' && in[position + 2] == 'l'
+                    && in[position + 3] == 'l') {
+                position += 4;
+                return true;
+            }
+            return false;
+        }
+
+        long longValue() {
+
+            if (isNull()) {
+                throw malformed("Null number at " + position);
+            }
+
+            boolean negative = peek() == '-';
+            if (negative) {
+                position++;
+            }
+
+            int start = position;
+            long value = 0;
+
+            while (position < end && in[position] >= '0' && in[position] <= '9') {
+
+                int digit = in[position++] - '0';
+
+                if (value < (Long.MIN_VALUE + digit) / 10) {
+                    throw malformed("Number out of range at " + start);
+                }
+                value = value * 10 - digit;
+            }
+
+            if (position == start) {
+                throw malformed("Expected a number at " + start);
+            }
+
+            if (position < end && (in[position] == '.' || in[position] == 'e' || in[position] == 'E')) {
+                throw malformed("Expected a whole number at " + start);
+            }
+
+            if (!negative && value == Long.MIN_VALUE) {
+                throw malformed("Number out of range at " + start);
+            }
+
+            return negative ? value : -value;
+        }
+
+        int intValue() {
+
+            int start = position;
+            long value = longValue();
+
+            if (value != (int) value) {
+                throw malformed("Number out of range at " + start);
+            }
+
+            return (int) value;
+        }
+
+        Integer integerValue() {
+            return isNull() ? null : intValue();
+        }
+
+        String stringValue() {
+            return isNull() ? null : string();
+        }
+
+        private String string() {
+
+            expect('"');
+
+            int start = position;
+            while (position < end && in[position] != '"' && in[position] != '\\') {
+                position++;
+            }
+
+            if (position < end && in[position] == '"') {
+                return new String(in, start, position++ - start, StandardCharsets.UTF_8);
+            }
+
+            // escapes are decoded on a slower path, starting over
+            StringBuilder string = new StringBuilder(new String(in, start, position - start, StandardCharsets.UTF_8));
+
+            while (true) {
+
+                if (position >= end) {
+                    throw malformed("Unterminated string at " + start);
+                }
+
+                byte c = in[position];
+
+                if (c == '"') {
+                    position++;
+                    return string.toString();
+                }
+
+                if (c != '\\') {
+                    int run = position;
+                    while (position < end && in[position] != '"' && in[position] != '\\') {
+                        position++;
+                    }
+                    string.append(new String(in, run, position - run, StandardCharsets.UTF_8));
+                    continue;
+                }
+
+                if (++position >= end) {
+                    throw malformed("Unterminated string at " + start);
+                }
+
+                switch (in[position++]) {
+                    case '"':
+                        string.append('"');
+                        break;
+                    case '\\':
+                        string.append('\\');
+                        break;
+                    case '/':
+                        string.append('/');
+                        break;
+                    case 'b':
+                        string.append('\b');
+                        break;
+                    case 'f':
+                        string.append('\f');
+                        break;
+                    case 'n':
+                        string.append('\n');
+                        break;
+                    case 'r':
+                        string.append('\r');
+                        break;
+                    case 't':
+                        string.append('\t');
+                        break;
+                    case 'u':
+                        string.append(hexChar());
+                        break;
+                    default:
+                        throw malformed("Invalid escape at " + (position - 2));
+                }
+            }
+        }
+
+        private char hexChar() {
+
+            if (end - position < 4) {
+                throw malformed("Invalid escape at " + (position - 2));
+            }
+
+            int c = 0;
+            for (int i = 0; i < 4; i++) {
+                int digit = Character.digit(in[position++], 16);
+                if (digit < 0) {
+                    throw malformed("Invalid escape at " + (position - 3 - i));
+                }
+                c = c << 4 | digit;
+            }
+
+            return (char) c;
+        }
+
+        /*
+         * Skips a value of any type, nested objects and arrays included
+         */
+        void skipValue() {
+
+            skipWhitespace();
+
+            switch (peek()) {
+                case '"':
+                    string();
+                    break;
+                case '{':
+                case '[':
+                    int depth = 0;
+                    do {
+                        byte c = in[position];
+                        if (c == '"') {
+                            string();
+                            continue;
+                        }
+                        if (c == '{' || c == '[') {
+                            depth++;
+                        } else if (c == '}' || c == ']') {
+                            depth--;
+                        }
+                        position++;
+                    } while (depth > 0 && position < end);
+                    if (depth > 0) {
+                        throw malformed("Unterminated value at " + position);
+                    }
+                    break;
+                default:
+                    // numbers, booleans and null run to the next delimiter
+                    int start = position;
+                    while (position < end && in[position] != ',' && in[position] != '}' && in[position] != ']'
+                            && !isWhitespace(in[position])) {
+                        position++;
+                    }
+                    if (position == start) {
+                        throw malformed("Expected a value at " + start);
+                    }
+            }
+        }
+
+        private byte peek() {
+            if (position >= end) {
+                throw malformed("Unexpected end of the JSON document");
+            }
+            return in[position];
+        }
+
+        private void expect(char c) {
+            if (peek() != c) {
+                throw malformed("Expected '" + c + "' at " + position);
+            }
+            position++;
+        }
+
+        private void skipWhitespace() {
+            while (position < end && isWhitespace(in[position])) {
+                position++;
+            }
+        }
+
+        private static boolean isWhitespace(byte c) {
+            return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+        }
+    }
+}
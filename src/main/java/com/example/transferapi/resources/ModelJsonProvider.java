@@ -0,0 +1,58 @@
+package com.example.transferapi.resources;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.MessageBodyWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+/**
+ * Reads and writes a model with {@link ModelJson} instead of JSON-B. Being declared for the model type, it is closer
+ * to the entity than the JSON-B provider and is the one Jersey picks.
+ *
+ * @param <T> the model
+ */
+abstract class ModelJsonProvider<T> implements MessageBodyWriter<T>, MessageBodyReader<T> {
+
+    private final Class<T> model;
+
+    ModelJsonProvider(Class<T> model) {
+        this.model = model;
+    }
+
+    protected abstract T read(InputStream entityStream) throws IOException;
+
+    @Override
+    public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return type == model;
+    }
+
+    @Override
+    public long getSize(T entity, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return -1;
+    }
+
+    @Override
+    public void writeTo(T entity, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+                        MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream)
+            throws IOException, WebApplicationException {
+        ModelJson.write(entity, entityStream);
+    }
+
+    @Override
+    public boolean isReadable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return type == model;
+    }
+
+    @Override
+    public T readFrom(Class<T> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+                      MultivaluedMap<String, String> httpHeaders, InputStream entityStream)
+            throws IOException, WebApplicationException {
+        return this.read(entityStream);
+    }
+}
@@ -0,0 +1,33 @@
+package com.example.transferapi.resources;
+
+import com.example.transferapi.replication.ReplicationNode;
+
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Refuses with a 403 the requests that would change the bank of a follower, which only serves reads: its accounts
+ * and transactions come from its leader.
+ */
+@Provider
+public class ReplicaFilter implements ContainerRequestFilter {
+
+    @Override
+    public void filter(ContainerRequestContext request) {
+
+        String method = request.getMethod();
+
+        if (HttpMethod.GET.equals(method) || HttpMethod.HEAD.equals(method) || HttpMethod.OPTIONS.equals(method)) {
+            return;
+        }
+
+        try {
+            ReplicationNode.getInstance().checkWritable();
+        } catch (WebApplicationException e) {
+            request.abortWith(e.getResponse());
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.example.transferapi.resources;
+
+import com.example.transferapi.model.Account;
+import com.example.transferapi.model.AccountStore;
+import com.example.transferapi.model.Transaction;
+import com.example.transferapi.model.TransactionJournal;
+
+import javax.ws.rs.core.EntityTag;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * JSON of an account or a transaction, serialized once with {@link ModelJson} and written as is by
+ * {@link RepresentationWriter}.
+ *
+ * Recent representations are kept in two direct-mapped caches, one slot per id modulo their size, so the heap used
+ * does not grow with the bank. Transactions never change, so a cached one is valid as long as it is for the same
+ * id of the same journal; accounts are cached per version and a change of the account, which always bumps its
+ * version, makes the cached one stale. The size of the caches is set with
+ * {@code transferapi.representations.cacheSize}, rounded up to a power of two.
+ */
+public final class Representation {
+
+    private static final int CACHE_SIZE =
+            Integer.highestOneBit(Math.max(1, Integer.getInteger("transferapi.representations.cacheSize", 4096) * 2 - 1));
+
+    private static final AtomicReferenceArray<Representation> ACCOUNTS = new AtomicReferenceArray<Representation>(CACHE_SIZE);
+
+    private static final AtomicReferenceArray<Representation> TRANSACTIONS = new AtomicReferenceArray<Representation>(CACHE_SIZE);
+
+    // the store or journal the representation was read from
+    private final Object source;
+
+    private final int id;
+
+    private final long version;
+
+    private final byte[] json;
+
+    private final EntityTag tag;
+
+    private Representation(Object source, int id, long version, Object entity) {
+        this.source = source;
+        this.id = id;
+        this.version = version;
+        this.json = ModelJson.toJson(entity);
+        this.tag = version >= 0 ? tag(version) : tag(json);
+    }
+
+    public byte[] getJson() {
+        return json;
+    }
+
+    /**
+     * @return the strong entity tag of the version of the account, or of the content of the transaction
+     */
+    public EntityTag getTag() {
+        return tag;
+    }
+
+    /**
+     * @return the strong entity tag of a version
+     */
+    static EntityTag tag(long version) {
+        return new EntityTag(String.valueOf(version));
+    }
+
+    /**
+     * Tag of a transaction, hashed from its JSON: ids are the same on every shard and replica and start over when a
+     * bank in memory restarts, so they alone would tell neither the transactions nor the banks apart.
+     *
+     * @return the strong entity tag of a content, its 64-bit FNV-1a hash
+     */
+    static EntityTag tag(byte[] json) {
+
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : json) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+
+        return new EntityTag(Long.toHexString(hash));
+    }
+
+    /**
+     * @return the representation of the current version of an account
+     */
+    static Representation account(AccountStore accounts, int uuid) {
+
+        int slot = uuid & (CACHE_SIZE - 1);
+        Representation cached = ACCOUNTS.get(slot);
+
+        if (cached != null && cached.source == accounts && cached.id == uuid && cached.version == accounts.getVersion(uuid)) {
+            return cached;
+        }
+
+        // the copy reads the version first, so the representation never claims a version it does not have
+        Account account = accounts.getAccount(uuid);
+        Representation representation = new Representation(accounts, uuid, account.getVersion(), account);
+        ACCOUNTS.lazySet(slot, representation);
+
+        return representation;
+    }
+
+    /**
+     * @return the representation of a transaction of the journal
+     */
+    static Representation transaction(TransactionJournal journal, int id) {
+
+        Representation cached = TRANSACTIONS.get(id & (CACHE_SIZE - 1));
+
+        if (cached != null && cached.source == journal && cached.id == id) {
+            return cached;
+        }
+
+        return transaction(journal, journal.get(id));
+    }
+
+    /**
+     * @return the representation of a transaction just created, which is cached for the reads that follow
+     */
+    static Representation transaction(TransactionJournal journal, Transaction transaction) {
+
+        Representation representation = new Representation(journal, transaction.getUuid(), -1, transaction);
+        TRANSACTIONS.lazySet(transaction.getUuid() & (CACHE_SIZE - 1), representation);
+
+        return representation;
+    }
+}
@@ -0,0 +1,37 @@
+package com.example.transferapi.resources;
+
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+/**
+ * Writes the serialized JSON of a {@link Representation} without going through JSON-B again.
+ */
+@Provider
+@Produces(MediaType.APPLICATION_JSON)
+public class RepresentationWriter implements MessageBodyWriter<Representation> {
+
+    @Override
+    public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return type == Representation.class;
+    }
+
+    @Override
+    public long getSize(Representation representation, Class<?> type, Type genericType, Annotation[] annotations,
+                        MediaType mediaType) {
+        return representation.getJson().length;
+    }
+
+    @Override
+    public void writeTo(Representation representation, Class<?> type, Type genericType, Annotation[] annotations,
+                        MediaType mediaType, MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream)
+            throws IOException {
+        entityStream.write(representation.getJson());
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.transferapi.resources;
+
+import com.example.transferapi.logging.EventLog;
+import com.example.transferapi.model.Transaction;
+import com.example.transferapi.shard.ShardNode;
+
+import javax.ws.rs.*;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.util.logging.Logger;
+
+/**
+ * The steps of the cross-shard transfers, called by the coordinating node. See
+ * {@link com.example.transferapi.shard.ShardCoordinator}.
+ */
+@Path("shard/transfers")
+public class ShardResource {
+
+    private final static Logger L = Logger.getLogger(ShardResource.class.getName());
+
+    @POST
+    @Path("{transferId}/debit")
+    @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response debit(
+            @PathParam("transferId") String transferId,
+            @FormParam("accountId") int accountId,
+            @FormParam("amount") long amount,
+            @FormParam("message") String message
+    ){
+        EventLog.info(L, "Preparing debit of %s from account %s for transfer %s", amount, accountId, transferId);
+
+        Transaction reservation = ShardNode.getInstance().getParticipant().debit(transferId, accountId, amount, message);
+
+        return Response.ok(reservation).build();
+    }
+
+    @POST
+    @Path("{transferId}/credit")
+    @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
+    public Response credit(
+            @PathParam("transferId") String transferId,
+            @FormParam("accountId") int accountId,
+            @FormParam("amount") long amount,
+            @FormParam("message") String message
+    ){
+        EventLog.info(L, "Preparing credit of %s into account %s for transfer %s", amount, accountId, transferId);
+
+        ShardNode.getInstance().getParticipant().credit(transferId, accountId, amount, message);
+
+        return Response.noContent().build();
+    }
+
+    @POST
+    @Path("{transferId}/commit")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response commit(@PathParam("transferId") String transferId){
+
+        EventLog.info(L, "Committing transfer %s", transferId);
+
+        return Response.ok(ShardNode.getInstance().getParticipant().commit(transferId)).build();
+    }
+
+    @POST
+    @Path("{transferId}/abort")
+    public Response abort(@PathParam("transferId") String transferId){
+
+        EventLog.info(L, "Aborting transfer %s", transferId);
+
+        ShardNode.getInstance().getParticipant().abort(transferId);
+
+        return Response.noContent().build();
+    }
+
+    @GET
+    @Path("{transferId}")
+    @Produces(MediaType.TEXT_PLAIN)
+    public String getDecision(@PathParam("transferId") String transferId){
+
+        EventLog.info(L, "Getting decision on transfer %s", transferId);
+
+        return ShardNode.getInstance().getCoordinator().decision(transferId).name();
+    }
+}
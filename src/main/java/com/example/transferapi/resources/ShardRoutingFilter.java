@@ -0,0 +1,49 @@
+package com.example.transferapi.resources;
+
+import com.example.transferapi.shard.ShardMap;
+import com.example.transferapi.shard.ShardNode;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriBuilder;
+import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Redirects the requests for an account of another shard, the {@code account/{accountId}} endpoints, to the node
+ * that owns it with a 307, so clients can send them to any node. Money requests are forwarded by
+ * {@link TransactionResource} instead, their account is in the body.
+ */
+@Provider
+public class ShardRoutingFilter implements ContainerRequestFilter {
+
+    @Override
+    public void filter(ContainerRequestContext request) {
+
+        ShardMap shards = ShardNode.getInstance().getShards();
+
+        if (!shards.isSharded()) {
+            return;
+        }
+
+        UriInfo uriInfo = request.getUriInfo();
+        String accountId = uriInfo.getPathParameters().getFirst("accountId");
+
+        if (accountId == null) {
+            return;
+        }
+
+        int id;
+        try {
+            id = Integer.parseInt(accountId);
+        } catch (NumberFormatException e) {
+            return;
+        }
+
+        if (!shards.isLocal(id)) {
+            request.abortWith(Response.temporaryRedirect(UriBuilder.fromUri(shards.getNode(shards.shardOf(id)))
+                    .path(uriInfo.getPath()).replaceQuery(uriInfo.getRequestUri().getRawQuery()).build()).build());
+        }
+    }
+}
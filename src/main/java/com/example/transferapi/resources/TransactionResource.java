@@ -2,14 +2,34 @@ package com.example.transferapi.resources;
 
 import com.example.transferapi.controller.BankController;
 import com.example.transferapi.controller.ValidationHelper;
-import com.example.transferapi.model.Account;
+import com.example.transferapi.logging.EventLog;
+import com.example.transferapi.model.Batch;
+import com.example.transferapi.model.BatchOperation;
+import com.example.transferapi.model.BatchResult;
+import com.example.transferapi.model.IdempotencyKeys;
 import com.example.transferapi.model.Transaction;
+import com.example.transferapi.shard.ShardCoordinator;
+import com.example.transferapi.shard.ShardMap;
+import com.example.transferapi.shard.ShardNode;
 
 import javax.validation.constraints.NotNull;
 import javax.ws.rs.*;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Form;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Logger;
 
@@ -18,64 +38,157 @@ public class TransactionResource {
 
     private final static Logger L = Logger.getLogger(TransactionResource.class.getName());
 
+    public static final String APPLICATION_NDJSON = "application/x-ndjson";
+
+    /**
+     * Header naming a request, so that retrying it returns the original outcome instead of applying it again
+     */
+    public static final String IDEMPOTENCY_KEY = "Idempotency-Key";
+
+    /*
+     * Listings stream newline delimited JSON only when a client asks for it: a plain JSON array is preferred
+     * for clients that accept any type
+     */
+    static final String LISTING_QUALITY = ";qs=0.5";
+
+    private static final int MAX_BATCH_OPERATIONS = Integer.getInteger("transferapi.batch.maxOperations", 10000);
+
     @GET
     @Produces(MediaType.APPLICATION_JSON)
-    public List<Transaction> getTransactions(){
+    public Response getTransactions(
+            @QueryParam("after") @DefaultValue("-1") int after,
+            @QueryParam("limit") Integer limit,
+            @Context UriInfo uriInfo
+    ){
+
+        EventLog.info(L, "Getting transactions after %s, limit %s", after, limit);
+
+        return Listing.json(BankController.getInstance().getBank().getTransactions(), after, limit, uriInfo);
+
+    }
+
+    @GET
+    @Produces(APPLICATION_NDJSON + LISTING_QUALITY)
+    public Response streamTransactions(
+            @QueryParam("after") @DefaultValue("-1") int after,
+            @QueryParam("limit") Integer limit,
+            @Context UriInfo uriInfo
+    ){
 
-        L.info("Getting all transactions");
+        EventLog.info(L, "Streaming transactions after %s, limit %s", after, limit);
 
-        return BankController.getInstance().getBank().getTransactions();
+        return Listing.ndjson(BankController.getInstance().getBank().getTransactions(), after, limit, uriInfo);
 
     }
 
     @GET
     @Path("{transactionId}")
     @Produces(MediaType.APPLICATION_JSON)
-    public Transaction getTransaction(@PathParam("transactionId") int transactionId){
+    public Response getTransaction(@PathParam("transactionId") int transactionId, @Context Request request){
 
-        L.info(String.format("Getting transaction with id %s", transactionId));
+        EventLog.info(L, "Getting transaction with id %s", transactionId);
 
         ValidationHelper.checkTransactionExists(transactionId);
 
-        return BankController.getInstance().getBank().getTransactions().get(transactionId);
+        Representation transaction = Representation.transaction(BankController.getInstance().getBank().getTransactions(), transactionId);
+
+        // transactions never change, a client that has one is answered without sending it again
+        Response.ResponseBuilder notModified = request.evaluatePreconditions(transaction.getTag());
+        if(notModified != null){
+            return notModified.build();
+        }
+
+        return Response.ok(transaction).tag(transaction.getTag()).build();
 
     }
 
     @POST
     @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
     @Produces(MediaType.APPLICATION_JSON)
-    public Response transferMoney(
+    public void transferMoney(
             @FormParam("sourceAccountId") @NotNull int sourceAccountId,
             @FormParam("targetAccountId") @NotNull int targetAccountId,
-            @FormParam("amount") @NotNull double amount,
-            @FormParam("message") @NotNull String message
+            @FormParam("amount") @NotNull long amount,
+            @FormParam("message") @NotNull String message,
+            @HeaderParam(IDEMPOTENCY_KEY) String idempotencyKey,
+            @Suspended AsyncResponse asyncResponse
     ){
+        this.transfer(sourceAccountId, targetAccountId, amount, message, idempotencyKey, asyncResponse);
+    }
 
-        L.info(String.format("Transferring %f from account %s to account %s with message: \"%s\"", amount, sourceAccountId, targetAccountId, message));
+    @POST
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public void transferMoney(
+            @NotNull JsonRequest body,
+            @HeaderParam(IDEMPOTENCY_KEY) String idempotencyKey,
+            @Suspended AsyncResponse asyncResponse
+    ){
+        this.transfer(body.getSourceAccountId(), body.getTargetAccountId(), body.getAmount(), body.getMessage(),
+                idempotencyKey, asyncResponse);
+    }
 
-        ValidationHelper.checkAmountPositive(amount);
-        ValidationHelper.checkAccountActive(sourceAccountId);
-        ValidationHelper.checkAccountActive(targetAccountId);
+    private void transfer(final int sourceAccountId, final int targetAccountId, final long amount,
+                          final String message, String idempotencyKey, AsyncResponse asyncResponse){
 
-        BankController bankController = BankController.getInstance();
+        EventLog.info(L, "Transferring %s from account %s to account %s with message: \"%s\"", amount, sourceAccountId, targetAccountId, message);
+
+        ShardNode node = ShardNode.getInstance();
+        ShardMap shards = node.getShards();
+
+        if (shards.isSharded()) {
 
-        Account sourceAccount = bankController.getBank().getAccounts().get(sourceAccountId);
-        Account targetAccount = bankController.getBank().getAccounts().get(targetAccountId);
+            int sourceShard = shards.shardOf(sourceAccountId);
 
-        synchronized (bankController) {
+            if (sourceShard != shards.shardOf(targetAccountId)) {
+                transferAcrossShards(node, sourceAccountId, targetAccountId, amount, message, idempotencyKey, asyncResponse);
+                return;
+            }
+
+            if (sourceShard != shards.getIndex()) {
+                Form form = new Form();
+                form.param("sourceAccountId", String.valueOf(sourceAccountId));
+                form.param("targetAccountId", String.valueOf(targetAccountId));
+                form.param("amount", String.valueOf(amount));
+                form.param("message", message);
+                asyncResponse.resume(node.forward(sourceShard, "transaction", form, idempotencyKey));
+                return;
+            }
+        }
+
+        new LedgerCommand.TransactionCommand(asyncResponse, idempotencyKey,
+                "transfer", sourceAccountId, targetAccountId, amount, message) {
+            @Override
+            protected void check() {
+                // checked again under the account locks, but most rejections end here, before the ledger
+                ValidationHelper.checkTransfer(bankController.getBank().getAccounts(), sourceAccountId, targetAccountId, amount);
+            }
 
-            if (sourceAccount.getBalance() < amount) {
-                String exception = String.format("Account %s does not have enough funds for this transfer", sourceAccountId);
-                L.warning(exception);
-                throw new WebApplicationException(exception, Response.Status.BAD_REQUEST);
+            @Override
+            protected Transaction apply() {
+                return bankController.transferMoneyDeferred(sourceAccountId, targetAccountId, amount, message);
             }
+        }.submit(sourceAccountId);
 
-            Transaction transaction =  bankController.transferMoney(sourceAccount, targetAccount, amount, message);
+    }
 
-            return Response.created(URI.create("transaction/"+transaction.getUuid())).entity(transaction).build();
+    /*
+     * Coordinated from here with two-phase commit; answered with 202 when a leg has not acknowledged the commit
+     * yet, which the recovery delivers later. The transaction is the debit on the shard of the source account.
+     */
+    private static void transferAcrossShards(ShardNode node, int sourceAccountId, int targetAccountId, long amount,
+                                             String message, String idempotencyKey, AsyncResponse asyncResponse){
 
+        if (idempotencyKey != null) {
+            throw ValidationHelper.rejected(Response.Status.BAD_REQUEST, "Idempotency keys are not supported on transfers across shards");
         }
 
+        ShardCoordinator.Outcome outcome = node.getCoordinator().transfer(sourceAccountId, targetAccountId, amount, message);
+        Transaction transaction = outcome.getTransaction();
+        URI location = node.getShards().getNode(node.getShards().shardOf(sourceAccountId)).resolve("transaction/" + transaction.getUuid());
+
+        asyncResponse.resume(Response.status(outcome.isSettled() ? Response.Status.CREATED : Response.Status.ACCEPTED)
+                .location(location).entity(transaction).build());
     }
 
 
@@ -83,59 +196,248 @@ public class TransactionResource {
     @Path("deposit")
     @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
     @Produces(MediaType.APPLICATION_JSON)
-    public Response depositMoney(
+    public void depositMoney(
             @FormParam("targetAccountId") @NotNull int targetAccountId,
-            @FormParam("amount") @NotNull double amount
+            @FormParam("amount") @NotNull long amount,
+            @HeaderParam(IDEMPOTENCY_KEY) String idempotencyKey,
+            @Suspended AsyncResponse asyncResponse
     ){
+        this.deposit(targetAccountId, amount, idempotencyKey, asyncResponse);
+    }
 
-        L.info(String.format("Depositing %f into account %s", amount, targetAccountId));
-
-        ValidationHelper.checkAccountActive(targetAccountId);
-        ValidationHelper.checkAmountPositive(amount);
-
-        BankController bankController = BankController.getInstance();
+    @POST
+    @Path("deposit")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public void depositMoney(
+            @NotNull JsonRequest body,
+            @HeaderParam(IDEMPOTENCY_KEY) String idempotencyKey,
+            @Suspended AsyncResponse asyncResponse
+    ){
+        this.deposit(body.getTargetAccountId(), body.getAmount(), idempotencyKey, asyncResponse);
+    }
 
-        Account targetAccount = bankController.getBank().getAccounts().get(targetAccountId);
+    private void deposit(final int targetAccountId, final long amount, String idempotencyKey, AsyncResponse asyncResponse){
 
-        synchronized (bankController) {
+        EventLog.info(L, "Depositing %s into account %s", amount, targetAccountId);
 
-            Transaction transaction = bankController.depositMoney(targetAccount, amount);
+        // the accounts of another shard are served by its node
+        ShardNode node = ShardNode.getInstance();
+        if (!node.getShards().isLocal(targetAccountId)) {
+            Form form = new Form().param("targetAccountId", String.valueOf(targetAccountId)).param("amount", String.valueOf(amount));
+            asyncResponse.resume(node.forward(node.getShards().shardOf(targetAccountId), "transaction/deposit", form, idempotencyKey));
+            return;
+        }
 
-            return Response.created(URI.create("transaction/" + transaction.getUuid())).entity(transaction).build();
+        new LedgerCommand.TransactionCommand(asyncResponse, idempotencyKey, "deposit", targetAccountId, amount) {
+            @Override
+            protected void check() {
+                ValidationHelper.checkAccountActive(targetAccountId);
+                ValidationHelper.checkAmountPositive(amount);
+            }
 
-        }
+            @Override
+            protected Transaction apply() {
+                return bankController.depositMoneyDeferred(targetAccountId, amount);
+            }
+        }.submit(targetAccountId);
     }
 
     @POST
     @Path("withdraw")
     @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
     @Produces(MediaType.APPLICATION_JSON)
-    public Response withdrawMoney(
+    public void withdrawMoney(
             @FormParam("sourceAccountId") @NotNull int sourceAccountId,
-            @FormParam("amount") @NotNull double amount
+            @FormParam("amount") @NotNull long amount,
+            @HeaderParam(IDEMPOTENCY_KEY) String idempotencyKey,
+            @Suspended AsyncResponse asyncResponse
     ){
-        L.info(String.format("Withdrawing %f from account %s", amount, sourceAccountId));
+        this.withdraw(sourceAccountId, amount, idempotencyKey, asyncResponse);
+    }
 
-        ValidationHelper.checkAccountActive(sourceAccountId);
-        ValidationHelper.checkAmountPositive(amount);
+    @POST
+    @Path("withdraw")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public void withdrawMoney(
+            @NotNull JsonRequest body,
+            @HeaderParam(IDEMPOTENCY_KEY) String idempotencyKey,
+            @Suspended AsyncResponse asyncResponse
+    ){
+        this.withdraw(body.getSourceAccountId(), body.getAmount(), idempotencyKey, asyncResponse);
+    }
+
+    private void withdraw(final int sourceAccountId, final long amount, String idempotencyKey, AsyncResponse asyncResponse){
+
+        EventLog.info(L, "Withdrawing %s from account %s", amount, sourceAccountId);
+
+        // the accounts of another shard are served by its node
+        ShardNode node = ShardNode.getInstance();
+        if (!node.getShards().isLocal(sourceAccountId)) {
+            Form form = new Form().param("sourceAccountId", String.valueOf(sourceAccountId)).param("amount", String.valueOf(amount));
+            asyncResponse.resume(node.forward(node.getShards().shardOf(sourceAccountId), "transaction/withdraw", form, idempotencyKey));
+            return;
+        }
+
+        new LedgerCommand.TransactionCommand(asyncResponse, idempotencyKey, "withdraw", sourceAccountId, amount) {
+            @Override
+            protected void check() {
+                ValidationHelper.checkAccountActive(sourceAccountId);
+                ValidationHelper.checkAmountPositive(amount);
+            }
+
+            @Override
+            protected Transaction apply() {
+                return bankController.withdrawMoneyDeferred(sourceAccountId, amount);
+            }
+        }.submit(sourceAccountId);
+    }
+
+    @POST
+    @Path("batch")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response applyBatch(@NotNull Batch batch, @HeaderParam(IDEMPOTENCY_KEY) String idempotencyKey){
+
+        // an explicit null mode is the default one, for the fingerprint of the key as well as for the response
+        Batch.BatchMode mode = batch.getMode() == null ? Batch.BatchMode.ATOMIC : batch.getMode();
+
+        return this.applyBatch(mode, batch.getOperations(), idempotencyKey);
+    }
+
+    @POST
+    @Path("batch")
+    @Consumes(APPLICATION_NDJSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response applyBatch(
+            @QueryParam("mode") @DefaultValue("ATOMIC") Batch.BatchMode mode,
+            @HeaderParam(IDEMPOTENCY_KEY) String idempotencyKey,
+            InputStream body
+    ) throws IOException {
+
+        List<BatchOperation> operations = new ArrayList<BatchOperation>();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+        String line;
+        int number = 0;
+        while ((line = reader.readLine()) != null) {
+            number++;
+            if (!line.trim().isEmpty()) {
+                ValidationHelper.checkBatchSize(operations.size() + 1, MAX_BATCH_OPERATIONS);
+                operations.add(BatchReader.readOperation(line, number));
+            }
+        }
+
+        return this.applyBatch(mode, operations, idempotencyKey);
+    }
+
+    /*
+     * The outcome of every operation is the id of its transaction, or its status negated if it failed, the same
+     * encoding as the idempotency keys, so a retry is answered from the key alone
+     */
+    private Response applyBatch(Batch.BatchMode mode, List<BatchOperation> operations, String idempotencyKey){
+
+        EventLog.info(L, "Applying batch of %s operations in %s mode", operations == null ? 0 : operations.size(), mode);
+
+        ValidationHelper.checkBatchSize(operations == null ? 0 : operations.size(), MAX_BATCH_OPERATIONS);
 
         BankController bankController = BankController.getInstance();
 
-        Account sourceAccount = bankController.getBank().getAccounts().get(sourceAccountId);
+        if (idempotencyKey != null) {
+            IdempotencyKeys.Entry original = bankController.reserveIdempotencyKey(idempotencyKey, fingerprint(mode, operations));
+            if (original != null) {
+                return batchResponse(mode, original.getOutcomes(), original.getErrors());
+            }
+        }
 
-        synchronized (bankController) {
+        int[] outcomes = new int[operations.size()];
+        String[] errors = null;
+
+        try {
+
+            if (mode == Batch.BatchMode.PER_ITEM) {
+
+                for (int i = 0; i < operations.size(); i++) {
+                    try {
+                        ValidationHelper.checkOperation(operations.get(i));
+                        outcomes[i] = bankController.applyOperation(operations.get(i)).getUuid();
+                    } catch (WebApplicationException e) {
+                        if (errors == null) {
+                            errors = new String[operations.size()];
+                        }
+                        outcomes[i] = -e.getResponse().getStatus();
+                        errors[i] = e.getMessage();
+                    }
+                }
+
+            } else {
+
+                for (int i = 0; i < operations.size(); i++) {
+                    try {
+                        ValidationHelper.checkOperation(operations.get(i));
+                    } catch (WebApplicationException e) {
+                        throw ValidationHelper.rejectedOperation(i, e);
+                    }
+                }
+
+                List<Transaction> transactions = bankController.applyAtomically(operations);
+                for (int i = 0; i < transactions.size(); i++) {
+                    outcomes[i] = transactions.get(i).getUuid();
+                }
+            }
 
-            if (sourceAccount.getBalance() < amount) {
-                String exception = String.format("Account %s does not have enough funds for this withdrawal", sourceAccountId);
-                L.warning(exception);
-                throw new WebApplicationException(exception, Response.Status.BAD_REQUEST);
+        } catch (RuntimeException e) {
+            if (idempotencyKey != null) {
+                bankController.releaseIdempotencyKey(idempotencyKey);
             }
+            throw e;
+        }
+
+        if (idempotencyKey != null) {
+            bankController.awaitDurable(bankController.completeIdempotencyKey(idempotencyKey, outcomes, errors));
+        }
+
+        return batchResponse(mode, outcomes, errors);
+    }
 
-            Transaction transaction = bankController.withdrawMoney(sourceAccount, amount);
+    private static Response batchResponse(Batch.BatchMode mode, int[] outcomes, String[] errors){
 
-            return Response.created(URI.create("transaction/" + transaction.getUuid())).entity(transaction).build();
+        BatchResult result = new BatchResult();
+        result.setMode(mode);
+
+        for (int i = 0; i < outcomes.length; i++) {
+            BatchResult.OperationResult operationResult = new BatchResult.OperationResult();
+            if (outcomes[i] >= 0) {
+                operationResult.setStatus(Response.Status.CREATED.getStatusCode());
+                operationResult.setTransactionId(outcomes[i]);
+            } else {
+                operationResult.setStatus(-outcomes[i]);
+                operationResult.setError(errors[i]);
+            }
+            result.getResults().add(operationResult);
         }
+
+        // every operation of an atomic batch was created, a batch applied per item reports each one
+        return Response.status(mode == Batch.BatchMode.PER_ITEM ? Response.Status.OK : Response.Status.CREATED)
+                .entity(result).build();
     }
 
+    private static int fingerprint(Batch.BatchMode mode, List<BatchOperation> operations){
+
+        int fingerprint = Arrays.hashCode(new Object[]{"batch", mode.name()});
+
+        for (BatchOperation operation : operations) {
+            fingerprint = 31 * fingerprint + Arrays.hashCode(new Object[]{
+                    operation == null || operation.getType() == null ? null : operation.getType().name(),
+                    operation == null ? null : operation.getSourceAccountId(),
+                    operation == null ? null : operation.getTargetAccountId(),
+                    operation == null ? null : operation.getAmount(),
+                    operation == null ? null : operation.getMessage()
+            });
+        }
+
+        return fingerprint;
+    }
 
 }
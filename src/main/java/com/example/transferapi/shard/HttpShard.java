@@ -0,0 +1,137 @@
+package com.example.transferapi.shard;
+
+import com.example.transferapi.model.Transaction;
+import com.example.transferapi.resources.TransactionJsonProvider;
+import com.example.transferapi.resources.TransactionResource;
+import org.glassfish.jersey.client.ClientProperties;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.Invocation;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.Form;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.net.URI;
+
+/**
+ * The shard of another node, called over HTTP at its {@code shard/transfers} endpoints.
+ */
+public class HttpShard implements ShardClient {
+
+    public static final String TIMEOUT_PROPERTY = "transferapi.shard.timeoutMillis";
+
+    private final URI node;
+
+    private final Client client;
+
+    private final WebTarget transfers;
+
+    public HttpShard(URI node) {
+
+        int timeout = Integer.getInteger(TIMEOUT_PROPERTY, 5000);
+
+        this.node = node;
+        this.client = ClientBuilder.newClient()
+                .register(TransactionJsonProvider.class)
+                .property(ClientProperties.CONNECT_TIMEOUT, timeout)
+                .property(ClientProperties.READ_TIMEOUT, timeout);
+        this.transfers = client.target(node).path("shard/transfers");
+    }
+
+    @Override
+    public Transaction debit(String transferId, int accountId, long amount, String message) {
+        return this.read(this.post(transferId, "debit", leg(accountId, amount, message)), Transaction.class);
+    }
+
+    @Override
+    public void credit(String transferId, int accountId, long amount, String message) {
+        this.read(this.post(transferId, "credit", leg(accountId, amount, message)), null);
+    }
+
+    @Override
+    public Transaction commit(String transferId) {
+        return this.read(this.post(transferId, "commit", new Form()), Transaction.class);
+    }
+
+    @Override
+    public void abort(String transferId) {
+        this.read(this.post(transferId, "abort", new Form()), null);
+    }
+
+    @Override
+    public ShardCoordinator.Decision decision(String transferId) {
+        Response response = transfers.path(transferId).request(MediaType.TEXT_PLAIN).get();
+        return ShardCoordinator.Decision.valueOf(this.read(response, String.class).trim());
+    }
+
+    /**
+     * Sends a request to the node and returns its response as it is, with the body read, so that it can be relayed.
+     * A node that cannot be reached is answered with 503.
+     */
+    public Response forward(String path, Form form, String idempotencyKey) {
+
+        Invocation.Builder request = client.target(node).path(path).request(MediaType.APPLICATION_JSON);
+
+        if (idempotencyKey != null) {
+            request.header(TransactionResource.IDEMPOTENCY_KEY, idempotencyKey);
+        }
+
+        Response response;
+        try {
+            response = request.post(Entity.form(form));
+        } catch (ProcessingException e) {
+            throw new WebApplicationException("Cannot reach " + node + ": " + e.getMessage(), Response.Status.SERVICE_UNAVAILABLE);
+        }
+
+        try {
+            Response.ResponseBuilder relayed = Response.status(response.getStatus())
+                    .location(response.getLocation())
+                    .tag(response.getEntityTag());
+            if (response.hasEntity()) {
+                relayed.entity(response.readEntity(String.class)).type(response.getMediaType());
+            }
+            return relayed.build();
+        } finally {
+            response.close();
+        }
+    }
+
+    public void close() {
+        client.close();
+    }
+
+    private Response post(String transferId, String step, Form form) {
+        return transfers.path(transferId).path(step).request(MediaType.APPLICATION_JSON).post(Entity.form(form));
+    }
+
+    private <T> T read(Response response, Class<T> type) {
+
+        try {
+
+            if (response.getStatusInfo().getFamily() != Response.Status.Family.SUCCESSFUL) {
+                throw new WebApplicationException("Shard at " + node + " answered " + response.getStatus(), response.getStatus());
+            }
+
+            return type == null ? null : response.readEntity(type);
+
+        } finally {
+            response.close();
+        }
+    }
+
+    private static Form leg(int accountId, long amount, String message) {
+
+        Form form = new Form();
+        form.param("accountId", String.valueOf(accountId));
+        form.param("amount", String.valueOf(amount));
+        if (message != null) {
+            form.param("message", message);
+        }
+
+        return form;
+    }
+}
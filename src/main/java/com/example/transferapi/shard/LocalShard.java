@@ -0,0 +1,43 @@
+package com.example.transferapi.shard;
+
+import com.example.transferapi.model.Transaction;
+
+/**
+ * The shard of this node, called directly.
+ */
+public class LocalShard implements ShardClient {
+
+    private final ShardParticipant participant;
+
+    private final ShardCoordinator coordinator;
+
+    public LocalShard(ShardParticipant participant, ShardCoordinator coordinator) {
+        this.participant = participant;
+        this.coordinator = coordinator;
+    }
+
+    @Override
+    public Transaction debit(String transferId, int accountId, long amount, String message) {
+        return participant.debit(transferId, accountId, amount, message);
+    }
+
+    @Override
+    public void credit(String transferId, int accountId, long amount, String message) {
+        participant.credit(transferId, accountId, amount, message);
+    }
+
+    @Override
+    public Transaction commit(String transferId) {
+        return participant.commit(transferId);
+    }
+
+    @Override
+    public void abort(String transferId) {
+        participant.abort(transferId);
+    }
+
+    @Override
+    public ShardCoordinator.Decision decision(String transferId) {
+        return coordinator.decision(transferId);
+    }
+}
@@ -0,0 +1,24 @@
+package com.example.transferapi.shard;
+
+import com.example.transferapi.model.Transaction;
+
+/**
+ * The operations of the two-phase transfers on a shard, as seen by the other shards. Refusals are thrown as
+ * {@link javax.ws.rs.WebApplicationException}s with the status the shard answered; any other exception means the
+ * outcome is unknown.
+ */
+public interface ShardClient {
+
+    Transaction debit(String transferId, int accountId, long amount, String message);
+
+    void credit(String transferId, int accountId, long amount, String message);
+
+    Transaction commit(String transferId);
+
+    void abort(String transferId);
+
+    /**
+     * @return the decision of the coordinator of a transfer
+     */
+    ShardCoordinator.Decision decision(String transferId);
+}
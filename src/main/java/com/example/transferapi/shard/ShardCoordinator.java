@@ -0,0 +1,325 @@
+package com.example.transferapi.shard;
+
+import com.example.transferapi.controller.BankController;
+import com.example.transferapi.controller.ValidationHelper;
+import com.example.transferapi.logging.EventLog;
+import com.example.transferapi.model.ShardTransfers;
+import com.example.transferapi.model.Transaction;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Runs the transfers between accounts of different shards, with two-phase commit.
+ *
+ * The node that receives the transfer coordinates it: it prepares the debit leg on the shard of the source account,
+ * then the credit leg on the shard of the target account, and commits both once both are prepared. A leg that is
+ * refused aborts the transfer and the refusal is returned to the client; a leg whose outcome is unknown, because
+ * its shard could not be reached, aborts it too, and the client is answered with 503. Once decided, a transfer is
+ * delivered to both legs; the deliveries that fail are retried by {@link #recover}, and the client is answered
+ * before they succeed.
+ *
+ * Participants with legs in doubt ask the coordinator for its {@link #decision}. Transfers are only decided here,
+ * and a commit is recorded in the {@link ShardTransfers} of the bank and durable before any leg can learn it, so a
+ * restarted coordinator rebuilds the commits it has not delivered yet. A transfer it does not know, because it was
+ * aborted or forgotten by {@link #purge}, was never committed and is presumed aborted.
+ */
+public class ShardCoordinator {
+
+    private final static Logger L = Logger.getLogger(ShardCoordinator.class.getName());
+
+    public enum Decision {
+        PREPARING, COMMITTED, ABORTED
+    }
+
+    /**
+     * Outcome of a committed transfer.
+     */
+    public static class Outcome {
+
+        private final String transferId;
+
+        private final Transaction transaction;
+
+        private final boolean settled;
+
+        Outcome(String transferId, Transaction transaction, boolean settled) {
+            this.transferId = transferId;
+            this.transaction = transaction;
+            this.settled = settled;
+        }
+
+        public String getTransferId() {
+            return transferId;
+        }
+
+        /**
+         * @return the transfer, with the id and the timestamp of its debit on the shard of the source account, and
+         * the balances of the target account once the credit is delivered
+         */
+        public Transaction getTransaction() {
+            return transaction;
+        }
+
+        /**
+         * @return whether both legs are committed, otherwise the credit is left to the recovery
+         */
+        public boolean isSettled() {
+            return settled;
+        }
+    }
+
+    private static final class Transfer {
+
+        final int sourceShard;
+
+        final int targetShard;
+
+        volatile Decision decision = Decision.PREPARING;
+
+        boolean debitDelivered;
+
+        boolean creditDelivered;
+
+        Transaction settlement;
+
+        long delivered;
+
+        Transfer(int sourceShard, int targetShard) {
+            this.sourceShard = sourceShard;
+            this.targetShard = targetShard;
+        }
+
+        boolean isDelivered() {
+            return debitDelivered && creditDelivered;
+        }
+    }
+
+    private final ShardMap shards;
+
+    private final ShardClient[] clients;
+
+    private final BankController bankController;
+
+    // seeded with the time so the ids of a restarted coordinator are not the ones it forgot
+    private final AtomicLong sequence = new AtomicLong(System.currentTimeMillis() * 1000);
+
+    private final ConcurrentMap<String, Transfer> transfers = new ConcurrentHashMap<String, Transfer>();
+
+    /**
+     * @param clients the client of every shard, by index
+     */
+    public ShardCoordinator(ShardMap shards, ShardClient[] clients, BankController bankController) {
+
+        this.shards = shards;
+        this.clients = clients;
+        this.bankController = bankController;
+
+        for (ShardTransfers.Decision record : bankController.getBank().getShardTransfers().getDecisions()) {
+            Transfer transfer = new Transfer(record.getSourceShard(), record.getTargetShard());
+            transfer.decision = Decision.COMMITTED;
+            transfer.debitDelivered = record.isDelivered();
+            transfer.creditDelivered = record.isDelivered();
+            transfer.delivered = System.nanoTime();
+            transfers.put(record.getTransferId(), transfer);
+        }
+    }
+
+    /**
+     * @return the shard that coordinates a transfer, -1 if the id is not one of a transfer
+     */
+    public static int coordinatorOf(String transferId) {
+
+        int separator = transferId.indexOf('-');
+
+        try {
+            return separator < 0 ? -1 : Integer.parseInt(transferId.substring(0, separator));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public Outcome transfer(int sourceAccountId, int targetAccountId, long amount, String message) {
+
+        ValidationHelper.checkAmountPositive(amount);
+        ValidationHelper.checkMessage(message);
+
+        if (shards.shardOf(sourceAccountId) == shards.shardOf(targetAccountId)) {
+            throw new IllegalArgumentException("Accounts " + sourceAccountId + " and " + targetAccountId + " are on the same shard");
+        }
+
+        String transferId = shards.getIndex() + "-" + sequence.incrementAndGet();
+        Transfer transfer = new Transfer(shards.shardOf(sourceAccountId), shards.shardOf(targetAccountId));
+        transfers.put(transferId, transfer);
+
+        Transaction reservation;
+
+        try {
+            reservation = clients[transfer.sourceShard].debit(transferId, sourceAccountId, amount, message);
+            clients[transfer.targetShard].credit(transferId, targetAccountId, amount, message);
+        } catch (RuntimeException e) {
+            throw this.abort(transferId, transfer, e);
+        }
+
+        // durable before a leg can learn it, a restart must not presume the abort of a transfer a leg committed
+        bankController.awaitDurable(bankController.recordShardDecision(new ShardTransfers.Decision(transferId,
+                transfer.sourceShard, transfer.targetShard, false)));
+
+        transfer.decision = Decision.COMMITTED;
+        this.deliver(transferId, transfer);
+
+        Transaction transaction = new Transaction();
+        transaction.setUuid(reservation.getUuid());
+        transaction.setTimestamp(reservation.getTimestamp());
+        transaction.setSourceAccount(sourceAccountId);
+        transaction.setTargetAccount(targetAccountId);
+        transaction.setAmount(amount);
+        transaction.setMessage(message);
+        transaction.setSourceAccountStartBalance(reservation.getSourceAccountStartBalance());
+        transaction.setSourceAccountEndBalance(reservation.getSourceAccountEndBalance());
+
+        synchronized (transfer) {
+            if (transfer.settlement != null) {
+                transaction.setTargetAccountStartBalance(transfer.settlement.getTargetAccountStartBalance());
+                transaction.setTargetAccountEndBalance(transfer.settlement.getTargetAccountEndBalance());
+            }
+            return new Outcome(transferId, transaction, transfer.isDelivered());
+        }
+    }
+
+    /*
+     * Both legs are aborted, whichever failed: a leg that was refused holds nothing, and a leg whose outcome is
+     * unknown may have been prepared
+     */
+    private WebApplicationException abort(String transferId, Transfer transfer, RuntimeException cause) {
+
+        transfer.decision = Decision.ABORTED;
+        this.deliver(transferId, transfer);
+
+        if (cause instanceof WebApplicationException && ((WebApplicationException) cause).getResponse().getStatus() < 500) {
+            return (WebApplicationException) cause;
+        }
+
+        String message = String.format("Transfer %s could not be prepared and is aborted: %s", transferId, cause.getMessage());
+        EventLog.warning(L, "Transfer %s could not be prepared and is aborted: %s", transferId, cause.getMessage());
+        return new WebApplicationException(message, Response.Status.SERVICE_UNAVAILABLE);
+    }
+
+    /*
+     * Delivers the decision to the legs that have not acknowledged it, keeping the deposit of the credit leg
+     */
+    private void deliver(String transferId, Transfer transfer) {
+
+        synchronized (transfer) {
+
+            boolean commit = transfer.decision == Decision.COMMITTED;
+            boolean delivered = transfer.isDelivered();
+
+            try {
+                if (!transfer.debitDelivered) {
+                    if (commit) {
+                        clients[transfer.sourceShard].commit(transferId);
+                    } else {
+                        clients[transfer.sourceShard].abort(transferId);
+                    }
+                    transfer.debitDelivered = true;
+                }
+            } catch (RuntimeException e) {
+                EventLog.warning(L, "Cannot deliver %s of transfer %s to shard %s: %s", transfer.decision, transferId,
+                        transfer.sourceShard, e.getMessage());
+            }
+
+            try {
+                if (!transfer.creditDelivered) {
+                    if (commit) {
+                        transfer.settlement = clients[transfer.targetShard].commit(transferId);
+                    } else {
+                        clients[transfer.targetShard].abort(transferId);
+                    }
+                    transfer.creditDelivered = true;
+                }
+            } catch (RuntimeException e) {
+                EventLog.warning(L, "Cannot deliver %s of transfer %s to shard %s: %s", transfer.decision, transferId,
+                        transfer.targetShard, e.getMessage());
+            }
+
+            if (!delivered && transfer.isDelivered()) {
+                transfer.delivered = System.nanoTime();
+                if (commit) {
+                    // not awaited, a delivery that is lost with the tail of the log is only repeated
+                    bankController.recordShardDecision(new ShardTransfers.Decision(transferId, transfer.sourceShard,
+                            transfer.targetShard, true));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the decision on a transfer coordinated here, aborted if it is not known
+     */
+    public Decision decision(String transferId) {
+
+        Transfer transfer = transfers.get(transferId);
+
+        return transfer == null ? Decision.ABORTED : transfer.decision;
+    }
+
+    /**
+     * @return the number of decided transfers that some leg has not acknowledged yet
+     */
+    public int pending() {
+
+        int pending = 0;
+
+        for (Transfer transfer : transfers.values()) {
+            synchronized (transfer) {
+                if (transfer.decision != Decision.PREPARING && !transfer.isDelivered()) {
+                    pending++;
+                }
+            }
+        }
+
+        return pending;
+    }
+
+    /**
+     * Delivers the decisions that some leg has not acknowledged yet.
+     */
+    public void recover() {
+
+        for (Map.Entry<String, Transfer> entry : transfers.entrySet()) {
+
+            Transfer transfer = entry.getValue();
+
+            if (transfer.decision != Decision.PREPARING) {
+                this.deliver(entry.getKey(), transfer);
+            }
+        }
+    }
+
+    /**
+     * Forgets the transfers that both legs acknowledged for longer than the given time. Neither leg can be in doubt
+     * anymore, so the presumed abort can only answer a message that was delayed in the network.
+     */
+    public void purge(long deliveredNanos) {
+
+        long now = System.nanoTime();
+
+        for (Iterator<Map.Entry<String, Transfer>> iterator = transfers.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<String, Transfer> entry = iterator.next();
+            Transfer transfer = entry.getValue();
+            synchronized (transfer) {
+                if (transfer.isDelivered() && now - transfer.delivered >= deliveredNanos) {
+                    bankController.getBank().getShardTransfers().removeDecision(entry.getKey());
+                    iterator.remove();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.example.transferapi.shard;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Which node owns which accounts when the ledger is split across several instances.
+ *
+ * Accounts are spread by uuid: an account belongs to shard {@code uuid % count}, and every node creates the accounts
+ * of its own shard only, so uuids never collide and any node knows the owner of any account without asking. The
+ * nodes are configured with the same list of base URIs, in shard order, and their own index in it.
+ */
+public class ShardMap {
+
+    public static final String INDEX_PROPERTY = "transferapi.shard.index";
+
+    public static final String NODES_PROPERTY = "transferapi.shard.nodes";
+
+    private static final ShardMap SINGLE = new ShardMap(0, Collections.<URI>singletonList(null));
+
+    private final int index;
+
+    private final List<URI> nodes;
+
+    public ShardMap(int index, List<URI> nodes) {
+
+        if (nodes.isEmpty() || index < 0 || index >= nodes.size()) {
+            throw new IllegalArgumentException("Shard " + index + " of " + nodes.size() + " nodes");
+        }
+
+        this.index = index;
+        this.nodes = nodes;
+    }
+
+    /**
+     * @return the map of a ledger that is not sharded
+     */
+    public static ShardMap single() {
+        return SINGLE;
+    }
+
+    /**
+     * @return the map given by the system properties, a single shard when no nodes are given
+     */
+    public static ShardMap fromSystemProperties() {
+
+        String nodes = System.getProperty(NODES_PROPERTY);
+
+        if (nodes == null || nodes.trim().isEmpty()) {
+            return SINGLE;
+        }
+
+        List<URI> uris = new ArrayList<URI>();
+        for (String node : nodes.split(",")) {
+            String uri = node.trim();
+            uris.add(URI.create(uri.endsWith("/") ? uri : uri + "/"));
+        }
+
+        return new ShardMap(Integer.getInteger(INDEX_PROPERTY, 0), uris);
+    }
+
+    public boolean isSharded() {
+        return nodes.size() > 1;
+    }
+
+    /**
+     * @return the shard of this node
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    public int getCount() {
+        return nodes.size();
+    }
+
+    /**
+     * @return the base URI of the node of a shard
+     */
+    public URI getNode(int shard) {
+        return nodes.get(shard);
+    }
+
+    /**
+     * @return the shard that owns an account; ids that cannot be an account are left to this node to refuse
+     */
+    public int shardOf(int accountId) {
+        return accountId < 0 ? index : accountId % nodes.size();
+    }
+
+    public boolean isLocal(int accountId) {
+        return this.shardOf(accountId) == index;
+    }
+}
@@ -0,0 +1,146 @@
+package com.example.transferapi.shard;
+
+import com.example.transferapi.controller.BankController;
+
+import javax.ws.rs.core.Form;
+import javax.ws.rs.core.Response;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The shard of this instance: its place in the {@link ShardMap}, the participant holding the legs of the transfers
+ * of its accounts, the coordinator of the transfers it receives and the clients of the other nodes.
+ *
+ * When the ledger is sharded, both sides of the two-phase transfers are recovered every
+ * {@code transferapi.shard.recoverySeconds}: the coordinator delivers the decisions that were not acknowledged, and
+ * the participant asks about the legs left in doubt for longer than that. Completed transfers are forgotten after
+ * {@code transferapi.shard.retentionSeconds}. Both sides are rebuilt from the recovered bank when the node starts, so
+ * the first recovery also finishes the transfers a restart interrupted.
+ */
+public class ShardNode {
+
+    private final static Logger L = Logger.getLogger(ShardNode.class.getName());
+
+    public static final String RECOVERY_PROPERTY = "transferapi.shard.recoverySeconds";
+
+    public static final String RETENTION_PROPERTY = "transferapi.shard.retentionSeconds";
+
+    private final ShardMap shards;
+
+    private final ShardParticipant participant;
+
+    private final ShardClient[] clients;
+
+    private final HttpShard[] nodes;
+
+    private final ShardCoordinator coordinator;
+
+    private ScheduledExecutorService recovery;
+
+    public ShardNode(ShardMap shards, BankController bankController) {
+
+        this.shards = shards;
+        this.participant = new ShardParticipant(bankController);
+        this.clients = new ShardClient[shards.getCount()];
+        this.nodes = new HttpShard[shards.getCount()];
+        this.coordinator = new ShardCoordinator(shards, clients, bankController);
+
+        for (int shard = 0; shard < shards.getCount(); shard++) {
+            if (shard == shards.getIndex()) {
+                clients[shard] = new LocalShard(participant, coordinator);
+            } else {
+                nodes[shard] = new HttpShard(shards.getNode(shard));
+                clients[shard] = nodes[shard];
+            }
+        }
+    }
+
+    public ShardMap getShards() {
+        return shards;
+    }
+
+    public ShardParticipant getParticipant() {
+        return participant;
+    }
+
+    public ShardCoordinator getCoordinator() {
+        return coordinator;
+    }
+
+    /**
+     * Sends a request for the accounts of another shard to its node and returns the response of the node.
+     */
+    public Response forward(int shard, String path, Form form, String idempotencyKey) {
+        return nodes[shard].forward(path, form, idempotencyKey);
+    }
+
+    /**
+     * Runs both sides of the recovery once.
+     */
+    public void recover(long inDoubtNanos, long retentionNanos) {
+        coordinator.recover();
+        participant.recover(clients, inDoubtNanos);
+        coordinator.purge(retentionNanos);
+        participant.purge(retentionNanos);
+    }
+
+    private void scheduleRecovery(final long intervalSeconds, final long retentionSeconds) {
+
+        recovery = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "shard-recovery");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        recovery.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    recover(TimeUnit.SECONDS.toNanos(intervalSeconds), TimeUnit.SECONDS.toNanos(retentionSeconds));
+                } catch (RuntimeException e) {
+                    L.log(Level.SEVERE, "Shard recovery failed", e);
+                }
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public void shutdown() {
+
+        if (recovery != null) {
+            recovery.shutdownNow();
+        }
+
+        for (HttpShard node : nodes) {
+            if (node != null) {
+                node.close();
+            }
+        }
+    }
+
+    //Singleton
+    private static volatile ShardNode instance;
+
+    public static ShardNode getInstance(){
+
+        if(instance == null){
+            synchronized (ShardNode.class) {
+                if (instance == null) {
+                    ShardNode node = new ShardNode(ShardMap.fromSystemProperties(), BankController.getInstance());
+                    if (node.shards.isSharded()) {
+                        node.scheduleRecovery(Long.getLong(RECOVERY_PROPERTY, 5), Long.getLong(RETENTION_PROPERTY, 3600));
+                    }
+                    instance = node;
+                }
+            }
+        }
+
+        return instance;
+    }
+}
@@ -0,0 +1,393 @@
+package com.example.transferapi.shard;
+
+import com.example.transferapi.controller.BankController;
+import com.example.transferapi.controller.ValidationHelper;
+import com.example.transferapi.logging.EventLog;
+import com.example.transferapi.model.AccountStore;
+import com.example.transferapi.model.ShardTransfers;
+import com.example.transferapi.model.Transaction;
+import com.example.transferapi.model.TransactionJournal;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+/**
+ * The legs of the cross-shard transfers that touch the accounts of this node.
+ *
+ * A transfer between two shards is prepared on both before the coordinator decides it. Preparing the debit leg
+ * withdraws the amount from the source account into a reservation, durably, so the money cannot be spent twice
+ * while the transfer is in doubt; preparing the credit leg only checks that the target account can take it.
+ * Committing the credit leg deposits the amount, aborting the debit leg gives the reservation back. Every step can
+ * be repeated, so the coordinator retries until it is acknowledged, and an abort that comes before the prepare
+ * leaves the leg aborted, so the late prepare is refused.
+ *
+ * Every step is recorded in the {@link ShardTransfers} of the bank and durable before it is acknowledged; a step
+ * that moves money is logged along with its transaction. A node that restarts rebuilds its legs from there, and the
+ * legs it finds prepared are in doubt until their coordinator is asked about them.
+ */
+public class ShardParticipant {
+
+    private final static Logger L = Logger.getLogger(ShardParticipant.class.getName());
+
+    public enum State {
+        PREPARED, COMMITTED, ABORTED
+    }
+
+    private static final class Leg {
+
+        final boolean debit;
+
+        final int accountId;
+
+        final long amount;
+
+        final String message;
+
+        final long created = System.nanoTime();
+
+        // null while the leg is being prepared
+        State state;
+
+        Transaction reservation;
+
+        Transaction settlement;
+
+        long completed;
+
+        Leg(boolean debit, int accountId, long amount, String message) {
+            this.debit = debit;
+            this.accountId = accountId;
+            this.amount = amount;
+            this.message = message;
+        }
+
+        boolean isSame(Leg other) {
+            return debit == other.debit && accountId == other.accountId && amount == other.amount;
+        }
+
+        void complete(State state) {
+            this.state = state;
+            this.completed = System.nanoTime();
+        }
+
+        ShardTransfers.Leg record(String transferId, State state, Transaction reservation, Transaction settlement) {
+            return new ShardTransfers.Leg(transferId, ShardTransfers.State.valueOf(state.name()), debit, accountId,
+                    amount, message, reservation == null ? -1 : reservation.getUuid(),
+                    settlement == null ? -1 : settlement.getUuid());
+        }
+    }
+
+    private final BankController bankController;
+
+    private final ConcurrentMap<String, Leg> legs = new ConcurrentHashMap<String, Leg>();
+
+    public ShardParticipant(BankController bankController) {
+
+        this.bankController = bankController;
+
+        TransactionJournal journal = bankController.getBank().getTransactions();
+
+        for (ShardTransfers.Leg record : bankController.getBank().getShardTransfers().getLegs()) {
+            Leg leg = new Leg(record.isDebit(), record.getAccountId(), record.getAmount(), record.getMessage());
+            leg.reservation = record.getReservation() < 0 ? null : journal.get(record.getReservation());
+            leg.settlement = record.getSettlement() < 0 ? null : journal.get(record.getSettlement());
+            if (record.getState() == ShardTransfers.State.PREPARED) {
+                leg.state = State.PREPARED;
+            } else {
+                leg.complete(State.valueOf(record.getState().name()));
+            }
+            legs.put(record.getTransferId(), leg);
+        }
+    }
+
+    /**
+     * Prepares the debit leg of a transfer, reserving the amount.
+     *
+     * @return the withdrawal of the reservation, once durable
+     */
+    public Transaction debit(final String transferId, int accountId, long amount, String message) {
+
+        final Leg leg = new Leg(true, accountId, amount, message);
+
+        synchronized (leg) {
+
+            Leg existing = legs.putIfAbsent(transferId, leg);
+
+            if (existing != null) {
+                return prepared(transferId, existing, leg);
+            }
+
+            try {
+
+                AccountStore accounts = bankController.getBank().getAccounts();
+                ValidationHelper.checkAmountPositive(amount);
+                ValidationHelper.checkAccountExists(accounts, accountId);
+
+                leg.reservation = bankController.awaitDurable(bankController.withdrawMoneyDeferred(accountId, amount,
+                        reservation(transferId, message), new TransactionJournal.Index() {
+                            @Override
+                            public void add(Transaction reservation) {
+                                bankController.recordShardLeg(leg.record(transferId, State.PREPARED, reservation, null));
+                            }
+                        }));
+                leg.state = State.PREPARED;
+
+            } catch (RuntimeException e) {
+                leg.complete(State.ABORTED);
+                throw e;
+            }
+
+            return leg.reservation;
+        }
+    }
+
+    /**
+     * Prepares the credit leg of a transfer: the target account must be able to take the amount, which is only
+     * deposited on commit.
+     */
+    public void credit(String transferId, int accountId, long amount, String message) {
+
+        Leg leg = new Leg(false, accountId, amount, message);
+
+        synchronized (leg) {
+
+            Leg existing = legs.putIfAbsent(transferId, leg);
+
+            if (existing != null) {
+                prepared(transferId, existing, leg);
+                return;
+            }
+
+            try {
+
+                AccountStore accounts = bankController.getBank().getAccounts();
+                ValidationHelper.checkAmountPositive(amount);
+                ValidationHelper.checkAccountExists(accounts, accountId);
+                ValidationHelper.checkAccountActive(accounts, accountId);
+                ValidationHelper.checkBalanceLimit(accountId, accounts.getBalance(accountId), amount);
+
+                bankController.awaitDurable(bankController.recordShardLeg(leg.record(transferId, State.PREPARED, null, null)));
+                leg.state = State.PREPARED;
+
+            } catch (RuntimeException e) {
+                leg.complete(State.ABORTED);
+                throw e;
+            }
+        }
+    }
+
+    /*
+     * A repeated prepare is answered like the first one, as long as it is for the same leg
+     */
+    private static Transaction prepared(String transferId, Leg existing, Leg repeat) {
+
+        synchronized (existing) {
+
+            if (existing.state == State.ABORTED) {
+                throw conflict("Transfer %s is aborted", transferId);
+            }
+
+            if (!existing.isSame(repeat)) {
+                throw conflict("Transfer %s is already prepared with other parameters", transferId);
+            }
+
+            return existing.reservation;
+        }
+    }
+
+    /**
+     * Commits a prepared leg, depositing the amount for a credit leg.
+     *
+     * @return the withdrawal of a debit leg or the deposit of a credit leg
+     */
+    public Transaction commit(final String transferId) {
+
+        final Leg leg = legs.get(transferId);
+
+        if (leg == null) {
+            EventLog.warning(L, "Transfer %s is unknown", transferId);
+            throw new WebApplicationException("Transfer " + transferId + " is unknown", Response.Status.NOT_FOUND);
+        }
+
+        synchronized (leg) {
+
+            if (leg.state == State.ABORTED) {
+                throw conflict("Transfer %s is aborted", transferId);
+            }
+
+            if (leg.state == State.PREPARED) {
+                if (leg.debit) {
+                    bankController.awaitDurable(bankController.recordShardLeg(leg.record(transferId, State.COMMITTED,
+                            leg.reservation, null)));
+                } else {
+                    leg.settlement = bankController.awaitDurable(bankController.settleDeferred(leg.accountId, leg.amount,
+                            leg.message, new TransactionJournal.Index() {
+                                @Override
+                                public void add(Transaction settlement) {
+                                    bankController.recordShardLeg(leg.record(transferId, State.COMMITTED, null, settlement));
+                                }
+                            }));
+                }
+                leg.complete(State.COMMITTED);
+            }
+
+            return leg.debit ? leg.reservation : leg.settlement;
+        }
+    }
+
+    /**
+     * Aborts a leg, giving the reservation of a debit leg back. A leg that is not known yet is aborted in advance.
+     */
+    public void abort(final String transferId) {
+
+        Leg tombstone = new Leg(false, -1, 0, null);
+
+        synchronized (tombstone) {
+            tombstone.complete(State.ABORTED);
+            if (legs.putIfAbsent(transferId, tombstone) == null) {
+                bankController.awaitDurable(bankController.recordShardLeg(tombstone.record(transferId, State.ABORTED,
+                        null, null)));
+                return;
+            }
+        }
+
+        final Leg leg = legs.get(transferId);
+
+        if (leg == null) {
+            // purged since, it was completed long ago
+            return;
+        }
+
+        synchronized (leg) {
+
+            if (leg.state == State.COMMITTED) {
+                throw conflict("Transfer %s is committed", transferId);
+            }
+
+            if (leg.state == State.PREPARED) {
+                if (leg.debit) {
+                    bankController.awaitDurable(bankController.settleDeferred(leg.accountId, leg.amount,
+                            "Release of reservation for transfer " + transferId + ": " + leg.message,
+                            new TransactionJournal.Index() {
+                                @Override
+                                public void add(Transaction release) {
+                                    bankController.recordShardLeg(leg.record(transferId, State.ABORTED,
+                                            leg.reservation, release));
+                                }
+                            }));
+                } else {
+                    bankController.awaitDurable(bankController.recordShardLeg(leg.record(transferId, State.ABORTED,
+                            null, null)));
+                }
+                leg.complete(State.ABORTED);
+            }
+        }
+    }
+
+    /**
+     * @return the state of a leg, null if it is unknown or still being prepared
+     */
+    public State getState(String transferId) {
+
+        Leg leg = legs.get(transferId);
+
+        if (leg == null) {
+            return null;
+        }
+
+        synchronized (leg) {
+            return leg.state;
+        }
+    }
+
+    /**
+     * @return the transfers prepared here for longer than the given time and not decided yet
+     */
+    public List<String> inDoubt(long preparedNanos) {
+
+        List<String> inDoubt = new ArrayList<String>();
+        long now = System.nanoTime();
+
+        for (Map.Entry<String, Leg> entry : legs.entrySet()) {
+            Leg leg = entry.getValue();
+            synchronized (leg) {
+                if (leg.state == State.PREPARED && now - leg.created >= preparedNanos) {
+                    inDoubt.add(entry.getKey());
+                }
+            }
+        }
+
+        return inDoubt;
+    }
+
+    /**
+     * Asks the coordinators of the in-doubt transfers for their decision and applies it. A coordinator that cannot
+     * be reached, or has not decided yet, is asked again on the next call.
+     *
+     * @param coordinators the client of every shard, by index
+     */
+    public void recover(ShardClient[] coordinators, long preparedNanos) {
+
+        for (String transferId : this.inDoubt(preparedNanos)) {
+
+            int coordinator = ShardCoordinator.coordinatorOf(transferId);
+
+            if (coordinator < 0 || coordinator >= coordinators.length) {
+                continue;
+            }
+
+            try {
+                switch (coordinators[coordinator].decision(transferId)) {
+                    case COMMITTED:
+                        this.commit(transferId);
+                        break;
+                    case ABORTED:
+                        this.abort(transferId);
+                        break;
+                    default:
+                        break;
+                }
+            } catch (RuntimeException e) {
+                EventLog.warning(L, "Cannot recover transfer %s: %s", transferId, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Forgets the legs completed for longer than the given time; a late message about them is answered as if they
+     * were never prepared.
+     */
+    public void purge(long completedNanos) {
+
+        long now = System.nanoTime();
+
+        for (Iterator<Map.Entry<String, Leg>> iterator = legs.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<String, Leg> entry = iterator.next();
+            Leg leg = entry.getValue();
+            synchronized (leg) {
+                if ((leg.state == State.COMMITTED || leg.state == State.ABORTED) && now - leg.completed >= completedNanos) {
+                    // while the leg is still known here, so that no new prepare of the transfer is recorded meanwhile
+                    bankController.getBank().getShardTransfers().removeLeg(entry.getKey());
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    private static String reservation(String transferId, String message) {
+        return "Reservation for transfer " + transferId + ": " + message;
+    }
+
+    private static WebApplicationException conflict(String format, String transferId) {
+        String message = String.format(format, transferId);
+        EventLog.warning(L, format, transferId);
+        return new WebApplicationException(message, Response.Status.CONFLICT);
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.transferapi.binary;
+
+import com.example.transferapi.controller.BankController;
+import com.example.transferapi.model.Account;
+import com.example.transferapi.model.Transaction;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class BinaryServerTest {
+
+    private static BinaryServer server;
+
+    @BeforeClass
+    public static void startServer() throws IOException {
+        server = BinaryServer.start(new InetSocketAddress("localhost", 0));
+    }
+
+    @AfterClass
+    public static void stopServer() throws IOException {
+        server.close();
+    }
+
+    /*
+     * Test that pipelined operations are all answered, each with the outcome of its request
+     */
+    @Test
+    public void testPipelinedOperations() throws IOException {
+
+        BankController bankController = BankController.getInstance();
+        Account source = bankController.addAccount("binary source", 100);
+        Account target = bankController.addAccount("binary target", 0);
+
+        try (BinaryClient client = new BinaryClient(new InetSocketAddress("localhost", server.getPort()))) {
+
+            int transfer = client.transfer(source.getUuid(), target.getUuid(), 30, "Binary rent");
+            int deposit = client.deposit(target.getUuid(), 5);
+            int withdrawal = client.withdraw(source.getUuid(), 10);
+            int overdraft = client.withdraw(source.getUuid(), 1000);
+            int negative = client.deposit(target.getUuid(), -1);
+            int missing = client.balance(Integer.MAX_VALUE);
+            int overdrawn = client.transfer(source.getUuid(), target.getUuid(), 1000, "Binary overdraft");
+
+            Map<Integer, BinaryClient.Response> responses = new HashMap<Integer, BinaryClient.Response>();
+            for (int i = 0; i < 7; i++) {
+                BinaryClient.Response response = client.read();
+                responses.put(response.getRequestId(), response);
+            }
+
+            Transaction transferred = responses.get(transfer).getTransaction();
+            assertEquals(Response.Status.CREATED.getStatusCode(), responses.get(transfer).getStatus());
+            assertEquals("Binary rent", transferred.getMessage());
+            assertEquals(70, transferred.getSourceAccountEndBalance());
+            assertEquals(Response.Status.CREATED.getStatusCode(), responses.get(deposit).getStatus());
+            assertEquals(Response.Status.CREATED.getStatusCode(), responses.get(withdrawal).getStatus());
+            assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), responses.get(overdraft).getStatus());
+            assertNotNull(responses.get(overdraft).getError());
+            assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), responses.get(negative).getStatus());
+            assertEquals(Response.Status.NOT_FOUND.getStatusCode(), responses.get(missing).getStatus());
+            assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), responses.get(overdrawn).getStatus());
+            assertEquals("Account " + source.getUuid() + " does not have enough funds for this transfer",
+                    responses.get(overdrawn).getError());
+
+            client.balance(source.getUuid());
+            BinaryClient.Response balance = client.read();
+            assertEquals(Response.Status.OK.getStatusCode(), balance.getStatus());
+            assertEquals(60, balance.getBalance());
+            assertEquals(bankController.getBank().getAccounts().getVersion(source.getUuid()), balance.getVersion());
+            assertTrue(balance.isActive());
+
+            client.transaction(transferred.getUuid());
+            BinaryClient.Response lookup = client.read();
+            assertEquals(Response.Status.OK.getStatusCode(), lookup.getStatus());
+            assertEquals(transferred.getTimestamp(), lookup.getTransaction().getTimestamp());
+            assertEquals(Integer.valueOf(target.getUuid()), lookup.getTransaction().getTargetAccount());
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package com.example.transferapi.controller;
+
+import com.example.transferapi.model.Account;
+import com.example.transferapi.model.BatchOperation;
+import org.junit.Test;
+
+import javax.ws.rs.WebApplicationException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+
+public class BankControllerTest {
+
+    private final static Logger L = Logger.getLogger(BankControllerTest.class.getName());
+
+    private static final int THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+    /*
+     * Stress test with random transfers between a small set of accounts: money must be conserved and every
+     * successful transfer must be recorded exactly once
+     */
+    @Test
+    public void testConcurrentTransfersConserveMoney() throws Exception {
+
+        final BankController bankController = new BankController();
+
+        final int accounts = 32;
+        final long startBalance = 1000;
+
+        for (int i = 0; i < accounts; i++) {
+            bankController.addAccount("account " + i, startBalance);
+        }
+
+        final int transfersPerThread = 20000;
+
+        List<Callable<Integer>> workers = new ArrayList<Callable<Integer>>();
+        for (int t = 0; t < THREADS; t++) {
+            final long seed = t;
+            workers.add(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    Random random = new Random(seed);
+                    int completed = 0;
+                    for (int i = 0; i < transfersPerThread; i++) {
+                        Account source = bankController.getBank().getAccounts().get(random.nextInt(accounts));
+                        Account target = bankController.getBank().getAccounts().get(random.nextInt(accounts));
+                        try {
+                            bankController.transferMoney(source, target, 1 + random.nextInt(50), "stress");
+                            completed++;
+                        } catch (WebApplicationException e) {
+                            // insufficient funds
+                        }
+                    }
+                    return completed;
+                }
+            });
+        }
+
+        int completed = 0;
+        for (Future<Integer> result : run(workers)) {
+            completed += result.get();
+        }
+
+        long total = 0;
+        for (Account account : bankController.getBank().getAccounts()) {
+            assertTrue("Balances must never go negative", account.getBalance() >= 0);
+            total += account.getBalance();
+        }
+
+        assertEquals("Money must be conserved", accounts * startBalance, total);
+        assertEquals("Every transfer must be recorded once", accounts + completed, bankController.getBank().getTransactions().size());
+    }
+
+    /*
+     * Snapshots taken while transfers and atomic batches are applied must always hold all the money: a transfer or a
+     * batch is either entirely in a snapshot or not at all
+     */
+    @Test
+    public void testSnapshotsAreConsistent() throws Exception {
+
+        final BankController bankController = new BankController();
+
+        final int accounts = 16;
+        final long startBalance = 1000;
+
+        for (int i = 0; i < accounts; i++) {
+            bankController.addAccount("account " + i, startBalance);
+        }
+
+        final int operationsPerThread = 20000;
+        final AtomicBoolean running = new AtomicBoolean(true);
+
+        List<Callable<Integer>> workers = new ArrayList<Callable<Integer>>();
+        for (int t = 0; t < THREADS; t++) {
+            final long seed = t;
+            workers.add(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    Random random = new Random(seed);
+                    for (int i = 0; i < operationsPerThread; i++) {
+                        int source = bankController.getBank().getAccounts().uuidAt(random.nextInt(accounts));
+                        int target = bankController.getBank().getAccounts().uuidAt(random.nextInt(accounts));
+                        long amount = 1 + random.nextInt(20);
+                        try {
+                            if (i % 2 == 0) {
+                                bankController.transferMoney(bankController.getBank().getAccounts().getAccount(source),
+                                        bankController.getBank().getAccounts().getAccount(target), amount, "snapshot");
+                            } else {
+                                // the money is out of the bank between the two transactions of the batch
+                                bankController.applyAtomically(Arrays.asList(
+                                        operation(BatchOperation.OperationType.WITHDRAW, source, null, amount),
+                                        operation(BatchOperation.OperationType.DEPOSIT, null, target, amount)));
+                            }
+                        } catch (WebApplicationException e) {
+                            // insufficient funds or same account
+                        }
+                    }
+                    return operationsPerThread;
+                }
+            });
+        }
+
+        workers.add(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                int snapshots = 0;
+                while (running.get()) {
+                    BankSnapshot snapshot = bankController.snapshot();
+                    assertEquals("A snapshot must hold all the money", accounts * startBalance, snapshot.getTotalBalance());
+                    snapshots++;
+                }
+                return snapshots;
+            }
+        });
+
+        ExecutorService executor = Executors.newFixedThreadPool(workers.size());
+        try {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (Callable<Integer> worker : workers) {
+                results.add(executor.submit(worker));
+            }
+            for (int t = 0; t < THREADS; t++) {
+                results.get(t).get();
+            }
+            running.set(false);
+
+            int snapshots = results.get(THREADS).get();
+            L.info(String.format("%s consistent snapshots taken while transferring", snapshots));
+            assertTrue(snapshots > 0);
+        } finally {
+            executor.shutdown();
+        }
+
+        BankSnapshot snapshot = bankController.snapshot();
+        assertEquals(bankController.getBank().getTransactions().size(), snapshot.getTransactionCount());
+        for (Account account : snapshot) {
+            assertEquals("A snapshot of an idle bank must hold the current balances",
+                    bankController.getBank().getAccounts().getBalance(account.getUuid()), account.getBalance());
+        }
+    }
+
+    /*
+     * Test that an account created after the cut of a snapshot is not in it, neither in its size nor in its total
+     */
+    @Test
+    public void testSnapshotLeavesOutLaterAccounts() {
+
+        BankController bankController = new BankController();
+
+        bankController.addAccount("first", 100);
+        bankController.addAccount("second", 50);
+
+        int cut = bankController.getBank().getTransactions().size();
+        Account late = bankController.addAccount("late", 70);
+        bankController.depositMoney(late, 5);
+
+        BankSnapshot snapshot = bankController.snapshot(cut);
+
+        assertEquals(2, snapshot.size());
+        assertEquals(150, snapshot.getTotalBalance());
+        for (Account account : snapshot) {
+            assertFalse(late.getUuid() == account.getUuid());
+        }
+
+        assertEquals(3, bankController.snapshot().size());
+        assertEquals(225, bankController.snapshot().getTotalBalance());
+    }
+
+    private static BatchOperation operation(BatchOperation.OperationType type, Integer source, Integer target, long amount) {
+        BatchOperation operation = new BatchOperation();
+        operation.setType(type);
+        operation.setSourceAccountId(source);
+        operation.setTargetAccountId(target);
+        operation.setAmount(amount);
+        return operation;
+    }
+
+    /*
+     * Transfers between disjoint pairs of accounts do not contend on a lock, so the aggregate throughput should
+     * grow with the number of cores
+     */
+    @Test
+    public void testDisjointTransfersScale() throws Exception {
+
+        double single = throughput(1);
+        double parallel = throughput(THREADS);
+
+        L.info(String.format("Disjoint transfers: %.0f/s with 1 thread, %.0f/s with %s threads on %s cores",
+                single, parallel, THREADS, Runtime.getRuntime().availableProcessors()));
+
+        assertTrue(parallel > 0);
+    }
+
+    private double throughput(int threads) throws Exception {
+
+        final BankController bankController = new BankController();
+
+        final int transfersPerThread = 200000;
+
+        List<Callable<Integer>> workers = new ArrayList<Callable<Integer>>();
+        for (int t = 0; t < threads; t++) {
+            final Account source = bankController.addAccount("source " + t, transfersPerThread);
+            final Account target = bankController.addAccount("target " + t, 0);
+            workers.add(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    for (int i = 0; i < transfersPerThread; i++) {
+                        bankController.transferMoney(source, target, 1, "scale");
+                    }
+                    return transfersPerThread;
+                }
+            });
+        }
+
+        long start = System.nanoTime();
+        run(workers);
+        long elapsed = System.nanoTime() - start;
+
+        for (Account account : bankController.getBank().getAccounts()) {
+            assertEquals("Every transfer must be applied", account.getName().startsWith("source") ? 0 : transfersPerThread, account.getBalance());
+        }
+
+        return threads * (double) transfersPerThread * 1e9 / elapsed;
+    }
+
+    private List<Future<Integer>> run(List<Callable<Integer>> workers) throws Exception {
+
+        ExecutorService executor = Executors.newFixedThreadPool(workers.size());
+        try {
+            List<Future<Integer>> results = executor.invokeAll(workers);
+            for (Future<Integer> result : results) {
+                result.get();
+            }
+            return results;
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.example.transferapi.controller;
+
+import com.example.transferapi.model.Account;
+import org.junit.Test;
+
+import javax.ws.rs.WebApplicationException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class LedgerRingTest {
+
+    private static final int THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+    /*
+     * Many producers on a ring much smaller than the number of commands: every command must be applied exactly
+     * once, and the commands of a producer for one partition in the order they were published
+     */
+    @Test
+    public void testCommandsAppliedOncePerPartitionInOrder() throws Exception {
+
+        final int partitions = 2;
+        final int commandsPerThread = 20000;
+
+        final LedgerRing ring = new LedgerRing(partitions, 16);
+        final List<List<Integer>> applied = new ArrayList<List<Integer>>();
+        for (int p = 0; p < partitions; p++) {
+            // only written by the thread of the partition
+            applied.add(new ArrayList<Integer>());
+        }
+
+        ExecutorService producers = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int t = 0; t < THREADS; t++) {
+            final int producer = t;
+            futures.add(producers.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < commandsPerThread; i++) {
+                        final int partition = i % partitions;
+                        final int command = producer * commandsPerThread + i;
+                        ring.execute(partition, new Runnable() {
+                            @Override
+                            public void run() {
+                                applied.get(partition).add(command);
+                            }
+                        });
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        producers.shutdown();
+
+        ring.shutdown();
+
+        List<Integer> all = new ArrayList<Integer>();
+        for (List<Integer> partition : applied) {
+            int[] last = new int[THREADS];
+            Arrays.fill(last, -1);
+            for (int command : partition) {
+                int producer = command / commandsPerThread;
+                assertTrue("Commands of a producer must keep their order", command > last[producer]);
+                last[producer] = command;
+            }
+            all.addAll(partition);
+        }
+
+        Collections.sort(all);
+        assertEquals(THREADS * commandsPerThread, all.size());
+        for (int i = 0; i < all.size(); i++) {
+            assertEquals(i, (int) all.get(i));
+        }
+    }
+
+    /*
+     * Producers racing a shutdown: every command is either applied by the time the shutdown returns or rejected,
+     * none is left in a ring that is no longer drained
+     */
+    @Test
+    public void testPublishRacingShutdown() throws Exception {
+
+        for (int round = 0; round < 50; round++) {
+
+            final LedgerRing ring = new LedgerRing(1, 4);
+            final AtomicInteger applied = new AtomicInteger();
+            final AtomicInteger rejected = new AtomicInteger();
+            final AtomicInteger published = new AtomicInteger();
+            final int commandsPerThread = 1000;
+
+            ExecutorService producers = Executors.newFixedThreadPool(THREADS);
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int t = 0; t < THREADS; t++) {
+                futures.add(producers.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < commandsPerThread; i++) {
+                            try {
+                                ring.execute(0, new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        applied.incrementAndGet();
+                                    }
+                                });
+                                published.incrementAndGet();
+                            } catch (RejectedExecutionException e) {
+                                rejected.incrementAndGet();
+                            }
+                        }
+                    }
+                }));
+            }
+
+            Thread.sleep(1);
+            ring.shutdown();
+            int appliedAtShutdown = applied.get();
+
+            for (Future<?> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+            producers.shutdown();
+
+            assertEquals("Every command must be published or rejected", THREADS * commandsPerThread,
+                    published.get() + rejected.get());
+            assertEquals("Every published command must be applied before the shutdown returns", published.get(),
+                    appliedAtShutdown);
+        }
+    }
+
+    /*
+     * Transfers applied by the ring partitions, including transfers between accounts of different partitions,
+     * must conserve money
+     */
+    @Test
+    public void testTransfersAcrossPartitionsConserveMoney() throws Exception {
+
+        final BankController bankController = new BankController();
+        final int accounts = 16;
+        final long startBalance = 1000;
+
+        for (int i = 0; i < accounts; i++) {
+            bankController.addAccount("account " + i, startBalance);
+        }
+
+        LedgerRing ring = new LedgerRing(4, 64);
+        final AtomicInteger completed = new AtomicInteger();
+        Random random = new Random(42);
+
+        for (int i = 0; i < 50000; i++) {
+            final int source = random.nextInt(accounts);
+            final int target = random.nextInt(accounts);
+            final long amount = 1 + random.nextInt(50);
+            ring.execute(source, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        bankController.transferMoneyDeferred(source, target, amount, "ring");
+                        completed.incrementAndGet();
+                    } catch (WebApplicationException e) {
+                        // insufficient funds or same account
+                    }
+                }
+            });
+        }
+
+        ring.shutdown();
+
+        long total = 0;
+        for (Account account : bankController.getBank().getAccounts()) {
+            assertTrue(account.getBalance() >= 0);
+            total += account.getBalance();
+        }
+        assertEquals(accounts * startBalance, total);
+        assertEquals(accounts + completed.get(), bankController.getBank().getTransactions().size());
+    }
+}
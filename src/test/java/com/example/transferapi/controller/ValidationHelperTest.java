@@ -0,0 +1,80 @@
+package com.example.transferapi.controller;
+
+import com.example.transferapi.model.Account;
+import com.example.transferapi.model.AccountStore;
+import org.junit.Test;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+
+import static org.junit.Assert.*;
+
+public class ValidationHelperTest {
+
+    /*
+     * Test that the single pass transfer validation fails on the same check as the separate checks, in their order
+     */
+    @Test
+    public void testValidateTransfer() {
+
+        AccountStore accounts = new AccountStore();
+        int source = accounts.add("source", Account.AccountStatus.ACTIVE, 100);
+        int target = accounts.add("target", Account.AccountStatus.ACTIVE, Long.MAX_VALUE - 10);
+        int inactive = accounts.add("inactive", Account.AccountStatus.INACTIVE, 100);
+        int missing = accounts.size();
+
+        assertEquals(ValidationHelper.VALID, ValidationHelper.validateTransfer(accounts, source, target, 10));
+        assertEquals(ValidationHelper.INVALID_AMOUNT, ValidationHelper.validateTransfer(accounts, missing, missing, 0));
+        assertEquals(ValidationHelper.SOURCE_NOT_FOUND, ValidationHelper.validateTransfer(accounts, missing, inactive, 10));
+        assertEquals(ValidationHelper.SOURCE_NOT_FOUND, ValidationHelper.validateTransfer(accounts, -1, target, 10));
+        assertEquals(ValidationHelper.SOURCE_INACTIVE, ValidationHelper.validateTransfer(accounts, inactive, missing, 10));
+        assertEquals(ValidationHelper.TARGET_NOT_FOUND, ValidationHelper.validateTransfer(accounts, source, missing, 10));
+        assertEquals(ValidationHelper.TARGET_INACTIVE, ValidationHelper.validateTransfer(accounts, source, inactive, 1000));
+        assertEquals(ValidationHelper.SAME_ACCOUNT, ValidationHelper.validateTransfer(accounts, source, source, 1000));
+        assertEquals(ValidationHelper.INSUFFICIENT_FUNDS, ValidationHelper.validateTransfer(accounts, source, target, 101));
+        assertEquals(ValidationHelper.BALANCE_LIMIT, ValidationHelper.validateTransfer(accounts, source, target, 11));
+
+        assertEquals(Response.Status.NOT_FOUND.getStatusCode(), ValidationHelper.status(ValidationHelper.TARGET_NOT_FOUND));
+        assertEquals(Response.Status.GONE.getStatusCode(), ValidationHelper.status(ValidationHelper.SOURCE_INACTIVE));
+        assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), ValidationHelper.status(ValidationHelper.INSUFFICIENT_FUNDS));
+        assertEquals("Account " + inactive + " is inactive",
+                ValidationHelper.rejectTransfer(ValidationHelper.TARGET_INACTIVE, source, inactive, 10));
+    }
+
+    /*
+     * Test that rejections carry their status and message, without a stack trace
+     */
+    @Test
+    public void testRejectionsAreStackless() {
+
+        AccountStore accounts = new AccountStore();
+        int source = accounts.add("source", Account.AccountStatus.ACTIVE, 100);
+        int target = accounts.add("target", Account.AccountStatus.ACTIVE, 0);
+
+        try {
+            ValidationHelper.checkTransfer(accounts, source, target, 1000);
+            fail("The transfer must be rejected");
+        } catch (WebApplicationException e) {
+            assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), e.getResponse().getStatus());
+            assertEquals("Account " + source + " does not have enough funds for this transfer", e.getMessage());
+            assertEquals(0, e.getStackTrace().length);
+        }
+
+        try {
+            ValidationHelper.checkAmountPositive(-5);
+            fail("The amount must be rejected");
+        } catch (WebApplicationException e) {
+            assertEquals("-5 is not a positive amount", e.getMessage());
+            assertEquals(0, e.getStackTrace().length);
+
+            WebApplicationException operation = ValidationHelper.rejectedOperation(2, e);
+            assertEquals("Operation 2: -5 is not a positive amount", operation.getMessage());
+            assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), operation.getResponse().getStatus());
+            assertEquals(0, operation.getStackTrace().length);
+        }
+
+        WebApplicationException rejected = ValidationHelper.rejected(Response.Status.PRECONDITION_FAILED, "Account %s is at version %s", 3, 7);
+        assertEquals("Account 3 is at version 7", rejected.getMessage());
+        assertEquals(0, rejected.getStackTrace().length);
+    }
+}
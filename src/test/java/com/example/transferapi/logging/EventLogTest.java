@@ -0,0 +1,185 @@
+package com.example.transferapi.logging;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+
+public class EventLogTest {
+
+    /*
+     * Handler keeping the records it is given, optionally holding the writer thread until released
+     */
+    private static class Recorder extends Handler {
+
+        final List<LogRecord> records = new ArrayList<LogRecord>();
+
+        final CountDownLatch release;
+
+        Recorder(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public synchronized void publish(LogRecord record) {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            records.add(record);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        synchronized List<String> messages() {
+            List<String> messages = new ArrayList<String>();
+            for (LogRecord record : records) {
+                messages.add(record.getMessage());
+            }
+            return messages;
+        }
+    }
+
+    private static Logger logger(String name, Recorder recorder) {
+        Logger logger = Logger.getLogger(EventLogTest.class.getName() + "." + name);
+        logger.setUseParentHandlers(false);
+        logger.addHandler(recorder);
+        return logger;
+    }
+
+    /*
+     * Test that events are formatted on the writer thread, in order, with their level and the logger as source
+     */
+    @Test
+    public void testLog() {
+
+        Recorder recorder = new Recorder(new CountDownLatch(0));
+        Logger logger = logger("log", recorder);
+        EventLog log = new EventLog(16, true, 100);
+
+        try {
+            for (int i = 0; i < 40; i++) {
+                log.log(logger, Level.INFO, "Transferring %s from account %s", i * 10L, i);
+            }
+            log.log(logger, Level.FINE, "Not logged %s", 1);
+            log.log(logger, Level.WARNING, "100% literal");
+            log.flush();
+
+            List<String> messages = recorder.messages();
+            assertEquals(41, messages.size());
+            assertEquals("Transferring 0 from account 0", messages.get(0));
+            assertEquals("100% literal", messages.get(messages.size() - 1));
+            assertEquals(Level.WARNING, recorder.records.get(messages.size() - 1).getLevel());
+            assertEquals(logger.getName(), recorder.records.get(0).getSourceClassName());
+        } finally {
+            log.shutdown();
+        }
+    }
+
+    /*
+     * Test that a full queue drops events, or makes the caller wait with the block policy
+     */
+    @Test
+    public void testOverflow() throws InterruptedException {
+
+        CountDownLatch release = new CountDownLatch(1);
+        Recorder recorder = new Recorder(release);
+        Logger logger = logger("overflow", recorder);
+        EventLog log = new EventLog(4, false, 100);
+
+        try {
+            for (int i = 0; i < 100; i++) {
+                log.log(logger, Level.INFO, "Event %s", i);
+            }
+            assertTrue(log.getDropped() >= 100 - 4 - 1);
+            release.countDown();
+            log.flush();
+            assertEquals(100 - log.getDropped(), recorder.messages().size());
+        } finally {
+            log.shutdown();
+        }
+
+        final CountDownLatch blockRelease = new CountDownLatch(1);
+        final Recorder blockRecorder = new Recorder(blockRelease);
+        final Logger blockLogger = logger("block", blockRecorder);
+        final EventLog blocking = new EventLog(4, true, 100);
+
+        try {
+            Thread producer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100; i++) {
+                        blocking.log(blockLogger, Level.INFO, "Event %s", i);
+                    }
+                }
+            });
+            producer.start();
+            producer.join(200);
+            assertTrue(producer.isAlive());
+
+            blockRelease.countDown();
+            producer.join();
+            blocking.flush();
+
+            assertEquals(0, blocking.getDropped());
+            assertEquals(100, blockRecorder.messages().size());
+            assertEquals("Event 99", blockRecorder.messages().get(99));
+        } finally {
+            blocking.shutdown();
+        }
+    }
+
+    /*
+     * Test that warnings past the rate are suppressed and counted in the next one logged
+     */
+    @Test
+    public void testWarningSampling() {
+
+        Recorder recorder = new Recorder(new CountDownLatch(0));
+        Logger logger = logger("sampling", recorder);
+        EventLog log = new EventLog(1024, true, 3);
+
+        try {
+            long second = System.nanoTime() / 1000000000L;
+            for (int i = 0; i < 10; i++) {
+                log.log(logger, Level.WARNING, "Account %s does not exist", i);
+            }
+            log.log(logger, Level.WARNING, "Account %s is inactive", 1);
+            log.flush();
+
+            // the sampling window may have rolled over in between
+            if (System.nanoTime() / 1000000000L == second) {
+                assertEquals(4, recorder.messages().size());
+                assertEquals("Account 2 does not exist", recorder.messages().get(2));
+                assertEquals("Account 1 is inactive", recorder.messages().get(3));
+            }
+
+            while (System.nanoTime() / 1000000000L == second) {
+                Thread.yield();
+            }
+
+            log.log(logger, Level.WARNING, "Account %s does not exist", 10);
+            log.flush();
+
+            List<String> messages = recorder.messages();
+            assertTrue(messages.get(messages.size() - 1).startsWith("Account 10 does not exist ("));
+            assertTrue(messages.get(messages.size() - 1).endsWith(" similar warnings suppressed)"));
+        } finally {
+            log.shutdown();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.example.transferapi.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    /*
+     * Test that every duration falls in a bucket whose bounds hold it, and that buckets are at most a quarter wide
+     */
+    @Test
+    public void testBuckets(){
+
+        assertEquals(0, LatencyHistogram.bucket(0));
+        assertEquals(0, LatencyHistogram.bucket(1024));
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucket(Long.MAX_VALUE));
+
+        for (long nanos = 1024; nanos < 1L << 36; nanos = nanos * 9 / 8 + 1) {
+
+            int bucket = LatencyHistogram.bucket(nanos);
+
+            assertTrue(nanos <= LatencyHistogram.upperBound(bucket));
+            assertTrue(nanos > LatencyHistogram.upperBound(bucket - 1) || bucket == 0);
+            assertTrue(LatencyHistogram.upperBound(bucket) - nanos <= nanos / LatencyHistogram.SUB_BUCKETS);
+        }
+    }
+
+    @Test
+    public void testRecord(){
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(2000);
+        histogram.record(2000);
+        histogram.record(1000000);
+
+        long[] counts = histogram.counts();
+
+        assertEquals(2, counts[LatencyHistogram.bucket(2000)]);
+        assertEquals(1, counts[LatencyHistogram.bucket(1000000)]);
+        assertEquals(1004000, histogram.sum());
+    }
+}
@@ -0,0 +1,107 @@
+package com.example.transferapi.model;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AccountStoreTest {
+
+    /*
+     * Test that accounts keep their columns across chunk boundaries and are materialized as detached copies
+     */
+    @Test
+    public void testAddAndGet() {
+
+        AccountStore accounts = new AccountStore();
+
+        int count = 200000;
+        for (int i = 0; i < count; i++) {
+            assertEquals("Uuids must be sequential", i, accounts.add("account " + i, Account.AccountStatus.ACTIVE, i * 10L));
+        }
+
+        assertEquals(count, accounts.size());
+
+        for (int i = 0; i < count; i += 997) {
+            assertEquals(i * 10L, accounts.getBalance(i));
+            assertEquals("account " + i, accounts.getName(i));
+            assertTrue(accounts.isActive(i));
+        }
+
+        Account account = accounts.get(count - 1);
+        assertEquals(count - 1, account.getUuid());
+        assertEquals((count - 1) * 10L, account.getBalance());
+
+        account.setBalance(0);
+        assertEquals("Changing a materialized account must not change the store", (count - 1) * 10L, accounts.getBalance(count - 1));
+    }
+
+    /*
+     * Test that the status and the version, which share a column, are updated independently
+     */
+    @Test
+    public void testStatusAndVersion() {
+
+        AccountStore accounts = new AccountStore();
+        int uuid = accounts.add("account", Account.AccountStatus.ACTIVE, 100);
+
+        assertEquals(0, accounts.getVersion(uuid));
+
+        accounts.setBalance(uuid, 90);
+        accounts.setName(uuid, "renamed");
+        assertEquals(2, accounts.getVersion(uuid));
+        assertEquals(Account.AccountStatus.ACTIVE, accounts.getStatus(uuid));
+
+        accounts.setStatus(uuid, Account.AccountStatus.INACTIVE);
+        assertEquals(3, accounts.getVersion(uuid));
+        assertEquals(Account.AccountStatus.INACTIVE, accounts.getStatus(uuid));
+        assertFalse(accounts.isActive(uuid));
+
+        accounts.setBalance(uuid, 80);
+        assertEquals(4, accounts.getVersion(uuid));
+        assertEquals("A balance change must keep the status", Account.AccountStatus.INACTIVE, accounts.getStatus(uuid));
+
+        AccountStore copy = accounts.copy();
+        accounts.setBalance(uuid, 70);
+        assertEquals("A copy must not see later changes", 80, copy.getBalance(uuid));
+        assertEquals(4, copy.getVersion(uuid));
+        assertEquals("renamed", copy.getName(uuid));
+    }
+
+    /*
+     * Test that a claim at a stale version fails, that a committed claim moves the version on, and that balance
+     * updates during a claim are kept
+     */
+    @Test
+    public void testClaims() {
+
+        AccountStore accounts = new AccountStore();
+        int uuid = accounts.add("account", Account.AccountStatus.ACTIVE, 100, 7);
+
+        assertEquals("A restored account keeps its version", 7, accounts.getVersion(uuid));
+        assertFalse("A claim at another version must fail", accounts.claim(uuid, 6));
+
+        assertTrue(accounts.claim(uuid, 7));
+        accounts.setBalance(uuid, 50);
+        accounts.commitName(uuid, "renamed");
+
+        assertEquals(9, accounts.getVersion(uuid));
+        assertEquals(50, accounts.getBalance(uuid));
+        assertEquals("renamed", accounts.getName(uuid));
+        assertFalse("The version of the claim is stale once committed", accounts.claim(uuid, 7));
+
+        accounts.claimAll();
+        assertEquals("A copy must not keep the claims", 9, accounts.copy().getVersion(uuid));
+        accounts.releaseAll();
+        assertEquals(9, accounts.getVersion(uuid));
+
+        assertTrue(accounts.claim(uuid, AccountStore.ANY_VERSION));
+        accounts.commitStatus(uuid, Account.AccountStatus.INACTIVE);
+        assertEquals(10, accounts.getVersion(uuid));
+        assertFalse("An inactive account cannot be claimed", accounts.claim(uuid, AccountStore.ANY_VERSION));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testMissingAccount() {
+        new AccountStore().getBalance(0);
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.transferapi.model;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class IdempotencyKeysTest {
+
+    /*
+     * Test that a key is held while its request is in progress, returns the outcome once completed, and is free
+     * again when its request fails
+     */
+    @Test
+    public void testReserveCompleteRelease() {
+
+        IdempotencyKeys keys = new IdempotencyKeys(10, 60000);
+
+        assertNull("A new key must be reserved", keys.reserve("a", 1));
+        assertTrue("A reserved key must be pending", keys.reserve("a", 1).isPending());
+        assertNull("A pending key has no outcome yet", keys.get("a"));
+
+        keys.complete("a", new int[]{42}, null);
+
+        IdempotencyKeys.Entry original = keys.reserve("a", 1);
+        assertFalse(original.isPending());
+        assertEquals(42, original.getOutcomes()[0]);
+        assertEquals(1, original.getFingerprint());
+
+        assertNull(keys.reserve("b", 2));
+        keys.release("b");
+        assertNull("A released key must be free", keys.reserve("b", 2));
+    }
+
+    /*
+     * Test that the oldest keys are evicted when the cache is full, and that keys expire
+     */
+    @Test
+    public void testBounds() throws InterruptedException {
+
+        IdempotencyKeys keys = new IdempotencyKeys(100, 60000);
+
+        for (int i = 0; i < 150; i++) {
+            keys.reserve("key " + i, i);
+            keys.complete("key " + i, new int[]{i}, null);
+        }
+
+        assertEquals(100, keys.snapshot().size());
+        assertNull("The oldest keys must be evicted", keys.get("key 0"));
+        assertNull(keys.get("key 49"));
+        assertEquals(50, keys.get("key 50").getOutcomes()[0]);
+        assertEquals(149, keys.get("key 149").getOutcomes()[0]);
+
+        IdempotencyKeys expiring = new IdempotencyKeys(100, 50);
+        expiring.reserve("key", 0);
+        expiring.complete("key", new int[]{0}, null);
+        assertNotNull(expiring.get("key"));
+
+        Thread.sleep(100);
+
+        assertNull("An expired key must be ignored", expiring.get("key"));
+        assertNull("An expired key must be free", expiring.reserve("key", 1));
+    }
+}
@@ -0,0 +1,206 @@
+package com.example.transferapi.model;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class TransactionJournalTest {
+
+    /*
+     * Test that ids are assigned in order and can be looked up across segment boundaries
+     */
+    @Test
+    public void testAppendAndGet() {
+
+        TransactionJournal journal = new TransactionJournal();
+
+        for (int i = 0; i < 10000; i++) {
+            Transaction transaction = new Transaction();
+            transaction.setAmount(i);
+            assertEquals("Ids must be sequential", i, journal.append(transaction));
+        }
+
+        assertEquals(10000, journal.size());
+
+        for (int i = 0; i < 10000; i++) {
+            assertEquals("Lookup must return the appended transaction", i, journal.get(i).getAmount());
+        }
+
+        assertFalse(journal.contains(10000));
+        assertFalse(journal.contains(-1));
+    }
+
+    /*
+     * Test that concurrent readers only ever observe a gap-free prefix of the journal while writers append
+     */
+    @Test
+    public void testConcurrentAppendsPublishConsistentPrefix() throws Exception {
+
+        final TransactionJournal journal = new TransactionJournal();
+        final int writers = 4;
+        final int appendsPerWriter = 50000;
+
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<String> failure = new AtomicReference<String>();
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!done.get()) {
+                    int expected = 0;
+                    for (Transaction transaction : journal) {
+                        if (transaction == null || transaction.getUuid() != expected++) {
+                            failure.set("Snapshot has a gap at " + (expected - 1));
+                            return;
+                        }
+                    }
+                }
+            }
+        });
+        reader.start();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int w = 0; w < writers; w++) {
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < appendsPerWriter; i++) {
+                        journal.append(new Transaction());
+                    }
+                }
+            });
+            threads.add(writer);
+            writer.start();
+        }
+
+        for (Thread writer : threads) {
+            writer.join();
+        }
+        done.set(true);
+        reader.join();
+
+        assertNull(failure.get(), failure.get());
+        assertEquals("Every append must be published", writers * appendsPerWriter, journal.size());
+    }
+
+    /*
+     * Test that a message the journal cannot store is refused before an id is reserved, so that the published
+     * prefix keeps moving
+     */
+    @Test
+    public void testRefusedMessageReservesNoId() {
+
+        TransactionJournal journal = new TransactionJournal();
+
+        char[] message = new char[0xFFFFFF];
+        Arrays.fill(message, 'm');
+        Transaction tooLong = new Transaction();
+        tooLong.setMessage(new String(message));
+
+        try {
+            journal.append(tooLong);
+            fail("A message longer than the journal can store must be refused");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        Transaction next = new Transaction();
+        next.setMessage("next");
+        assertEquals("The refused append must not take an id", 0, journal.append(next));
+        assertEquals("Later appends must still be published", 1, journal.size());
+    }
+
+    /*
+     * Test that every field survives the off-heap encoding, including missing accounts and messages
+     */
+    @Test
+    public void testEncoding() {
+
+        TransactionJournal journal = new TransactionJournal();
+
+        Transaction deposit = new Transaction();
+        deposit.setTargetAccount(7);
+        deposit.setAmount(250);
+        deposit.setTargetAccountStartBalance(Long.MAX_VALUE - 250);
+        deposit.setTargetAccountEndBalance(Long.MAX_VALUE);
+        deposit.setMessage("Dépôt de 2,50 € ✓");
+        deposit.setTimestamp(1500000000000L);
+        journal.append(deposit);
+
+        Transaction transfer = new Transaction();
+        transfer.setSourceAccount(3);
+        transfer.setTargetAccount(7);
+        transfer.setAmount(1);
+        transfer.setSourceAccountStartBalance(-5);
+        transfer.setSourceAccountEndBalance(-6);
+        journal.append(transfer);
+
+        Transaction read = journal.get(0);
+        assertEquals(0, read.getUuid());
+        assertNull(read.getSourceAccount());
+        assertEquals(7, read.getTargetAccount().intValue());
+        assertEquals(250, read.getAmount());
+        assertEquals(Long.MAX_VALUE - 250, read.getTargetAccountStartBalance());
+        assertEquals(Long.MAX_VALUE, read.getTargetAccountEndBalance());
+        assertEquals("Dépôt de 2,50 € ✓", read.getMessage());
+        assertEquals(1500000000000L, read.getTimestamp());
+        assertEquals(1500000000000L, journal.getTimestamp(0));
+
+        read = journal.get(1);
+        assertEquals(3, read.getSourceAccount().intValue());
+        assertEquals(-6, read.getSourceAccountEndBalance());
+        assertNull(read.getMessage());
+
+        assertNotSame("Every read must decode a new transaction", journal.get(1), journal.get(1));
+    }
+
+    /*
+     * Test that the heap does not grow with the journal. The size can be raised, e.g. to 100 million, with
+     * -Dtransferapi.test.journalRecords and enough direct memory (-XX:MaxDirectMemorySize, 64 bytes per record plus
+     * the messages).
+     */
+    @Test
+    public void testHeapStaysFlat() {
+
+        int records = Integer.getInteger("transferapi.test.journalRecords", 2000000);
+        int checkpoints = 4;
+
+        TransactionJournal journal = new TransactionJournal();
+        Runtime runtime = Runtime.getRuntime();
+
+        long initial = usedHeap(runtime);
+        long maxGrowth = 0;
+
+        for (int i = 0; i < records; i++) {
+            Transaction transaction = new Transaction();
+            transaction.setSourceAccount(i % 1000);
+            transaction.setTargetAccount((i + 1) % 1000);
+            transaction.setAmount(i);
+            transaction.setMessage(i % 2 == 0 ? "Rent" : "Transfer " + i);
+            journal.append(transaction);
+
+            if ((i + 1) % (records / checkpoints) == 0) {
+                maxGrowth = Math.max(maxGrowth, usedHeap(runtime) - initial);
+            }
+        }
+
+        assertEquals(records, journal.size());
+        assertEquals("Transfer " + (records - 1), journal.get(records - 1).getMessage());
+
+        // chunk directories, interned messages and one bit per record
+        long allowed = (16 << 20) + records / 8;
+        assertTrue(String.format("Heap grew %s bytes for %s records", maxGrowth, records), maxGrowth < allowed);
+    }
+
+    private static long usedHeap(Runtime runtime) {
+        System.gc();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
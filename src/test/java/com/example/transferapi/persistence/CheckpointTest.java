@@ -0,0 +1,210 @@
+package com.example.transferapi.persistence;
+
+import com.example.transferapi.controller.BankController;
+import com.example.transferapi.model.Account;
+import com.example.transferapi.model.AccountStore;
+import com.example.transferapi.model.IdempotencyKeys;
+import com.example.transferapi.model.Transaction;
+import com.example.transferapi.model.TransactionJournal;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+
+public class CheckpointTest {
+
+    private final static Logger L = Logger.getLogger(CheckpointTest.class.getName());
+
+    private Path directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("transferapi-checkpoint");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    /*
+     * Test that a controller restarted from a checkpoint and the segments after it sees the same state, and that
+     * the obsolete segments are deleted
+     */
+    @Test
+    public void testRecoveryFromCheckpoint() throws IOException {
+
+        Path log = directory.resolve("bank.wal");
+
+        BankController bankController = open(log);
+
+        Account source = bankController.addAccount("source account", 100);
+        Account target = bankController.addAccount("target account", 50);
+        bankController.transferMoney(source, target, 30, "rent");
+        bankController.renameAccount(target, "renamed account");
+        bankController.checkpoint();
+
+        bankController.depositMoney(target, 5);
+        bankController.withdrawMoney(source, 10);
+        bankController.deactivateAccount(source);
+        bankController.shutdown();
+
+        assertFalse("Segments covered by the checkpoint must be deleted", Files.exists(directory.resolve("bank.wal.0")));
+
+        BankController recovered = open(log);
+
+        assertEquals("Only the transactions after the checkpoint are replayed",
+                3, recovered.getBank().getTransactions().getBase().size());
+        assertEquals(5, recovered.getBank().getTransactions().size());
+
+        Account recoveredSource = recovered.getBank().getAccounts().get(source.getUuid());
+        Account recoveredTarget = recovered.getBank().getAccounts().get(target.getUuid());
+
+        assertEquals(60, recoveredSource.getBalance());
+        assertEquals(Account.AccountStatus.INACTIVE, recoveredSource.getStatus());
+        assertEquals(85, recoveredTarget.getBalance());
+        assertEquals("renamed account", recoveredTarget.getName());
+        assertEquals("Versions must survive a restart", bankController.getBank().getAccounts().getVersion(source.getUuid()),
+                recoveredSource.getVersion());
+        assertEquals(bankController.getBank().getAccounts().getVersion(target.getUuid()), recoveredTarget.getVersion());
+        assertEquals(4, recoveredTarget.getVersion());
+
+        Transaction transfer = recovered.getBank().getTransactions().get(2);
+        assertEquals("rent", transfer.getMessage());
+        assertEquals(source.getUuid(), transfer.getSourceAccount().intValue());
+        assertEquals(target.getUuid(), transfer.getTargetAccount().intValue());
+        assertEquals(30, transfer.getAmount());
+        assertEquals(80, transfer.getTargetAccountEndBalance());
+        assertNull(recovered.getBank().getTransactions().get(0).getSourceAccount());
+
+        // a checkpoint continuing a mapped one copies its transactions
+        recovered.depositMoney(recoveredTarget, 15);
+        recovered.checkpoint();
+        recovered.shutdown();
+
+        BankController reopened = open(log);
+        assertEquals(6, reopened.getBank().getTransactions().getBase().size());
+        assertEquals(6, reopened.getBank().getTransactions().size());
+        assertEquals("rent", reopened.getBank().getTransactions().get(2).getMessage());
+        assertEquals(100, reopened.getBank().getAccounts().get(target.getUuid()).getBalance());
+        assertTrue("Timestamps must be recovered", reopened.getBank().getTransactions().get(2).getTimestamp() > 0);
+        assertEquals("The account index must be rebuilt", 4,
+                reopened.getAccountTransactions(target.getUuid(), -1, Long.MIN_VALUE, Long.MAX_VALUE).size());
+        reopened.shutdown();
+    }
+
+    /*
+     * Test that idempotency keys completed before a checkpoint, and logged after it, survive a restart
+     */
+    @Test
+    public void testIdempotencyKeysSurviveRestart() throws IOException {
+
+        Path log = directory.resolve("bank.wal");
+
+        BankController bankController = open(log);
+        Account account = bankController.addAccount("account", 100);
+
+        assertNull(bankController.reserveIdempotencyKey("before", 1));
+        Transaction deposit = bankController.depositMoney(account, 5);
+        bankController.awaitDurable(bankController.completeIdempotencyKey("before", new int[]{deposit.getUuid()}, null));
+
+        bankController.checkpoint();
+
+        assertNull(bankController.reserveIdempotencyKey("after", 2));
+        bankController.awaitDurable(bankController.completeIdempotencyKey("after", new int[]{deposit.getUuid(), -400},
+                new String[]{null, "Not enough funds"}));
+
+        assertNull(bankController.reserveIdempotencyKey("pending", 3));
+        bankController.shutdown();
+
+        BankController recovered = open(log);
+        IdempotencyKeys keys = recovered.getBank().getIdempotencyKeys();
+
+        assertEquals("A key must be kept in the checkpoint", deposit.getUuid(), keys.get("before").getOutcomes()[0]);
+        assertEquals(1, keys.get("before").getFingerprint());
+        assertArrayEquals("A key must be replayed from the log", new int[]{deposit.getUuid(), -400},
+                keys.get("after").getOutcomes());
+        assertEquals("Not enough funds", keys.get("after").getErrors()[1]);
+        assertNull("A key that never completed must be free", keys.get("pending"));
+        assertNull(recovered.reserveIdempotencyKey("pending", 3));
+        recovered.shutdown();
+    }
+
+    /*
+     * Cold start from a checkpoint with many transactions. The size can be raised, e.g. to 10 million, with
+     * -Dtransferapi.test.coldStartTransactions
+     */
+    @Test
+    public void testColdStart() throws IOException {
+
+        int transactionCount = Integer.getInteger("transferapi.test.coldStartTransactions", 1000000);
+        int accountCount = 1000;
+
+        Path log = directory.resolve("bank.wal");
+
+        AccountStore accounts = new AccountStore();
+        long[] balances = new long[accountCount];
+        for (int i = 0; i < accountCount; i++) {
+            accounts.add("account " + i, Account.AccountStatus.ACTIVE, 0);
+        }
+
+        TransactionJournal journal = new TransactionJournal();
+        Random random = new Random(42);
+        for (int i = 0; i < transactionCount; i++) {
+            int target = random.nextInt(accountCount);
+            Transaction transaction = new Transaction();
+            transaction.setTargetAccount(target);
+            transaction.setAmount(1 + random.nextInt(100));
+            transaction.setTargetAccountStartBalance(balances[target]);
+            balances[target] += transaction.getAmount();
+            transaction.setTargetAccountEndBalance(balances[target]);
+            transaction.setMessage("Deposit " + i);
+            journal.append(transaction);
+        }
+        for (int i = 0; i < accountCount; i++) {
+            accounts.setBalance(i, balances[i]);
+        }
+
+        Checkpoint.write(log, 1, accounts, journal, journal.getBase(), transactionCount);
+
+        long start = System.nanoTime();
+        BankController bankController = open(log);
+        long elapsed = System.nanoTime() - start;
+
+        L.info(String.format("Cold start with %s transactions in %.1f ms", transactionCount, elapsed / 1e6));
+
+        assertEquals(transactionCount, bankController.getBank().getTransactions().size());
+        for (int i = 0; i < 100; i++) {
+            int id = random.nextInt(transactionCount);
+            Transaction expected = journal.get(id);
+            Transaction actual = bankController.getBank().getTransactions().get(id);
+            assertEquals(id, actual.getUuid());
+            assertEquals(expected.getTargetAccount(), actual.getTargetAccount());
+            assertEquals(expected.getAmount(), actual.getAmount());
+            assertEquals(expected.getTargetAccountEndBalance(), actual.getTargetAccountEndBalance());
+            assertEquals(expected.getMessage(), actual.getMessage());
+        }
+        assertEquals(balances[7], bankController.getBank().getAccounts().get(7).getBalance());
+
+        bankController.depositMoney(bankController.getBank().getAccounts().get(7), 1);
+        assertEquals(transactionCount + 1, bankController.getBank().getTransactions().size());
+        bankController.shutdown();
+    }
+
+    private BankController open(Path log) {
+        return new BankController(new WriteAheadLog(log, 0), 0) {};
+    }
+}
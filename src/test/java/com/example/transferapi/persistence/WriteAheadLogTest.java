@@ -0,0 +1,210 @@
+package com.example.transferapi.persistence;
+
+import com.example.transferapi.controller.BankController;
+import com.example.transferapi.model.Account;
+import com.example.transferapi.model.Transaction;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+
+public class WriteAheadLogTest {
+
+    private final static Logger L = Logger.getLogger(WriteAheadLogTest.class.getName());
+
+    private Path directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("transferapi-wal");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    /*
+     * Test that a controller restarted on the same log sees the same accounts and transactions
+     */
+    @Test
+    public void testRecovery() throws IOException {
+
+        Path log = directory.resolve("bank.wal");
+
+        BankController bankController = open(log, 100);
+
+        Account source = bankController.addAccount("source account", 100);
+        Account target = bankController.addAccount("target account", 50);
+        bankController.transferMoney(source, target, 30, "rent");
+        bankController.depositMoney(target, 5);
+        bankController.withdrawMoney(source, 10);
+        bankController.renameAccount(target, "renamed account");
+        bankController.deactivateAccount(source);
+        bankController.shutdown();
+
+        BankController recovered = open(log, 100);
+
+        assertEquals("Accounts must be recovered", 2, recovered.getBank().getAccounts().size());
+        assertEquals("Transactions must be recovered", 5, recovered.getBank().getTransactions().size());
+
+        Account recoveredSource = recovered.getBank().getAccounts().get(source.getUuid());
+        Account recoveredTarget = recovered.getBank().getAccounts().get(target.getUuid());
+
+        assertEquals(60, recoveredSource.getBalance());
+        assertEquals(Account.AccountStatus.INACTIVE, recoveredSource.getStatus());
+        assertEquals(85, recoveredTarget.getBalance());
+        assertEquals("renamed account", recoveredTarget.getName());
+
+        Transaction transfer = recovered.getBank().getTransactions().get(2);
+        assertEquals("rent", transfer.getMessage());
+        assertEquals(source.getUuid(), transfer.getSourceAccount().intValue());
+        assertEquals(target.getUuid(), transfer.getTargetAccount().intValue());
+        assertEquals(30, transfer.getAmount());
+        assertEquals(80, transfer.getTargetAccountEndBalance());
+
+        // the recovered controller keeps appending to the same log
+        recovered.depositMoney(recoveredTarget, 15);
+        recovered.shutdown();
+
+        BankController reopened = open(log, 100);
+        assertEquals(6, reopened.getBank().getTransactions().size());
+        assertEquals(100, reopened.getBank().getAccounts().get(target.getUuid()).getBalance());
+        reopened.shutdown();
+    }
+
+    /*
+     * Test that a record torn by a crash in the middle of a write is discarded on recovery
+     */
+    @Test
+    public void testTornRecordIsDiscarded() throws IOException {
+
+        Path log = directory.resolve("bank.wal");
+
+        BankController bankController = open(log, 0);
+        Account account = bankController.addAccount("account", 100);
+        bankController.depositMoney(account, 1);
+        bankController.shutdown();
+
+        try (FileChannel channel = FileChannel.open(directory.resolve("bank.wal.0"), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[]{0, 0, 0, 60, LogCodec.TRANSACTION, 0, 0}));
+        }
+
+        BankController recovered = open(log, 0);
+        assertEquals(2, recovered.getBank().getTransactions().size());
+        assertEquals(101, recovered.getBank().getAccounts().get(account.getUuid()).getBalance());
+
+        recovered.depositMoney(recovered.getBank().getAccounts().get(account.getUuid()), 1);
+        recovered.shutdown();
+
+        BankController reopened = open(log, 0);
+        assertEquals(3, reopened.getBank().getTransactions().size());
+        reopened.shutdown();
+    }
+
+    /*
+     * Test that a deferred operation is reported durable through a callback, without blocking on the log
+     */
+    @Test
+    public void testDurabilityCallback() throws Exception {
+
+        Path log = directory.resolve("bank.wal");
+
+        BankController bankController = open(log, 1000);
+        Account account = bankController.addAccount("account", 100);
+
+        final CountDownLatch durable = new CountDownLatch(1);
+
+        Transaction transaction = bankController.depositMoneyDeferred(account.getUuid(), 5);
+        bankController.whenDurable(transaction, new WriteAheadLog.DurabilityCallback() {
+            @Override
+            public void durable() {
+                durable.countDown();
+            }
+
+            @Override
+            public void failed(RuntimeException cause) {
+            }
+        });
+
+        assertTrue("The callback must run once the deposit is on disk", durable.await(10, TimeUnit.SECONDS));
+        bankController.shutdown();
+
+        BankController recovered = open(log, 1000);
+        assertEquals(105, recovered.getBank().getAccounts().get(account.getUuid()).getBalance());
+        recovered.shutdown();
+    }
+
+    /*
+     * Benchmark of transfers/sec with concurrent writers at different group commit windows
+     */
+    @Test
+    public void testGroupCommitThroughput() throws Exception {
+
+        long[] windows = {0, 250, 1000, 4000};
+
+        for (long window : windows) {
+
+            final BankController bankController = open(directory.resolve("bench-" + window + ".wal"), window);
+
+            final int threads = 32;
+            final int transfersPerThread = 200;
+
+            final List<Account> accounts = new ArrayList<Account>();
+            for (int i = 0; i < threads * 2; i++) {
+                accounts.add(bankController.addAccount("account " + i, transfersPerThread));
+            }
+
+            List<Thread> workers = new ArrayList<Thread>();
+            for (int t = 0; t < threads; t++) {
+                final Account source = accounts.get(t * 2);
+                final Account target = accounts.get(t * 2 + 1);
+                workers.add(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < transfersPerThread; i++) {
+                            bankController.transferMoney(source, target, 1, "benchmark");
+                        }
+                    }
+                }));
+            }
+
+            long start = System.nanoTime();
+            for (Thread worker : workers) {
+                worker.start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            long elapsed = System.nanoTime() - start;
+
+            bankController.shutdown();
+
+            L.info(String.format("Group commit window %sus: %.0f durable transfers/s with %s threads",
+                    window, threads * transfersPerThread * 1e9 / elapsed, threads));
+        }
+    }
+
+    private BankController open(Path log, long groupCommitMicros) {
+        return new BankController(new WriteAheadLog(log, groupCommitMicros)) {};
+    }
+}
@@ -0,0 +1,189 @@
+package com.example.transferapi.replication;
+
+import com.example.transferapi.controller.BankController;
+import com.example.transferapi.model.Account;
+import com.example.transferapi.model.AccountStore;
+import com.example.transferapi.model.Transaction;
+import com.example.transferapi.persistence.WriteAheadLog;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ReplicationTest {
+
+    private Path directory;
+
+    private BankController leaderController;
+
+    private BankController followerController;
+
+    private ReplicationLeader leader;
+
+    private ReplicationFollower follower;
+
+    /*
+     * A leader with its log in a temporary directory and a follower in memory, in one process
+     */
+    @Before
+    public void startNodes() throws IOException {
+
+        directory = Files.createTempDirectory("transferapi-replication");
+
+        leaderController = new BankController(new WriteAheadLog(directory.resolve("bank.wal"), 100), 0) {};
+        followerController = new BankController((WriteAheadLog) null) {};
+
+        // small frames and window, so the snapshot and the log take several of them
+        leader = ReplicationLeader.start(leaderController, new InetSocketAddress("localhost", 0), 4096, 1024);
+        follower = new ReplicationFollower(followerController, new InetSocketAddress("localhost", leader.getPort()), 5000);
+    }
+
+    @After
+    public void stopNodes() throws IOException {
+
+        follower.close();
+        leader.close();
+        leaderController.shutdown();
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    /*
+     * Test that a follower bootstraps from a snapshot, then applies the changes made on the leader
+     */
+    @Test
+    public void testSnapshotAndLog() throws Exception {
+
+        Account source = leaderController.addAccount("source", 1000);
+        Account target = leaderController.addAccount("target", 0);
+        for (int i = 0; i < 100; i++) {
+            leaderController.transferMoney(source, target, 1, "Before the snapshot " + i);
+        }
+
+        follower.start();
+        awaitReplica();
+
+        assertEquals(1, follower.getSnapshots());
+        assertEquals(900, followerController.getBank().getAccounts().getBalance(source.getUuid()));
+
+        Account closed = leaderController.addAccount("closed", 0);
+        leaderController.deactivateAccount(closed);
+        leaderController.renameAccount(target, "renamed target");
+        for (int i = 0; i < 100; i++) {
+            leaderController.transferMoney(target, source, 1, "After the snapshot " + i);
+        }
+
+        awaitReplica();
+
+        AccountStore accounts = followerController.getBank().getAccounts();
+        assertEquals(3, accounts.size());
+        assertEquals(1000, accounts.getBalance(source.getUuid()));
+        assertEquals(0, accounts.getBalance(target.getUuid()));
+        assertEquals("renamed target", accounts.getName(target.getUuid()));
+        assertEquals(Account.AccountStatus.INACTIVE, accounts.getStatus(closed.getUuid()));
+        assertEquals(1, follower.getSnapshots());
+
+        // the index of the replica answers the history of an account
+        List<Transaction> history = followerController.getAccountTransactions(source.getUuid(), -1, 0, Long.MAX_VALUE);
+        assertEquals(201, history.size());
+        assertEquals("After the snapshot 99", history.get(200).getMessage());
+
+        assertEquals(0, follower.getLagTransactions());
+        StringBuilder metrics = new StringBuilder();
+        leader.writeMetrics(metrics);
+        assertTrue(metrics.toString(), metrics.toString().contains("transferapi_replication_followers 1"));
+    }
+
+    /*
+     * Test that a follower that reconnects resumes from its position in the log, without a snapshot
+     */
+    @Test
+    public void testResume() throws Exception {
+
+        Account source = leaderController.addAccount("source", 100);
+        Account target = leaderController.addAccount("target", 0);
+
+        follower.start();
+        awaitReplica();
+
+        follower.close();
+        leaderController.transferMoney(source, target, 30, "While disconnected");
+        follower.start();
+        awaitReplica();
+
+        assertEquals(1, follower.getSnapshots());
+        assertEquals(30, followerController.getBank().getAccounts().getBalance(target.getUuid()));
+    }
+
+    /*
+     * Test that a follower whose segment was deleted by a checkpoint while it was away gets a new snapshot
+     */
+    @Test
+    public void testSnapshotAfterCheckpoint() throws Exception {
+
+        Account source = leaderController.addAccount("source", 100);
+        Account target = leaderController.addAccount("target", 0);
+
+        follower.start();
+        awaitReplica();
+
+        follower.close();
+        leaderController.transferMoney(source, target, 40, "Before the checkpoint");
+        leaderController.checkpoint();
+        leaderController.transferMoney(source, target, 5, "After the checkpoint");
+        follower.start();
+        awaitReplica();
+
+        assertEquals(2, follower.getSnapshots());
+        assertEquals(45, followerController.getBank().getAccounts().getBalance(target.getUuid()));
+        assertEquals(3, followerController.getAccountTransactions(target.getUuid(), -1, 0, Long.MAX_VALUE).size());
+    }
+
+    /*
+     * Test that a follower refuses the changes to its bank
+     */
+    @Test
+    public void testReadOnly() {
+
+        ReplicationNode node = new ReplicationNode(null, follower);
+
+        assertTrue(node.isFollower());
+        try {
+            node.checkWritable();
+            fail("A follower must refuse changes");
+        } catch (WebApplicationException e) {
+            assertEquals(Response.Status.FORBIDDEN.getStatusCode(), e.getResponse().getStatus());
+        }
+
+        new ReplicationNode(leader, null).checkWritable();
+    }
+
+    /*
+     * Waits for the follower to have every transaction and account of the leader
+     */
+    private void awaitReplica() throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + 10000;
+
+        while (followerController.getBank().getTransactions().size() != leaderController.getBank().getTransactions().size()
+                || followerController.getBank().getAccounts().size() != leaderController.getBank().getAccounts().size()) {
+            assertTrue("The follower must catch up with the leader", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
@@ -1,11 +1,15 @@
 package com.example.transferapi.resources;
 
 import com.example.transferapi.model.Account;
+import com.example.transferapi.model.BankSummary;
+import com.example.transferapi.model.Transaction;
 import org.junit.Test;
 
 import javax.ws.rs.client.Entity;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.Form;
 import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import java.util.List;
@@ -90,7 +94,7 @@ public class AccountsTest extends TestBase {
 
         Account account = response.readEntity(Account.class);
 
-        assertEquals("Created account should have balance 0", 0, account.getBalance(), 0);
+        assertEquals("Created account should have balance 0", 0, account.getBalance());
     }
 
     /*
@@ -216,6 +220,129 @@ public class AccountsTest extends TestBase {
 
     }
 
+    /*
+     * Test that changes conditioned on a stale entity tag are refused, and that the tag follows the version
+     */
+    @Test
+    public void testConditionalUpdates(){
+
+        Account accountCreated = this.createAccount("Original name", 0);
+
+        Response response = target("account")
+                .path(String.valueOf(accountCreated.getUuid()))
+                .request()
+                .get();
+
+        EntityTag original = response.getEntityTag();
+        assertNotNull("An account must have an entity tag", original);
+        assertEquals(String.valueOf(response.readEntity(Account.class).getVersion()), original.getValue());
+
+        Response renamed = target("account")
+                .path(String.valueOf(accountCreated.getUuid()))
+                .request()
+                .header(HttpHeaders.IF_MATCH, original.toString())
+                .put(Entity.form(new Form().param("name", "First name")));
+
+        assertEquals("Response should be 200 - OK", Response.Status.OK.getStatusCode(), renamed.getStatus());
+        assertFalse("A change must move the tag on", original.equals(renamed.getEntityTag()));
+
+        Response stale = target("account")
+                .path(String.valueOf(accountCreated.getUuid()))
+                .request()
+                .header(HttpHeaders.IF_MATCH, original.toString())
+                .put(Entity.form(new Form().param("name", "Second name")));
+
+        assertEquals("Response should be 412 - Precondition failed", Response.Status.PRECONDITION_FAILED.getStatusCode(), stale.getStatus());
+
+        stale = target("account")
+                .path(String.valueOf(accountCreated.getUuid()))
+                .request()
+                .header(HttpHeaders.IF_MATCH, original.toString())
+                .delete();
+
+        assertEquals("Response should be 412 - Precondition failed", Response.Status.PRECONDITION_FAILED.getStatusCode(), stale.getStatus());
+
+        Response deactivated = target("account")
+                .path(String.valueOf(accountCreated.getUuid()))
+                .request()
+                .header(HttpHeaders.IF_MATCH, renamed.getEntityTag().toString())
+                .delete();
+
+        assertEquals("Response should be 200 - OK", Response.Status.OK.getStatusCode(), deactivated.getStatus());
+        Account account = deactivated.readEntity(Account.class);
+        assertEquals("First name", account.getName());
+        assertEquals(Account.AccountStatus.INACTIVE, account.getStatus());
+    }
+
+    /*
+     * Test that polling an account with its entity tag is answered with 304 until the account changes
+     */
+    @Test
+    public void testConditionalReads(){
+
+        Account accountCreated = this.createAccount("Polled account", 10);
+
+        Response response = target("account")
+                .path(String.valueOf(accountCreated.getUuid()))
+                .request()
+                .get();
+
+        EntityTag original = response.getEntityTag();
+
+        Response notModified = target("account")
+                .path(String.valueOf(accountCreated.getUuid()))
+                .request()
+                .header(HttpHeaders.IF_NONE_MATCH, original.toString())
+                .get();
+
+        assertEquals("Response should be 304 - Not modified", Response.Status.NOT_MODIFIED.getStatusCode(), notModified.getStatus());
+
+        Form form = new Form();
+        form.param("targetAccountId", String.valueOf(accountCreated.getUuid()));
+        form.param("amount", "5");
+        target("transaction").path("deposit").request().post(Entity.form(form)).close();
+
+        Response modified = target("account")
+                .path(String.valueOf(accountCreated.getUuid()))
+                .request()
+                .header(HttpHeaders.IF_NONE_MATCH, original.toString())
+                .get();
+
+        assertEquals("Response should be 200 - OK", Response.Status.OK.getStatusCode(), modified.getStatus());
+        assertFalse("A change must move the tag on", original.equals(modified.getEntityTag()));
+        assertEquals(15, modified.readEntity(Account.class).getBalance());
+    }
+
+    /*
+     * Test that accounts are created and renamed with JSON bodies
+     */
+    @Test
+    public void testJsonBodies(){
+
+        Response response = target("account")
+                .request()
+                .post(Entity.json("{\"name\": \"JSON account\", \"startBalance\": 25}"));
+
+        assertEquals("Response should be 201 - Created", Response.Status.CREATED.getStatusCode(), response.getStatus());
+        Account account = response.readEntity(Account.class);
+        assertEquals("JSON account", account.getName());
+        assertEquals(25, account.getBalance());
+
+        response = target("account")
+                .path(String.valueOf(account.getUuid()))
+                .request()
+                .put(Entity.json("{\"name\": \"Renamed account\"}"));
+
+        assertEquals("Response should be 200 - OK", Response.Status.OK.getStatusCode(), response.getStatus());
+        assertEquals("Renamed account", response.readEntity(Account.class).getName());
+
+        response = target("account")
+                .request()
+                .post(Entity.json("{\"startBalance\": 25}"));
+
+        assertEquals("Response should be 400 - Bad Request", Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+    }
+
     /*
      * Test of account name update with same name
      */
@@ -307,4 +434,170 @@ public class AccountsTest extends TestBase {
 
     }
 
+    /*
+     * Test to page through the accounts with the after cursor
+     */
+    @Test
+    public void testPaginatedAccounts(){
+
+        Account first = this.createAccount("first account", 0);
+        Account second = this.createAccount("second account", 0);
+
+        Response response = target("account")
+                .queryParam("after", first.getUuid())
+                .queryParam("limit", 1)
+                .request()
+                .get();
+
+        assertEquals("Response should be 200 - OK", Response.Status.OK.getStatusCode(), response.getStatus());
+
+        List<Account> page = response.readEntity(new GenericType<List<Account>>() {});
+
+        assertEquals("Page should be limited", 1, page.size());
+        assertEquals("Page should start after the cursor", second.getUuid(), page.get(0).getUuid());
+    }
+
+    /*
+     * Test to list the accounts of a snapshot and get the summary of the bank
+     */
+    @Test
+    public void testSnapshotAccounts(){
+
+        Account first = this.createAccount("snapshot account", 70);
+
+        Response response = target("account")
+                .queryParam("after", first.getUuid() - 1)
+                .queryParam("limit", 1)
+                .queryParam("snapshot", true)
+                .request()
+                .get();
+
+        assertEquals("Response should be 200 - OK", Response.Status.OK.getStatusCode(), response.getStatus());
+
+        List<Account> page = response.readEntity(new GenericType<List<Account>>() {});
+
+        assertEquals("Page should start after the cursor", first.getUuid(), page.get(0).getUuid());
+        assertEquals("Snapshot should hold the balance", 70, page.get(0).getBalance());
+        assertEquals("Snapshot should hold the name", "snapshot account", page.get(0).getName());
+
+        BankSummary summary = target("bank")
+                .path("summary")
+                .request(MediaType.APPLICATION_JSON)
+                .get(BankSummary.class);
+
+        assertTrue("Summary should count the account", summary.getAccounts() > 0);
+        assertTrue("Summary should count its starting balance", summary.getTotalBalance() >= 70);
+    }
+
+    /*
+     * Test to page with an invalid limit
+     */
+    @Test
+    public void testAccountPageInvalidLimit(){
+
+        Response response = target("account")
+                .queryParam("limit", 0)
+                .request()
+                .get();
+
+        assertEquals("Response should be 400 - Bad Request", Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+    }
+
+    /*
+     * Test to get the transactions of one account, one page at a time
+     */
+    @Test
+    public void testGetAccountTransactions(){
+
+        Account source = this.createAccount("history source", 100);
+        Account target = this.createAccount("history target", 0);
+
+        Form form = new Form();
+        form.param("sourceAccountId", String.valueOf(source.getUuid()));
+        form.param("targetAccountId", String.valueOf(target.getUuid()));
+        form.param("amount", "40");
+        form.param("message", "history");
+
+        target("transaction")
+                .request()
+                .post(Entity.form(form));
+
+        Response response = target("account")
+                .path(source.getUuid() + "/transactions")
+                .queryParam("limit", 1)
+                .request()
+                .get();
+
+        assertEquals("Response should be 200 - OK", Response.Status.OK.getStatusCode(), response.getStatus());
+
+        List<Transaction> page = response.readEntity(new GenericType<List<Transaction>>() {});
+
+        assertEquals("Page should be limited", 1, page.size());
+        assertEquals("First transaction should be the starting balance", 100, page.get(0).getTargetAccountEndBalance());
+        assertNotNull("The transfer should be linked", response.getLink("next"));
+
+        page = client().target(response.getLink("next"))
+                .request()
+                .get(new GenericType<List<Transaction>>() {});
+
+        assertEquals(1, page.size());
+        assertEquals("history", page.get(0).getMessage());
+        assertEquals(60, page.get(0).getSourceAccountEndBalance());
+
+        List<Transaction> targetHistory = target("account")
+                .path(target.getUuid() + "/transactions")
+                .request()
+                .get(new GenericType<List<Transaction>>() {});
+
+        assertEquals("Target history should have its starting balance and the transfer", 2, targetHistory.size());
+        assertEquals(page.get(0).getUuid(), targetHistory.get(1).getUuid());
+    }
+
+    /*
+     * Test to filter the transactions of an account by time
+     */
+    @Test
+    public void testGetAccountTransactionsTimeRange(){
+
+        Account account = this.createAccount("time range account", 100);
+
+        List<Transaction> history = target("account")
+                .path(account.getUuid() + "/transactions")
+                .request()
+                .get(new GenericType<List<Transaction>>() {});
+
+        long timestamp = history.get(0).getTimestamp();
+
+        history = target("account")
+                .path(account.getUuid() + "/transactions")
+                .queryParam("from", timestamp)
+                .queryParam("to", timestamp + 1)
+                .request()
+                .get(new GenericType<List<Transaction>>() {});
+
+        assertEquals("Transactions in the range should be included", 1, history.size());
+
+        history = target("account")
+                .path(account.getUuid() + "/transactions")
+                .queryParam("from", timestamp + 1)
+                .request()
+                .get(new GenericType<List<Transaction>>() {});
+
+        assertTrue("Transactions before the range should be excluded", history.isEmpty());
+    }
+
+    /*
+     * Test to get the transactions of an account that doesn't exist
+     */
+    @Test
+    public void testGetNonExistentAccountTransactions(){
+
+        Response response = target("account")
+                .path("100000/transactions")
+                .request()
+                .get();
+
+        assertEquals("Response should be 404 - Not Found", Response.Status.NOT_FOUND.getStatusCode(), response.getStatus());
+    }
+
 }
@@ -0,0 +1,54 @@
+package com.example.transferapi.resources;
+
+import com.example.transferapi.metrics.Metrics;
+import com.example.transferapi.model.Account;
+import org.junit.Test;
+
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.core.Form;
+import javax.ws.rs.core.Response;
+
+import static org.junit.Assert.*;
+
+public class MetricsTest extends TestBase {
+
+    /*
+     * Test that requests, rejections, locks and journal appends show up in the metrics
+     */
+    @Test
+    public void testMetrics(){
+
+        Account sourceAccount = this.createAccount("metrics source", 10);
+        Account targetAccount = this.createAccount("metrics target", 0);
+
+        long insufficientFunds = Metrics.rejections(Metrics.Rejection.INSUFFICIENT_FUNDS);
+
+        Form form = new Form();
+        form.param("sourceAccountId", String.valueOf(sourceAccount.getUuid()));
+        form.param("targetAccountId", String.valueOf(targetAccount.getUuid()));
+        form.param("amount", "100");
+        form.param("message", "Too much");
+
+        Response response = target("transaction").request().post(Entity.form(form));
+
+        assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+        assertEquals(insufficientFunds + 1, Metrics.rejections(Metrics.Rejection.INSUFFICIENT_FUNDS));
+
+        response = target("metrics").request().get();
+
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        assertTrue(response.getMediaType().toString().startsWith("text/plain"));
+
+        String metrics = response.readEntity(String.class);
+
+        assertTrue(metrics.contains("# TYPE transferapi_http_request_duration_seconds histogram\n"));
+        assertTrue(metrics.contains("transferapi_http_request_duration_seconds_count{endpoint=\"AccountResource.createAccount\"} "));
+        assertTrue(metrics.contains("transferapi_http_responses_total{endpoint=\"TransactionResource.transferMoney\",status=\"400\"} "));
+        assertTrue(metrics.contains("transferapi_rejections_total{reason=\"insufficient_funds\"} " + (insufficientFunds + 1) + "\n"));
+        assertTrue(metrics.contains("transferapi_lock_wait_seconds_bucket{le=\"+Inf\"} "));
+        assertTrue(metrics.contains("transferapi_lock_hold_seconds_count "));
+        assertTrue(metrics.contains("transferapi_journal_append_seconds_sum "));
+        assertTrue(metrics.contains("\ntransferapi_accounts "));
+        assertTrue(metrics.contains("\ntransferapi_transactions "));
+    }
+}
@@ -0,0 +1,147 @@
+package com.example.transferapi.resources;
+
+import com.example.transferapi.model.Account;
+import com.example.transferapi.model.Transaction;
+import org.junit.Test;
+
+import javax.json.bind.Jsonb;
+import javax.json.bind.spi.JsonbProvider;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ModelJsonTest {
+
+    private static final Jsonb JSONB = JsonbProvider.provider().create().build();
+
+    /*
+     * Test that accounts and transactions are written byte for byte as JSON-B writes them, whatever their content
+     */
+    @Test
+    public void testSameBytesAsJsonb() throws IOException {
+
+        Random random = new Random(42);
+
+        for (int i = 0; i < 1000; i++) {
+
+            Account account = new Account();
+            account.setUuid(random.nextInt(Integer.MAX_VALUE));
+            account.setName(i % 10 == 0 ? null : randomString(random));
+            account.setStatus(i % 7 == 0 ? null : Account.AccountStatus.values()[random.nextInt(2)]);
+            account.setBalance(i == 1 ? Long.MIN_VALUE : i == 2 ? Long.MAX_VALUE : random.nextLong() >> random.nextInt(64));
+            account.setVersion(random.nextInt(1000));
+
+            assertArrayEquals(jsonb(account), ModelJson.toJson(account));
+
+            Transaction transaction = new Transaction();
+            transaction.setUuid(random.nextInt(Integer.MAX_VALUE));
+            transaction.setSourceAccount(i % 3 == 0 ? null : random.nextInt());
+            transaction.setTargetAccount(i % 5 == 0 ? null : random.nextInt());
+            transaction.setAmount(random.nextLong() >> random.nextInt(64));
+            transaction.setSourceAccountStartBalance(random.nextLong());
+            transaction.setSourceAccountEndBalance(-random.nextInt(100));
+            transaction.setTargetAccountStartBalance(random.nextInt());
+            transaction.setTargetAccountEndBalance(0);
+            transaction.setMessage(i % 11 == 0 ? null : randomString(random));
+            transaction.setTimestamp(System.currentTimeMillis());
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ModelJson.write(transaction, out);
+            assertArrayEquals(jsonb(transaction), out.toByteArray());
+        }
+    }
+
+    /*
+     * Test that what is written reads back, and that JSON written by others is read whatever its layout
+     */
+    @Test
+    public void testRead() throws IOException {
+
+        Transaction transaction = new Transaction();
+        transaction.setUuid(7);
+        transaction.setTargetAccount(3);
+        transaction.setAmount(500);
+        transaction.setMessage("Café \"au\" lait\n😀");
+
+        Transaction read = ModelJson.readTransaction(new ByteArrayInputStream(ModelJson.toJson(transaction)));
+        assertArrayEquals(ModelJson.toJson(transaction), ModelJson.toJson(read));
+
+        Account account = ModelJson.readAccount(new ByteArrayInputStream((" { \"unknown\" : [1, {\"a\": \"]\"}],"
+                + " \"n\\u0061me\": \"A\\/B\\u00e9\", \"status\":\"INACTIVE\",\n\"uuid\":12, \"balance\": -5 } ")
+                .getBytes(StandardCharsets.UTF_8)));
+
+        assertEquals("A/Bé", account.getName());
+        assertEquals(Account.AccountStatus.INACTIVE, account.getStatus());
+        assertEquals(12, account.getUuid());
+        assertEquals(-5, account.getBalance());
+
+        for (String malformed : new String[]{"", "{", "[]", "{\"uuid\":1.5}", "{\"uuid\":99999999999}",
+                "{\"status\":\"CLOSED\"}", "{\"name\":\"unterminated}", "{\"balance\":1}x"}) {
+            try {
+                ModelJson.readAccount(new ByteArrayInputStream(malformed.getBytes(StandardCharsets.UTF_8)));
+                fail(malformed + " should be refused");
+            } catch (WebApplicationException e) {
+                assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), e.getResponse().getStatus());
+            }
+        }
+    }
+
+    /*
+     * Test that a body past the maximum size is refused before it is all buffered
+     */
+    @Test
+    public void testBodyTooLarge() throws IOException {
+
+        char[] name = new char[Integer.getInteger(ModelJson.MAX_BODY_SIZE_PROPERTY, 1 << 20)];
+        Arrays.fill(name, 'a');
+        byte[] body = ("{\"name\":\"" + new String(name) + "\"}").getBytes(StandardCharsets.UTF_8);
+
+        try {
+            ModelJson.readRequest(new ByteArrayInputStream(body));
+            fail("The body should be refused");
+        } catch (WebApplicationException e) {
+            assertEquals(Response.Status.REQUEST_ENTITY_TOO_LARGE.getStatusCode(), e.getResponse().getStatus());
+        }
+
+        // the thread reads the next body into a buffer of the usual size
+        assertEquals("a", ModelJson.readRequest(new ByteArrayInputStream("{\"name\":\"a\"}"
+                .getBytes(StandardCharsets.UTF_8))).getName());
+    }
+
+    private static byte[] jsonb(Object model) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JSONB.toJson(model, out);
+        return out.toByteArray();
+    }
+
+    private static String randomString(Random random) {
+
+        StringBuilder string = new StringBuilder();
+        int length = random.nextInt(20);
+
+        for (int i = 0; i < length; i++) {
+            switch (random.nextInt(4)) {
+                case 0:
+                    string.append((char) random.nextInt(0x20));
+                    break;
+                case 1:
+                    string.append("\"\\/");
+                    break;
+                case 2:
+                    string.append((char) random.nextInt(Character.MAX_VALUE + 1));
+                    break;
+                default:
+                    string.append((char) (' ' + random.nextInt(0x60)));
+            }
+        }
+
+        return string.toString();
+    }
+}
@@ -0,0 +1,64 @@
+package com.example.transferapi.resources;
+
+import com.example.transferapi.model.Account;
+import com.example.transferapi.model.Transaction;
+import com.example.transferapi.shard.HttpShard;
+import com.example.transferapi.shard.ShardCoordinator;
+import org.junit.Test;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+
+import static org.junit.Assert.*;
+
+public class ShardResourceTest extends TestBase {
+
+    /*
+     * Test the steps of a cross-shard transfer over HTTP, as another node calls them
+     */
+    @Test
+    public void testLegs(){
+
+        Account source = this.createAccount("leg source", 100);
+        Account target = this.createAccount("leg target", 0);
+
+        HttpShard shard = new HttpShard(getBaseUri());
+
+        try {
+
+            Transaction reservation = shard.debit("7-1", source.getUuid(), 40, "Over the wire");
+            assertEquals(60, reservation.getSourceAccountEndBalance());
+            assertEquals(reservation.getUuid(), shard.debit("7-1", source.getUuid(), 40, "Over the wire").getUuid());
+
+            shard.credit("7-2", target.getUuid(), 40, "Over the wire");
+            Transaction deposit = shard.commit("7-2");
+            assertEquals(40, deposit.getTargetAccountEndBalance());
+            assertEquals("Over the wire", deposit.getMessage());
+            assertEquals(reservation.getUuid(), shard.commit("7-1").getUuid());
+
+            shard.abort("7-3");
+            try {
+                shard.debit("7-3", source.getUuid(), 10, "Too late");
+                fail("A prepare after the abort must be refused");
+            } catch (WebApplicationException e) {
+                assertEquals(Response.Status.CONFLICT.getStatusCode(), e.getResponse().getStatus());
+            }
+
+            try {
+                shard.debit("7-4", source.getUuid(), 1000, "Too much");
+                fail("A debit without the funds must be refused");
+            } catch (WebApplicationException e) {
+                assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), e.getResponse().getStatus());
+            }
+
+            // transfers are only decided by their coordinator, which does not know these
+            assertEquals(ShardCoordinator.Decision.ABORTED, shard.decision("7-1"));
+
+        } finally {
+            shard.close();
+        }
+
+        Account updatedTarget = target("account/" + target.getUuid()).request().get(Account.class);
+        assertEquals(40, updatedTarget.getBalance());
+    }
+}
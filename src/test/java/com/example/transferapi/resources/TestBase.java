@@ -1,6 +1,7 @@
 package com.example.transferapi.resources;
 
 import com.example.transferapi.model.Account;
+import org.glassfish.jersey.client.ClientConfig;
 import org.glassfish.jersey.server.ResourceConfig;
 import org.glassfish.jersey.test.JerseyTest;
 
@@ -17,6 +18,14 @@ public abstract class TestBase extends JerseyTest {
         return new ResourceConfig().packages("com.example.transferapi");
     }
 
+    /*
+     * Responses are read with the same hand-written JSON providers as the server
+     */
+    @Override
+    protected void configureClient(ClientConfig config) {
+        config.register(AccountJsonProvider.class).register(TransactionJsonProvider.class);
+    }
+
     /*
      * Helper method to create an account
      */
@@ -33,7 +42,7 @@ public abstract class TestBase extends JerseyTest {
     /*
      * Helper method to create an account, specifying the name and amount
      */
-    protected Account createAccount(String name, double amount){
+    protected Account createAccount(String name, long amount){
 
         Form form = new Form();
         form.param("name", name);
@@ -1,13 +1,21 @@
 package com.example.transferapi.resources;
 
+import com.example.transferapi.controller.ValidationHelper;
 import com.example.transferapi.model.Account;
+import com.example.transferapi.model.Batch;
+import com.example.transferapi.model.BatchOperation;
+import com.example.transferapi.model.BatchResult;
 import com.example.transferapi.model.Transaction;
 import org.junit.Test;
 
+import javax.json.bind.Jsonb;
+import javax.json.bind.spi.JsonbProvider;
 import javax.ws.rs.client.Entity;
 import javax.ws.rs.core.Form;
 import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
+import java.util.Arrays;
 import java.util.List;
 
 import static org.junit.Assert.*;
@@ -25,13 +33,13 @@ public class TransactionTest  extends TestBase {
 
         Account targetAccount = this.createAccount("target account", 10);
 
-        double amount = 5;
+        long amount = 5;
 
-        double sourceAccountStartBalance = sourceAccount.getBalance();
-        double sourceAccountEndBalance = sourceAccountStartBalance - amount;
+        long sourceAccountStartBalance = sourceAccount.getBalance();
+        long sourceAccountEndBalance = sourceAccountStartBalance - amount;
 
-        double targetAccountStartBalance = targetAccount.getBalance();
-        double targetAccountEndBalance = targetAccountStartBalance + amount;
+        long targetAccountStartBalance = targetAccount.getBalance();
+        long targetAccountEndBalance = targetAccountStartBalance + amount;
 
         String message = "Sending money for the groceries";
 
@@ -51,26 +59,26 @@ public class TransactionTest  extends TestBase {
 
         assertEquals("Source account must match", sourceAccount.getUuid(), transaction.getSourceAccount().intValue());
         assertEquals("Target account must match", targetAccount.getUuid(), transaction.getTargetAccount().intValue());
-        assertEquals("Amount must match", amount, transaction.getAmount(), 0);
+        assertEquals("Amount must match", amount, transaction.getAmount());
         assertEquals("Description must match", message, transaction.getMessage());
-        assertEquals("Source account start balance must be valid", sourceAccountStartBalance, transaction.getSourceAccountStartBalance(), 0);
-        assertEquals("Source account end balance must be valid", sourceAccountEndBalance, transaction.getSourceAccountEndBalance(), 0);
-        assertEquals("Target account start balance must be valid", targetAccountStartBalance, transaction.getTargetAccountStartBalance(), 0);
-        assertEquals("Target account end balance must be valid", targetAccountEndBalance, transaction.getTargetAccountEndBalance(), 0);
+        assertEquals("Source account start balance must be valid", sourceAccountStartBalance, transaction.getSourceAccountStartBalance());
+        assertEquals("Source account end balance must be valid", sourceAccountEndBalance, transaction.getSourceAccountEndBalance());
+        assertEquals("Target account start balance must be valid", targetAccountStartBalance, transaction.getTargetAccountStartBalance());
+        assertEquals("Target account end balance must be valid", targetAccountEndBalance, transaction.getTargetAccountEndBalance());
 
         sourceAccount = target("account")
                 .path(String.valueOf(sourceAccount.getUuid()))
                 .request()
                 .get(Account.class);
 
-        assertEquals("Funds must be deducted from source account", sourceAccountEndBalance, sourceAccount.getBalance(), 0 );
+        assertEquals("Funds must be deducted from source account", sourceAccountEndBalance, sourceAccount.getBalance());
 
         targetAccount = target("account")
                 .path(String.valueOf(targetAccount.getUuid()))
                 .request()
                 .get(Account.class);
 
-        assertEquals("Funds must be added to the target account", targetAccountEndBalance, targetAccount.getBalance(), 0 );
+        assertEquals("Funds must be added to the target account", targetAccountEndBalance, targetAccount.getBalance());
 
     }
 
@@ -84,7 +92,7 @@ public class TransactionTest  extends TestBase {
 
         Account targetAccount = this.createAccount("target account", 10);
 
-        double amount = -5;
+        long amount = -5;
 
         String message = "Sending money for the groceries";
 
@@ -101,6 +109,34 @@ public class TransactionTest  extends TestBase {
         assertEquals("Response should be 400 - Bad request", Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
     }
 
+    /*
+     * Test that a transfer with a message over the limit is refused before any money moves
+     */
+    @Test
+    public void testTransferMessageTooLong(){
+
+        Account sourceAccount = this.createAccount("source account", 10);
+
+        Account targetAccount = this.createAccount("target account", 10);
+
+        char[] message = new char[ValidationHelper.MAX_MESSAGE_LENGTH + 1];
+        Arrays.fill(message, 'm');
+
+        Form form = new Form();
+        form.param("sourceAccountId", String.valueOf(sourceAccount.getUuid()));
+        form.param("targetAccountId", String.valueOf(targetAccount.getUuid()));
+        form.param("amount", "5");
+        form.param("message", new String(message));
+
+        Response response = target("transaction")
+                .request()
+                .post(Entity.form(form));
+
+        assertEquals("Response should be 400 - Bad request", Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+        assertEquals(10, this.getAccount(sourceAccount.getUuid()).getBalance());
+        assertEquals(10, this.getAccount(targetAccount.getUuid()).getBalance());
+    }
+
     /*
      * Test to transfer from/to a non-existing account
      */
@@ -109,7 +145,7 @@ public class TransactionTest  extends TestBase {
 
         Account sourceAccount = this.createAccount("source account", 10);
 
-        double amount = 10;
+        long amount = 10;
 
         String message = "Sending money for the groceries";
 
@@ -153,7 +189,7 @@ public class TransactionTest  extends TestBase {
 
         Account targetAccount = this.createAccount("target account", 10);
 
-        double amount = 5;
+        long amount = 5;
 
         String message = "Sending money for the groceries";
 
@@ -193,7 +229,7 @@ public class TransactionTest  extends TestBase {
 
         Account targetAccount = this.createAccount("target account", 10);
 
-        double amount = 15;
+        long amount = 15;
 
         String message = "Sending money for the groceries";
 
@@ -219,10 +255,10 @@ public class TransactionTest  extends TestBase {
 
         Account targetAccount = this.createAccount("target account", 10);
 
-        double amount = 5;
+        long amount = 5;
 
-        double targetAccountStartBalance = targetAccount.getBalance();
-        double targetAccountEndBalance = targetAccountStartBalance + amount;
+        long targetAccountStartBalance = targetAccount.getBalance();
+        long targetAccountEndBalance = targetAccountStartBalance + amount;
 
         Form form = new Form();
         form.param("targetAccountId", String.valueOf(targetAccount.getUuid()));
@@ -240,18 +276,19 @@ public class TransactionTest  extends TestBase {
 
         assertNull("Source account must be null", transaction.getSourceAccount());
         assertEquals("Target account must match", targetAccount.getUuid(), transaction.getTargetAccount().intValue());
-        assertEquals("Amount must match", amount, transaction.getAmount(), 0);
-        assertEquals("Source account start balance must be 0", 0, transaction.getSourceAccountStartBalance(), 0);
-        assertEquals("Source account end balance must be 0", 0, transaction.getSourceAccountEndBalance(), 0);
-        assertEquals("Target account start balance must be valid", targetAccountStartBalance, transaction.getTargetAccountStartBalance(), 0);
-        assertEquals("Target account end balance must be valid", targetAccountEndBalance, transaction.getTargetAccountEndBalance(), 0);
+        assertEquals("Amount must match", amount, transaction.getAmount());
+        assertEquals("Message must show the amount in major units", "Deposit of $0.05 into account " + targetAccount.getUuid(), transaction.getMessage());
+        assertEquals("Source account start balance must be 0", 0, transaction.getSourceAccountStartBalance());
+        assertEquals("Source account end balance must be 0", 0, transaction.getSourceAccountEndBalance());
+        assertEquals("Target account start balance must be valid", targetAccountStartBalance, transaction.getTargetAccountStartBalance());
+        assertEquals("Target account end balance must be valid", targetAccountEndBalance, transaction.getTargetAccountEndBalance());
 
         targetAccount = target("account")
                 .path(String.valueOf(targetAccount.getUuid()))
                 .request()
                 .get(Account.class);
 
-        assertEquals("Funds must be added to the target account", targetAccountEndBalance, targetAccount.getBalance(), 0 );
+        assertEquals("Funds must be added to the target account", targetAccountEndBalance, targetAccount.getBalance());
 
     }
 
@@ -261,7 +298,7 @@ public class TransactionTest  extends TestBase {
     @Test
     public void testDepositInvalidAccount(){
 
-        double amount = 5;
+        long amount = 5;
 
         Form form = new Form();
         form.param("targetAccountId", "99999");
@@ -302,10 +339,10 @@ public class TransactionTest  extends TestBase {
 
         Account sourceAccount = this.createAccount("source account", 10);
 
-        double amount = 5;
+        long amount = 5;
 
-        double sourceAccountStartBalance = sourceAccount.getBalance();
-        double sourceAccountEndBalance = sourceAccountStartBalance - amount;
+        long sourceAccountStartBalance = sourceAccount.getBalance();
+        long sourceAccountEndBalance = sourceAccountStartBalance - amount;
 
         Form form = new Form();
         form.param("sourceAccountId", String.valueOf(sourceAccount.getUuid()));
@@ -322,18 +359,18 @@ public class TransactionTest  extends TestBase {
 
         assertEquals("Source account must match", sourceAccount.getUuid(), transaction.getSourceAccount().intValue());
         assertNull("Target account must be null", transaction.getTargetAccount());
-        assertEquals("Amount must match", amount, transaction.getAmount(), 0);
-        assertEquals("Source account start balance must be valid", sourceAccountStartBalance, transaction.getSourceAccountStartBalance(), 0);
-        assertEquals("Source account end balance must be valid", sourceAccountEndBalance, transaction.getSourceAccountEndBalance(), 0);
-        assertEquals("Target account start balance must be 0", 0, transaction.getTargetAccountStartBalance(), 0);
-        assertEquals("Target account end balance must be 0", 0, transaction.getTargetAccountEndBalance(), 0);
+        assertEquals("Amount must match", amount, transaction.getAmount());
+        assertEquals("Source account start balance must be valid", sourceAccountStartBalance, transaction.getSourceAccountStartBalance());
+        assertEquals("Source account end balance must be valid", sourceAccountEndBalance, transaction.getSourceAccountEndBalance());
+        assertEquals("Target account start balance must be 0", 0, transaction.getTargetAccountStartBalance());
+        assertEquals("Target account end balance must be 0", 0, transaction.getTargetAccountEndBalance());
 
         sourceAccount = target("account")
                 .path(String.valueOf(sourceAccount.getUuid()))
                 .request()
                 .get(Account.class);
 
-        assertEquals("Funds must be deducted from source account", sourceAccountEndBalance, sourceAccount.getBalance(), 0 );
+        assertEquals("Funds must be deducted from source account", sourceAccountEndBalance, sourceAccount.getBalance());
 
     }
 
@@ -345,7 +382,7 @@ public class TransactionTest  extends TestBase {
 
         Account sourceAccount = this.createAccount("source account", 10);
 
-        double amount = 15;
+        long amount = 15;
 
         Form form = new Form();
         form.param("sourceAccountId", String.valueOf(sourceAccount.getUuid()));
@@ -366,7 +403,7 @@ public class TransactionTest  extends TestBase {
     @Test
     public void testWithdrawalInvalidAccounts(){
 
-        double amount = 5;
+        long amount = 5;
 
         Form form = new Form();
         form.param("sourceAccountId", "99999");
@@ -439,7 +476,7 @@ public class TransactionTest  extends TestBase {
 
         Account targetAccount = this.createAccount("target account", 10);
 
-        double amount = 5;
+        long amount = 5;
 
         String message = "Sending money for the groceries";
 
@@ -465,7 +502,468 @@ public class TransactionTest  extends TestBase {
 
         assertNotNull("Response should include entity", queriedTransaction);
         assertEquals("Transactions should have the same id", createdTransaction.getUuid(), queriedTransaction.getUuid());
+        assertEquals("Transactions should have the same message", message, queriedTransaction.getMessage());
+
+        Response notModified = target("transaction")
+                .path(String.valueOf(createdTransaction.getUuid()))
+                .request()
+                .header(HttpHeaders.IF_NONE_MATCH, response.getEntityTag().toString())
+                .get();
+
+        assertEquals("Response should be 304 - Not modified", Response.Status.NOT_MODIFIED.getStatusCode(), notModified.getStatus());
+
+    }
+
+    /*
+     * Test that every transaction has its own tag, so the one of a transaction is no precondition on another
+     */
+    @Test
+    public void testTransfersHaveDistinctTags(){
+
+        Account sourceAccount = this.createAccount("source account", 10);
+
+        Account targetAccount = this.createAccount("target account", 10);
+
+        Form form = new Form();
+        form.param("sourceAccountId", String.valueOf(sourceAccount.getUuid()));
+        form.param("targetAccountId", String.valueOf(targetAccount.getUuid()));
+        form.param("amount", "5");
+        form.param("message", "Splitting the bill");
+
+        Transaction first = target("transaction").request().post(Entity.form(form), Transaction.class);
+        Transaction second = target("transaction").request().post(Entity.form(form), Transaction.class);
+
+        Response firstResponse = target("transaction").path(String.valueOf(first.getUuid())).request().get();
+        Response secondResponse = target("transaction").path(String.valueOf(second.getUuid())).request().get();
+
+        assertFalse("Transactions should have different tags",
+                firstResponse.getEntityTag().equals(secondResponse.getEntityTag()));
+
+        Response response = target("transaction")
+                .path(String.valueOf(second.getUuid()))
+                .request()
+                .header(HttpHeaders.IF_NONE_MATCH, firstResponse.getEntityTag().toString())
+                .get();
+
+        assertEquals("Get transaction response should be 200 - OK", Response.Status.OK.getStatusCode(), response.getStatus());
+
+    }
+
+    /*
+     * Test that the money operations take JSON bodies with the fields of their forms
+     */
+    @Test
+    public void testJsonBodies(){
+
+        Account sourceAccount = this.createAccount("source account", 100);
+
+        Account targetAccount = this.createAccount("target account", 0);
+
+        Response response = target("transaction")
+                .request()
+                .post(Entity.json("{\"sourceAccountId\": " + sourceAccount.getUuid() + ", \"targetAccountId\": "
+                        + targetAccount.getUuid() + ", \"amount\": 30, \"message\": \"Dinner \\u00e0 deux\"}"));
+
+        assertEquals("Response should be 201 - Created", Response.Status.CREATED.getStatusCode(), response.getStatus());
+        Transaction transfer = response.readEntity(Transaction.class);
+        assertEquals(70, transfer.getSourceAccountEndBalance());
+        assertEquals(30, transfer.getTargetAccountEndBalance());
+        assertEquals("Dinner \u00e0 deux", transfer.getMessage());
+
+        response = target("transaction").path("deposit")
+                .request()
+                .post(Entity.json("{\"targetAccountId\":" + targetAccount.getUuid() + ",\"amount\":5}"));
+
+        assertEquals("Response should be 201 - Created", Response.Status.CREATED.getStatusCode(), response.getStatus());
+        assertEquals(35, response.readEntity(Transaction.class).getTargetAccountEndBalance());
+
+        response = target("transaction").path("withdraw")
+                .request()
+                .post(Entity.json("{\"sourceAccountId\":" + sourceAccount.getUuid() + ",\"amount\":10,\"unknown\":[true]}"));
+
+        assertEquals("Response should be 201 - Created", Response.Status.CREATED.getStatusCode(), response.getStatus());
+        assertEquals(60, response.readEntity(Transaction.class).getSourceAccountEndBalance());
+
+        response = target("transaction")
+                .request()
+                .post(Entity.json("{\"sourceAccountId\": " + sourceAccount.getUuid() + ", \"targetAccountId\": "
+                        + targetAccount.getUuid() + ", \"amount\": 30}"));
+
+        assertEquals("A missing message should be 400 - Bad Request", Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+
+        response = target("transaction").path("deposit")
+                .request()
+                .post(Entity.json("{\"targetAccountId\":" + targetAccount.getUuid() + ",\"amount\":5.5}"));
+
+        assertEquals("A fractional amount should be 400 - Bad Request", Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+    }
+
+    /*
+     * Test to get a non-existent transaction
+     */
+    @Test
+    public void testGetNonExistentTransaction(){
+
+        Response response = target("transaction")
+                .path("999999")
+                .request()
+                .get();
+
+        assertEquals("Response should be 404 - Not found", Response.Status.NOT_FOUND.getStatusCode(), response.getStatus());
+    }
+
+    /*
+     * Test that amounts are whole numbers of minor units
+     */
+    @Test
+    public void testDepositFractionalAmount(){
+
+        Account targetAccount = this.createAccount("target account", 10);
+
+        Form form = new Form();
+        form.param("targetAccountId", String.valueOf(targetAccount.getUuid()));
+        form.param("amount", "5.5");
+
+        Response response = target("transaction")
+                .path("deposit")
+                .request()
+                .post(Entity.form(form));
+
+        assertEquals("Response should be 400 - Bad request", Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+    }
+
+    /*
+     * Test of an atomic batch: all the operations are applied and their transaction ids returned
+     */
+    @Test
+    public void testAtomicBatch(){
+
+        Account sourceAccount = this.createAccount("source account", 10);
+        Account targetAccount = this.createAccount("target account", 10);
+
+        Batch batch = new Batch();
+        batch.getOperations().add(operation(BatchOperation.OperationType.TRANSFER, sourceAccount.getUuid(), targetAccount.getUuid(), 10));
+        batch.getOperations().add(operation(BatchOperation.OperationType.WITHDRAW, targetAccount.getUuid(), null, 15));
+        batch.getOperations().add(operation(BatchOperation.OperationType.DEPOSIT, null, sourceAccount.getUuid(), 3));
+
+        Response response = target("transaction")
+                .path("batch")
+                .request()
+                .post(Entity.json(batch));
+
+        assertEquals("Response should be 201 - Created", Response.Status.CREATED.getStatusCode(), response.getStatus());
+
+        BatchResult result = response.readEntity(BatchResult.class);
+
+        assertEquals("Every operation must have a result", 3, result.getResults().size());
+        for (BatchResult.OperationResult operationResult : result.getResults()) {
+            assertEquals(Response.Status.CREATED.getStatusCode(), operationResult.getStatus());
+            assertNotNull("Every operation must create a transaction", operationResult.getTransactionId());
+        }
+
+        assertEquals("Balance must reflect the whole batch", 3, getAccount(sourceAccount.getUuid()).getBalance());
+        assertEquals("Balance must reflect the whole batch", 5, getAccount(targetAccount.getUuid()).getBalance());
+    }
+
+    /*
+     * Test that an atomic batch with a failing operation does not apply any operation
+     */
+    @Test
+    public void testAtomicBatchAllOrNothing(){
+
+        Account sourceAccount = this.createAccount("source account", 10);
+        Account targetAccount = this.createAccount("target account", 10);
+
+        Batch batch = new Batch();
+        batch.getOperations().add(operation(BatchOperation.OperationType.TRANSFER, sourceAccount.getUuid(), targetAccount.getUuid(), 10));
+        batch.getOperations().add(operation(BatchOperation.OperationType.WITHDRAW, sourceAccount.getUuid(), null, 1));
 
+        Response response = target("transaction")
+                .path("batch")
+                .request()
+                .post(Entity.json(batch));
+
+        assertEquals("Response should be 400 - Bad request", Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+
+        assertEquals("No operation must be applied", 10, getAccount(sourceAccount.getUuid()).getBalance());
+        assertEquals("No operation must be applied", 10, getAccount(targetAccount.getUuid()).getBalance());
+    }
+
+    /*
+     * Test of a per-item batch sent as NDJSON: each operation gets its own result
+     */
+    @Test
+    public void testPerItemBatch(){
+
+        Account account = this.createAccount("target account", 10);
+
+        String body = "{\"type\":\"DEPOSIT\",\"targetAccountId\":" + account.getUuid() + ",\"amount\":5}\n"
+                + "{\"type\":\"WITHDRAW\",\"sourceAccountId\":" + account.getUuid() + ",\"amount\":100}\n"
+                + "{\"type\":\"DEPOSIT\",\"targetAccountId\":99999,\"amount\":5}\n";
+
+        Response response = target("transaction")
+                .path("batch")
+                .queryParam("mode", "PER_ITEM")
+                .request()
+                .post(Entity.entity(body, TransactionResource.APPLICATION_NDJSON));
+
+        assertEquals("Response should be 200 - OK", Response.Status.OK.getStatusCode(), response.getStatus());
+
+        BatchResult result = response.readEntity(BatchResult.class);
+
+        assertEquals(3, result.getResults().size());
+        assertEquals("Deposit should succeed", Response.Status.CREATED.getStatusCode(), result.getResults().get(0).getStatus());
+        assertNotNull(result.getResults().get(0).getTransactionId());
+        assertEquals("Withdrawal should fail for lack of funds", Response.Status.BAD_REQUEST.getStatusCode(), result.getResults().get(1).getStatus());
+        assertNull(result.getResults().get(1).getTransactionId());
+        assertEquals("Deposit should fail for a missing account", Response.Status.NOT_FOUND.getStatusCode(), result.getResults().get(2).getStatus());
+
+        assertEquals("Only the successful operation must be applied", 15, getAccount(account.getUuid()).getBalance());
+    }
+
+    /*
+     * Test that malformed batches, as JSON or NDJSON, are refused with 400
+     */
+    @Test
+    public void testMalformedBatch(){
+
+        String[] bodies = {"not json", "{\"operations\":[{\"amount\":\"x\"}]}", "{\"operations\":"};
+
+        for (String body : bodies) {
+            Response response = target("transaction")
+                    .path("batch")
+                    .request()
+                    .post(Entity.json(body));
+
+            assertEquals("Response to " + body + " should be 400 - Bad request",
+                    Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+        }
+
+        Response response = target("transaction")
+                .path("batch")
+                .request()
+                .post(Entity.entity("{\"type\":\"DEPOSIT\",\"targetAccountId\":0,\"amount\":5}\n{\"type\":",
+                        TransactionResource.APPLICATION_NDJSON));
+
+        assertEquals("Response should be 400 - Bad request", Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+    }
+
+    /*
+     * Test that a transfer retried with the same idempotency key returns the original transaction and moves the
+     * money once, and that the key cannot be reused for a different transfer
+     */
+    @Test
+    public void testIdempotentTransfer(){
+
+        Account sourceAccount = this.createAccount("source account", 10);
+        Account targetAccount = this.createAccount("target account", 10);
+        String key = "transfer-" + sourceAccount.getUuid();
+
+        Form form = new Form();
+        form.param("sourceAccountId", String.valueOf(sourceAccount.getUuid()));
+        form.param("targetAccountId", String.valueOf(targetAccount.getUuid()));
+        form.param("amount", "4");
+        form.param("message", "Paying once");
+
+        Response response = target("transaction")
+                .request()
+                .header(TransactionResource.IDEMPOTENCY_KEY, key)
+                .post(Entity.form(form));
+        assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+        Transaction original = response.readEntity(Transaction.class);
+
+        Response retry = target("transaction")
+                .request()
+                .header(TransactionResource.IDEMPOTENCY_KEY, key)
+                .post(Entity.form(form));
+        assertEquals("A retry should be answered like the original", Response.Status.CREATED.getStatusCode(), retry.getStatus());
+        assertEquals(response.getLocation(), retry.getLocation());
+        Transaction repeated = retry.readEntity(Transaction.class);
+        assertEquals("A retry must return the original transaction", original.getUuid(), repeated.getUuid());
+        assertEquals(original.getTimestamp(), repeated.getTimestamp());
+
+        assertEquals("The money must move once", 6, getAccount(sourceAccount.getUuid()).getBalance());
+        assertEquals("The money must move once", 14, getAccount(targetAccount.getUuid()).getBalance());
+
+        Form different = new Form();
+        different.param("sourceAccountId", String.valueOf(sourceAccount.getUuid()));
+        different.param("targetAccountId", String.valueOf(targetAccount.getUuid()));
+        different.param("amount", "5");
+        different.param("message", "Paying once");
+
+        Response reused = target("transaction")
+                .request()
+                .header(TransactionResource.IDEMPOTENCY_KEY, key)
+                .post(Entity.form(different));
+        assertEquals("Response should be 422 - Unprocessable entity", 422, reused.getStatus());
+
+        Response withdrawal = target("transaction")
+                .path("withdraw")
+                .request()
+                .header(TransactionResource.IDEMPOTENCY_KEY, key + "-withdraw")
+                .post(Entity.form(new Form().param("sourceAccountId", String.valueOf(sourceAccount.getUuid())).param("amount", "100")));
+        assertEquals("A failed request must not hold its key", Response.Status.BAD_REQUEST.getStatusCode(), withdrawal.getStatus());
+
+        withdrawal = target("transaction")
+                .path("withdraw")
+                .request()
+                .header(TransactionResource.IDEMPOTENCY_KEY, key + "-withdraw")
+                .post(Entity.form(new Form().param("sourceAccountId", String.valueOf(sourceAccount.getUuid())).param("amount", "6")));
+        assertEquals(Response.Status.CREATED.getStatusCode(), withdrawal.getStatus());
+        assertEquals(0, getAccount(sourceAccount.getUuid()).getBalance());
+    }
+
+    /*
+     * Test that a per-item batch retried with the same idempotency key gets the original results, failures included
+     */
+    @Test
+    public void testIdempotentBatch(){
+
+        Account account = this.createAccount("target account", 10);
+        String key = "batch-" + account.getUuid();
+
+        String body = "{\"type\":\"DEPOSIT\",\"targetAccountId\":" + account.getUuid() + ",\"amount\":5}\n"
+                + "{\"type\":\"WITHDRAW\",\"sourceAccountId\":" + account.getUuid() + ",\"amount\":100}\n";
+
+        BatchResult original = target("transaction")
+                .path("batch")
+                .queryParam("mode", "PER_ITEM")
+                .request()
+                .header(TransactionResource.IDEMPOTENCY_KEY, key)
+                .post(Entity.entity(body, TransactionResource.APPLICATION_NDJSON), BatchResult.class);
+
+        Response retry = target("transaction")
+                .path("batch")
+                .queryParam("mode", "PER_ITEM")
+                .request()
+                .header(TransactionResource.IDEMPOTENCY_KEY, key)
+                .post(Entity.entity(body, TransactionResource.APPLICATION_NDJSON));
+
+        assertEquals(Response.Status.OK.getStatusCode(), retry.getStatus());
+        BatchResult repeated = retry.readEntity(BatchResult.class);
+
+        assertEquals(2, repeated.getResults().size());
+        assertEquals(original.getResults().get(0).getTransactionId(), repeated.getResults().get(0).getTransactionId());
+        assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), repeated.getResults().get(1).getStatus());
+        assertEquals(original.getResults().get(1).getError(), repeated.getResults().get(1).getError());
+
+        assertEquals("The deposit must be applied once", 15, getAccount(account.getUuid()).getBalance());
+    }
+
+    /*
+     * Test that a batch with a null mode is atomic, also when retried with an idempotency key
+     */
+    @Test
+    public void testIdempotentBatchWithNullMode(){
+
+        Account account = this.createAccount("target account", 10);
+        String key = "null-mode-" + account.getUuid();
+
+        String body = "{\"mode\":null,\"operations\":[{\"type\":\"DEPOSIT\",\"targetAccountId\":" + account.getUuid()
+                + ",\"amount\":5}]}";
+
+        for (int i = 0; i < 2; i++) {
+            Response response = target("transaction")
+                    .path("batch")
+                    .request()
+                    .header(TransactionResource.IDEMPOTENCY_KEY, key)
+                    .post(Entity.json(body));
+
+            assertEquals("Response should be 201 - Created", Response.Status.CREATED.getStatusCode(), response.getStatus());
+            assertEquals(Batch.BatchMode.ATOMIC, response.readEntity(BatchResult.class).getMode());
+        }
+
+        assertEquals("The deposit must be applied once", 15, getAccount(account.getUuid()).getBalance());
+    }
+
+    /*
+     * Test to page through the transactions with the after cursor and the next link
+     */
+    @Test
+    public void testPaginatedTransactions(){
+
+        this.createAccount("paged account", 10);
+        this.createAccount("paged account", 20);
+        this.createAccount("paged account", 30);
+
+        Response response = target("transaction")
+                .queryParam("limit", 2)
+                .request()
+                .get();
+
+        assertEquals("Response should be 200 - OK", Response.Status.OK.getStatusCode(), response.getStatus());
+
+        List<Transaction> page = response.readEntity(new GenericType<List<Transaction>>() {});
+
+        assertEquals("Page should be limited", 2, page.size());
+        assertEquals(0, page.get(0).getUuid());
+        assertEquals(1, page.get(1).getUuid());
+        assertNotNull("More transactions should be linked", response.getLink("next"));
+
+        page = client().target(response.getLink("next"))
+                .request()
+                .get(new GenericType<List<Transaction>>() {});
+
+        assertFalse("Next page should not be empty", page.isEmpty());
+        assertEquals("Next page should start after the cursor", 2, page.get(0).getUuid());
+    }
+
+    /*
+     * Test to stream the transactions as newline delimited JSON
+     */
+    @Test
+    public void testStreamTransactions(){
+
+        this.createAccount("streamed account", 10);
+        this.createAccount("streamed account", 20);
+
+        String body = target("transaction")
+                .queryParam("after", 0)
+                .request(TransactionResource.APPLICATION_NDJSON)
+                .get(String.class);
+
+        assertTrue("Every transaction should end with a newline", body.endsWith("\n"));
+
+        Jsonb jsonb = JsonbProvider.provider().create().build();
+
+        String[] lines = body.split("\n");
+        for (int i = 0; i < lines.length; i++) {
+            assertEquals("Transactions should be streamed in order", i + 1, jsonb.fromJson(lines[i], Transaction.class).getUuid());
+        }
+        assertTrue("The stream should include both starting balances", lines.length >= 2);
+    }
+
+    /*
+     * Test to request a page larger than allowed
+     */
+    @Test
+    public void testTransactionPageTooLarge(){
+
+        Response response = target("transaction")
+                .queryParam("limit", Listing.MAX_LIMIT + 1)
+                .request()
+                .get();
+
+        assertEquals("Response should be 400 - Bad Request", Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+    }
+
+    private BatchOperation operation(BatchOperation.OperationType type, Integer sourceAccountId, Integer targetAccountId, long amount){
+
+        BatchOperation operation = new BatchOperation();
+        operation.setType(type);
+        operation.setSourceAccountId(sourceAccountId);
+        operation.setTargetAccountId(targetAccountId);
+        operation.setAmount(amount);
+        operation.setMessage("batch");
+        return operation;
+    }
+
+    private Account getAccount(int accountId){
+
+        return target("account")
+                .path(String.valueOf(accountId))
+                .request()
+                .get(Account.class);
     }
 
 }
@@ -0,0 +1,458 @@
+package com.example.transferapi.shard;
+
+import com.example.transferapi.controller.BankController;
+import com.example.transferapi.model.Account;
+import com.example.transferapi.model.AccountStore;
+import com.example.transferapi.model.Transaction;
+import com.example.transferapi.persistence.WriteAheadLog;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ShardCoordinatorTest {
+
+    private static final int SHARDS = 3;
+
+    private List<URI> nodes;
+
+    private Path directory;
+
+    private BankController[] controllers;
+
+    private ShardParticipant[] participants;
+
+    private ShardCoordinator[] coordinators;
+
+    // the clients of every node, by shard; the client from node 0 to shard 1 can fail
+    private ShardClient[][] clients;
+
+    private FlakyShard flaky;
+
+    /*
+     * Three nodes in one process, calling each other directly
+     */
+    @Before
+    public void startNodes() throws IOException {
+
+        directory = Files.createTempDirectory("transferapi-shards");
+
+        nodes = new ArrayList<URI>();
+        for (int i = 0; i < SHARDS; i++) {
+            nodes.add(URI.create("http://localhost/shard" + i + "/"));
+        }
+
+        controllers = new BankController[SHARDS];
+        participants = new ShardParticipant[SHARDS];
+        coordinators = new ShardCoordinator[SHARDS];
+        clients = new ShardClient[SHARDS][SHARDS];
+
+        for (int i = 0; i < SHARDS; i++) {
+            ShardMap shards = new ShardMap(i, nodes);
+            controllers[i] = new BankController(null, 0, shards) {};
+            participants[i] = new ShardParticipant(controllers[i]);
+            coordinators[i] = new ShardCoordinator(shards, clients[i], controllers[i]);
+        }
+
+        for (int i = 0; i < SHARDS; i++) {
+            for (int j = 0; j < SHARDS; j++) {
+                clients[i][j] = new LocalShard(participants[j], coordinators[j]);
+            }
+        }
+
+        flaky = new FlakyShard(clients[0][1]);
+        clients[0][1] = flaky;
+    }
+
+    @After
+    public void stopNodes() throws IOException {
+
+        for (BankController controller : controllers) {
+            controller.shutdown();
+        }
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    /*
+     * Replaces the node of a shard with one that logs its bank, or restarts it from its log
+     */
+    private void open(int shard) throws IOException {
+
+        controllers[shard].shutdown();
+
+        controllers[shard] = new BankController(new WriteAheadLog(directory.resolve("shard" + shard + ".wal"), 0), 0,
+                new ShardMap(shard, nodes)) {};
+
+        participants[shard] = new ShardParticipant(controllers[shard]);
+        coordinators[shard] = new ShardCoordinator(new ShardMap(shard, nodes), clients[shard], controllers[shard]);
+
+        for (int i = 0; i < SHARDS; i++) {
+            clients[i][shard] = new LocalShard(participants[shard], coordinators[shard]);
+        }
+
+        if (shard == 1) {
+            flaky.shard = clients[0][1];
+            clients[0][1] = flaky;
+        }
+    }
+
+    /*
+     * Test that accounts get the ids of their shard
+     */
+    @Test
+    public void testAccountIds() {
+
+        for (int i = 0; i < SHARDS; i++) {
+            Account first = controllers[i].addAccount("first", 0);
+            Account second = controllers[i].addAccount("second", 0);
+            AccountStore accounts = controllers[i].getBank().getAccounts();
+
+            assertEquals(i, first.getUuid());
+            assertEquals(i + SHARDS, second.getUuid());
+            assertTrue(accounts.contains(second.getUuid()));
+            assertFalse(accounts.contains(second.getUuid() + 1));
+            assertEquals(second.getUuid(), accounts.get(1).getUuid());
+            assertEquals(0, accounts.positionOf(second.getUuid() - 1));
+        }
+    }
+
+    /*
+     * Test that a transfer between two shards moves the money once both legs are prepared
+     */
+    @Test
+    public void testCommit() {
+
+        Account source = controllers[0].addAccount("source", 100);
+        Account target = controllers[1].addAccount("target", 5);
+
+        ShardCoordinator.Outcome outcome = coordinators[0].transfer(source.getUuid(), target.getUuid(), 30, "Cross-shard rent");
+
+        assertTrue(outcome.isSettled());
+        assertEquals(ShardCoordinator.Decision.COMMITTED, coordinators[0].decision(outcome.getTransferId()));
+        assertEquals(70, balance(0, source));
+        assertEquals(35, balance(1, target));
+
+        Transaction transaction = outcome.getTransaction();
+        assertEquals(Integer.valueOf(source.getUuid()), transaction.getSourceAccount());
+        assertEquals(Integer.valueOf(target.getUuid()), transaction.getTargetAccount());
+        assertEquals(70, transaction.getSourceAccountEndBalance());
+        assertEquals(5, transaction.getTargetAccountStartBalance());
+        assertEquals(35, transaction.getTargetAccountEndBalance());
+
+        Transaction credit = lastTransaction(1);
+        assertEquals("Cross-shard rent", credit.getMessage());
+        assertEquals(Integer.valueOf(target.getUuid()), credit.getTargetAccount());
+    }
+
+    /*
+     * Test that a refused debit aborts the transfer with its status
+     */
+    @Test
+    public void testAbortOnInsufficientFunds() {
+
+        Account source = controllers[0].addAccount("poor source", 10);
+        Account target = controllers[2].addAccount("target", 0);
+
+        try {
+            coordinators[0].transfer(source.getUuid(), target.getUuid(), 1000, "Too much");
+            fail("The transfer must be refused");
+        } catch (WebApplicationException e) {
+            assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), e.getResponse().getStatus());
+        }
+
+        assertEquals(10, balance(0, source));
+        assertEquals(0, balance(2, target));
+        assertEquals(0, coordinators[0].pending());
+    }
+
+    /*
+     * Test that a refused credit gives the reservation of the debit back
+     */
+    @Test
+    public void testAbortOnInactiveTarget() {
+
+        Account source = controllers[2].addAccount("source", 100);
+        Account target = controllers[0].addAccount("closed target", 0);
+        controllers[0].deactivateAccount(target);
+
+        try {
+            coordinators[2].transfer(source.getUuid(), target.getUuid(), 40, "To a closed account");
+            fail("The transfer must be refused");
+        } catch (WebApplicationException e) {
+            assertEquals(Response.Status.GONE.getStatusCode(), e.getResponse().getStatus());
+        }
+
+        assertEquals(100, balance(2, source));
+        assertEquals(0, balance(0, target));
+        assertTrue(lastTransaction(2).getMessage().startsWith("Release of reservation for transfer 2-"));
+    }
+
+    /*
+     * Test that a commit that cannot be delivered is answered unsettled and delivered by the recovery, once
+     */
+    @Test
+    public void testCoordinatorRecovery() {
+
+        Account source = controllers[0].addAccount("source", 100);
+        Account target = controllers[1].addAccount("target", 0);
+
+        flaky.failCommits = true;
+
+        ShardCoordinator.Outcome outcome = coordinators[0].transfer(source.getUuid(), target.getUuid(), 25, "Delayed");
+
+        assertFalse(outcome.isSettled());
+        assertEquals(75, balance(0, source));
+        assertEquals(25, balance(1, target));
+        assertEquals(1, coordinators[0].pending());
+
+        // the commit was applied but its acknowledgement was lost
+        flaky.failCommits = false;
+        coordinators[0].recover();
+
+        assertEquals(0, coordinators[0].pending());
+        assertEquals(25, balance(1, target));
+        assertEquals(ShardParticipant.State.COMMITTED, participants[1].getState(outcome.getTransferId()));
+    }
+
+    /*
+     * Test that a participant left in doubt asks the coordinator and applies its decision
+     */
+    @Test
+    public void testParticipantRecovery() {
+
+        Account source = controllers[0].addAccount("source", 100);
+        Account target = controllers[1].addAccount("target", 0);
+
+        flaky.dropCommits = true;
+
+        ShardCoordinator.Outcome outcome = coordinators[0].transfer(source.getUuid(), target.getUuid(), 60, "In doubt");
+
+        assertFalse(outcome.isSettled());
+        assertEquals(0, balance(1, target));
+        assertEquals(1, participants[1].inDoubt(0).size());
+
+        participants[1].recover(clients[1], 0);
+
+        assertEquals(60, balance(1, target));
+        assertTrue(participants[1].inDoubt(0).isEmpty());
+
+        // the coordinator delivers the commit again, which changes nothing
+        flaky.dropCommits = false;
+        coordinators[0].recover();
+
+        assertEquals(0, coordinators[0].pending());
+        assertEquals(60, balance(1, target));
+        assertEquals(40, balance(0, source));
+    }
+
+    /*
+     * Test that a shard that cannot be reached aborts the transfer, and that its late prepare is refused
+     */
+    @Test
+    public void testUnreachableShard() {
+
+        Account source = controllers[0].addAccount("source", 100);
+        Account target = controllers[1].addAccount("target", 0);
+
+        flaky.down = true;
+
+        String transferId = null;
+        try {
+            coordinators[0].transfer(source.getUuid(), target.getUuid(), 10, "Lost");
+            fail("The transfer must be aborted");
+        } catch (WebApplicationException e) {
+            assertEquals(Response.Status.SERVICE_UNAVAILABLE.getStatusCode(), e.getResponse().getStatus());
+            transferId = e.getMessage().split(" ")[1];
+        }
+
+        assertEquals(100, balance(0, source));
+        assertEquals(1, coordinators[0].pending());
+
+        flaky.down = false;
+        coordinators[0].recover();
+
+        assertEquals(0, coordinators[0].pending());
+        assertEquals(ShardParticipant.State.ABORTED, participants[1].getState(transferId));
+
+        try {
+            participants[1].credit(transferId, target.getUuid(), 10, "Lost");
+            fail("A late prepare must be refused");
+        } catch (WebApplicationException e) {
+            assertEquals(Response.Status.CONFLICT.getStatusCode(), e.getResponse().getStatus());
+        }
+    }
+
+    /*
+     * Test that a coordinator restarted after its commit delivers it, instead of presuming the transfer aborted
+     */
+    @Test
+    public void testCoordinatorRestart() throws IOException {
+
+        open(0);
+
+        Account source = controllers[0].addAccount("source", 100);
+        Account target = controllers[1].addAccount("target", 0);
+
+        flaky.dropCommits = true;
+
+        ShardCoordinator.Outcome outcome = coordinators[0].transfer(source.getUuid(), target.getUuid(), 25, "Restarted");
+
+        assertFalse(outcome.isSettled());
+        assertEquals(0, balance(1, target));
+
+        open(0);
+
+        assertEquals(75, balance(0, source));
+        assertEquals(ShardCoordinator.Decision.COMMITTED, coordinators[0].decision(outcome.getTransferId()));
+        assertEquals(1, coordinators[0].pending());
+
+        // the credit leg in doubt gets the commit from the restarted coordinator
+        participants[1].recover(clients[1], 0);
+        assertEquals(25, balance(1, target));
+
+        flaky.dropCommits = false;
+        coordinators[0].recover();
+
+        assertEquals(0, coordinators[0].pending());
+        assertEquals(25, balance(1, target));
+        assertEquals(ShardParticipant.State.COMMITTED, participants[0].getState(outcome.getTransferId()));
+    }
+
+    /*
+     * Test that a participant restarted with a prepared debit leg, from a checkpoint, gives the reservation back
+     * once the transfer is aborted
+     */
+    @Test
+    public void testParticipantRestart() throws IOException {
+
+        open(1);
+
+        Account source = controllers[1].addAccount("source", 100);
+        Account target = controllers[2].addAccount("closed target", 0);
+        controllers[2].deactivateAccount(target);
+
+        flaky.dropAborts = true;
+
+        try {
+            coordinators[0].transfer(source.getUuid(), target.getUuid(), 40, "To a closed account");
+            fail("The transfer must be refused");
+        } catch (WebApplicationException e) {
+            assertEquals(Response.Status.GONE.getStatusCode(), e.getResponse().getStatus());
+        }
+
+        assertEquals(60, balance(1, source));
+
+        controllers[1].checkpoint();
+        open(1);
+
+        assertEquals(60, balance(1, source));
+        assertEquals(1, participants[1].inDoubt(0).size());
+
+        participants[1].recover(clients[1], 0);
+
+        assertEquals(100, balance(1, source));
+        assertTrue(participants[1].inDoubt(0).isEmpty());
+
+        // the abort delivered again changes nothing
+        flaky.dropAborts = false;
+        coordinators[0].recover();
+
+        assertEquals(0, coordinators[0].pending());
+        assertEquals(100, balance(1, source));
+    }
+
+    private long balance(int shard, Account account) {
+        return controllers[shard].getBank().getAccounts().getBalance(account.getUuid());
+    }
+
+    private Transaction lastTransaction(int shard) {
+        List<Transaction> transactions = controllers[shard].getBank().getTransactions();
+        return transactions.get(transactions.size() - 1);
+    }
+
+    /*
+     * A shard whose messages can be lost: down loses all of them, failCommits loses the acknowledgement of the
+     * commits, dropCommits the commits themselves and dropAborts the aborts
+     */
+    private static class FlakyShard implements ShardClient {
+
+        // replaced when the node of the shard restarts
+        volatile ShardClient shard;
+
+        volatile boolean down;
+
+        volatile boolean failCommits;
+
+        volatile boolean dropCommits;
+
+        volatile boolean dropAborts;
+
+        FlakyShard(ShardClient shard) {
+            this.shard = shard;
+        }
+
+        private void check() {
+            if (down) {
+                throw new ProcessingException("Shard is down");
+            }
+        }
+
+        @Override
+        public Transaction debit(String transferId, int accountId, long amount, String message) {
+            this.check();
+            return shard.debit(transferId, accountId, amount, message);
+        }
+
+        @Override
+        public void credit(String transferId, int accountId, long amount, String message) {
+            this.check();
+            shard.credit(transferId, accountId, amount, message);
+        }
+
+        @Override
+        public Transaction commit(String transferId) {
+            this.check();
+            if (dropCommits) {
+                throw new ProcessingException("Commit lost");
+            }
+            Transaction transaction = shard.commit(transferId);
+            if (failCommits) {
+                throw new ProcessingException("Acknowledgement lost");
+            }
+            return transaction;
+        }
+
+        @Override
+        public void abort(String transferId) {
+            this.check();
+            if (dropAborts) {
+                throw new ProcessingException("Abort lost");
+            }
+            shard.abort(transferId);
+        }
+
+        @Override
+        public ShardCoordinator.Decision decision(String transferId) {
+            this.check();
+            return shard.decision(transferId);
+        }
+    }
+}